@@ -0,0 +1,83 @@
+package benchmark;
+
+import model.Connection;
+import model.Message;
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+/**
+ * A connection that encodes whatever it is sent straight into an in-memory stream on the calling thread, so a
+ * benchmark measures the routing and encoding work without sockets or writer threads.
+ */
+public class BenchmarkConnection implements Connection {
+    private int threadId;
+    private String userName;
+    private MessageCodec codec;
+    private DataOutputStream out;
+    private long sent;
+
+    public BenchmarkConnection(final int threadId) {
+        this.threadId = threadId;
+        this.codec = MessageCodecs.TEXT;
+        this.out = new DataOutputStream(OutputStream.nullOutputStream());
+    }
+
+    @Override
+    public int getThreadId() {
+        return threadId;
+    }
+
+    @Override
+    public String getUserName() {
+        return userName;
+    }
+    @Override
+    public void setUserName(final String userName) {
+        this.userName = userName;
+    }
+
+    @Override
+    public MessageCodec getCodec() {
+        return codec;
+    }
+    @Override
+    public void setCodec(final MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void send(final Message message) {
+        try {
+            MessageCodecs.write(codec, message, out);
+            sent++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The number of messages sent to this connection.
+    public long getSent() {
+        return sent;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    // Sends are written straight away.
+    @Override
+    public void afterSent(final Consumer<Boolean> callback) {
+        callback.accept(true);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,32 @@
+package benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmark runner, the main class of benchmarks.jar.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar [JMH options] [benchmark regex]
+ * Takes the normal JMH command line, but unless told otherwise writes the results as JSON to jmh-result.json and runs
+ * the GC profiler so every result includes its allocation rate (gc.alloc.rate.norm is bytes per operation).
+ */
+public class BenchmarkRunner {
+    public static void main(String args[]) throws Exception {
+        final CommandLineOptions line = new CommandLineOptions(args);
+        final ChainedOptionsBuilder options = new OptionsBuilder().parent(line);
+        if (!line.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!line.getResult().hasValue()) {
+            options.result("jmh-result.json");
+        }
+        if (line.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,100 @@
+package benchmark;
+
+import model.Message;
+import model.codec.DeflateCodec;
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static model.codec.ModifiedUtf8.HEADER_LENGTH;
+import static model.enums.MessageTypeEnum.MESSAGE;
+
+/**
+ * The CPU cost of compressing chat traffic against the bytes it saves.  Each payload is typical of what users send:
+ * a short chat line (under the threshold, so never compressed), a pasted block of log lines and a pasted stack trace.
+ * The frame size with each codec is printed at setup, so the time per frame can be read against the bytes saved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+
+    @Param({"chat", "log", "trace"})
+    private String payload;
+
+    @Param({"binary", "deflate"})
+    private String codecName;
+
+    private MessageCodec codec;
+    private Message message;
+    private byte[] frame;
+
+    @Setup
+    public void setup() throws IOException {
+        codec = "deflate".equals(codecName) ? new DeflateCodec(DeflateCodec.DEFAULT_THRESHOLD) : MessageCodecs.BINARY;
+        message = new Message()
+                .withType(MESSAGE)
+                .withSourceUser("alice")
+                .withTargetUser("bob")
+                .withText(text(payload));
+        final ByteBuffer encoded = codec.toFrame(message);
+        frame = new byte[encoded.remaining()];
+        encoded.get(frame);
+        System.out.println(payload + " with " + codecName + ": " + message.getText().length() + " characters, "
+                + frame.length + " byte frame");
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return codec.toFrame(message);
+    }
+
+    @Benchmark
+    public Message decode() throws IOException {
+        return MessageCodecs.decode(frame, HEADER_LENGTH, frame.length - HEADER_LENGTH, codec);
+    }
+
+    private static String text(final String payload) {
+        final StringBuilder builder = new StringBuilder();
+        switch (payload) {
+            case "log":
+                for (int i = 0; i < 20; i++) {
+                    builder.append("2026-03-14T09:26:").append(10 + i).append(".").append(100 + i * 37)
+                            .append("Z  INFO [pool-1-thread-").append(i % 4 + 1).append("] o.e.orders.OrderService - Order ")
+                            .append(48213 + i * 7).append(" for customer ").append(1000 + i * 13)
+                            .append(" moved to status SHIPPED in ").append(3 + i % 9).append("ms\n");
+                }
+                return builder.toString();
+            case "trace":
+                builder.append("Exception in thread \"main\" java.lang.IllegalStateException: Order 48213 has no customer\n");
+                final String[] frames = {"OrderService.ship(OrderService.java:212)", "OrderService.lambda$shipAll$3(OrderService.java:187)",
+                        "OrderController.ship(OrderController.java:64)", "OrderScheduler.run(OrderScheduler.java:41)"};
+                for (int i = 0; i < 30; i++) {
+                    builder.append("\tat com.example.orders.").append(frames[i % frames.length]).append("\n");
+                }
+                builder.append("\tat java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:1136)\n");
+                builder.append("\tat java.base/java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:635)\n");
+                builder.append("\tat java.base/java.lang.Thread.run(Thread.java:840)\n");
+                return builder.toString();
+            default:
+                return "sure, I can look at it after lunch - is the build still broken?";
+        }
+    }
+}
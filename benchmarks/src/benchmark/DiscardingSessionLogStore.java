@@ -0,0 +1,47 @@
+package benchmark;
+
+import model.store.SessionLogStore;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Keeps no history, so long benchmark runs don't fill the heap or the disk and only the server's own locking is
+ * measured.
+ */
+public class DiscardingSessionLogStore implements SessionLogStore {
+
+    @Override
+    public Set<String> getSessionIds() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public void append(final String sessionId, final String text) {
+    }
+
+    @Override
+    public long size(final String sessionId) {
+        return 0;
+    }
+
+    @Override
+    public List<String> tail(final String sessionId, final int count) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> read(final String sessionId, final long from, final int count) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void replay(final String sessionId, final Consumer<String> consumer) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
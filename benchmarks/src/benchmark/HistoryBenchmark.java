@@ -0,0 +1,83 @@
+package benchmark;
+
+import model.store.MappedSessionLogStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Reading one page of history from the middle of a session, as a HISTORY request does.  indexed goes straight to the
+ * page through the mapped store's offset index; scan finds it by replaying the history from the start, which is all
+ * the store could do before it kept an index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+    private static final String SESSION_ID = "alice/bob";
+    private static final int PAGE = 50;
+
+    @Param({"1000", "1000000"})
+    private int messages;
+
+    private MappedSessionLogStore store;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("history-benchmark");
+        store = new MappedSessionLogStore(directory, 1024 * 1024);
+        for (int i = 0; i < messages; i++) {
+            store.append(SESSION_ID, "alice: a typical short chat message " + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<String> indexed() throws IOException {
+        return store.read(SESSION_ID, messages / 2, PAGE);
+    }
+
+    @Benchmark
+    public List<String> scan() throws IOException {
+        final long from = messages / 2;
+        final List<String> page = new ArrayList<>(PAGE);
+        final long[] position = new long[1];
+        store.replay(SESSION_ID, text -> {
+            if (position[0] >= from && page.size() < PAGE) {
+                page.add(text);
+            }
+            position[0]++;
+        });
+        return page;
+    }
+}
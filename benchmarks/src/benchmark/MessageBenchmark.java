@@ -0,0 +1,79 @@
+package benchmark;
+
+import model.Message;
+import model.codec.MessageCodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static model.codec.ModifiedUtf8.HEADER_LENGTH;
+import static model.enums.MessageTypeEnum.MESSAGE;
+
+/**
+ * Encoding and decoding a chat message in the text format (Message.toString / Message.toMessage) and, for comparison,
+ * with the binary codec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageBenchmark {
+
+    @Param({"16", "256", "4096"})
+    private int textLength;
+
+    private Message message;
+    private String text;
+    private byte[] binary;
+
+    @Setup
+    public void setup() throws IOException {
+        final StringBuilder builder = new StringBuilder(textLength);
+        for (int i = 0; i < textLength; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        message = new Message()
+                .withType(MESSAGE)
+                .withSourceUser("alice")
+                .withTargetUser("bob")
+                .withText(builder.toString());
+        text = message.toString();
+        final ByteBuffer frame = MessageCodecs.BINARY.toFrame(message);
+        binary = new byte[frame.remaining()];
+        frame.get(binary);
+    }
+
+    @Benchmark
+    public String textToString() {
+        return message.toString();
+    }
+
+    @Benchmark
+    public Message textToMessage() {
+        return Message.toMessage(text);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryToFrame() throws IOException {
+        return MessageCodecs.BINARY.toFrame(message);
+    }
+
+    @Benchmark
+    public Message binaryRead() throws IOException {
+        return MessageCodecs.BINARY.read(binary, HEADER_LENGTH, binary.length - HEADER_LENGTH);
+    }
+}
@@ -0,0 +1,56 @@
+package benchmark;
+
+import model.enums.MessageTypeEnum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up a message type by its text value (text format) and by its wire code (binary format), cycling through
+ * every type so the string lookup isn't always a first hit.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageTypeEnumBenchmark {
+
+    private String[] values;
+    private byte[] codes;
+    private int index;
+
+    @Setup
+    public void setup() {
+        final MessageTypeEnum[] types = MessageTypeEnum.values();
+        values = new String[types.length];
+        codes = new byte[types.length];
+        for (int i = 0; i < types.length; i++) {
+            // A copy, so lookups can't short cut on identity.
+            values[i] = new String(types[i].getValue());
+            codes[i] = types[i].getCode();
+        }
+    }
+
+    @Benchmark
+    public MessageTypeEnum fromValue() {
+        index = (index + 1) % values.length;
+        return MessageTypeEnum.from(values[index]);
+    }
+
+    @Benchmark
+    public MessageTypeEnum fromCode() {
+        index = (index + 1) % codes.length;
+        return MessageTypeEnum.from(codes[index]);
+    }
+}
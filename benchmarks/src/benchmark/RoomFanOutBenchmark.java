@@ -0,0 +1,107 @@
+package benchmark;
+
+import model.Connection;
+import model.Message;
+import model.MessageRouter;
+import model.Room;
+import model.Server;
+import model.SharedMessage;
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static model.enums.MessageTypeEnum.ROOM_MESSAGE;
+
+/**
+ * Delivering one message to every member of a room.  perMember encodes the message again for each member, the way a
+ * one to one message is sent, while shared encodes a SharedMessage once and writes the same frame to every member.
+ * route is the whole ROOM_MESSAGE path through the MessageRouter, which uses the shared delivery.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoomFanOutBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int roomSize;
+
+    @Param({"text", "binary"})
+    private String codec;
+
+    private Server server;
+    private MessageRouter router;
+    private BenchmarkConnection sender;
+    private Connection[] members;
+    private Message message;
+    private Message request;
+
+    @Setup
+    public void setup() throws IOException {
+        final MessageCodec wire = "binary".equals(codec) ? MessageCodecs.BINARY : MessageCodecs.TEXT;
+        server = Servers.start(new DiscardingSessionLogStore());
+        router = server.getRouter();
+        final Room room = server.getRooms().create("lobby");
+        for (int i = 0; i < roomSize; i++) {
+            final BenchmarkConnection member = Servers.login(server, i, "user" + i);
+            member.setCodec(wire);
+            room.join(member);
+        }
+        sender = (BenchmarkConnection) server.getUserByUserName("user0");
+        members = room.getMembers();
+        message = new Message()
+                .withType(ROOM_MESSAGE)
+                .withSourceUser("user0")
+                .withTargetUser("lobby")
+                .withText("hey everyone, the lab is open until nine tonight");
+        request = new Message()
+                .withType(ROOM_MESSAGE)
+                .withSourceUser("user0")
+                .withTargetUser("lobby")
+                .withText(message.getText());
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public int perMember() {
+        for (Connection member : members) {
+            member.send(message);
+        }
+        return members.length;
+    }
+
+    @Benchmark
+    public int shared() {
+        final SharedMessage shared = new SharedMessage(message);
+        for (Connection member : members) {
+            member.send(shared);
+        }
+        return members.length;
+    }
+
+    @Benchmark
+    public long route() {
+        router.processMessage(sender, request);
+        return sender.getSent();
+    }
+}
@@ -0,0 +1,90 @@
+package benchmark;
+
+import model.Message;
+import model.MessageRouter;
+import model.Server;
+import model.codec.FrameReader;
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
+import model.enums.MessageTypeEnum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole path a message takes through the server, driven by in-memory streams: read a frame the way
+ * ServerThread.receive does, route it with the MessageRouter, and encode it for the target user.  Covers both a chat
+ * message (which also goes to the session log) and a typing indicator, in both wire formats.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+
+    @Param({"text", "binary"})
+    private String codec;
+
+    @Param({"MESSAGE", "TYPING"})
+    private String type;
+
+    private Server server;
+    private MessageRouter router;
+    private BenchmarkConnection alice;
+    private BenchmarkConnection bob;
+    private ByteArrayInputStream input;
+    private FrameReader reader;
+
+    @Setup
+    public void setup() throws IOException {
+        final MessageCodec wire = "binary".equals(codec) ? MessageCodecs.BINARY : MessageCodecs.TEXT;
+        server = Servers.start(new DiscardingSessionLogStore());
+        router = server.getRouter();
+        alice = Servers.login(server, 1, "alice");
+        bob = Servers.login(server, 2, "bob");
+        alice.setCodec(wire);
+        bob.setCodec(wire);
+        server.activateSession("alice", "bob");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        wire.write(new Message()
+                .withType(MessageTypeEnum.from(type))
+                .withSourceUser("alice")
+                .withTargetUser("bob")
+                .withText("hey, are you coming to the lab later?"), out);
+        out.flush();
+        input = new ByteArrayInputStream(bytes.toByteArray());
+        reader = new FrameReader(new DataInputStream(input));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public long route() throws IOException {
+        input.reset();
+        router.processMessage(alice, reader.read());
+        return bob.getSent();
+    }
+}
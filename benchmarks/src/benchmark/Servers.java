@@ -0,0 +1,34 @@
+package benchmark;
+
+import model.ConnectionThreads;
+import model.Server;
+import model.ServerConfig;
+import model.store.InMemoryOfflineQueueStore;
+import model.store.SessionLogStore;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * Starts servers for the benchmarks on a free port, the benchmarks then call into them directly.
+ */
+public final class Servers {
+
+    private Servers() {
+    }
+
+    public static Server start(final SessionLogStore store) throws IOException {
+        return new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig().withSessionLogStore(store)
+                .withOfflineQueueStore(new InMemoryOfflineQueueStore(1000, 1024 * 1024, 60000)));
+    }
+
+    // Claims the user name for the connection, the same as a successful LOGIN.
+    public static BenchmarkConnection login(final Server server, final int threadId, final String userName) {
+        final BenchmarkConnection connection = new BenchmarkConnection(threadId);
+        if (!server.claimUserName(userName, connection)) {
+            throw new IllegalStateException("User name already exists: " + userName);
+        }
+        connection.setUserName(userName);
+        return connection;
+    }
+}
@@ -0,0 +1,94 @@
+package benchmark;
+
+import model.Server;
+import model.store.MappedSessionLogStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Server.logSessionText from several threads at once.  With one session every thread fights over the same session,
+ * with more sessions they only share the server's session lock.  The mapped store writes real segment files, so it
+ * gets a fresh directory each iteration to keep disk use down.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SessionLogBenchmark {
+    private static final String TEXT = "a typical short chat message";
+
+    @Param({"1", "64"})
+    private int sessions;
+
+    @Param({"discard", "mapped"})
+    private String store;
+
+    private Server server;
+    private Path directory;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        if ("mapped".equals(store)) {
+            directory = Files.createTempDirectory("session-log-benchmark");
+            server = Servers.start(new MappedSessionLogStore(directory, 1024 * 1024));
+        } else {
+            server = Servers.start(new DiscardingSessionLogStore());
+        }
+        for (int i = 0; i < sessions; i++) {
+            server.activateSession("alice" + i, "bob" + i);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        server.close();
+        if (null != directory) {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+            directory = null;
+        }
+    }
+
+    // Spreads the benchmark threads over the sessions.
+    @State(Scope.Thread)
+    public static class Users {
+        private String userNameA;
+        private String userNameB;
+
+        @Setup
+        public void setup(final SessionLogBenchmark benchmark, final ThreadParams thread) {
+            final int session = thread.getThreadIndex() % benchmark.sessions;
+            userNameA = "alice" + session;
+            userNameB = "bob" + session;
+        }
+    }
+
+    @Benchmark
+    public void logSessionText(final Users users) {
+        server.logSessionText(users.userNameA, users.userNameB, TEXT);
+    }
+}
@@ -0,0 +1,148 @@
+package benchmark;
+
+import model.ConnectionThreads;
+import model.Message;
+import model.Server;
+import model.ServerConfig;
+import model.TlsContexts;
+import model.codec.FrameReader;
+import model.codec.MessageCodecs;
+import model.store.InMemoryOfflineQueueStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static model.enums.MessageTypeEnum.PING;
+
+/**
+ * What TLS costs against plaintext, over real loopback sockets to a server in blocking or NIO mode, with a self signed
+ * certificate generated at setup.  connect opens a connection, exchanges one PING and PONG and closes it again: plain
+ * is a bare TCP connect, full a full TLS handshake every time (the session is thrown away after each) and resumed a TLS
+ * handshake resuming the previous session.  The exchange matters for resumed, a TLS 1.3 session ticket arrives after
+ * the handshake and is only taken in by reading.  roundTrip is one PING answered with a PONG on an open connection, the
+ * per message overhead of encrypting both ways.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsBenchmark {
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    // The certificate covers the address as well as localhost, and connecting to it skips resolving the name.
+    private static final String HOST = "127.0.0.1";
+
+    @Param({"blocking", "nio"})
+    private String mode;
+
+    @Param({"plain", "full", "resumed"})
+    private String transport;
+
+    private Path directory;
+    private SSLContext client;
+    private Server server;
+    private int port;
+    // The connection roundTrip uses.
+    private Socket socket;
+    private DataOutputStream out;
+    private FrameReader reader;
+    private Message ping;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("tls-benchmark");
+        final Path keyStore = directory.resolve("server.p12");
+        final Path trustStore = directory.resolve("client.p12");
+        TlsContexts.selfSigned(keyStore, trustStore, PASSWORD);
+        client = TlsContexts.client(trustStore, PASSWORD);
+        final ServerConfig config = new ServerConfig()
+                .withSessionLogStore(new DiscardingSessionLogStore())
+                .withOfflineQueueStore(new InMemoryOfflineQueueStore(1000, 1024 * 1024, 60000))
+                .withoutRateLimits()
+                .withSslContext("plain".equals(transport) ? null : TlsContexts.server(keyStore, PASSWORD));
+        if ("nio".equals(mode)) {
+            final ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(HOST, 0));
+            port = channel.socket().getLocalPort();
+            server = new Server(channel, 1, config);
+        } else {
+            final ServerSocket serverSocket = new ServerSocket(0);
+            port = serverSocket.getLocalPort();
+            server = new Server(serverSocket, ConnectionThreads.platform(), config);
+        }
+        ping = new Message().withType(PING).withSourceUser("benchmark");
+        socket = open();
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        reader = new FrameReader(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        server.close();
+        Files.delete(directory.resolve("server.p12"));
+        Files.delete(directory.resolve("client.p12"));
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public Message connect() throws IOException {
+        try (Socket connection = open()) {
+            final DataOutputStream connectionOut = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            MessageCodecs.TEXT.write(ping, connectionOut);
+            connectionOut.flush();
+            final Message pong = new FrameReader(new DataInputStream(new BufferedInputStream(connection.getInputStream())))
+                    .read(MessageCodecs.TEXT);
+            if ("full".equals(transport)) {
+                ((SSLSocket) connection).getSession().invalidate();
+            }
+            return pong;
+        }
+    }
+
+    @Benchmark
+    public Message roundTrip() throws IOException {
+        MessageCodecs.TEXT.write(ping, out);
+        out.flush();
+        return reader.read(MessageCodecs.TEXT);
+    }
+
+    // Connected, and with TLS through the handshake.
+    private Socket open() throws IOException {
+        if ("plain".equals(transport)) {
+            final Socket connection = new Socket(HOST, port);
+            connection.setTcpNoDelay(true);
+            return connection;
+        }
+        final SSLSocket connection = (SSLSocket) client.getSocketFactory().createSocket(HOST, port);
+        connection.setTcpNoDelay(true);
+        connection.startHandshake();
+        return connection;
+    }
+}
@@ -0,0 +1,66 @@
+package benchmark;
+
+import model.Connection;
+import model.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server.getUserByUserName with a growing number of logged in users, for both online and offline targets.  Runs on
+ * several threads since every connection thread does this lookup for each message it routes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class UserLookupBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    private int users;
+
+    private Server server;
+    private String[] names;
+
+    @Setup
+    public void setup() throws IOException {
+        server = Servers.start(new DiscardingSessionLogStore());
+        names = new String[users];
+        for (int i = 0; i < users; i++) {
+            names[i] = "user" + i;
+            Servers.login(server, i, names[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public Connection online() {
+        return server.getUserByUserName(names[ThreadLocalRandom.current().nextInt(users)]);
+    }
+
+    @Benchmark
+    public Connection offline() {
+        return server.getUserByUserName("offline");
+    }
+}
@@ -1,7 +1,10 @@
 package main;
 
 import model.Client;
+import model.TlsContexts;
+import model.log.Log;
 
+import javax.net.ssl.SSLContext;
 import javax.swing.*;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -13,16 +16,27 @@ import static javax.swing.UIManager.setLookAndFeel;
 
 /**
  * Chat client runner.
+ *
+ * Several clients often run on one machine, so unless messenger.log.file is set each one logs to its own file.
+ * -Dmessenger.tlsTrustStore=client.p12 -Dmessenger.tlsTrustStorePassword=... connects over TLS, trusting the
+ * certificates in the store.
  */
 public class ClientStart {
+    private static final Log LOG = Log.get(ClientStart.class);
+
     public static void main(final String args[]) throws IOException {
+        if (null == System.getProperty("messenger.log.file")) {
+            Log.setFile("logs/client-" + ProcessHandle.current().pid() + ".log");
+        }
         SwingUtilities.invokeLater(() -> {
             try {
                 setLookAndFeel(getSystemLookAndFeelClassName());
-                final Socket socket = new Socket("localhost", 1234);
+                final SSLContext tls = TlsContexts.clientFromSystemProperties();
+                final Socket socket = null == tls ? new Socket("localhost", 1234) : tls.getSocketFactory().createSocket("localhost", 1234);
+                socket.setTcpNoDelay(true);
                 new Client(socket, new DataInputStream(socket.getInputStream()), new DataOutputStream(socket.getOutputStream()));
             } catch (Exception e) {
-                System.out.println("Error in ClientStart.main: " + e.getMessage());
+                LOG.error("Error in ClientStart.main", e);
             }
         });
     }
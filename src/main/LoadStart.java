@@ -0,0 +1,50 @@
+package main;
+
+import model.TlsContexts;
+import model.load.LoadGenerator;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Headless load generator, run against a ServerStart in another process.
+ *
+ * Usage: LoadStart [users] [seconds] [think millis] [messages per session] [host] [port]
+ * Defaults to 100 users for 60 seconds with a 1 second think time, ending each session after 20 messages, against
+ * localhost:1234.  Users are started over the first 5 seconds.  Connects over TLS when -Dmessenger.tlsTrustStore is set,
+ * as ClientStart does, with one context for every user so reconnects resume their sessions.
+ */
+public class LoadStart {
+    public static void main(String args[]) throws InterruptedException {
+        final LoadGenerator generator = new LoadGenerator();
+        try {
+            final SSLContext tls = TlsContexts.clientFromSystemProperties();
+            if (null != tls) {
+                generator.withSocketFactory(tls.getSocketFactory());
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println("Error in LoadStart.main: " + e.getMessage());
+            return;
+        }
+        if (args.length > 0) {
+            generator.withUsers(Integer.parseInt(args[0]));
+        }
+        if (args.length > 1) {
+            generator.withDurationMillis(Long.parseLong(args[1]) * 1000);
+        }
+        if (args.length > 2) {
+            generator.withThinkMillis(Long.parseLong(args[2]));
+        }
+        if (args.length > 3) {
+            generator.withMessagesPerSession(Integer.parseInt(args[3]));
+        }
+        if (args.length > 4) {
+            generator.withHost(args[4]);
+        }
+        if (args.length > 5) {
+            generator.withPort(Integer.parseInt(args[5]));
+        }
+        generator.run(System.out);
+    }
+}
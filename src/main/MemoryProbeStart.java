@@ -0,0 +1,121 @@
+package main;
+
+import model.ConnectionThreads;
+import model.Message;
+import model.Server;
+import model.enums.ServerModeEnum;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static model.enums.MessageTypeEnum.LOGIN;
+
+/**
+ * Compares the memory cost of an idle, logged in connection between server modes.  Starts a server in this process,
+ * opens the requested number of connections to it and reports the heap, resident set and thread count growth per
+ * connection.  The client side sockets live in this process as well, so compare modes against each other rather than
+ * reading the numbers as absolute server cost.
+ *
+ * Usage: MemoryProbeStart [blocking|virtual|nio] [connection count]
+ * Virtual needs Java 21 or later.
+ */
+public class MemoryProbeStart {
+    public static void main(String args[]) throws IOException, InterruptedException {
+        final ServerModeEnum mode = args.length > 0 ? ServerModeEnum.from(args[0]) : ServerModeEnum.BLOCKING;
+        final int connectionCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        if (null == mode) {
+            System.out.println("Unknown server mode: " + args[0]);
+            return;
+        }
+        if (ServerModeEnum.VIRTUAL == mode && !ConnectionThreads.isVirtualAvailable()) {
+            System.out.println("Virtual mode needs Java 21 or later, running " + System.getProperty("java.version"));
+            return;
+        }
+
+        final Server server;
+        final int port;
+        switch (mode) {
+            case NIO:
+                final ServerSocketChannel channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress("localhost", 0));
+                port = channel.socket().getLocalPort();
+                server = new Server(channel, Runtime.getRuntime().availableProcessors());
+                break;
+            case VIRTUAL:
+                final ServerSocket virtualSocket = new ServerSocket(0);
+                port = virtualSocket.getLocalPort();
+                server = new Server(virtualSocket, ConnectionThreads.virtual());
+                break;
+            default:
+                final ServerSocket socket = new ServerSocket(0);
+                port = socket.getLocalPort();
+                server = new Server(socket);
+                break;
+        }
+
+        final long heapBefore = usedHeap();
+        final long rssBefore = residentSetSize();
+        final int threadsBefore = Thread.activeCount();
+
+        final List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < connectionCount; i++) {
+            final Socket socket = new Socket("localhost", port);
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(new Message().withType(LOGIN).withSourceUser("probe" + i).toString());
+            out.flush();
+            // Wait for the LOGIN_ACK so the connection is fully set up and parked in its read.
+            new DataInputStream(socket.getInputStream()).readUTF();
+            sockets.add(socket);
+        }
+
+        final long heapAfter = usedHeap();
+        final long rssAfter = residentSetSize();
+        final int threadsAfter = Thread.activeCount();
+
+        System.out.println(String.format("mode=%s connections=%d", mode, connectionCount));
+        System.out.println(String.format("heap bytes/connection: %d", (heapAfter - heapBefore) / connectionCount));
+        if (rssBefore >= 0 && rssAfter >= 0) {
+            System.out.println(String.format("rss bytes/connection: %d", (rssAfter - rssBefore) / connectionCount));
+        }
+        System.out.println(String.format("platform threads added: %d", threadsAfter - threadsBefore));
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.close();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Reads VmRSS on Linux, returns -1 where it isn't available.
+    private static long residentSetSize() {
+        final Path status = Paths.get("/proc/self/status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+}
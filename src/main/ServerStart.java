@@ -1,19 +1,97 @@
 package main;
 
+import model.ConnectionThreads;
 import model.Server;
+import model.ServerConfig;
+import model.TlsContexts;
+import model.cluster.LoopbackMessageBus;
+import model.enums.ServerModeEnum;
 
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
 
 /**
  * Chat server runner.
+ *
+ * Usage: ServerStart [blocking|virtual|nio] [event loop count]
+ * Defaults to blocking mode.  NIO mode defaults to one event loop per available processor.  Virtual mode needs Java 21
+ * or later and refuses to start on older JDKs.
+ * Settings are read from messenger.* system properties, see ServerConfig.  -Dmessenger.nodes=N runs a cluster of N
+ * nodes in this process joined by a LoopbackMessageBus, node n listening on port 1234 + 100 * (n - 1) (and serving
+ * metrics 100 ports up from the usual one likewise) with its own session log and offline queue directories, eg. data/sessions-node-2.
+ * Stopping the process (eg. Ctrl-C) shuts each server down gracefully, snapshotting its sessions for the next start.
+ * -Dmessenger.tlsKeyStore=server.p12 -Dmessenger.tlsKeyStorePassword=... serves TLS instead of plaintext, see TlsContexts.
  */
 public class ServerStart {
+    private static final int PORT = 1234;
+    private static final int NODE_PORT_STEP = 100;
+
     public static void main(String args[]) {
+        final ServerModeEnum mode = args.length > 0 ? ServerModeEnum.from(args[0]) : ServerModeEnum.BLOCKING;
+        if (null == mode) {
+            System.out.println("Unknown server mode: " + args[0]);
+            return;
+        }
+        if (ServerModeEnum.VIRTUAL == mode && !ConnectionThreads.isVirtualAvailable()) {
+            System.out.println("Virtual mode needs Java 21 or later, running " + System.getProperty("java.version"));
+            return;
+        }
+        final SSLContext tls;
         try {
-            new Server(new ServerSocket(1234));
+            tls = TlsContexts.serverFromSystemProperties();
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println("Error in ServerStart.main: " + e.getMessage());
+            return;
+        }
+        final int nodes = Integer.getInteger("messenger.nodes", 1);
+        if (nodes <= 1) {
+            start(mode, args, PORT, ServerConfig.fromSystemProperties().withSslContext(tls));
+            return;
+        }
+        final LoopbackMessageBus bus = new LoopbackMessageBus();
+        for (int node = 0; node < nodes; node++) {
+            final ServerConfig config = ServerConfig.fromSystemProperties();
+            final String nodeId = "node-" + (node + 1);
+            config.setNodeId(nodeId);
+            config.setMessageBus(bus);
+            config.setSslContext(tls);
+            config.setSessionLogDirectory(config.getSessionLogDirectory() + "-" + nodeId);
+            config.setOfflineDirectory(config.getOfflineDirectory() + "-" + nodeId);
+            config.setSnapshotFile(config.getSnapshotFile() + "-" + nodeId);
+            if (config.getMetricsPort() > 0) {
+                config.setMetricsPort(config.getMetricsPort() + node * NODE_PORT_STEP);
+            }
+            start(mode, args, PORT + node * NODE_PORT_STEP, config);
+            System.out.println("Started " + nodeId + " on port " + (PORT + node * NODE_PORT_STEP));
+        }
+    }
+
+    private static void start(final ServerModeEnum mode, final String args[], final int port, final ServerConfig config) {
+        try {
+            switch (mode) {
+                case NIO:
+                    final int eventLoops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+                    final ServerSocketChannel channel = ServerSocketChannel.open();
+                    channel.bind(new InetSocketAddress(port));
+                    closeOnExit(new Server(channel, eventLoops, config));
+                    break;
+                case VIRTUAL:
+                    closeOnExit(new Server(new ServerSocket(port), ConnectionThreads.virtual(), config));
+                    break;
+                default:
+                    closeOnExit(new Server(new ServerSocket(port), ConnectionThreads.platform(), config));
+                    break;
+            }
         } catch (IOException e) {
             System.out.println("Error in ServerStart.main: " +e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    private static void closeOnExit(final Server server) {
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close, "server-shutdown"));
+    }
+}
@@ -1,5 +1,8 @@
 package model;
 
+import model.codec.MessageCodecs;
+import model.log.Log;
+
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
@@ -10,12 +13,15 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import static javax.swing.JOptionPane.showConfirmDialog;
-import static model.enums.MessageTypeEnum.GET_USERS;
+import static model.enums.MessageTypeEnum.HISTORY;
 import static model.enums.MessageTypeEnum.INVITE;
 import static model.enums.MessageTypeEnum.LOGIN;
 import static model.enums.MessageTypeEnum.LOGOUT;
@@ -33,6 +39,7 @@ import static model.enums.MessageTypeEnum.TYPING;
  *  - Logout and back in with a new username.
  */
 public class Client {
+    private static final Log LOG = Log.get(Client.class);
 
     private Socket socket;
     private ClientThread thread;
@@ -72,7 +79,7 @@ public class Client {
         loginButton.addActionListener(event -> {
             sourceUserName = loginNameField.getText();
             if (sourceUserName.length() > 1) {
-                thread.send(new Message().withType(LOGIN).withSourceUser(sourceUserName));
+                thread.send(new Message().withType(LOGIN).withSourceUser(sourceUserName).withText(MessageCodecs.offer()));
                 loginNameField.setText("");
             }
         });
@@ -88,8 +95,11 @@ public class Client {
         loginFrame.setVisible(true);
     }
 
+    // Not modal, so it doesn't hold up the messages being applied behind it.
     public void alert(final JFrame jFrame, final String subject, final String message) {
-        JOptionPane.showMessageDialog(jFrame, message, subject, JOptionPane.PLAIN_MESSAGE);
+        final JDialog dialog = new JOptionPane(message, JOptionPane.PLAIN_MESSAGE).createDialog(jFrame, subject);
+        dialog.setModal(false);
+        dialog.setVisible(true);
     }
 
     public void displayMain(final Set<String> userNames) {
@@ -124,9 +134,7 @@ public class Client {
         // Set up refresh button.
         final JButton refreshButton = new JButton("Refresh");
         refreshButton.setActionCommand("Refresh");
-        refreshButton.addActionListener(event -> thread.send(new Message()
-                .withType(GET_USERS)
-                .withSourceUser(sourceUserName)));
+        refreshButton.addActionListener(event -> thread.refreshUsers());
 
         // Set up Invite button.
         final JButton inviteButton = new JButton("Invite");
@@ -173,16 +181,57 @@ public class Client {
         loginFrame.setVisible(false);
     }
 
-    public int displayInvite(final String userName) {
-        return showConfirmDialog(mainFrame,
-                "Incoming chat request from " + userName + ".  Accept?",
-                "Chat request",
-                JOptionPane.YES_NO_OPTION);
+    // Updates the main window's list as users log in and out, see ClientThread.
+    public void addUser(final String userName) {
+        if (null != listModel && !sourceUserName.equals(userName) && !listModel.contains(userName)) {
+            listModel.addElement(userName);
+        }
+    }
+    public void removeUser(final String userName) {
+        if (null != listModel) {
+            listModel.removeElement(userName);
+        }
+    }
+
+    // Asks whether to accept the invite without waiting for the answer, which is handed to the callback on the event
+    // thread (false if the dialog is closed without one).
+    public void displayInvite(final String userName, final Consumer<Boolean> answer) {
+        final JOptionPane pane = new JOptionPane("Incoming chat request from " + userName + ".  Accept?",
+                JOptionPane.QUESTION_MESSAGE, JOptionPane.YES_NO_OPTION);
+        final JDialog dialog = pane.createDialog(mainFrame, "Chat request");
+        dialog.setModal(false);
+        pane.addPropertyChangeListener(JOptionPane.VALUE_PROPERTY, event -> {
+            if (JOptionPane.UNINITIALIZED_VALUE != event.getNewValue()) {
+                dialog.dispose();
+                answer.accept(Integer.valueOf(JOptionPane.YES_OPTION).equals(event.getNewValue()));
+            }
+        });
+        dialog.setVisible(true);
     }
 
+    // Gathered and appended once per batch of received messages, see flush.
     public void addMessage(final String userName, final String text) {
         if (userNameToChatBox.containsKey(userName)) {
-            userNameToChatBox.get(userName).getChatBox().append(String.format("<%s>: %s\n", userName, text));
+            userNameToChatBox.get(userName).addMessage(String.format("<%s>: %s", userName, text));
+        }
+    }
+
+    // Shows the messages gathered since the last flush, each chat window updated once.
+    public void flush() {
+        for (ChatBox chatBox : userNameToChatBox.values()) {
+            chatBox.flush();
+        }
+    }
+
+    // A message from a page of history being received, shown once the whole page is in.
+    public void addHistory(final String userName, final String entry) {
+        if (userNameToChatBox.containsKey(userName)) {
+            userNameToChatBox.get(userName).addHistory(entry);
+        }
+    }
+    public void endHistory(final String userName, final long cursor) {
+        if (userNameToChatBox.containsKey(userName)) {
+            userNameToChatBox.get(userName).endHistory(cursor);
         }
     }
 
@@ -196,30 +245,93 @@ public class Client {
 
     public void stop() {
         thread.close();
+        for (ChatBox chatBox : userNameToChatBox.values()) {
+            chatBox.close();
+        }
         try {
             if (null != socket) {
                 socket.close();
             }
         } catch (IOException e) {
-            System.out.println("Error in Client.stop: " + e.getMessage());
+            LOG.error("Error in Client.stop", e);
         }
     }
 
     private class ChatBox {
+        // Rows are wrapped to this many characters, as a list of fixed height rows can't wrap them itself.
+        private static final int COLUMNS = 60;
+
         private String targetUserName;
         private JFrame chatFrame;
-        private JTextArea chatBox;
+        private JList<String> chatBox;
+        private TranscriptModel transcript;
+        private JButton earlierButton;
         private boolean isTyping;
+        // Rows of received messages not shown yet.
+        private List<String> pending;
+        // The page of history being received, and where the page before it ends.
+        private List<String> history;
+        private long historyCursor;
 
         public ChatBox(final String targetUserName) {
             this.targetUserName = targetUserName;
             this.isTyping = false;
+            this.pending = new ArrayList<>();
+            this.history = new ArrayList<>();
+            this.historyCursor = -1;
             displayChatBox();
+            requestHistory();
+        }
+
+        // Asks for the page of history before what is shown, the newest page first.
+        private void requestHistory() {
+            earlierButton.setEnabled(false);
+            thread.send(new Message()
+                    .withType(HISTORY)
+                    .withSourceUser(sourceUserName)
+                    .withTargetUser(targetUserName)
+                    .withText(historyCursor < 0 ? "" : Long.toString(historyCursor)));
+        }
+
+        private void addMessage(final String line) {
+            pending.addAll(Transcript.wrap(line, COLUMNS));
+        }
+
+        // Adds the pending rows in one go, following them if the newest rows were in view.
+        private void flush() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            final int last = transcript.getSize() - 1;
+            final boolean following = last < 0 || chatBox.getLastVisibleIndex() >= last;
+            transcript.addAll(pending);
+            pending.clear();
+            if (following) {
+                chatBox.ensureIndexIsVisible(transcript.getSize() - 1);
+            }
+        }
+
+        private void close() {
+            transcript.close();
         }
 
-        private JTextArea getChatBox() {
-            return chatBox;
+        private void addHistory(final String entry) {
+            history.add(entry);
         }
+
+        // Puts the page above everything shown so far, in the same format as live messages.
+        private void endHistory(final long cursor) {
+            final List<String> page = new ArrayList<>();
+            for (String entry : history) {
+                final int split = entry.indexOf(": ");
+                page.addAll(Transcript.wrap(split < 0 ? entry : String.format("<%s>: %s", entry.substring(0, split), entry.substring(split + 2)), COLUMNS));
+            }
+            history.clear();
+            transcript.addFirst(page);
+            historyCursor = cursor;
+            earlierButton.setEnabled(cursor > 0);
+        }
+
         private JFrame getChatFrame() {
             return chatFrame;
         }
@@ -269,16 +381,23 @@ public class Client {
                             .withSourceUser(sourceUserName)
                             .withTargetUser(targetUserName)
                             .withText(messageBox.getText()));
-                    chatBox.append(String.format("<%s>: %s\n", sourceUserName, messageBox.getText()));
+                    addMessage(String.format("<%s>: %s", sourceUserName, messageBox.getText()));
+                    flush();
                     messageBox.setText("");
                 }
                 messageBox.requestFocusInWindow();
             });
 
-            chatBox = new JTextArea();
-            chatBox.setEditable(false);
+            earlierButton = new JButton("Earlier messages");
+            earlierButton.addActionListener(event -> requestHistory());
+
+            transcript = new TranscriptModel();
+            chatBox = new JList<>(transcript);
             chatBox.setFont(new Font("Serif", Font.PLAIN, 15));
-            chatBox.setLineWrap(true);
+            // Fixed sizes let the list lay out and paint only the rows in view instead of measuring them all.  The width
+            // is a placeholder, the list stretches to the window anyway.
+            chatBox.setFixedCellHeight(chatBox.getFontMetrics(chatBox.getFont()).getHeight());
+            chatBox.setFixedCellWidth(1);
 
             final GridBagConstraints left = new GridBagConstraints();
             left.anchor = GridBagConstraints.LINE_START;
@@ -301,6 +420,7 @@ public class Client {
 
             final JPanel mainPanel = new JPanel();
             mainPanel.setLayout(new BorderLayout());
+            mainPanel.add(earlierButton, BorderLayout.NORTH);
             mainPanel.add(new JScrollPane(chatBox), BorderLayout.CENTER);
             mainPanel.add(BorderLayout.SOUTH, southPanel);
 
@@ -321,4 +441,76 @@ public class Client {
             chatFrame.setVisible(true);
         }
     }
+
+    // Shows a chat's Transcript in a JList, which only asks for the rows in view.
+    private static class TranscriptModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+
+        private Transcript transcript;
+
+        private TranscriptModel() {
+            try {
+                this.transcript = Transcript.temporary();
+            } catch (IOException e) {
+                LOG.error("Error in TranscriptModel.TranscriptModel", e);
+            }
+        }
+
+        @Override
+        public int getSize() {
+            return null == transcript ? 0 : transcript.size();
+        }
+
+        @Override
+        public String getElementAt(final int index) {
+            try {
+                return transcript.get(index);
+            } catch (IOException e) {
+                LOG.error("Error in TranscriptModel.getElementAt", index, e);
+                return "";
+            }
+        }
+
+        private void addAll(final List<String> rows) {
+            if (null == transcript || rows.isEmpty()) {
+                return;
+            }
+            final int first = transcript.size();
+            try {
+                for (String row : rows) {
+                    transcript.add(row);
+                }
+            } catch (IOException e) {
+                LOG.error("Error in TranscriptModel.addAll", e);
+            }
+            if (transcript.size() > first) {
+                fireIntervalAdded(this, first, transcript.size() - 1);
+            }
+        }
+
+        private void addFirst(final List<String> rows) {
+            if (null == transcript || rows.isEmpty()) {
+                return;
+            }
+            final int size = transcript.size();
+            try {
+                transcript.addFirst(rows);
+            } catch (IOException e) {
+                LOG.error("Error in TranscriptModel.addFirst", e);
+            }
+            if (transcript.size() > size) {
+                fireIntervalAdded(this, 0, transcript.size() - size - 1);
+            }
+        }
+
+        private void close() {
+            if (null != transcript) {
+                try {
+                    transcript.close();
+                } catch (IOException e) {
+                    LOG.error("Error in TranscriptModel.close", e);
+                }
+            }
+        }
+    }
 }
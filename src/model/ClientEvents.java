@@ -0,0 +1,110 @@
+package model;
+
+import model.log.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands messages read by the client's network thread to the UI thread in batches.  The network thread only queues each
+ * message, and schedules a batch on the UI executor (SwingUtilities.invokeLater for the Swing client) if none is
+ * pending, so it never waits on the UI however slow that is.  A batch applies everything queued so far, up to a cap
+ * so the UI stays responsive under a large backlog, then ends so the handler can apply what it gathered in one go (eg.
+ * one append to a chat window per batch rather than one per message).  Anything left over goes in the next batch.
+ */
+public class ClientEvents {
+    private static final Log LOG = Log.get(ClientEvents.class);
+
+    // Applies messages on the UI thread.
+    public interface Handler {
+        void handle(Message message);
+
+        // Called after each batch.
+        void endBatch();
+    }
+
+    private static final int DEFAULT_BATCH_SIZE = 512;
+
+    private Executor ui;
+    private Handler handler;
+    private int batchSize;
+    // Guarded by lock.
+    private ArrayDeque<Message> queue;
+    private boolean scheduled;
+    private ReentrantLock lock;
+
+    public ClientEvents(final Executor ui, final Handler handler) {
+        this(ui, handler, DEFAULT_BATCH_SIZE);
+    }
+    public ClientEvents(final Executor ui, final Handler handler, final int batchSize) {
+        this.ui = ui;
+        this.handler = handler;
+        this.batchSize = batchSize;
+        this.queue = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+    }
+
+    // Queues the message, from any thread.  Never blocks on the UI.
+    public void post(final Message message) {
+        lock.lock();
+        try {
+            queue.add(message);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        ui.execute(this::drain);
+    }
+
+    // How many messages are waiting for the UI.
+    public int getBacklog() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs on the UI thread.
+    private void drain() {
+        final Message[] batch;
+        lock.lock();
+        try {
+            batch = new Message[Math.min(batchSize, queue.size())];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = queue.poll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            for (Message message : batch) {
+                try {
+                    handler.handle(message);
+                } catch (RuntimeException e) {
+                    // One bad message mustn't lose the rest of the batch.
+                    LOG.error("Error in ClientEvents.drain", message, e);
+                }
+            }
+            handler.endBatch();
+        } finally {
+            final boolean more;
+            lock.lock();
+            try {
+                // Take the rest in another batch, giving the UI a turn in between.
+                more = !queue.isEmpty();
+                scheduled = more;
+            } finally {
+                lock.unlock();
+            }
+            if (more) {
+                ui.execute(this::drain);
+            }
+        }
+    }
+}
@@ -1,23 +1,46 @@
 package model;
 
+import model.codec.FrameReader;
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
+import model.log.Log;
+
+import javax.swing.SwingUtilities;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashSet;
 
-import static model.Message.toMessage;
-import static model.enums.MessageTypeEnum.GET_USERS;
 import static model.enums.MessageTypeEnum.INVITE_ACCEPT;
 import static model.enums.MessageTypeEnum.INVITE_DECLINE;
+import static model.enums.MessageTypeEnum.LOGIN_ACK;
+import static model.enums.MessageTypeEnum.PING;
+import static model.enums.MessageTypeEnum.PONG;
+import static model.enums.MessageTypeEnum.SUBSCRIBE_USERS;
+import static model.enums.MessageTypeEnum.USER_JOINED;
+import static model.log.LogEvent.NO_CONNECTION;
 
 /**
  * Represents a connection to the server that can send and receive messages targeted at the server or at another user.
+ * This thread only reads and decodes; what it receives is applied to the GUI on the Swing event thread in batches (see
+ * ClientEvents), so a slow window or an open dialog never holds up reading from the socket.
  */
 public class ClientThread extends Thread {
+    private static final Log LOG = Log.get(ClientThread.class);
+    // Stands in for a frame that couldn't be decoded, since the event queue takes no nulls.
+    private static final Message UNREADABLE = new Message();
+
     private Client client;
     private DataInputStream in;
     private DataOutputStream out;
+    private FrameReader reader;
+    // Received messages waiting for the event thread.
+    private ClientEvents events;
+    // Starts as text, switched to whatever the server picks in its LOGIN_ACK.
+    private volatile MessageCodec codec;
+    // The version of the server's user list the main window shows, -1 before the first snapshot.
+    private volatile long usersVersion;
     private boolean run;
 
     public ClientThread(final Client client,
@@ -27,6 +50,20 @@ public class ClientThread extends Thread {
         this.client = client;
         this.in = in;
         this.out = out;
+        this.reader = new FrameReader(in);
+        this.codec = MessageCodecs.TEXT;
+        this.usersVersion = -1;
+        this.events = new ClientEvents(SwingUtilities::invokeLater, new ClientEvents.Handler() {
+            @Override
+            public void handle(final Message message) {
+                processMessage(UNREADABLE == message ? null : message);
+            }
+
+            @Override
+            public void endBatch() {
+                client.flush();
+            }
+        });
         this.run = true;
         start();
     }
@@ -37,29 +74,49 @@ public class ClientThread extends Thread {
         }
     }
 
-    public void send(final Message message) {
+    public synchronized void send(final Message message) {
         try {
-            final String send = message.toString();
-            System.out.println("Client sent: " + send);
-            out.writeUTF(send);
+            LOG.trace("Client sent", NO_CONNECTION, client.getSourceUserName(), message.getType(), message);
+            codec.write(message, out);
             out.flush();
         } catch (IOException e) {
-            System.out.println("Error in ClientReceiveThread.send: " + e.getMessage());
+            LOG.error("Error in ClientReceiveThread.send", NO_CONNECTION, client.getSourceUserName(), message.getType(), e);
             client.stop();
         }
     }
 
+    // Asks for presence updates from the version already shown, so the server only sends what changed since.
+    public void refreshUsers() {
+        send(new Message()
+                .withType(SUBSCRIBE_USERS)
+                .withSourceUser(client.getSourceUserName())
+                .withText(usersVersion < 0 ? null : Long.toString(usersVersion)));
+    }
+
     public void receive() {
         try {
-            final String message = in.readUTF();
-            System.out.println("Client received: " + message);
-            processMessage(toMessage(message));
+            final Message message = reader.read(codec);
+            LOG.trace("Client received", NO_CONNECTION, client.getSourceUserName(), null == message ? null : message.getType(), message);
+            if (null != message && LOGIN_ACK == message.getType()) {
+                // Switched here rather than on the event thread since the very next frame may already use it.
+                final MessageCodec previous = codec;
+                codec = MessageCodecs.negotiate(message.getText());
+                previous.end();
+            } else if (null != message && PING == message.getType()) {
+                // Answered straight away, the server only wants to know the connection is alive.  The source user is
+                // mandatory on the wire but unused, and there isn't one before logging in.
+                final String userName = client.getSourceUserName();
+                send(new Message().withType(PONG).withSourceUser(null == userName || userName.isEmpty() ? "-" : userName));
+                return;
+            }
+            events.post(null == message ? UNREADABLE : message);
         } catch (IOException e) {
-            System.out.println("Error in ClientReceiveThread.receive: " + e.getMessage());
+            LOG.error("Error in ClientReceiveThread.receive", NO_CONNECTION, client.getSourceUserName(), e);
             client.stop();
         }
     }
 
+    // Runs on the event thread.
     private void processMessage(final Message message) {
         if (null == message) {
             client.alert(client.getMainFrame(), "Error", "Bad message received.");
@@ -67,9 +124,9 @@ public class ClientThread extends Thread {
         }
         switch(message.getType()) {
             case LOGIN_ACK:
-                send(new Message()
-                        .withType(GET_USERS)
-                        .withSourceUser(client.getSourceUserName()));
+                // A new login always starts from a snapshot, so the main window gets built.
+                usersVersion = -1;
+                refreshUsers();
                 break;
             case LOGIN_DENIED:
                 client.alert(client.getLoginFrame(), "Error", message.getText());
@@ -77,20 +134,43 @@ public class ClientThread extends Thread {
             case GET_USERS:
                 client.displayMain(new HashSet<>(Arrays.asList(message.getText().split(","))));
                 break;
-            case INVITE:
-                if (client.displayInvite(message.getSourceUser()) == 0) {
-                    send(new Message()
-                            .withType(INVITE_ACCEPT)
-                            .withSourceUser(client.getSourceUserName())
-                            .withTargetUser(message.getSourceUser()));
-                    client.openChatBox(message.getSourceUser());
-                } else {
-                    send(new Message()
-                            .withType(INVITE_DECLINE)
-                            .withSourceUser(client.getSourceUserName())
-                            .withTargetUser(message.getSourceUser()));
+            case USERS_SNAPSHOT:
+                final String[] snapshot = message.getText().split(",");
+                usersVersion = Long.parseLong(snapshot[0]);
+                client.displayMain(new HashSet<>(Arrays.asList(snapshot).subList(1, snapshot.length)));
+                break;
+            case USER_JOINED:
+            case USER_LEFT:
+                final long version = Long.parseLong(message.getText());
+                if (version == usersVersion + 1) {
+                    usersVersion = version;
+                    if (USER_JOINED == message.getType()) {
+                        client.addUser(message.getSourceUser());
+                    } else {
+                        client.removeUser(message.getSourceUser());
+                    }
+                } else if (version > usersVersion && usersVersion >= 0) {
+                    // Deltas raced each other on the server, ask for the ones in between.  Any repeats are ignored.
+                    refreshUsers();
                 }
                 break;
+            case INVITE:
+                // Answered whenever the user gets to it, everything else carries on meanwhile.
+                client.displayInvite(message.getSourceUser(), accepted -> {
+                    if (accepted) {
+                        send(new Message()
+                                .withType(INVITE_ACCEPT)
+                                .withSourceUser(client.getSourceUserName())
+                                .withTargetUser(message.getSourceUser()));
+                        client.openChatBox(message.getSourceUser());
+                    } else {
+                        send(new Message()
+                                .withType(INVITE_DECLINE)
+                                .withSourceUser(client.getSourceUserName())
+                                .withTargetUser(message.getSourceUser()));
+                    }
+                });
+                break;
             case INVITE_ACCEPT:
                 client.openChatBox(message.getSourceUser());
                 break;
@@ -109,6 +189,18 @@ public class ClientThread extends Thread {
             case MESSAGE:
                 client.addMessage(message.getSourceUser(), message.getText());
                 break;
+            case HISTORY:
+                client.addHistory(message.getSourceUser(), message.getText());
+                break;
+            case HISTORY_END:
+                client.endHistory(message.getSourceUser(), Long.parseLong(message.getText()));
+                break;
+            case THROTTLED:
+                // Only the type matters to the user, not when to retry.
+                final String throttledType = message.getText().split(",")[0];
+                client.alert(client.getMainFrame(), "Slow down", "Sending too fast, the server dropped your last "
+                        + (throttledType.isEmpty() ? "request" : throttledType) + ".");
+                break;
             default:
                 client.alert(client.getMainFrame(), "Error", message.toString());
                 break;
@@ -124,8 +216,9 @@ public class ClientThread extends Thread {
                 out.close();
             }
         } catch (IOException e) {
-            System.out.println("Error in ClientReceiveThread.close: " + e.getMessage());
+            LOG.error("Error in ClientReceiveThread.close", NO_CONNECTION, client.getSourceUserName(), e);
         }
+        codec.end();
         run = false;
     }
 }
@@ -0,0 +1,35 @@
+package model;
+
+import model.codec.MessageCodec;
+
+import java.util.function.Consumer;
+
+/**
+ * Represents one client connection held by the server, regardless of how its socket is serviced (a dedicated
+ * ServerThread or a shared NIO event loop).  The MessageRouter only talks to connections through this interface.
+ */
+public interface Connection {
+
+    // The id the server tracks this connection under.
+    int getThreadId();
+
+    // The user name this connection has logged in as (null if not logged in yet).
+    String getUserName();
+    void setUserName(String userName);
+
+    // The codec this connection sends with, agreed on at LOGIN.
+    MessageCodec getCodec();
+    void setCodec(MessageCodec codec);
+
+    // Delivers a message to the user on the other end of this connection.
+    void send(Message message);
+
+    // How many sent messages are still waiting to be written to the socket.
+    int getQueueDepth();
+
+    // Calls back with true once everything sent before this has been written to the socket, or with false if the
+    // connection closes first.  The callback must not block.
+    void afterSent(Consumer<Boolean> callback);
+
+    void close();
+}
@@ -0,0 +1,48 @@
+package model;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Supplies the threads that run blocking ServerThread connections.  Platform threads each reserve a full native stack,
+ * while virtual threads (Java 21+) are parked on the heap while blocked in readUTF, which makes huge numbers of mostly
+ * idle connections cheap.
+ *
+ * The build targets Java 17, so virtual threads are looked up reflectively and are only there when running on Java 21
+ * or later.  On older JDKs asking for them fails rather than quietly handing out platform threads, which would make
+ * virtual mode (and any comparison against it) measure platform threads twice.
+ */
+public final class ConnectionThreads {
+
+    private ConnectionThreads() {
+    }
+
+    public static ThreadFactory platform() {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, "server-thread-" + count.getAndIncrement());
+    }
+
+    // Whether the running JDK has virtual threads.
+    public static boolean isVirtualAvailable() {
+        // 19 and 20 have them only as a preview.
+        return Runtime.version().feature() >= 21;
+    }
+
+    // Throws UnsupportedOperationException on JDKs without virtual threads, see isVirtualAvailable.
+    public static ThreadFactory virtual() {
+        if (!isVirtualAvailable()) {
+            throw new UnsupportedOperationException("Error in ConnectionThreads.virtual: virtual threads need Java 21 or later, running "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Object named = builderClass.getMethod("name", String.class, long.class).invoke(builder, "server-virtual-thread-", 0L);
+            final Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(named);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Error in ConnectionThreads.virtual: " + e, e);
+        }
+    }
+}
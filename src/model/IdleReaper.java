@@ -0,0 +1,179 @@
+package model;
+
+import model.enums.MessageTypeEnum;
+import model.log.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Finds connections that have gone quiet, eg. a client that vanished without closing its socket, leaving a ServerThread
+ * blocked in a read that will never return.  A connection silent for the idle time is sent a PING, and closed if it is
+ * still silent the ping timeout after that.  Any frame from the client counts, PONG or otherwise.
+ *
+ * Connections sit in a hashed timing wheel: an array of slots, each a list of the entries due when the wheel's tick
+ * comes round to it.  Receiving a frame only stamps the entry with the current tick, no lock and no moving it.  Each
+ * tick (one scheduled task for the whole server) looks only at the slot that is due; an entry heard from since it was
+ * put there is moved to the slot its new deadline falls in, the rest are pinged or closed.  So the cost is one write per
+ * frame and one look per connection per idle time, however many connections there are.
+ */
+public class IdleReaper {
+    private static final Log LOG = Log.get(IdleReaper.class);
+    private static final String SERVER = "server";
+
+    // What the wheel tracks for one connection.
+    public class Entry {
+        private Connection connection;
+        // The tick the connection was last heard from in.
+        private volatile long heard;
+        // Guarded by the wheel's lock.
+        private long deadline;
+        private boolean pinged;
+        private int slot;
+        private Entry previous;
+        private Entry next;
+
+        private Entry(final Connection connection) {
+            this.connection = connection;
+            this.slot = -1;
+        }
+
+        // Called for every frame received.
+        public void touch() {
+            heard = tick;
+        }
+
+        // Stops tracking the connection, when it closes.
+        public void cancel() {
+            lock.lock();
+            try {
+                unlink(this);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private long idleTicks;
+    private long pingTicks;
+    // The entries due in each tick, by tick modulo the number of slots, guarded by lock.  An entry may be due some
+    // revolutions later than its slot comes round, see its deadline.
+    private Entry[] slots;
+    private int size;
+    private volatile long tick;
+    private ReentrantLock lock;
+    private LongAdder pings;
+    private LongAdder reaped;
+
+    // Times are in ticks of the wheel, however often tick is called.
+    public IdleReaper(final long idleTicks, final long pingTicks, final LongAdder pings, final LongAdder reaped) {
+        this.idleTicks = Math.max(1, idleTicks);
+        this.pingTicks = Math.max(1, pingTicks);
+        int slotCount = 16;
+        while (slotCount <= Math.max(this.idleTicks, this.pingTicks)) {
+            slotCount <<= 1;
+        }
+        this.slots = new Entry[slotCount];
+        this.lock = new ReentrantLock();
+        this.pings = pings;
+        this.reaped = reaped;
+    }
+
+    // Starts tracking a connection as if it had just been heard from.
+    public Entry track(final Connection connection) {
+        final Entry entry = new Entry(connection);
+        lock.lock();
+        try {
+            entry.heard = tick;
+            link(entry, tick + idleTicks);
+        } finally {
+            lock.unlock();
+        }
+        return entry;
+    }
+
+    // How many connections are tracked.
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Advances the wheel by one tick, pinging and closing what is due.
+    public void tick() {
+        final List<Connection> toPing = new ArrayList<>();
+        final List<Connection> toClose = new ArrayList<>();
+        lock.lock();
+        try {
+            final long now = ++tick;
+            Entry entry = slots[(int) (now & (slots.length - 1))];
+            while (null != entry) {
+                final Entry next = entry.next;
+                if (entry.deadline <= now) {
+                    unlink(entry);
+                    if (entry.heard + idleTicks > now) {
+                        entry.pinged = false;
+                        link(entry, entry.heard + idleTicks);
+                    } else if (!entry.pinged) {
+                        entry.pinged = true;
+                        link(entry, now + pingTicks);
+                        toPing.add(entry.connection);
+                    } else {
+                        toClose.add(entry.connection);
+                    }
+                }
+                entry = next;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Outside the lock, closing a connection cancels its entry.
+        for (Connection connection : toPing) {
+            connection.send(new Message().withType(MessageTypeEnum.PING).withSourceUser(SERVER));
+        }
+        pings.add(toPing.size());
+        if (!toClose.isEmpty()) {
+            LOG.warn("Closing connections that stopped answering", toClose.size());
+            for (Connection connection : toClose) {
+                connection.close();
+            }
+            reaped.add(toClose.size());
+        }
+    }
+
+    private void link(final Entry entry, final long deadline) {
+        final int slot = (int) (deadline & (slots.length - 1));
+        entry.deadline = deadline;
+        entry.slot = slot;
+        entry.previous = null;
+        entry.next = slots[slot];
+        if (null != entry.next) {
+            entry.next.previous = entry;
+        }
+        slots[slot] = entry;
+        size++;
+    }
+
+    private void unlink(final Entry entry) {
+        if (entry.slot < 0) {
+            return;
+        }
+        if (null == entry.previous) {
+            slots[entry.slot] = entry.next;
+        } else {
+            entry.previous.next = entry.next;
+        }
+        if (null != entry.next) {
+            entry.next.previous = entry.previous;
+        }
+        entry.previous = null;
+        entry.next = null;
+        entry.slot = -1;
+        size--;
+    }
+}
@@ -0,0 +1,154 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hash map from primitive longs to objects, so looking up a session by its packed key or a connection by its id never
+ * boxes the key.  Open addressing with linear probing over parallel arrays; an empty slot is one with a null value, so
+ * null values can't be stored.  Removal shifts later entries of the probe run back rather than leaving tombstones.
+ *
+ * Not thread safe, callers hold their own lock.
+ */
+public class LongObjectMap<V> {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    // Grows past this many entries, keeping the table at most half full.
+    private int threshold;
+
+    public LongObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongObjectMap(final int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(final long key) {
+        final int mask = keys.length - 1;
+        for (int i = slot(key, mask); null != values[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(final long key) {
+        return null != get(key);
+    }
+
+    // Returns the value replaced, or null if the key is new.
+    @SuppressWarnings("unchecked")
+    public V put(final long key, final V value) {
+        if (null == value) {
+            throw new IllegalArgumentException("Error in LongObjectMap.put: null value");
+        }
+        final int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; null != values[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                final V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > threshold) {
+            resize(keys.length << 1);
+        }
+        return null;
+    }
+
+    // Returns the value removed, or null if the key wasn't there.
+    @SuppressWarnings("unchecked")
+    public V remove(final long key) {
+        final int mask = keys.length - 1;
+        for (int i = slot(key, mask); null != values[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                final V previous = (V) values[i];
+                shiftBack(i, mask);
+                size--;
+                return previous;
+            }
+        }
+        return null;
+    }
+
+    // Removes the key only if it maps to this very value (compared by identity), returns whether it did.
+    public boolean remove(final long key, final V value) {
+        if (value != get(key)) {
+            return false;
+        }
+        remove(key);
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // A copy of the values, in no particular order.
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        final List<V> copy = new ArrayList<>(size);
+        for (Object value : values) {
+            if (null != value) {
+                copy.add((V) value);
+            }
+        }
+        return copy;
+    }
+
+    // Fills the gap at i by moving back any later entry of the run that can't be found from its own slot otherwise.
+    private void shiftBack(int gap, final int mask) {
+        for (int i = (gap + 1) & mask; null != values[i]; i = (i + 1) & mask) {
+            final int home = slot(keys[i], mask);
+            // Move it if its home slot isn't cyclically within (gap, i].
+            if (gap <= i ? (home <= gap || home > i) : (home <= gap && home > i)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        values[gap] = null;
+    }
+
+    private void resize(final int capacity) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        allocate(capacity);
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (null != oldValues[j]) {
+                int i = slot(oldKeys[j], mask);
+                while (null != values[i]) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private void allocate(final int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.threshold = capacity / 2;
+    }
+
+    private static int slot(final long key, final int mask) {
+        // Spreads packed ids, whose low bits alone would cluster, over the whole table.
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
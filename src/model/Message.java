@@ -5,6 +5,8 @@ import model.enums.MessageTypeEnum;
 /**
  * Represents a message being sent from a client to the server or vice versa.
  * The text could represent different things depending on the message type.
+ *
+ * toString and toMessage are the legacy text format; see the codec package for how messages go over the wire.
  */
 public class Message {
 
@@ -17,6 +19,13 @@ public class Message {
     // The relevant messsage.
     private String text = "";
 
+    // The field separators of the text format.
+    private static final String TYPE = "{'type':'";
+    private static final String SOURCE_USER = "','source_user':'";
+    private static final String TARGET_USER = "','target_user':'";
+    private static final String TEXT = "','text':'";
+    private static final String END = "'}";
+
     public MessageTypeEnum getType() {
         return type;
     }
@@ -66,53 +75,38 @@ public class Message {
     public String toString() {
         return String.format("{'type':'%s','source_user':'%s','target_user':'%s','text':'%s'}", type, sourceUser, targetUser, text);
     }
-    // Poor man's JSON deserializer...
+    // Poor man's JSON deserializer...  Walks the separators with indexOf rather than replace/split so it doesn't build
+    // regexes or intermediate strings, and so text containing the separators survives intact (text is always last).
     public static Message toMessage(final String string) {
-        if (!string.startsWith("{'type':'")) {
+        if (!string.startsWith(TYPE) || !string.endsWith(END)) {
             return null;
         }
-        String[] tokens = string.replace("{'type':'", "").split("','source_user':'", 2);
-        if (2 != tokens.length) {
+        final int sourceStart = string.indexOf(SOURCE_USER, TYPE.length());
+        if (sourceStart < 0) {
             return null; // type is mandatory
         }
-        final MessageTypeEnum type = MessageTypeEnum.from(tokens[0]);
+        final MessageTypeEnum type = MessageTypeEnum.from(string.substring(TYPE.length(), sourceStart));
         if (null == type) {
             return null;
         }
 
-        final String sourceUserName;
-        if (tokens[1].startsWith("','target_user':'")) {
+        final int sourceEnd = string.indexOf(TARGET_USER, sourceStart + SOURCE_USER.length());
+        if (sourceEnd < 0 || sourceEnd == sourceStart + SOURCE_USER.length()) {
             return null; // source user is mandatory
-        } else {
-            tokens = tokens[1].split("','target_user':'", 2);
-            if (2 != tokens.length) {
-                return null;
-            }
-            sourceUserName = tokens[0];
         }
 
         // if target user might be empty.
-        final String targetUserName;
-        if (tokens[1].startsWith("','text':'")) {
-            targetUserName = "";
-            tokens[1] = tokens[1].replace("','text':'", "");
-        } else {
-            tokens = tokens[1].split("','text':'", 2);
-            if (2 != tokens.length) {
-                return null;
-            }
-            targetUserName = tokens[0];
-        }
-
-        if (!tokens[1].endsWith("'}")) {
+        final int targetEnd = string.indexOf(TEXT, sourceEnd + TARGET_USER.length());
+        final int textStart = targetEnd + TEXT.length();
+        final int textEnd = string.length() - END.length();
+        if (targetEnd < 0 || textStart > textEnd) {
             return null;
         }
-        final String text = tokens[1].substring(0, tokens[1].lastIndexOf("'}"));
 
         return new Message().withType(type)
-                .withSourceUser(sourceUserName)
-                .withTargetUser(targetUserName)
-                .withText(text);
+                .withSourceUser(string.substring(sourceStart + SOURCE_USER.length(), sourceEnd))
+                .withTargetUser(string.substring(sourceEnd + TARGET_USER.length(), targetEnd))
+                .withText(string.substring(textStart, textEnd));
     }
 
     @Override
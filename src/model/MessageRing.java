@@ -0,0 +1,67 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A ring buffer of the most recent messages in a session, capped both by message count and by an estimate of the heap
+ * the messages take.  Adding past either cap overwrites the oldest messages.
+ */
+public class MessageRing {
+
+    private String[] messages;
+    private int head;
+    private int size;
+    private long bytes;
+    private long maxBytes;
+
+    public MessageRing(final int maxCount, final long maxBytes) {
+        this.messages = new String[Math.max(1, maxCount)];
+        this.maxBytes = maxBytes;
+    }
+
+    // Rough heap cost of holding a message: the String and its backing array.
+    public static long estimateBytes(final String text) {
+        return 40 + 2L * text.length();
+    }
+
+    // Adds a message, evicting old ones as needed, and returns the change in resident bytes.
+    public long add(final String text) {
+        final long before = bytes;
+        if (size == messages.length) {
+            removeOldest();
+        }
+        messages[(head + size) % messages.length] = text;
+        size++;
+        bytes += estimateBytes(text);
+        while (bytes > maxBytes && size > 1) {
+            removeOldest();
+        }
+        return bytes - before;
+    }
+
+    private void removeOldest() {
+        bytes -= estimateBytes(messages[head]);
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // The estimated heap held by the messages.
+    public long getBytes() {
+        return bytes;
+    }
+
+    // The messages, oldest first.
+    public List<String> toList() {
+        final List<String> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(messages[(head + i) % messages.length]);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,481 @@
+package model;
+
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
+import model.enums.MessageTypeEnum;
+import model.log.Log;
+import model.metrics.ServerMetrics;
+
+import java.util.Set;
+
+import static model.enums.MessageTypeEnum.ACCESS_DENIED;
+import static model.enums.MessageTypeEnum.BAD_REQUEST;
+import static model.enums.MessageTypeEnum.GET_USERS;
+import static model.enums.MessageTypeEnum.HISTORY;
+import static model.enums.MessageTypeEnum.HISTORY_END;
+import static model.enums.MessageTypeEnum.INVITE;
+import static model.enums.MessageTypeEnum.INVITE_ACCEPT;
+import static model.enums.MessageTypeEnum.INVITE_DECLINE;
+import static model.enums.MessageTypeEnum.LOGIN;
+import static model.enums.MessageTypeEnum.LOGIN_ACK;
+import static model.enums.MessageTypeEnum.LOGIN_DENIED;
+import static model.enums.MessageTypeEnum.MESSAGE;
+import static model.enums.MessageTypeEnum.PING;
+import static model.enums.MessageTypeEnum.PONG;
+import static model.enums.MessageTypeEnum.ROOM_CREATE;
+import static model.enums.MessageTypeEnum.ROOM_JOIN;
+import static model.enums.MessageTypeEnum.ROOM_LEAVE;
+import static model.enums.MessageTypeEnum.ROOM_MESSAGE;
+import static model.enums.MessageTypeEnum.SESSION_EXIT;
+import static model.enums.MessageTypeEnum.SUBSCRIBE_USERS;
+import static model.enums.MessageTypeEnum.THROTTLED;
+
+/**
+ * Parses received messages and routes the information depending on the contents of the message ie. information sent
+ * back to the sending connection or a request forwarded to another user's connection.  Shared by every connection type
+ * so the blocking and NIO servers behave identically.
+ */
+public class MessageRouter {
+    private static final Log LOG = Log.get(MessageRouter.class);
+
+    private Server server;
+    private ServerMetrics metrics;
+    // Holds back presence signals sent faster than they are worth forwarding.
+    private PresenceCoalescer presence;
+
+    private static String SERVER = "server";
+
+    public MessageRouter(final Server server) {
+        this.server = server;
+        this.metrics = server.getMetrics();
+        this.presence = new PresenceCoalescer(server.getConfig().getPresenceWindowMillis(),
+                server.getConfig().getPresenceBackedUpDepth(), server.getScheduler(), new PresenceCoalescer.Target() {
+            @Override
+            public int getQueueDepth(final String userName) {
+                final Connection target = server.getUserByUserName(userName);
+                return null == target ? 0 : target.getQueueDepth();
+            }
+
+            @Override
+            public void forward(final String sourceUserName, final Connection source, final Message message) {
+                // Held signals may outlive the sender's login.
+                if (sourceUserName.equals(source.getUserName())) {
+                    final String targetUserName = message.getTargetUser();
+                    forwardMessageIfInSession(source, targetUserName, server.getUserByUserName(targetUserName), message);
+                }
+            }
+        }, metrics.getPresenceSuppressed());
+    }
+
+    // Forgets what the user had in flight and takes them out of their rooms, called when they log out or disconnect.
+    public void removeUser(final String userName, final Connection connection) {
+        presence.remove(userName);
+        server.getPresenceFeed().unsubscribe(connection);
+        for (Room room : server.getRooms().leaveAll(userName, connection)) {
+            fanOut(room, connection, new Message()
+                    .withType(ROOM_LEAVE)
+                    .withSourceUser(userName)
+                    .withTargetUser(room.getName()));
+        }
+    }
+
+    // Applies the connection's rate limits to a frame it just read (null if it couldn't be decoded), returns whether to
+    // go on and process it.  A frame over a limit is answered with THROTTLED instead, apart from typing signals which
+    // are dropped quietly, and a connection that keeps sending over its limits is disconnected.
+    public boolean admit(final Connection connection, final RateLimiter limiter, final Message message) {
+        final MessageTypeEnum type = null == message ? null : message.getType();
+        switch (limiter.acquire(type, System.nanoTime())) {
+            case ACCEPT:
+                return true;
+            case THROTTLE:
+                metrics.throttled(type);
+                if (null == type || !type.isEphemeral()) {
+                    reply(connection, new Message()
+                            .withType(THROTTLED)
+                            .withSourceUser(SERVER)
+                            .withText((null == type ? "" : type.getValue()) + "," + limiter.getRetryMillis()));
+                }
+                return false;
+            default:
+                metrics.throttled(type);
+                metrics.getThrottleDisconnects().increment();
+                LOG.warn("Disconnecting client over its rate limit", connection.getThreadId(), connection.getUserName(), type);
+                connection.close();
+                return false;
+        }
+    }
+
+    // Depending on the message type and information, will send a message back to the current user or forward it to the target user.
+    public void processMessage(final Connection connection, final Message message) {
+        final long start = System.nanoTime();
+        metrics.received(null == message ? null : message.getType());
+        route(connection, message);
+        metrics.getRouteNanos().record(System.nanoTime() - start);
+        server.accepted();
+    }
+
+    private void route(final Connection connection, final Message message) {
+        if (null == message) {
+            reply(connection, new Message()
+                    .withType(BAD_REQUEST)
+                    .withSourceUser(SERVER)
+                    .withText("Invalid Message."));
+            return;
+        }
+        // Heartbeats work before logging in too, the reaper watches every connection.
+        if (PING == message.getType()) {
+            reply(connection, new Message()
+                    .withType(PONG)
+                    .withSourceUser(SERVER));
+            return;
+        }
+        if (PONG == message.getType()) {
+            return;
+        }
+        final String userName = connection.getUserName();
+        if (LOGIN != message.getType() && null == userName) {
+            reply(connection, new Message()
+                    .withType(ACCESS_DENIED)
+                    .withSourceUser(SERVER)
+                    .withText("Must log in first."));
+            return;
+        }
+        final String targetUserName = message.getTargetUser();
+        final Connection target = server.getUserByUserName(targetUserName);
+        switch(message.getType()) {
+            case LOGIN:
+                if (!Server.isValidUserName(message.getSourceUser())) {
+                    reply(connection, new Message()
+                            .withType(LOGIN_DENIED)
+                            .withSourceUser(SERVER)
+                            .withTargetUser(message.getSourceUser())
+                            .withText("Username is empty or contains a reserved character."));
+                    break;
+                }
+                // Held first, so nothing sent once the name is visible overtakes what was queued while they were away.
+                server.getOfflineDelivery().hold(message.getSourceUser());
+                if (!server.claimUserName(message.getSourceUser(), connection)) {
+                    // Messages for whoever already has the name were queued while it was held, they get them now.
+                    final Connection existing = server.getUserByUserName(message.getSourceUser());
+                    if (null != existing) {
+                        server.getOfflineDelivery().drain(message.getSourceUser(), existing);
+                    } else {
+                        server.getOfflineDelivery().unhold(message.getSourceUser());
+                    }
+                    reply(connection, new Message()
+                            .withType(LOGIN_DENIED)
+                            .withSourceUser(SERVER)
+                            .withTargetUser(message.getSourceUser())
+                            .withText("Username already exists."));
+                } else {
+                    // Logging in again under a new name gives up the old one.
+                    removeUser(userName, connection);
+                    server.releaseUserName(userName, connection);
+                    connection.setUserName(message.getSourceUser());
+                    // A client that offered a codec can already read it, so it doesn't matter whether the ack itself
+                    // goes out before or after the switch.
+                    final MessageCodec codec = MessageCodecs.negotiate(message.getText(), server.getConfig().getCompressionThreshold());
+                    reply(connection, new Message()
+                            .withType(LOGIN_ACK)
+                            .withSourceUser(SERVER)
+                            .withTargetUser(message.getSourceUser())
+                            .withText(MessageCodecs.answer(codec)));
+                    connection.setCodec(codec);
+                    // Anything sent while they were away follows the ack, in the codec just agreed.
+                    server.getOfflineDelivery().drain(message.getSourceUser(), connection);
+                }
+                break;
+            case GET_USERS:
+                reply(connection, server.getUserList());
+                break;
+            case SUBSCRIBE_USERS:
+                for (Message update : server.getPresenceFeed().subscribe(connection, message.getText())) {
+                    reply(connection, update);
+                }
+                break;
+            case INVITE:
+                if (null != target) {
+                    forward(target, new Message()
+                            .withType(INVITE)
+                            .withSourceUser(userName));
+                } else {
+                    reply(connection, new Message()
+                            .withType(INVITE_DECLINE)
+                            .withSourceUser(targetUserName)
+                            .withText("User is no longer online."));
+                }
+                break;
+            case INVITE_ACCEPT:
+                if (null != target) {
+                    forward(target, new Message()
+                            .withType(INVITE_ACCEPT)
+                            .withSourceUser(userName));
+                    server.activateSession(userName, targetUserName);
+                } else {
+                    reply(connection, new Message()
+                            .withType(SESSION_EXIT)
+                            .withSourceUser(targetUserName)
+                            .withText("User no longer online."));
+                }
+                break;
+            case INVITE_DECLINE:
+                forwardMessage(connection, targetUserName, target, message);
+                break;
+            case SESSION_EXIT:
+                server.deActivateSession(userName, message.getText());
+                forwardMessageIfInSession(connection, targetUserName, target, message);
+                break;
+            case TYPING:
+            case NOT_TYPING:
+            case TEXT_CLEARED:
+                presence.offer(connection, message);
+                break;
+            case MESSAGE:
+                server.logSessionText(userName, targetUserName, message.getText());
+                forwardMessageIfInSession(connection, targetUserName, target, message);
+                break;
+            case HISTORY:
+                sendHistory(connection, targetUserName, message.getText());
+                break;
+            case ROOM_CREATE:
+                createRoom(connection, targetUserName);
+                break;
+            case ROOM_JOIN:
+                joinRoom(connection, server.getRooms().get(targetUserName), targetUserName);
+                break;
+            case ROOM_LEAVE:
+                leaveRoom(connection, server.getRooms().get(targetUserName), targetUserName);
+                break;
+            case ROOM_MESSAGE:
+                sendToRoom(connection, server.getRooms().get(targetUserName), targetUserName, message);
+                break;
+            case LOGOUT:
+                removeUser(userName, connection);
+                server.releaseUserName(userName, connection);
+                connection.setUserName(null);
+                break;
+            default:
+                reply(connection, new Message()
+                        .withType(BAD_REQUEST)
+                        .withSourceUser(SERVER)
+                        .withText("Invalid Message type: " +message.getType()));
+                break;
+        }
+    }
+
+    // Answers "cursor,size" with up to size messages of the session ending just before the cursor (the newest when it is
+    // empty), oldest first, then a HISTORY_END with the cursor for the page before.  Pages come straight from the log
+    // store's index, so an old page costs no more than the latest.
+    private void sendHistory(final Connection connection, final String targetUserName, final String text) {
+        if (null == targetUserName || "".equals(targetUserName)) {
+            badRequest(connection, "Target user name is required.");
+            return;
+        }
+        final long cursor;
+        final int size;
+        try {
+            final String[] fields = (null == text ? "" : text).split(",", -1);
+            cursor = "".equals(fields[0]) ? -1 : Long.parseLong(fields[0]);
+            size = fields.length > 1 && !"".equals(fields[1]) ? Integer.parseInt(fields[1]) : server.getConfig().getHistoryPageSize();
+        } catch (NumberFormatException e) {
+            badRequest(connection, "History cursor and size must be numbers.");
+            return;
+        }
+        final String userName = connection.getUserName();
+        final long historySize = server.getSessionHistorySize(userName, targetUserName);
+        final long end = cursor < 0 || cursor > historySize ? historySize : cursor;
+        final long start = Math.max(0, end - Math.max(0, Math.min(size, server.getConfig().getHistoryPageSize())));
+        for (String entry : server.readSessionHistory(userName, targetUserName, start, (int) (end - start))) {
+            reply(connection, new Message()
+                    .withType(HISTORY)
+                    .withSourceUser(targetUserName)
+                    .withText(entry));
+        }
+        reply(connection, new Message()
+                .withType(HISTORY_END)
+                .withSourceUser(targetUserName)
+                .withText(Long.toString(start)));
+    }
+
+    // The room name goes in the target user field of every room message.
+    private void createRoom(final Connection connection, final String roomName) {
+        if (null == roomName || "".equals(roomName)) {
+            badRequest(connection, "Room name is required.");
+            return;
+        }
+        final Room room = server.getRooms().create(roomName);
+        if (null == room) {
+            badRequest(connection, "Room already exists.");
+            return;
+        }
+        room.join(connection);
+        reply(connection, new Message()
+                .withType(ROOM_CREATE)
+                .withSourceUser(SERVER)
+                .withTargetUser(roomName));
+    }
+
+    private void joinRoom(final Connection connection, final Room room, final String roomName) {
+        if (null == room) {
+            badRequest(connection, "No such room: " + roomName);
+            return;
+        }
+        if (room.join(connection)) {
+            fanOut(room, connection, new Message()
+                    .withType(ROOM_JOIN)
+                    .withSourceUser(connection.getUserName())
+                    .withTargetUser(roomName));
+        }
+        reply(connection, new Message()
+                .withType(ROOM_JOIN)
+                .withSourceUser(SERVER)
+                .withTargetUser(roomName)
+                .withText(setToString(room.getMemberNames())));
+    }
+
+    private void leaveRoom(final Connection connection, final Room room, final String roomName) {
+        if (null == room || !room.leave(connection.getUserName(), connection)) {
+            badRequest(connection, "Not in room: " + roomName);
+            return;
+        }
+        reply(connection, new Message()
+                .withType(ROOM_LEAVE)
+                .withSourceUser(SERVER)
+                .withTargetUser(roomName));
+        fanOut(room, connection, new Message()
+                .withType(ROOM_LEAVE)
+                .withSourceUser(connection.getUserName())
+                .withTargetUser(roomName));
+    }
+
+    private void sendToRoom(final Connection connection, final Room room, final String roomName, final Message message) {
+        if (null == room || !room.isMember(connection)) {
+            badRequest(connection, "Not in room: " + roomName);
+            return;
+        }
+        server.logRoomText(roomName, connection.getUserName() + ": " + message.getText());
+        fanOut(room, connection, new Message()
+                .withType(ROOM_MESSAGE)
+                .withSourceUser(connection.getUserName())
+                .withTargetUser(roomName)
+                .withText(message.getText()));
+    }
+
+    // Sends the message to every member but the sender.  It is encoded at most once per codec, however big the room,
+    // and the whole fan-out is timed as one send.
+    private void fanOut(final Room room, final Connection sender, final Message message) {
+        final long start = System.nanoTime();
+        final SharedMessage shared = new SharedMessage(message);
+        int count = 0;
+        for (Connection member : room.getMembers()) {
+            if (member != sender) {
+                member.send(shared);
+                count++;
+            }
+        }
+        metrics.getSendNanos().record(System.nanoTime() - start);
+        metrics.forwarded(message.getType(), count);
+    }
+
+    private void badRequest(final Connection connection, final String text) {
+        reply(connection, new Message()
+                .withType(BAD_REQUEST)
+                .withSourceUser(SERVER)
+                .withText(text));
+    }
+
+    // Only send these messages if the related session is active.
+    private void forwardMessageIfInSession(final Connection connection, final String targetUserName, final Connection target, final Message message) {
+        if (null == targetUserName || "".equals(targetUserName)) {
+            reply(connection, new Message()
+                    .withType(BAD_REQUEST)
+                    .withSourceUser(SERVER)
+                    .withText("Target user name is required."));
+        }
+        if (server.isSessionActive(connection.getUserName(), targetUserName)) {
+            if (MESSAGE == message.getType() && (null == target || server.getOfflineDelivery().isDraining(targetUserName))) {
+                // Kept for the user's next login, or behind what they are still being handed so it arrives in order.
+                queueMessage(connection, targetUserName, message);
+            } else if (null != target) {
+                forward(target, new Message()
+                        .withType(message.getType())
+                        .withSourceUser(connection.getUserName())
+                        .withText(message.getText()));
+            } else {
+                reply(connection, new Message()
+                        .withType(SESSION_EXIT)
+                        .withSourceUser(SERVER)
+                        .withText("User no longer online."));
+            }
+        } else {
+            reply(connection, new Message()
+                    .withType(BAD_REQUEST)
+                    .withSourceUser(SERVER)
+                    .withText("Session is no longer active."));
+        }
+    }
+
+    private void queueMessage(final Connection connection, final String targetUserName, final Message message) {
+        final Message queued = new Message()
+                .withType(MESSAGE)
+                .withSourceUser(connection.getUserName())
+                .withText(message.getText());
+        if (!server.getOfflineDelivery().enqueue(targetUserName, queued)) {
+            reply(connection, new Message()
+                    .withType(SESSION_EXIT)
+                    .withSourceUser(SERVER)
+                    .withText("User is offline and can't take more messages."));
+        }
+    }
+
+    private void forwardMessage(final Connection connection, final String targetUserName, final Connection target, final Message message) {
+        if (null == targetUserName || "".equals(targetUserName)) {
+            reply(connection, new Message()
+                    .withType(BAD_REQUEST)
+                    .withSourceUser(SERVER)
+                    .withText("Target user name is required."));
+        }
+        if (null != target) {
+            forward(target, new Message()
+                    .withType(message.getType())
+                    .withSourceUser(connection.getUserName())
+                    .withText(message.getText()));
+        } else {
+            reply(connection, new Message()
+                    .withType(SESSION_EXIT)
+                    .withSourceUser(SERVER)
+                    .withText("User no longer online."));
+        }
+    }
+
+    // A message from the server itself back to the connection.
+    private void reply(final Connection connection, final Message message) {
+        final long start = System.nanoTime();
+        connection.send(message);
+        metrics.getSendNanos().record(System.nanoTime() - start);
+        metrics.replied(message.getType());
+    }
+
+    // A message passed on from one user to another.
+    private void forward(final Connection target, final Message message) {
+        final long start = System.nanoTime();
+        target.send(message);
+        metrics.getSendNanos().record(System.nanoTime() - start);
+        metrics.forwarded(message.getType());
+    }
+
+    // Returns a comma delimited string.
+    private String setToString(final Set<String> strings) {
+        StringBuilder builder = new StringBuilder();
+        boolean isFirst = true;
+        for (String string : strings) {
+            if (isFirst) {
+                builder.append(string);
+                isFirst = false;
+            } else {
+                builder.append(",").append(string);
+            }
+        }
+        return builder.toString();
+    }
+}
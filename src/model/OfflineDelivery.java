@@ -0,0 +1,208 @@
+package model;
+
+import model.log.Log;
+import model.metrics.ServerMetrics;
+import model.store.OfflineBatch;
+import model.store.OfflineQueueStore;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds chat messages for users who are offline and hands them over when the user next logs in.  Delivery runs on its
+ * own thread, as reading the queue may go to disk, in batches, waiting whenever the connection's outbound queue backs
+ * up.  A batch only leaves the queue once the connection has written it to the socket, so a connection that drops
+ * mid way leaves the rest (and anything unwritten) for the next login.
+ *
+ * While a user is logging in, and while their queue is being handed over, any new message for them is queued behind
+ * the old ones so everything arrives in order.  The login holds the queue before the name is claimed, so there is no
+ * moment where the user is visible but messages would skip the queue.
+ */
+public class OfflineDelivery {
+    private static final Log LOG = Log.get(OfflineDelivery.class);
+    // How long to wait for a backed up connection before the next batch.
+    private static final long BACKED_UP_DELAY_MILLIS = 10;
+
+    private OfflineQueueStore store;
+    private ScheduledExecutorService executor;
+    private int batchSize;
+    private int backedUpDepth;
+    private ServerMetrics metrics;
+    // Logins in progress by user name, a count as several may race for the same name.
+    private ConcurrentMap<String, Integer> holds;
+    // The connection each user's queue is being handed to.
+    private ConcurrentMap<String, Connection> draining;
+    // Users with a batch on its way or a step scheduled, so only one runs for each at a time.
+    private Set<String> running;
+
+    public OfflineDelivery(final OfflineQueueStore store, final int batchSize, final int backedUpDepth,
+                           final ServerMetrics metrics) {
+        this.store = store;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "offline-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.batchSize = batchSize;
+        this.backedUpDepth = backedUpDepth;
+        this.metrics = metrics;
+        this.holds = new ConcurrentHashMap<>();
+        this.draining = new ConcurrentHashMap<>();
+        this.running = ConcurrentHashMap.newKeySet();
+        executor.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public OfflineQueueStore getStore() {
+        return store;
+    }
+
+    // Queues a message for the user, returns false if their queue is full or can't be written.
+    public boolean enqueue(final String userName, final Message message) {
+        try {
+            if (store.append(userName, message)) {
+                metrics.getOfflineQueued().increment();
+                return true;
+            }
+        } catch (IOException e) {
+            LOG.error("Error in OfflineDelivery.enqueue", userName, e);
+        }
+        metrics.getOfflineRejected().increment();
+        return false;
+    }
+
+    // True while the user is logging in or older messages are still being handed to them, so new ones have to be
+    // queued behind them.
+    public boolean isDraining(final String userName) {
+        return holds.containsKey(userName) || draining.containsKey(userName);
+    }
+
+    // Called before a login claims the user name, so messages sent from the moment it is visible are queued.
+    public void hold(final String userName) {
+        holds.merge(userName, 1, Integer::sum);
+    }
+
+    // Gives up a hold, when the login failed and nobody else has the name either.  If someone does, drain instead so
+    // anything queued for them because of the hold is handed over.
+    public void unhold(final String userName) {
+        holds.computeIfPresent(userName, (name, count) -> 1 == count ? null : count - 1);
+    }
+
+    // Starts handing the user's queued messages to the connection they just logged in on, and gives up its hold.
+    public void drain(final String userName, final Connection connection) {
+        draining.put(userName, connection);
+        unhold(userName);
+        if (running.add(userName)) {
+            submit(() -> next(userName));
+        }
+    }
+
+    // Sends the user their next batch, runs on the delivery thread.
+    private void next(final String userName) {
+        final Connection connection = draining.get(userName);
+        if (null == connection) {
+            finish(userName);
+            return;
+        }
+        // Anything left waits for the next login if the user has gone.
+        if (!userName.equals(connection.getUserName())) {
+            draining.remove(userName, connection);
+            finish(userName);
+            return;
+        }
+        if (connection.getQueueDepth() >= backedUpDepth) {
+            try {
+                executor.schedule(() -> next(userName), BACKED_UP_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+            }
+            return;
+        }
+        final OfflineBatch batch;
+        try {
+            batch = store.peek(userName, batchSize);
+            if (batch.isEmpty()) {
+                // Drops any records that wouldn't decode, so they aren't peeked forever.
+                store.remove(userName, batch);
+            }
+        } catch (IOException e) {
+            LOG.error("Error in OfflineDelivery.next", userName, e);
+            draining.remove(userName, connection);
+            finish(userName);
+            return;
+        }
+        if (batch.isEmpty()) {
+            draining.remove(userName, connection);
+            // Something may have been queued behind the last batch before the flag came down.
+            if (0 < store.size(userName) && userName.equals(connection.getUserName())) {
+                draining.putIfAbsent(userName, connection);
+            }
+            finish(userName);
+            return;
+        }
+        for (Message message : batch.getMessages()) {
+            connection.send(message);
+        }
+        connection.afterSent(written -> submit(() -> sent(userName, connection, batch, written)));
+    }
+
+    // Takes the batch off the queue once it is on the socket, or leaves it there if the connection closed first.
+    private void sent(final String userName, final Connection connection, final OfflineBatch batch, final boolean written) {
+        if (written) {
+            try {
+                store.remove(userName, batch);
+                metrics.getOfflineDelivered().add(batch.getMessages().size());
+            } catch (IOException e) {
+                LOG.error("Error in OfflineDelivery.sent", userName, e);
+                draining.remove(userName, connection);
+                finish(userName);
+                return;
+            }
+        } else {
+            draining.remove(userName, connection);
+        }
+        // Carries on, with the connection of a new login if there was one meanwhile.
+        next(userName);
+    }
+
+    private void finish(final String userName) {
+        running.remove(userName);
+        // A login may have come in after the check.
+        if (draining.containsKey(userName) && running.add(userName)) {
+            submit(() -> next(userName));
+        }
+    }
+
+    private void submit(final Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, what's left stays queued for the next start.
+        }
+    }
+
+    // Drops messages past their time to live, run on the delivery thread now and then.
+    public void expire() {
+        try {
+            metrics.getOfflineExpired().add(store.expire());
+        } catch (IOException e) {
+            LOG.error("Error in OfflineDelivery.expire", e);
+        }
+    }
+
+    // Stops delivering and closes the store, anything not yet written stays queued.
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+}
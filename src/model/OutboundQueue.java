@@ -0,0 +1,189 @@
+package model;
+
+import model.enums.OverflowPolicyEnum;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The bounded queue of messages waiting to be written to one connection.
+ *
+ * Any thread may offer a message and offering never blocks.  The first offer into an idle queue runs the scheduler,
+ * which arranges for the connection's writer to drain the queue; the writer then writes everything waiting and flushes
+ * once per batch rather than once per message.  Only one drain runs at a time.
+ *
+ * When the queue is full the overflow policy decides whether to drop typing indicators, drop the new message or tell
+ * the caller to disconnect the slow consumer.
+ *
+ * A receipt (see afterWritten) goes through the queue like a message but isn't written: once the writer has flushed
+ * everything before it to the socket it is called back with true, or with false if the connection closes first.
+ */
+public class OutboundQueue {
+
+    /**
+     * Writes drained messages for a connection.
+     */
+    public interface Writer {
+        // Whether the writer can take more messages right now (false while a non-blocking socket is backed up).
+        boolean isReady();
+        void write(Message message) throws IOException;
+        // Called once after each batch of writes.
+        void flush() throws IOException;
+        // Whether everything written so far has gone to the socket (false while a non-blocking socket holds some back).
+        boolean isFlushed();
+    }
+
+    // Waits in the queue for the messages before it to be written.
+    private static final class Receipt extends Message {
+        private final Consumer<Boolean> callback;
+
+        private Receipt(final Consumer<Boolean> callback) {
+            this.callback = callback;
+        }
+    }
+
+    private Queue<Message> queue;
+    private int capacity;
+    private OverflowPolicyEnum policy;
+    private Runnable scheduler;
+    private AtomicInteger depth;
+    private AtomicBoolean scheduled;
+    private AtomicLong dropped;
+    // Receipts whose messages have been written but not flushed yet.
+    private Queue<Consumer<Boolean>> unconfirmed;
+    private volatile boolean closed;
+
+    public OutboundQueue(final int capacity, final OverflowPolicyEnum policy, final Runnable scheduler) {
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.capacity = capacity;
+        this.policy = policy;
+        this.scheduler = scheduler;
+        this.depth = new AtomicInteger();
+        this.scheduled = new AtomicBoolean(false);
+        this.dropped = new AtomicLong();
+        this.unconfirmed = new ConcurrentLinkedQueue<>();
+    }
+
+    // The number of messages waiting to be written.
+    public int getDepth() {
+        return depth.get();
+    }
+
+    // The number of messages dropped because the queue was full.
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Queues the message without blocking.  Returns false if the queue is full and the connection should be dropped.
+    public boolean offer(final Message message) {
+        while (depth.incrementAndGet() > capacity) {
+            depth.decrementAndGet();
+            switch (policy) {
+                case DROP_NEWEST:
+                    dropped.incrementAndGet();
+                    return true;
+                case DROP_TYPING_THEN_DISCONNECT:
+                    if (null != message.getType() && message.getType().isEphemeral()) {
+                        dropped.incrementAndGet();
+                        return true;
+                    }
+                    if (!dropEphemeral()) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        queue.add(message);
+        if (scheduled.compareAndSet(false, true)) {
+            scheduler.run();
+        }
+        return true;
+    }
+
+    // Calls back with true once every message offered before this has been written and flushed to the socket, or with
+    // false if the queue is cleared first.  Never counts against the capacity.  The callback runs on the writer's
+    // thread or the one closing the connection, so it must not block.
+    public void afterWritten(final Consumer<Boolean> callback) {
+        if (closed) {
+            callback.accept(false);
+            return;
+        }
+        queue.add(new Receipt(callback));
+        if (closed) {
+            // Cleared meanwhile, and may have missed it.
+            failReceipts();
+            return;
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            scheduler.run();
+        }
+    }
+
+    // Removes queued typing indicators to make room, returns false if there weren't any.
+    private boolean dropEphemeral() {
+        boolean removed = false;
+        for (Message queued : queue) {
+            if (null != queued.getType() && queued.getType().isEphemeral() && queue.remove(queued)) {
+                depth.decrementAndGet();
+                dropped.incrementAndGet();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    // Run by the writer once scheduled: writes queued messages in batches until the queue is empty or the writer is
+    // backed up.  A writer that stops early must call drain again once it is ready.
+    public void drain(final Writer writer) throws IOException {
+        do {
+            Message message;
+            while (writer.isReady() && null != (message = queue.poll())) {
+                if (message instanceof Receipt) {
+                    unconfirmed.add(((Receipt) message).callback);
+                    continue;
+                }
+                depth.decrementAndGet();
+                writer.write(message);
+            }
+            writer.flush();
+            if (writer.isFlushed()) {
+                Consumer<Boolean> callback;
+                while (null != (callback = unconfirmed.poll())) {
+                    callback.accept(true);
+                }
+            }
+            if (closed) {
+                failReceipts();
+            }
+            scheduled.set(false);
+        } while (writer.isReady() && !queue.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+
+    // Drops everything queued, when the connection closes.  Receipts waiting are called back with false, as are any
+    // asked for after.
+    public void clear() {
+        closed = true;
+        failReceipts();
+        depth.set(0);
+    }
+
+    private void failReceipts() {
+        Message message;
+        while (null != (message = queue.poll())) {
+            if (message instanceof Receipt) {
+                ((Receipt) message).callback.accept(false);
+            }
+        }
+        Consumer<Boolean> callback;
+        while (null != (callback = unconfirmed.poll())) {
+            callback.accept(false);
+        }
+    }
+}
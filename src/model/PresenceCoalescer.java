@@ -0,0 +1,176 @@
+package model;
+
+import model.enums.MessageTypeEnum;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throttles the ephemeral presence signals (TYPING, NOT_TYPING, TEXT_CLEARED) a user sends another user.  The first
+ * signal for a (source, target) pair goes straight through and opens a window; anything else that arrives during the
+ * window only replaces a single pending signal, which is forwarded when the window closes unless it just repeats the
+ * last state forwarded.  So a burst of keystrokes costs the target at most one signal per window, always the latest.
+ *
+ * If the target's outbound queue is backed up the pending signal is held for another window instead of being queued
+ * behind everything else, and anything newer supersedes it.  Every signal replaced or skipped is counted as suppressed.
+ */
+public class PresenceCoalescer {
+
+    // Where forwarded signals go.
+    public interface Target {
+        // How many messages are waiting to be written to the user, 0 if they aren't online.
+        int getQueueDepth(String userName);
+
+        // Forwards the signal from the source connection, logged in as the source user name, to the message's target.
+        void forward(String sourceUserName, Connection source, Message message);
+    }
+
+    // The signals from one user to another.  Guarded by its own monitor.
+    private static class Pair {
+        private String sourceUserName;
+        private String targetUserName;
+        private MessageTypeEnum last;
+        private Message pending;
+        private Connection pendingSource;
+        private boolean removed;
+
+        private Pair(final String sourceUserName, final String targetUserName) {
+            this.sourceUserName = sourceUserName;
+            this.targetUserName = targetUserName;
+        }
+    }
+
+    private long windowMillis;
+    private int backedUpDepth;
+    private ScheduledExecutorService scheduler;
+    private Target target;
+    // Pairs with an open window, by source then target user name.
+    private ConcurrentMap<String, ConcurrentMap<String, Pair>> pairs;
+    private LongAdder suppressed;
+
+    public PresenceCoalescer(final long windowMillis,
+                             final int backedUpDepth,
+                             final ScheduledExecutorService scheduler,
+                             final Target target,
+                             final LongAdder suppressed) {
+        this.windowMillis = windowMillis;
+        this.backedUpDepth = backedUpDepth;
+        this.scheduler = scheduler;
+        this.target = target;
+        this.pairs = new ConcurrentHashMap<>();
+        this.suppressed = suppressed;
+    }
+
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    // Forwards the signal now, later or not at all.
+    public void offer(final Connection source, final Message message) {
+        final String sourceUserName = source.getUserName();
+        final String targetUserName = message.getTargetUser();
+        if (windowMillis <= 0 || null == sourceUserName || null == targetUserName) {
+            target.forward(sourceUserName, source, message);
+            return;
+        }
+        while (true) {
+            final Pair pair = pairs.computeIfAbsent(sourceUserName, key -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(targetUserName, key -> new Pair(sourceUserName, targetUserName));
+            boolean forwardNow = false;
+            synchronized (pair) {
+                if (pair.removed) {
+                    // Its window closed while we were getting it, start again with a new one.
+                    continue;
+                }
+                if (null == pair.last && null == pair.pending) {
+                    // A new window.
+                    if (isBackedUp(targetUserName)) {
+                        hold(pair, source, message);
+                    } else {
+                        pair.last = message.getType();
+                        forwardNow = true;
+                    }
+                    schedule(pair);
+                } else {
+                    hold(pair, source, message);
+                }
+            }
+            if (forwardNow) {
+                target.forward(sourceUserName, source, message);
+            }
+            return;
+        }
+    }
+
+    private void hold(final Pair pair, final Connection source, final Message message) {
+        if (null != pair.pending) {
+            suppressed.increment();
+        }
+        pair.pending = message;
+        pair.pendingSource = source;
+    }
+
+    // Runs when a pair's window closes.
+    private void flush(final Pair pair) {
+        Message message = null;
+        Connection source = null;
+        synchronized (pair) {
+            if (null == pair.pending) {
+                close(pair);
+                return;
+            }
+            if (pair.pending.getType() == pair.last) {
+                suppressed.increment();
+                close(pair);
+                return;
+            }
+            if (!isBackedUp(pair.targetUserName)) {
+                message = pair.pending;
+                source = pair.pendingSource;
+                pair.last = message.getType();
+                pair.pending = null;
+                pair.pendingSource = null;
+            }
+            // Either way another window starts, to hold back whatever comes next or retry the held signal.
+            schedule(pair);
+        }
+        if (null != message) {
+            target.forward(pair.sourceUserName, source, message);
+        }
+    }
+
+    private void close(final Pair pair) {
+        pair.removed = true;
+        pair.pending = null;
+        pair.pendingSource = null;
+        final ConcurrentMap<String, Pair> targets = pairs.get(pair.sourceUserName);
+        if (null != targets) {
+            targets.remove(pair.targetUserName, pair);
+            // An empty map left behind here is cheap and reused when the user next signals.
+        }
+    }
+
+    private boolean isBackedUp(final String targetUserName) {
+        return target.getQueueDepth(targetUserName) >= backedUpDepth;
+    }
+
+    private void schedule(final Pair pair) {
+        try {
+            scheduler.schedule(() -> flush(pair), windowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, nothing left to forward to.
+            close(pair);
+        }
+    }
+
+    // Forgets every pair the user is the source of, eg. when they log out.
+    public void remove(final String sourceUserName) {
+        if (null != sourceUserName) {
+            pairs.remove(sourceUserName);
+        }
+    }
+}
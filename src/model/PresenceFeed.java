@@ -0,0 +1,105 @@
+package model;
+
+import model.metrics.ServerMetrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes the UserDirectory's USER_JOINED and USER_LEFT deltas to every connection that sent SUBSCRIBE_USERS, so clients
+ * keep their user lists current without asking for the whole list again.  Each delta is encoded once and shared by
+ * every subscriber.  A subscriber whose outbound queue is backed up skips deltas and is sent the current snapshot once
+ * what it had queued has been written instead, which covers everything it missed, whether or not presence changes
+ * again meanwhile.
+ */
+public class PresenceFeed implements UserDirectory.Listener {
+
+    private UserDirectory users;
+    private int backedUpDepth;
+    private ServerMetrics metrics;
+    private LongAdder snapshots;
+    // Subscribers, mapped to true while they owe a snapshot for skipped deltas.
+    private Map<Connection, Boolean> subscribers;
+
+    public PresenceFeed(final UserDirectory users, final int backedUpDepth, final ServerMetrics metrics) {
+        this.users = users;
+        this.backedUpDepth = backedUpDepth;
+        this.metrics = metrics;
+        this.snapshots = metrics.getPresenceSnapshots();
+        this.subscribers = new ConcurrentHashMap<>();
+    }
+
+    // Subscribes the connection and returns what to reply with: the deltas after the version it already knows, or a
+    // snapshot if it knows none or is too far behind.
+    public List<? extends Message> subscribe(final Connection connection, final String knownVersion) {
+        subscribers.put(connection, Boolean.FALSE);
+        final List<SharedMessage> missed = users.getDeltasSince(parseVersion(knownVersion));
+        if (null != missed) {
+            return missed;
+        }
+        snapshots.increment();
+        return Collections.singletonList(users.getSnapshot());
+    }
+
+    public void unsubscribe(final Connection connection) {
+        subscribers.remove(connection);
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void changed(final SharedMessage delta) {
+        int sent = 0;
+        for (Map.Entry<Connection, Boolean> subscriber : subscribers.entrySet()) {
+            final Connection connection = subscriber.getKey();
+            if (connection.getQueueDepth() >= backedUpDepth) {
+                if (subscribers.replace(connection, Boolean.FALSE, Boolean.TRUE)) {
+                    connection.afterSent(written -> drained(connection, written));
+                }
+            } else if (subscriber.getValue()) {
+                sendSnapshot(connection);
+            } else {
+                connection.send(delta);
+                sent++;
+            }
+        }
+        metrics.forwarded(delta.getType(), sent);
+    }
+
+    // Called back once what was queued when the subscriber backed up has been written.  Waits for the next lot if it is
+    // still backed up.
+    private void drained(final Connection connection, final boolean written) {
+        if (!written || !Boolean.TRUE.equals(subscribers.get(connection))) {
+            return;
+        }
+        if (connection.getQueueDepth() >= backedUpDepth) {
+            connection.afterSent(next -> drained(connection, next));
+        } else {
+            sendSnapshot(connection);
+        }
+    }
+
+    // Sends the snapshot the subscriber owes, unless a delta or its drain got there first.
+    private void sendSnapshot(final Connection connection) {
+        if (subscribers.replace(connection, Boolean.TRUE, Boolean.FALSE)) {
+            snapshots.increment();
+            connection.send(users.getSnapshot());
+        }
+    }
+
+    private static long parseVersion(final String text) {
+        if (null == text || text.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
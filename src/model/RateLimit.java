@@ -0,0 +1,49 @@
+package model;
+
+/**
+ * A token bucket budget: a sustained rate per second and the burst allowed above it.  Written as "rate/burst" in
+ * system properties, eg. -Dmessenger.messageRateLimit=20/40; a rate of 0 means unlimited.
+ */
+public class RateLimit {
+    public static final RateLimit UNLIMITED = new RateLimit(0, 0);
+
+    private final double perSecond;
+    private final int burst;
+
+    public RateLimit(final double perSecond, final int burst) {
+        this.perSecond = perSecond;
+        this.burst = perSecond > 0 ? Math.max(1, burst) : burst;
+    }
+
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public boolean isUnlimited() {
+        return perSecond <= 0;
+    }
+
+    // Parses "rate/burst", or just "rate" for a burst of one second's worth.  Null if the value can't be read.
+    public static RateLimit from(final String value) {
+        if (null == value) {
+            return null;
+        }
+        final int slash = value.indexOf('/');
+        try {
+            final double perSecond = Double.parseDouble((slash < 0 ? value : value.substring(0, slash)).trim());
+            final int burst = slash < 0 ? (int) Math.ceil(perSecond) : Integer.parseInt(value.substring(slash + 1).trim());
+            return perSecond < 0 || burst < 0 ? null : new RateLimit(perSecond, burst);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return isUnlimited() ? "0" : perSecond + "/" + burst;
+    }
+}
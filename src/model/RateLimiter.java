@@ -0,0 +1,119 @@
+package model;
+
+import model.enums.MessageTypeEnum;
+
+/**
+ * The token buckets limiting what one connection may send.  Every frame, readable or not, takes a token from the
+ * connection's frame bucket, and chat messages, invites, user list requests and typing signals each also take one from
+ * their own bucket, so a client flooding one kind of request can't starve the rest of its budget.  LOGOUT is never
+ * limited so a client can always leave.
+ *
+ * Each frame refused is a strike, and strikes have a bucket of their own: a connection that keeps sending over its
+ * limits runs out of strikes and should be disconnected.
+ *
+ * Buckets are refilled lazily from the clock when a frame arrives, so an idle connection costs nothing.  Not thread
+ * safe; each connection reads its frames on one thread.
+ */
+public class RateLimiter {
+
+    // What to do with a frame.
+    public enum Verdict { ACCEPT, THROTTLE, DISCONNECT }
+
+    private static final int FRAME = 0;
+    private static final int MESSAGE = 1;
+    private static final int INVITE = 2;
+    private static final int GET_USERS = 3;
+    private static final int TYPING = 4;
+    private static final int STRIKE = 5;
+
+    // Per bucket: the limit, the tokens left and when they were last refilled.
+    private RateLimit[] limits;
+    private double[] tokens;
+    private long[] refilled;
+    // When the last refused frame may be retried, in nanoseconds from its arrival.
+    private long retryNanos;
+
+    public RateLimiter(final ServerConfig config, final long now) {
+        this.limits = new RateLimit[]{config.getFrameRateLimit(), config.getMessageRateLimit(), config.getInviteRateLimit(),
+                config.getGetUsersRateLimit(), config.getTypingRateLimit(), config.getThrottleStrikeLimit()};
+        this.tokens = new double[limits.length];
+        this.refilled = new long[limits.length];
+        for (int i = 0; i < limits.length; i++) {
+            tokens[i] = limits[i].getBurst();
+            refilled[i] = now;
+        }
+    }
+
+    // Takes the tokens for a frame of the type (null if it couldn't be decoded) arriving at now, in System.nanoTime.
+    public Verdict acquire(final MessageTypeEnum type, final long now) {
+        if (MessageTypeEnum.LOGOUT == type) {
+            return Verdict.ACCEPT;
+        }
+        final int bucket = bucket(type);
+        // Check both before taking either, so a frame refused by one bucket doesn't use up the other.
+        if (available(FRAME, now) && (bucket < 0 || available(bucket, now))) {
+            take(FRAME);
+            if (bucket >= 0) {
+                take(bucket);
+            }
+            return Verdict.ACCEPT;
+        }
+        if (!available(STRIKE, now)) {
+            return Verdict.DISCONNECT;
+        }
+        take(STRIKE);
+        return Verdict.THROTTLE;
+    }
+
+    // How long until the frame last refused would have been accepted, in milliseconds.
+    public long getRetryMillis() {
+        return (retryNanos + 999_999) / 1_000_000;
+    }
+
+    private static int bucket(final MessageTypeEnum type) {
+        if (null == type) {
+            return -1;
+        }
+        switch (type) {
+            case MESSAGE:
+            case ROOM_MESSAGE:
+                return MESSAGE;
+            case INVITE:
+                return INVITE;
+            case GET_USERS:
+            case SUBSCRIBE_USERS:
+            case HISTORY:
+                return GET_USERS;
+            case TYPING:
+            case NOT_TYPING:
+            case TEXT_CLEARED:
+                return TYPING;
+            default:
+                return -1;
+        }
+    }
+
+    // Refills the bucket for the time since it was last refilled, returns whether it has a whole token.
+    private boolean available(final int bucket, final long now) {
+        final RateLimit limit = limits[bucket];
+        if (limit.isUnlimited()) {
+            return true;
+        }
+        final long elapsed = now - refilled[bucket];
+        if (elapsed > 0) {
+            tokens[bucket] = Math.min(limit.getBurst(), tokens[bucket] + elapsed * limit.getPerSecond() / 1e9);
+            refilled[bucket] = now;
+        }
+        if (tokens[bucket] >= 1) {
+            return true;
+        }
+        retryNanos = (long) Math.ceil((1 - tokens[bucket]) * 1e9 / limit.getPerSecond());
+        return false;
+    }
+
+    private void take(final int bucket) {
+        if (!limits[bucket].isUnlimited()) {
+            tokens[bucket]--;
+        }
+    }
+}
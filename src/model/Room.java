@@ -0,0 +1,82 @@
+package model;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named chat room.  Members are looked up by user name when joining, leaving and checking membership, while fan-out
+ * walks an array snapshot of the member connections that is only rebuilt when membership changes.
+ */
+public class Room {
+    private static final Connection[] NO_MEMBERS = new Connection[0];
+
+    private String name;
+    private Map<String, Connection> members;
+    private volatile Connection[] snapshot;
+    // Guards changes to the members, so each snapshot matches the map.
+    private ReentrantLock lock;
+
+    public Room(final String name) {
+        this.name = name;
+        this.members = new ConcurrentHashMap<>();
+        this.snapshot = NO_MEMBERS;
+        this.lock = new ReentrantLock();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Returns false if the user was already a member.
+    public boolean join(final Connection connection) {
+        lock.lock();
+        try {
+            if (null != members.putIfAbsent(connection.getUserName(), connection)) {
+                return false;
+            }
+            snapshot = members.values().toArray(NO_MEMBERS);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns false if the connection wasn't a member under that user name.
+    public boolean leave(final String userName, final Connection connection) {
+        if (null == userName) {
+            return false;
+        }
+        lock.lock();
+        try {
+            if (!members.remove(userName, connection)) {
+                return false;
+            }
+            snapshot = members.values().toArray(NO_MEMBERS);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isMember(final Connection connection) {
+        final String userName = connection.getUserName();
+        return null != userName && connection == members.get(userName);
+    }
+
+    // The current members.  Shared between callers, so never modify it.
+    public Connection[] getMembers() {
+        return snapshot;
+    }
+
+    // A read only, live view of the member user names.
+    public Set<String> getMemberNames() {
+        return Collections.unmodifiableSet(members.keySet());
+    }
+
+    public int size() {
+        return snapshot.length;
+    }
+}
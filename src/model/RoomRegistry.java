@@ -0,0 +1,70 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Every room on the server by name.  Rooms live until the server stops even when nobody is in them, and since their
+ * history goes to the session log store under getLogId, rooms with history are recreated on restart.
+ */
+public class RoomRegistry {
+    // Marks room histories in the log store.  Can't be typed into a client, so can't clash with a pair of user names.
+    private static final String LOG_PREFIX = "room\u0000";
+
+    private ConcurrentMap<String, Room> rooms;
+
+    public RoomRegistry() {
+        this.rooms = new ConcurrentHashMap<>();
+    }
+
+    // Recreates the rooms that have history among the given log store ids.
+    public void restore(final Set<String> logIds) {
+        for (String logId : logIds) {
+            if (logId.startsWith(LOG_PREFIX)) {
+                create(logId.substring(LOG_PREFIX.length()));
+            }
+        }
+    }
+
+    // Returns the new room, or null if the name is taken.
+    public Room create(final String name) {
+        final Room room = new Room(name);
+        return null == rooms.putIfAbsent(name, room) ? room : null;
+    }
+
+    public Room get(final String name) {
+        return null == name ? null : rooms.get(name);
+    }
+
+    // Removes the connection from every room it is in, returning those rooms.
+    public List<Room> leaveAll(final String userName, final Connection connection) {
+        if (null == userName) {
+            return Collections.emptyList();
+        }
+        final List<Room> left = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            if (room.leave(userName, connection)) {
+                left.add(room);
+            }
+        }
+        return left;
+    }
+
+    // A read only, live view of the room names.
+    public Set<String> getRoomNames() {
+        return Collections.unmodifiableSet(rooms.keySet());
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+
+    // The id a room's history is kept under in the session log store.
+    public static String getLogId(final String name) {
+        return LOG_PREFIX + name;
+    }
+}
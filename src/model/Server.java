@@ -1,48 +1,305 @@
 package model;
 
+import model.cluster.ClusterNode;
+import model.cluster.RemoteConnection;
 import model.enums.SessionStatusEnum;
+import model.log.Log;
+import model.metrics.MetricsEndpoint;
+import model.metrics.MetricsMBean;
+import model.metrics.ServerMetrics;
+import model.nio.NioEngine;
+import model.store.InMemorySessionLogStore;
+import model.store.InMemoryOfflineQueueStore;
+import model.store.MappedSessionLogStore;
+import model.store.OfflineQueueStore;
+import model.store.SegmentOfflineQueueStore;
+import model.store.SessionLogStore;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLSocket;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class manages the thread pool of user connections, active user names, and sessions between users.  Communication between
  * server and clients is defined by the messaging enums in MessageTypeEnum.
  *
- * The methods provided on this class are mostly to facilitate passing messages between users.  The synchronized keyword
- * is used on several methods to ensure that the accessed information isn't corrupted due to multiple server thread requests.
+ * The methods provided on this class are mostly to facilitate passing messages between users.  Connections and user
+ * names live in concurrent maps so the per message lookups never lock.  A lock is held in the session methods to ensure
+ * that the accessed information isn't corrupted due to multiple server thread requests.  It is a ReentrantLock rather
+ * than synchronized so that virtual threads waiting on it don't pin their carrier thread.
+ *
+ * Connections are either serviced by a ServerThread each, run on a platform or virtual thread (blocking and virtual
+ * modes), or multiplexed over a small pool of NIO event loops (NIO mode).  All hand received messages to the same
+ * MessageRouter.
  */
 public class Server extends Thread {
+    private static final Log LOG = Log.get(Server.class);
+    // Joins the two user names of a session's log id, so no user name may contain it.
+    public static final char LOG_ID_SEPARATOR = '\u0001';
 
-    // The map of currently active users by their sessionId.
-    private Map<Integer, ServerThread> threadIdToUser;
-    // The set of user names that are currently active (could be different from the map values
-    // because a user may not have logged in yet with a user name).
-    private Set<String> activeUsers;
-    // The map of sessions that have been started while this server has been running.
-    private Map<String, Session> idToSession;
+    // The currently connected users by their connection id, guarded by connectionLock.  Ids come from a counter rather
+    // than the client's port, which can repeat across client hosts.
+    private LongObjectMap<Connection> threadIdToUser;
+    private ReentrantLock connectionLock;
+    private AtomicInteger connectionIds;
+    // The users that are currently logged in (could be fewer than the connections because a
+    // connection may not have logged in yet with a user name).
+    private UserDirectory users;
+    // The sessions resident in memory, least recently used first.  Idle ones are evicted (their history stays in the
+    // log store) after a TTL or when the resident tails exceed the memory budget.
+    // Keyed by the two users' interned ids packed into a long, see getSessionKey.
+    private SessionTable idToSession;
+    // Pushes user joined / left deltas to the connections that subscribed.
+    private PresenceFeed presenceFeed;
+    // Messages waiting for offline users.
+    private OfflineDelivery offline;
+    // This server's part in a cluster, null when running alone.
+    private ClusterNode cluster;
+    // Multi user rooms by name.
+    private RoomRegistry rooms;
+    // The estimated heap held by resident session tails, and how many sessions have been evicted.
+    private AtomicLong residentSessionBytes;
+    private AtomicLong sessionEvictions;
+    // Runs periodic housekeeping such as evicting idle sessions.
+    private ScheduledExecutorService maintenance;
+    // Pings and closes connections that have gone quiet.
+    private IdleReaper reaper;
+    // The full chat history of every session.
+    private SessionLogStore logStore;
     // The socket this server is listening to for requests.
     private ServerSocket socket;
-    private boolean run;
+    // Routes received messages for every connection.
+    private MessageRouter router;
+    // Creates the thread each ServerThread runs on in blocking and virtual modes.
+    private ThreadFactory connectionThreads;
+    // Runs the tasks that drain ServerThread outbound queues.
+    private ExecutorService writers;
+    private ServerConfig config;
+    // The event loops servicing connections in NIO mode (null in blocking mode).
+    private NioEngine engine;
+    // Counters and timings, exposed over JMX and optionally as plain text on a local port.
+    private ServerMetrics metrics;
+    private ObjectName metricsName;
+    private MetricsEndpoint metricsEndpoint;
+    // The snapshot the sessions were restored from, handing them out as they are first used.  Null once it has handed
+    // them all out, or if there was none.
+    private SessionSnapshot snapshot;
+    // Sessions restored from the snapshot whose history is still under its old plain concatenated log id, by session
+    // key.  The snapshot records which two users that id belongs to; it is kept here, and in every later snapshot, so
+    // the session finds its history again after being evicted.  Guarded by lock.
+    private Map<Long, SessionSnapshot.Entry> legacySessions;
+    private AtomicLong restoredSessions;
+    // When the server started, how long it took to be ready, and how long until it accepted the first message (-1 until
+    // it has).
+    private long startNanos;
+    private long startupMillis;
+    private volatile long firstMessageMillis;
+    // Guards the sessions map.
+    private ReentrantLock lock;
+    private AtomicBoolean closed;
+    private volatile boolean run;
 
     public Server(final ServerSocket socket) {
-        this.threadIdToUser = new HashMap<>();
+        this(socket, ConnectionThreads.platform());
+    }
+
+    // Runs each ServerThread on a thread from the given factory, eg. ConnectionThreads.virtual().
+    public Server(final ServerSocket socket, final ThreadFactory connectionThreads) {
+        this(socket, connectionThreads, new ServerConfig());
+    }
+    public Server(final ServerSocket socket, final ThreadFactory connectionThreads, final ServerConfig config) {
+        this(socket, connectionThreads, null, config);
+    }
+
+    // Accepts on the channel and services connections with the given number of event loops instead of a thread each.
+    public Server(final ServerSocketChannel channel, final int eventLoops) {
+        this(channel, eventLoops, new ServerConfig());
+    }
+    public Server(final ServerSocketChannel channel, final int eventLoops, final ServerConfig config) {
+        this(channel.socket(), ConnectionThreads.platform(), eventLoops, config);
+    }
+
+    private Server(final ServerSocket socket, final ThreadFactory connectionThreads, final Integer eventLoops, final ServerConfig config) {
+        this.startNanos = System.nanoTime();
+        this.firstMessageMillis = -1;
+        this.lock = new ReentrantLock();
+        this.closed = new AtomicBoolean();
+        this.config = config;
+        this.connectionThreads = connectionThreads;
+        this.writers = Executors.newCachedThreadPool(connectionThreads);
+        this.threadIdToUser = new LongObjectMap<>();
+        this.connectionLock = new ReentrantLock();
+        this.connectionIds = new AtomicInteger();
         this.socket = socket;
-        this.activeUsers = new HashSet<>();
-        this.idToSession = new HashMap<>();
+        this.users = new UserDirectory(config.getPresenceHistory());
+        this.idToSession = new SessionTable();
+        this.residentSessionBytes = new AtomicLong();
+        this.sessionEvictions = new AtomicLong();
+        // Sessions with history are loaded on demand, their tails are read back when they are next activated.
+        this.logStore = openLogStore(config);
+        this.restoredSessions = new AtomicLong();
+        this.legacySessions = new HashMap<>();
+        this.snapshot = openSnapshot(config);
+        if (null != snapshot) {
+            final SessionSnapshot restoring = snapshot;
+            logStore.setKnownSizes(restoring::getHistorySize);
+        }
+        this.rooms = new RoomRegistry();
+        rooms.restore(logStore.getSessionIds());
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "server-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long sweepMillis = Math.max(1000, Math.min(60 * 1000, config.getSessionTtlMillis() / 2));
+        maintenance.scheduleWithFixedDelay(this::evictIdleSessions, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        if (null != config.getSnapshotFile() && config.getSnapshotIntervalMillis() > 0) {
+            maintenance.scheduleWithFixedDelay(this::writeSnapshot, config.getSnapshotIntervalMillis(),
+                    config.getSnapshotIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+        this.metrics = new ServerMetrics(this);
+        final long tickMillis = Math.max(1, config.getReaperTickMillis());
+        this.reaper = new IdleReaper(config.getIdleTimeoutMillis() / tickMillis, config.getPingTimeoutMillis() / tickMillis,
+                metrics.getIdlePings(), metrics.getIdleReaped());
+        if (config.getIdleTimeoutMillis() > 0) {
+            maintenance.scheduleWithFixedDelay(reaper::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        }
+        this.presenceFeed = new PresenceFeed(users, config.getPresenceBackedUpDepth(), metrics);
+        this.offline = new OfflineDelivery(openOfflineStore(config), config.getOfflineBatchSize(),
+                Math.max(1, config.getOutboundCapacity() / 2), metrics);
+        users.setListener(presenceFeed);
+        exposeMetrics();
+        this.router = new MessageRouter(this);
+        if (null != config.getMessageBus()) {
+            final String nodeId = null == config.getNodeId() ? "node-" + socket.getLocalPort() : config.getNodeId();
+            this.cluster = new ClusterNode(this, config.getMessageBus(), nodeId);
+            cluster.start();
+        }
+        if (null != eventLoops) {
+            try {
+                this.engine = new NioEngine(this, eventLoops);
+            } catch (IOException e) {
+                // Channel sockets still work as plain blocking sockets, so fall back to a thread per connection.
+                LOG.error("Error in Server, falling back to blocking mode", e);
+            }
+        }
         run = true;
         start();
+        startupMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        LOG.info("Server started in ms", startupMillis);
+    }
+
+    private static SessionLogStore openLogStore(final ServerConfig config) {
+        if (null != config.getSessionLogStore()) {
+            return config.getSessionLogStore();
+        }
+        try {
+            return new MappedSessionLogStore(Paths.get(config.getSessionLogDirectory()), config.getSessionSegmentSize(),
+                    config.getSessionLogMaxOpen());
+        } catch (IOException e) {
+            LOG.error("Error in Server.openLogStore, keeping history in memory", e);
+            return new InMemorySessionLogStore();
+        }
+    }
+
+    private static SessionSnapshot openSnapshot(final ServerConfig config) {
+        if (null == config.getSnapshotFile()) {
+            return null;
+        }
+        try {
+            final SessionSnapshot snapshot = SessionSnapshot.open(Paths.get(config.getSnapshotFile()));
+            if (null != snapshot) {
+                LOG.info("Restoring sessions from snapshot", snapshot.size());
+            }
+            return snapshot;
+        } catch (IOException e) {
+            LOG.error("Error in Server.openSnapshot, starting without sessions", e);
+            return null;
+        }
+    }
+
+    private static OfflineQueueStore openOfflineStore(final ServerConfig config) {
+        if (null != config.getOfflineQueueStore()) {
+            return config.getOfflineQueueStore();
+        }
+        try {
+            return new SegmentOfflineQueueStore(Paths.get(config.getOfflineDirectory()), config.getOfflineSegmentSize(),
+                    config.getOfflineMaxMessages(), config.getOfflineMaxBytes(), config.getOfflineTtlMillis(),
+                    config.getOfflineCommitMillis());
+        } catch (IOException e) {
+            LOG.error("Error in Server.openOfflineStore, keeping offline messages in memory", e);
+            return new InMemoryOfflineQueueStore(config.getOfflineMaxMessages(), config.getOfflineMaxBytes(),
+                    config.getOfflineTtlMillis());
+        }
+    }
+
+    private void exposeMetrics() {
+        try {
+            metricsName = new ObjectName("messenger:type=Server,port=" + socket.getLocalPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(metrics.getRegistry()), metricsName);
+        } catch (JMException e) {
+            LOG.error("Error in Server.exposeMetrics", e);
+            metricsName = null;
+        }
+        if (config.getMetricsPort() > 0) {
+            try {
+                metricsEndpoint = new MetricsEndpoint(metrics.getRegistry(), config.getMetricsPort());
+            } catch (IOException e) {
+                LOG.error("Error in Server.exposeMetrics", config.getMetricsPort(), e);
+            }
+        }
+    }
+
+    public MessageRouter getRouter() {
+        return router;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Runs housekeeping and other delayed work, on a single thread so tasks must be short.
+    public ScheduledExecutorService getScheduler() {
+        return maintenance;
+    }
+
+    // Every connection registers with it, and tells it about each frame received.
+    public IdleReaper getReaper() {
+        return reaper;
+    }
+
+    // The pool ServerThreads drain their outbound queues on.
+    public Executor getWriters() {
+        return writers;
     }
 
     public void run() {
@@ -50,89 +307,543 @@ public class Server extends Thread {
             try {
                 addThread(socket.accept());
             } catch (IOException e) {
-                System.out.println("Error in ServerThreadPool.run: " + e.getMessage());
-                close();
+                if (run) {
+                    LOG.error("Error in ServerThreadPool.run", e);
+                    close();
+                }
             }
         }
     }
-    private synchronized void addThread(final Socket socket) {
+    private void addThread(final Socket socket) {
         try {
-            final ServerThread thread = new ServerThread(this, socket,
-                    new DataInputStream(new BufferedInputStream(socket.getInputStream())),
-                    new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
-            System.out.println("Connected to new client: " + thread.getThreadId());
-            threadIdToUser.put(thread.getThreadId(), thread);
+            // Frames are already batched before each flush, so don't let Nagle hold back the small ones.
+            socket.setTcpNoDelay(true);
         } catch (IOException e) {
-            System.out.println("Error in ServerThreadPool.addThread: " + e.getMessage());
+            LOG.error("Error in ServerThreadPool.addThread", socket.getPort(), null, e);
+        }
+        if (null != engine) {
+            final Connection connection = engine.register(socket.getChannel());
+            LOG.info("Connected to new client", connection.getThreadId(), null);
+            addConnection(connection);
+            return;
+        }
+        try {
+            // The handshake happens on the connection's own thread, at its first read.
+            final Socket connected = null == config.getSslContext() ? socket : secure(socket);
+            final ServerThread thread = new ServerThread(this, connected,
+                    new DataInputStream(new BufferedInputStream(connected.getInputStream())),
+                    new DataOutputStream(new BufferedOutputStream(connected.getOutputStream())));
+            LOG.info("Connected to new client", thread.getThreadId(), null);
+            addConnection(thread);
+            connectionThreads.newThread(thread).start();
+        } catch (IOException e) {
+            LOG.error("Error in ServerThreadPool.addThread", socket.getPort(), null, e);
+        }
+    }
+    private SSLSocket secure(final Socket socket) throws IOException {
+        final SSLSocket secured = (SSLSocket) config.getSslContext().getSocketFactory()
+                .createSocket(socket, null, socket.getPort(), true);
+        secured.setUseClientMode(false);
+        return secured;
+    }
+    private void addConnection(final Connection connection) {
+        connectionLock.lock();
+        try {
+            threadIdToUser.put(connection.getThreadId(), connection);
+        } finally {
+            connectionLock.unlock();
         }
     }
 
-    public synchronized void removeThread(final ServerThread thread) {
-        System.out.println("Disconnecting from client: " +thread.getThreadId());
-        activeUsers.remove(thread.getUserName());
-        threadIdToUser.remove(thread.getThreadId());
+    // A new id for a connection, unique for the life of the server.
+    public int nextConnectionId() {
+        return connectionIds.incrementAndGet();
+    }
+
+    public void removeThread(final Connection thread) {
+        LOG.info("Disconnecting from client", thread.getThreadId(), thread.getUserName());
+        router.removeUser(thread.getUserName(), thread);
+        releaseUserName(thread.getUserName(), thread);
+        connectionLock.lock();
+        try {
+            threadIdToUser.remove(thread.getThreadId(), thread);
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    // The number of open connections, logged in or not.
+    public int getConnectionCount() {
+        connectionLock.lock();
+        try {
+            return threadIdToUser.size();
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    // A read only, live view of the logged in user names.
+    public Set<String> getActiveUsers() {
+        return users.getUserNames();
+    }
+    // Bumped every time a user logs in or out.
+    public long getUsersVersion() {
+        return users.getVersion();
+    }
+    // The GET_USERS reply, built and encoded once per version of the user list.
+    public SharedMessage getUserList() {
+        return users.getUserList();
+    }
+    public OfflineDelivery getOfflineDelivery() {
+        return offline;
+    }
+    public PresenceFeed getPresenceFeed() {
+        return presenceFeed;
+    }
+    public Connection getUserByUserName(final String userName) {
+        return users.get(userName);
     }
 
-    public synchronized Set<String> getActiveUsers() {
-        return activeUsers;
+    // Logs the connection in under the user name, returns false if the name is already taken.
+    // Users on this node are announced to the rest of the cluster, if any.
+    public boolean claimUserName(final String userName, final Connection connection) {
+        if (!users.claim(userName, connection)) {
+            return false;
+        }
+        if (null != cluster && !(connection instanceof RemoteConnection)) {
+            cluster.userOnline(userName);
+        }
+        return true;
     }
-    public synchronized ServerThread getUserByUserName(final String userName) {
-        final Optional<ServerThread> match = threadIdToUser.values().stream().filter(u -> userName.equals(u.getUserName())).findFirst();
-        if (match.isPresent()) {
-            return match.get();
+    public void releaseUserName(final String userName, final Connection connection) {
+        if (users.release(userName, connection) && null != cluster && !(connection instanceof RemoteConnection)) {
+            cluster.userOffline(userName);
         }
-        return null;
+    }
+
+    // The users logged in to other nodes of the cluster.
+    public int getRemoteUserCount() {
+        return null == cluster ? 0 : cluster.getRemoteUserCount();
     }
 
     // Create a session or reactivates an existing session.
-    public synchronized void activateSession(final String userNameA, final String userNameB) {
-        final String sessionId = getSessionId(userNameA, userNameB);
-        System.out.println("Activating session " + sessionId);
-        if (!idToSession.containsKey(sessionId)) {
-            idToSession.put(sessionId, new Session().withId(sessionId).withLog(new ArrayList<>()).withStatus(SessionStatusEnum.ACTIVE));
-        } else {
-            idToSession.get(sessionId).setStatus(SessionStatusEnum.ACTIVE);
+    public void activateSession(final String userNameA, final String userNameB) {
+        final long key = getSessionKey(users.intern(userNameA), users.intern(userNameB));
+        final Session session;
+        lock.lock();
+        try {
+            final Session existing = touch(key, userNameA, userNameB);
+            if (null == existing) {
+                final String logId = getLogId(key, userNameA, userNameB);
+                final boolean ordered = userNameA.compareTo(userNameB) <= 0;
+                LOG.debug("Activating session", logId);
+                session = new Session().withKey(key).withId(logId).withStatus(SessionStatusEnum.ACTIVE)
+                        .withFirstUserName(ordered ? userNameA : userNameB)
+                        .withSecondUserName(ordered ? userNameB : userNameA)
+                        .withLastAccess(System.currentTimeMillis());
+                idToSession.put(session);
+            } else {
+                session = existing;
+                idToSession.activate(session);
+            }
+            if (null != session.getTail()) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Reopen any existing history, only reading its tail back into the heap.
+        final MessageRing tail = new MessageRing(config.getSessionTailSize(), config.getSessionTailBytes());
+        try {
+            logStore.tail(session.getId(), config.getSessionTailSize()).forEach(tail::add);
+        } catch (IOException e) {
+            LOG.error("Error in Server.activateSession", session.getId(), e);
+        }
+        lock.lock();
+        try {
+            if (null == session.getTail()) {
+                session.setTail(tail);
+                residentSessionBytes.addAndGet(tail.getBytes());
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     // Deactivates a session if either user leaves it.
-    public synchronized void deActivateSession(final String userNameA, final String userNameB) {
-        final String sessionId = getSessionId(userNameA, userNameB);
-        System.out.println("Deactivating session " + sessionId);
-        if (idToSession.containsKey(sessionId)) {
-            idToSession.get(sessionId).setStatus(SessionStatusEnum.INACTIVE);
+    public void deActivateSession(final String userNameA, final String userNameB) {
+        final long key = getSessionKey(users.getId(userNameA), users.getId(userNameB));
+        lock.lock();
+        try {
+            final Session session = touch(key, userNameA, userNameB);
+            if (null != session) {
+                LOG.debug("Deactivating session", session.getId());
+                idToSession.deActivate(session);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized boolean isSessionActive(final String userNameA, final String userNameB) {
-        final String sessionId = getSessionId(userNameA, userNameB);
-        return idToSession.containsKey(sessionId) && idToSession.get(sessionId).getStatus() == SessionStatusEnum.ACTIVE;
+    public boolean isSessionActive(final String userNameA, final String userNameB) {
+        final long key = getSessionKey(users.getId(userNameA), users.getId(userNameB));
+        lock.lock();
+        try {
+            final Session session = touch(key, userNameA, userNameB);
+            return null != session && session.getStatus() == SessionStatusEnum.ACTIVE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
     }
 
-    // Saves a message to the session.
-    public synchronized void logSessionText(final String userNameA, final String userNameB, final String text) {
-        final String sessionId = getSessionId(userNameA, userNameB);
-        if (idToSession.containsKey(sessionId)) {
-            idToSession.get(sessionId).getLog().add(text);
+    // Saves a message to the room's history.  Room history is only kept in the log store.
+    public void logRoomText(final String roomName, final String text) {
+        try {
+            logStore.append(RoomRegistry.getLogId(roomName), text);
+        } catch (IOException e) {
+            LOG.error("Error in Server.logRoomText", roomName, e);
         }
     }
 
-    // Combine the two user names for the session id.  Ensure that they are always in the same order.
-    private String getSessionId(final String a, final String b) {
-        return a.compareTo(b) > 0 ? b + a : a + b;
+    // The number of messages in the session's history, including any not resident.
+    public long getSessionHistorySize(final String userNameA, final String userNameB) {
+        return logStore.size(getSessionLogId(userNameA, userNameB));
     }
 
-    public void close() {
-        for (ServerThread thread : threadIdToUser.values()) {
-            thread.close();
+    // Up to count messages of the session's history starting with the from'th, oldest first, read from the log store.
+    public List<String> readSessionHistory(final String userNameA, final String userNameB, final long from, final int count) {
+        final String sessionId = getSessionLogId(userNameA, userNameB);
+        try {
+            return logStore.read(sessionId, from, count);
+        } catch (IOException e) {
+            LOG.error("Error in Server.readSessionHistory", sessionId, e);
+            return new ArrayList<>();
+        }
+    }
+
+    // Saves a message to the session, as "sender: text" like room history.  userNameA is the sender.
+    public void logSessionText(final String userNameA, final String userNameB, final String text) {
+        final long key = getSessionKey(users.getId(userNameA), users.getId(userNameB));
+        final String entry = userNameA + ": " + text;
+        final String sessionId;
+        final List<String> evicted = new ArrayList<>();
+        lock.lock();
+        try {
+            final Session session = touch(key, userNameA, userNameB);
+            if (null == session) {
+                return;
+            }
+            sessionId = session.getId();
+            residentSessionBytes.addAndGet(session.addToTail(entry));
+            if (residentSessionBytes.get() > config.getSessionMemoryBudget()) {
+                evictSessions(System.currentTimeMillis(), evicted);
+            }
+        } finally {
+            lock.unlock();
+        }
+        releaseLogs(evicted);
+        try {
+            logStore.append(sessionId, entry);
+        } catch (IOException e) {
+            LOG.error("Error in Server.logSessionText", sessionId, e);
+        }
+    }
+
+    // Marks the session as just used, moving it to the back of the eviction order.  Returns null if the session isn't
+    // resident or waiting in the snapshot.  Must hold the lock.
+    private Session touch(final long key, final String userNameA, final String userNameB) {
+        Session session = -1 == key ? null : idToSession.get(key);
+        if (null == session) {
+            session = restore(userNameA, userNameB);
+            if (null == session) {
+                return null;
+            }
+        }
+        session.setLastAccess(System.currentTimeMillis());
+        idToSession.touch(session);
+        return session;
+    }
+
+    // Brings the session back from the snapshot the first time it is used after a restart, null if it isn't waiting
+    // there.  Its tail is read back when it is next activated, like any evicted session.  Must hold the lock.
+    private Session restore(final String userNameA, final String userNameB) {
+        if (null == snapshot || null == userNameA || null == userNameB) {
+            return null;
+        }
+        final boolean ordered = userNameA.compareTo(userNameB) <= 0;
+        final String first = ordered ? userNameA : userNameB;
+        final String second = ordered ? userNameB : userNameA;
+        SessionSnapshot.Entry entry = snapshot.take(first + LOG_ID_SEPARATOR + second, first, second);
+        if (null == entry) {
+            // Written before the separator.  Only kept if no other two users shared that id, whose history would be
+            // mixed in with theirs.
+            final String legacyId = first + second;
+            final boolean shared = snapshot.isShared(legacyId);
+            entry = snapshot.take(legacyId, first, second);
+            if (null != entry && shared) {
+                LOG.warn("Not restoring history shared by two sessions", legacyId);
+                entry = new SessionSnapshot.Entry(first + LOG_ID_SEPARATOR + second, first, second, entry.getStatus(),
+                        0, entry.getLastAccess());
+            } else if (null != entry) {
+                legacySessions.put(getSessionKey(users.intern(first), users.intern(second)), entry);
+            }
+        }
+        if (snapshot.isExhausted()) {
+            snapshot = null;
+        }
+        if (null == entry) {
+            return null;
+        }
+        final Session session = new Session()
+                .withKey(getSessionKey(users.intern(first), users.intern(second)))
+                .withId(entry.getLogId())
+                .withFirstUserName(first)
+                .withSecondUserName(second)
+                .withStatus(entry.getStatus())
+                .withLastAccess(System.currentTimeMillis());
+        idToSession.put(session);
+        restoredSessions.incrementAndGet();
+        return session;
+    }
+
+    // Writes every session, resident or still waiting in the snapshot restored from, to the snapshot file.
+    public void writeSnapshot() {
+        if (null == config.getSnapshotFile()) {
+            return;
         }
+        final List<SessionSnapshot.Entry> resident = new ArrayList<>();
+        final List<SessionSnapshot.Entry> entries = new ArrayList<>();
+        lock.lock();
         try {
-             if (null != socket) {
-                 socket.close();
-             }
+            for (Session session : idToSession.values()) {
+                resident.add(new SessionSnapshot.Entry(session.getId(), session.getFirstUserName(),
+                        session.getSecondUserName(), session.getStatus(), 0, session.getLastAccess()));
+            }
+            // Evicted sessions under an old log id, which couldn't be told apart from their names alone.
+            for (Map.Entry<Long, SessionSnapshot.Entry> legacy : legacySessions.entrySet()) {
+                if (null == idToSession.get(legacy.getKey())) {
+                    final SessionSnapshot.Entry entry = legacy.getValue();
+                    resident.add(new SessionSnapshot.Entry(entry.getLogId(), entry.getFirstUserName(),
+                            entry.getSecondUserName(), SessionStatusEnum.INACTIVE, 0, entry.getLastAccess()));
+                }
+            }
+            if (null != snapshot) {
+                entries.addAll(snapshot.getRemaining());
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Sessions still in the old snapshot haven't been written to since, so their sizes stand.
+        for (SessionSnapshot.Entry entry : resident) {
+            entries.add(entry.withHistorySize(logStore.size(entry.getLogId())));
+        }
+        try {
+            SessionSnapshot.write(Paths.get(config.getSnapshotFile()), entries, System.currentTimeMillis());
+            LOG.debug("Wrote snapshot of sessions", entries.size());
         } catch (IOException e) {
-            System.out.println("Error in ServerThreadPool.close: " + e.getMessage());
+            LOG.error("Error in Server.writeSnapshot", config.getSnapshotFile(), e);
+        }
+    }
+
+    // How many sessions have been brought back from the snapshot so far.
+    public long getRestoredSessions() {
+        return restoredSessions.get();
+    }
+
+    // How long the server took to start, including opening its stores, in milliseconds.
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    // How long after starting the server accepted its first message, in milliseconds, or -1 if it hasn't yet.
+    public long getFirstMessageMillis() {
+        return firstMessageMillis;
+    }
+
+    // Called for every message accepted, notes the time of the first.
+    void accepted() {
+        if (firstMessageMillis < 0) {
+            firstMessageMillis = (System.nanoTime() - startNanos) / 1_000_000;
+            LOG.info("First message accepted after ms", firstMessageMillis);
+        }
+    }
+
+    private void evictIdleSessions() {
+        final List<String> evicted = new ArrayList<>();
+        lock.lock();
+        try {
+            evictSessions(System.currentTimeMillis(), evicted);
+        } finally {
+            lock.unlock();
+        }
+        releaseLogs(evicted);
+    }
+
+    // Drops inactive sessions, least recently used first, while over the memory budget or past the TTL, adding their
+    // log ids to evicted.  Their history stays in the log store and is read back if the session is activated again.
+    // Only inactive sessions are in the eviction order, so with none to evict this returns straight away.  Must hold
+    // the lock.
+    private void evictSessions(final long now, final List<String> evicted) {
+        Session next = idToSession.getOldest();
+        while (null != next) {
+            final Session session = next;
+            next = idToSession.getNewer(session);
+            final boolean overBudget = residentSessionBytes.get() > config.getSessionMemoryBudget();
+            if (!overBudget && now - session.getLastAccess() <= config.getSessionTtlMillis()) {
+                return; // everything after this one was used more recently
+            }
+            idToSession.remove(session);
+            residentSessionBytes.addAndGet(-session.getTailBytes());
+            sessionEvictions.incrementAndGet();
+            evicted.add(session.getId());
+        }
+    }
+
+    // Lets the log store close what it holds open for evicted sessions, outside the lock since that may write to disk.
+    // Harmless if a session is used again meanwhile, the store opens it again.
+    private void releaseLogs(final List<String> evicted) {
+        for (String sessionId : evicted) {
+            logStore.release(sessionId);
+        }
+    }
+
+    // The number of sessions resident in memory.
+    public int getResidentSessionCount() {
+        lock.lock();
+        try {
+            return idToSession.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The estimated heap held by resident session tails.
+    public long getResidentSessionBytes() {
+        return residentSessionBytes.get();
+    }
+
+    // How many idle sessions have been evicted from memory.
+    public long getSessionEvictions() {
+        return sessionEvictions.get();
+    }
+
+    // How many sessions' logs the log store holds open, resident or not.
+    public int getOpenSessionLogCount() {
+        return logStore.getOpenCount();
+    }
+
+    // The store holding the full history of every session.
+    public SessionLogStore getLogStore() {
+        return logStore;
+    }
+
+    // Packs the two users' ids into the session key, smaller id first so either user finds the same session.  -1 (a
+    // user never interned) gives a key no session has.
+    static long getSessionKey(final int a, final int b) {
+        if (a < 0 || b < 0) {
+            return -1L;
+        }
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    // The id the session's history is kept under in the log store: the two user names in order with a separator no
+    // user name can contain (see isValidUserName).  History written before the separator, under the names simply
+    // concatenated (which let "ab" and "c" share a log with "a" and "bc"), is only used for a session the snapshot
+    // recorded it for, see restore.
+    static String getLogId(final String a, final String b) {
+        final boolean ordered = a.compareTo(b) <= 0;
+        return ordered ? a + LOG_ID_SEPARATOR + b : b + LOG_ID_SEPARATOR + a;
+    }
+
+    // As above, or the old id a restored session was using.  Must hold the lock.
+    private String getLogId(final long key, final String a, final String b) {
+        final SessionSnapshot.Entry legacy = legacySessions.get(key);
+        return null == legacy ? getLogId(a, b) : legacy.getLogId();
+    }
+
+    // The log id of the two users' session, whether or not it is resident.
+    private String getSessionLogId(final String userNameA, final String userNameB) {
+        final long key = getSessionKey(users.getId(userNameA), users.getId(userNameB));
+        lock.lock();
+        try {
+            final Session session = touch(key, userNameA, userNameB);
+            return null == session ? getLogId(key, userNameA, userNameB) : session.getId();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Whether the name may be logged in with: not empty, and without the separator joining names in log ids.
+    public static boolean isValidUserName(final String userName) {
+        return null != userName && !userName.isEmpty() && -1 == userName.indexOf(LOG_ID_SEPARATOR);
+    }
+
+    // Shuts down gracefully: stops accepting, snapshots the sessions, gives every connection up to the configured time
+    // to write what is already queued for it, then closes them all and the stores.
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
         }
         run = false;
+        try {
+            if (null != socket) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            LOG.error("Error in ServerThreadPool.close", e);
+        }
+        if (null != cluster) {
+            cluster.close();
+        }
+        writeSnapshot();
+        final List<Connection> connections;
+        connectionLock.lock();
+        try {
+            connections = threadIdToUser.values();
+        } finally {
+            connectionLock.unlock();
+        }
+        drain(connections, config.getShutdownDrainMillis());
+        // Closing a connection removes it from the map, hence the copy.
+        for (Connection thread : connections) {
+            thread.close();
+        }
+        if (null != engine) {
+            engine.close();
+        }
+        writers.shutdown();
+        maintenance.shutdown();
+        if (null != metricsEndpoint) {
+            metricsEndpoint.close();
+        }
+        if (null != metricsName) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                LOG.error("Error in Server.close", e);
+            }
+        }
+        logStore.close();
+        offline.close();
+    }
+
+    // Waits until none of the connections has anything left to write, or the time is up.
+    private static void drain(final List<Connection> connections, final long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Connection connection : connections) {
+            while (connection.getQueueDepth() > 0 && System.nanoTime() < deadline) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
     }
 }
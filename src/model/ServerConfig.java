@@ -0,0 +1,595 @@
+package model;
+
+import model.cluster.MessageBus;
+import model.codec.DeflateCodec;
+import model.enums.OverflowPolicyEnum;
+import model.store.MappedSessionLogStore;
+import model.store.OfflineQueueStore;
+import model.store.SessionLogStore;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Tunable server settings.  Defaults suit a single small server; ServerStart reads overrides from system properties
+ * named after the fields, eg. -Dmessenger.outboundCapacity=4096.
+ */
+public class ServerConfig {
+
+    private static final String PREFIX = "messenger.";
+    private static final int DEFAULT_METRICS_PORT = 1235;
+    private static final String DEFAULT_SNAPSHOT_FILE = "data/sessions.snapshot";
+
+    // How many messages may wait to be written to one connection.
+    private int outboundCapacity = 1024;
+    // What to do when a connection's outbound queue is full.
+    private OverflowPolicyEnum overflowPolicy = OverflowPolicyEnum.DROP_TYPING_THEN_DISCONNECT;
+    // Where session history is written by the default store.
+    private String sessionLogDirectory = "data/sessions";
+    // The size of each memory mapped session log segment file.
+    private int sessionSegmentSize = 1024 * 1024;
+    // How many sessions' logs the default store keeps open (two files mapped each), the least recently used are closed.
+    private int sessionLogMaxOpen = MappedSessionLogStore.DEFAULT_MAX_OPEN;
+    // How many recent messages each session keeps in the heap.
+    private int sessionTailSize = 50;
+    // The most heap (estimated) each session's recent messages may take.
+    private long sessionTailBytes = 64 * 1024;
+    // The most heap (estimated) all sessions' recent messages may take before idle sessions are evicted.
+    private long sessionMemoryBudget = 64L * 1024 * 1024;
+    // How long an inactive session stays resident after its last use.
+    private long sessionTtlMillis = 30 * 60 * 1000;
+    // Message texts of at least this many characters are compressed for clients that support it, 0 never compresses.
+    private int compressionThreshold = DeflateCodec.DEFAULT_THRESHOLD;
+    // The most history messages sent back for one HISTORY request.
+    private int historyPageSize = 100;
+    // Replaces the default memory mapped store when set.
+    private SessionLogStore sessionLogStore;
+    // Where the sessions are snapshotted to, and restored from at startup, null for none.  Off by default like the
+    // metrics port, ServerStart turns it on.
+    private String snapshotFile;
+    // How often the sessions are snapshotted, besides at shutdown.
+    private long snapshotIntervalMillis = 10 * 1000;
+    // How long shutdown waits for connections to write what is queued for them before closing them.
+    private long shutdownDrainMillis = 5 * 1000;
+    // Where messages for offline users are queued by the default store.
+    private String offlineDirectory = "data/offline";
+    // The size each offline queue segment file grows to before a new one is started.
+    private int offlineSegmentSize = 256 * 1024;
+    // The most messages queued for one offline user, further messages are refused.
+    private int offlineMaxMessages = 1000;
+    // The most bytes of messages queued for one offline user.
+    private long offlineMaxBytes = 1024L * 1024;
+    // How long a queued message is kept before it is dropped undelivered.
+    private long offlineTtlMillis = 7L * 24 * 60 * 60 * 1000;
+    // How often queued messages are forced to disk, all appends in between share one fsync per queue.
+    private long offlineCommitMillis = 10;
+    // How many queued messages are handed to a user at a time after they log in.
+    private int offlineBatchSize = 64;
+    // Replaces the default segment file offline queue store when set.
+    private OfflineQueueStore offlineQueueStore;
+    // How long presence signals (TYPING etc.) from one user to another are held back after one is forwarded, 0 to
+    // forward every one.
+    private long presenceWindowMillis = 250;
+    // Presence signals to a user with at least this many messages waiting to be written are held until it drains.
+    private int presenceBackedUpDepth = 32;
+    // How many of the latest user joined / left deltas are kept for presence subscribers catching up.  Anyone further
+    // behind is sent a full snapshot.
+    private int presenceHistory = 1024;
+    // Joins the server to a cluster over this bus when set, otherwise it runs alone.
+    private MessageBus messageBus;
+    // The server's name in the cluster, defaults to node-<port>.
+    private String nodeId;
+    // What each connection may send: every frame counts against the frame limit, and chat messages, invites, user list
+    // requests and typing signals against their own limits as well.  Frames over a limit are answered with THROTTLED.
+    private RateLimit frameRateLimit = new RateLimit(100, 200);
+    private RateLimit messageRateLimit = new RateLimit(20, 40);
+    private RateLimit inviteRateLimit = new RateLimit(1, 5);
+    private RateLimit getUsersRateLimit = new RateLimit(2, 10);
+    private RateLimit typingRateLimit = new RateLimit(20, 40);
+    // How many frames over its limits a connection may send in a burst, and per second after that, before it is
+    // disconnected.
+    private RateLimit throttleStrikeLimit = new RateLimit(1, 50);
+    // Serves connections over TLS with this context when set (see TlsContexts), plaintext otherwise.
+    private SSLContext sslContext;
+    // A connection the server hasn't heard from for the idle time is sent a PING, and closed if it still hasn't been
+    // heard from the ping timeout after that.  Checked every reaper tick, 0 idle time to never close idle connections.
+    private long idleTimeoutMillis = 60 * 1000;
+    private long pingTimeoutMillis = 30 * 1000;
+    private long reaperTickMillis = 1000;
+    // The local port metrics are served on as plain text, 0 for none.  Off by default so servers embedded in tests and
+    // benchmarks don't fight over a port, ServerStart turns it on (see fromSystemProperties).
+    private int metricsPort = 0;
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+    public void setOutboundCapacity(int outboundCapacity) {
+        this.outboundCapacity = outboundCapacity;
+    }
+
+    public OverflowPolicyEnum getOverflowPolicy() {
+        return overflowPolicy;
+    }
+    public void setOverflowPolicy(OverflowPolicyEnum overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public String getSessionLogDirectory() {
+        return sessionLogDirectory;
+    }
+    public void setSessionLogDirectory(String sessionLogDirectory) {
+        this.sessionLogDirectory = sessionLogDirectory;
+    }
+
+    public int getSessionSegmentSize() {
+        return sessionSegmentSize;
+    }
+    public void setSessionSegmentSize(int sessionSegmentSize) {
+        this.sessionSegmentSize = sessionSegmentSize;
+    }
+
+    public int getSessionLogMaxOpen() {
+        return sessionLogMaxOpen;
+    }
+    public void setSessionLogMaxOpen(int sessionLogMaxOpen) {
+        this.sessionLogMaxOpen = sessionLogMaxOpen;
+    }
+
+    public int getSessionTailSize() {
+        return sessionTailSize;
+    }
+    public void setSessionTailSize(int sessionTailSize) {
+        this.sessionTailSize = sessionTailSize;
+    }
+
+    public long getSessionTailBytes() {
+        return sessionTailBytes;
+    }
+    public void setSessionTailBytes(long sessionTailBytes) {
+        this.sessionTailBytes = sessionTailBytes;
+    }
+
+    public long getSessionMemoryBudget() {
+        return sessionMemoryBudget;
+    }
+    public void setSessionMemoryBudget(long sessionMemoryBudget) {
+        this.sessionMemoryBudget = sessionMemoryBudget;
+    }
+
+    public long getSessionTtlMillis() {
+        return sessionTtlMillis;
+    }
+    public void setSessionTtlMillis(long sessionTtlMillis) {
+        this.sessionTtlMillis = sessionTtlMillis;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getHistoryPageSize() {
+        return historyPageSize;
+    }
+    public void setHistoryPageSize(int historyPageSize) {
+        this.historyPageSize = historyPageSize;
+    }
+
+    public SessionLogStore getSessionLogStore() {
+        return sessionLogStore;
+    }
+    public void setSessionLogStore(SessionLogStore sessionLogStore) {
+        this.sessionLogStore = sessionLogStore;
+    }
+
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+    public void setSnapshotFile(String snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public long getSnapshotIntervalMillis() {
+        return snapshotIntervalMillis;
+    }
+    public void setSnapshotIntervalMillis(long snapshotIntervalMillis) {
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    public long getShutdownDrainMillis() {
+        return shutdownDrainMillis;
+    }
+    public void setShutdownDrainMillis(long shutdownDrainMillis) {
+        this.shutdownDrainMillis = shutdownDrainMillis;
+    }
+
+    public String getOfflineDirectory() {
+        return offlineDirectory;
+    }
+    public void setOfflineDirectory(String offlineDirectory) {
+        this.offlineDirectory = offlineDirectory;
+    }
+
+    public int getOfflineSegmentSize() {
+        return offlineSegmentSize;
+    }
+    public void setOfflineSegmentSize(int offlineSegmentSize) {
+        this.offlineSegmentSize = offlineSegmentSize;
+    }
+
+    public int getOfflineMaxMessages() {
+        return offlineMaxMessages;
+    }
+    public void setOfflineMaxMessages(int offlineMaxMessages) {
+        this.offlineMaxMessages = offlineMaxMessages;
+    }
+
+    public long getOfflineMaxBytes() {
+        return offlineMaxBytes;
+    }
+    public void setOfflineMaxBytes(long offlineMaxBytes) {
+        this.offlineMaxBytes = offlineMaxBytes;
+    }
+
+    public long getOfflineTtlMillis() {
+        return offlineTtlMillis;
+    }
+    public void setOfflineTtlMillis(long offlineTtlMillis) {
+        this.offlineTtlMillis = offlineTtlMillis;
+    }
+
+    public long getOfflineCommitMillis() {
+        return offlineCommitMillis;
+    }
+    public void setOfflineCommitMillis(long offlineCommitMillis) {
+        this.offlineCommitMillis = offlineCommitMillis;
+    }
+
+    public int getOfflineBatchSize() {
+        return offlineBatchSize;
+    }
+    public void setOfflineBatchSize(int offlineBatchSize) {
+        this.offlineBatchSize = offlineBatchSize;
+    }
+
+    public OfflineQueueStore getOfflineQueueStore() {
+        return offlineQueueStore;
+    }
+    public void setOfflineQueueStore(OfflineQueueStore offlineQueueStore) {
+        this.offlineQueueStore = offlineQueueStore;
+    }
+
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+    public void setPresenceWindowMillis(long presenceWindowMillis) {
+        this.presenceWindowMillis = presenceWindowMillis;
+    }
+
+    public int getPresenceBackedUpDepth() {
+        return presenceBackedUpDepth;
+    }
+    public void setPresenceBackedUpDepth(int presenceBackedUpDepth) {
+        this.presenceBackedUpDepth = presenceBackedUpDepth;
+    }
+
+    public int getPresenceHistory() {
+        return presenceHistory;
+    }
+    public void setPresenceHistory(int presenceHistory) {
+        this.presenceHistory = presenceHistory;
+    }
+
+    public MessageBus getMessageBus() {
+        return messageBus;
+    }
+    public void setMessageBus(MessageBus messageBus) {
+        this.messageBus = messageBus;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public RateLimit getFrameRateLimit() {
+        return frameRateLimit;
+    }
+    public void setFrameRateLimit(RateLimit frameRateLimit) {
+        this.frameRateLimit = frameRateLimit;
+    }
+
+    public RateLimit getMessageRateLimit() {
+        return messageRateLimit;
+    }
+    public void setMessageRateLimit(RateLimit messageRateLimit) {
+        this.messageRateLimit = messageRateLimit;
+    }
+
+    public RateLimit getInviteRateLimit() {
+        return inviteRateLimit;
+    }
+    public void setInviteRateLimit(RateLimit inviteRateLimit) {
+        this.inviteRateLimit = inviteRateLimit;
+    }
+
+    public RateLimit getGetUsersRateLimit() {
+        return getUsersRateLimit;
+    }
+    public void setGetUsersRateLimit(RateLimit getUsersRateLimit) {
+        this.getUsersRateLimit = getUsersRateLimit;
+    }
+
+    public RateLimit getTypingRateLimit() {
+        return typingRateLimit;
+    }
+    public void setTypingRateLimit(RateLimit typingRateLimit) {
+        this.typingRateLimit = typingRateLimit;
+    }
+
+    public RateLimit getThrottleStrikeLimit() {
+        return throttleStrikeLimit;
+    }
+    public void setThrottleStrikeLimit(RateLimit throttleStrikeLimit) {
+        this.throttleStrikeLimit = throttleStrikeLimit;
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+    public void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getPingTimeoutMillis() {
+        return pingTimeoutMillis;
+    }
+    public void setPingTimeoutMillis(long pingTimeoutMillis) {
+        this.pingTimeoutMillis = pingTimeoutMillis;
+    }
+
+    public long getReaperTickMillis() {
+        return reaperTickMillis;
+    }
+    public void setReaperTickMillis(long reaperTickMillis) {
+        this.reaperTickMillis = reaperTickMillis;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public ServerConfig withOutboundCapacity(final int outboundCapacity) {
+        setOutboundCapacity(outboundCapacity);
+        return this;
+    }
+    public ServerConfig withOverflowPolicy(final OverflowPolicyEnum overflowPolicy) {
+        setOverflowPolicy(overflowPolicy);
+        return this;
+    }
+
+    public ServerConfig withSessionLogDirectory(final String sessionLogDirectory) {
+        setSessionLogDirectory(sessionLogDirectory);
+        return this;
+    }
+    public ServerConfig withSessionSegmentSize(final int sessionSegmentSize) {
+        setSessionSegmentSize(sessionSegmentSize);
+        return this;
+    }
+    public ServerConfig withSessionLogMaxOpen(final int sessionLogMaxOpen) {
+        setSessionLogMaxOpen(sessionLogMaxOpen);
+        return this;
+    }
+    public ServerConfig withSessionTailSize(final int sessionTailSize) {
+        setSessionTailSize(sessionTailSize);
+        return this;
+    }
+    public ServerConfig withSessionTailBytes(final long sessionTailBytes) {
+        setSessionTailBytes(sessionTailBytes);
+        return this;
+    }
+    public ServerConfig withSessionMemoryBudget(final long sessionMemoryBudget) {
+        setSessionMemoryBudget(sessionMemoryBudget);
+        return this;
+    }
+    public ServerConfig withSessionTtlMillis(final long sessionTtlMillis) {
+        setSessionTtlMillis(sessionTtlMillis);
+        return this;
+    }
+    public ServerConfig withCompressionThreshold(final int compressionThreshold) {
+        setCompressionThreshold(compressionThreshold);
+        return this;
+    }
+    public ServerConfig withHistoryPageSize(final int historyPageSize) {
+        setHistoryPageSize(historyPageSize);
+        return this;
+    }
+    public ServerConfig withSessionLogStore(final SessionLogStore sessionLogStore) {
+        setSessionLogStore(sessionLogStore);
+        return this;
+    }
+    public ServerConfig withSnapshotFile(final String snapshotFile) {
+        setSnapshotFile(snapshotFile);
+        return this;
+    }
+    public ServerConfig withSnapshotIntervalMillis(final long snapshotIntervalMillis) {
+        setSnapshotIntervalMillis(snapshotIntervalMillis);
+        return this;
+    }
+    public ServerConfig withShutdownDrainMillis(final long shutdownDrainMillis) {
+        setShutdownDrainMillis(shutdownDrainMillis);
+        return this;
+    }
+
+    public ServerConfig withOfflineDirectory(final String offlineDirectory) {
+        setOfflineDirectory(offlineDirectory);
+        return this;
+    }
+    public ServerConfig withOfflineSegmentSize(final int offlineSegmentSize) {
+        setOfflineSegmentSize(offlineSegmentSize);
+        return this;
+    }
+    public ServerConfig withOfflineMaxMessages(final int offlineMaxMessages) {
+        setOfflineMaxMessages(offlineMaxMessages);
+        return this;
+    }
+    public ServerConfig withOfflineMaxBytes(final long offlineMaxBytes) {
+        setOfflineMaxBytes(offlineMaxBytes);
+        return this;
+    }
+    public ServerConfig withOfflineTtlMillis(final long offlineTtlMillis) {
+        setOfflineTtlMillis(offlineTtlMillis);
+        return this;
+    }
+    public ServerConfig withOfflineCommitMillis(final long offlineCommitMillis) {
+        setOfflineCommitMillis(offlineCommitMillis);
+        return this;
+    }
+    public ServerConfig withOfflineBatchSize(final int offlineBatchSize) {
+        setOfflineBatchSize(offlineBatchSize);
+        return this;
+    }
+    public ServerConfig withOfflineQueueStore(final OfflineQueueStore offlineQueueStore) {
+        setOfflineQueueStore(offlineQueueStore);
+        return this;
+    }
+
+    public ServerConfig withPresenceWindowMillis(final long presenceWindowMillis) {
+        setPresenceWindowMillis(presenceWindowMillis);
+        return this;
+    }
+    public ServerConfig withPresenceBackedUpDepth(final int presenceBackedUpDepth) {
+        setPresenceBackedUpDepth(presenceBackedUpDepth);
+        return this;
+    }
+    public ServerConfig withPresenceHistory(final int presenceHistory) {
+        setPresenceHistory(presenceHistory);
+        return this;
+    }
+    public ServerConfig withMessageBus(final MessageBus messageBus) {
+        setMessageBus(messageBus);
+        return this;
+    }
+    public ServerConfig withNodeId(final String nodeId) {
+        setNodeId(nodeId);
+        return this;
+    }
+    public ServerConfig withFrameRateLimit(final RateLimit frameRateLimit) {
+        setFrameRateLimit(frameRateLimit);
+        return this;
+    }
+    public ServerConfig withMessageRateLimit(final RateLimit messageRateLimit) {
+        setMessageRateLimit(messageRateLimit);
+        return this;
+    }
+    public ServerConfig withInviteRateLimit(final RateLimit inviteRateLimit) {
+        setInviteRateLimit(inviteRateLimit);
+        return this;
+    }
+    public ServerConfig withGetUsersRateLimit(final RateLimit getUsersRateLimit) {
+        setGetUsersRateLimit(getUsersRateLimit);
+        return this;
+    }
+    public ServerConfig withTypingRateLimit(final RateLimit typingRateLimit) {
+        setTypingRateLimit(typingRateLimit);
+        return this;
+    }
+    public ServerConfig withThrottleStrikeLimit(final RateLimit throttleStrikeLimit) {
+        setThrottleStrikeLimit(throttleStrikeLimit);
+        return this;
+    }
+    // Lifts every rate limit, for tests and benchmarks that drive connections flat out.
+    public ServerConfig withoutRateLimits() {
+        return withFrameRateLimit(RateLimit.UNLIMITED)
+                .withMessageRateLimit(RateLimit.UNLIMITED)
+                .withInviteRateLimit(RateLimit.UNLIMITED)
+                .withGetUsersRateLimit(RateLimit.UNLIMITED)
+                .withTypingRateLimit(RateLimit.UNLIMITED);
+    }
+    public ServerConfig withSslContext(final SSLContext sslContext) {
+        setSslContext(sslContext);
+        return this;
+    }
+
+    public ServerConfig withIdleTimeoutMillis(final long idleTimeoutMillis) {
+        setIdleTimeoutMillis(idleTimeoutMillis);
+        return this;
+    }
+    public ServerConfig withPingTimeoutMillis(final long pingTimeoutMillis) {
+        setPingTimeoutMillis(pingTimeoutMillis);
+        return this;
+    }
+    public ServerConfig withReaperTickMillis(final long reaperTickMillis) {
+        setReaperTickMillis(reaperTickMillis);
+        return this;
+    }
+
+    public ServerConfig withMetricsPort(final int metricsPort) {
+        setMetricsPort(metricsPort);
+        return this;
+    }
+
+    // Defaults overridden by any messenger.* system properties that are set.  Also serves metrics on port 1235 unless
+    // messenger.metricsPort says otherwise, and snapshots sessions to data/sessions.snapshot unless
+    // messenger.snapshotFile does.
+    public static ServerConfig fromSystemProperties() {
+        final ServerConfig config = new ServerConfig();
+        config.setOutboundCapacity(Integer.getInteger(PREFIX + "outboundCapacity", config.getOutboundCapacity()));
+        final OverflowPolicyEnum overflowPolicy = OverflowPolicyEnum.from(System.getProperty(PREFIX + "overflowPolicy"));
+        if (null != overflowPolicy) {
+            config.setOverflowPolicy(overflowPolicy);
+        }
+        config.setSessionLogDirectory(System.getProperty(PREFIX + "sessionLogDirectory", config.getSessionLogDirectory()));
+        config.setSessionSegmentSize(Integer.getInteger(PREFIX + "sessionSegmentSize", config.getSessionSegmentSize()));
+        config.setSessionLogMaxOpen(Integer.getInteger(PREFIX + "sessionLogMaxOpen", config.getSessionLogMaxOpen()));
+        config.setSessionTailSize(Integer.getInteger(PREFIX + "sessionTailSize", config.getSessionTailSize()));
+        config.setSessionTailBytes(Long.getLong(PREFIX + "sessionTailBytes", config.getSessionTailBytes()));
+        config.setSessionMemoryBudget(Long.getLong(PREFIX + "sessionMemoryBudget", config.getSessionMemoryBudget()));
+        config.setSessionTtlMillis(Long.getLong(PREFIX + "sessionTtlMillis", config.getSessionTtlMillis()));
+        config.setCompressionThreshold(Integer.getInteger(PREFIX + "compressionThreshold", config.getCompressionThreshold()));
+        config.setHistoryPageSize(Integer.getInteger(PREFIX + "historyPageSize", config.getHistoryPageSize()));
+        config.setSnapshotFile(System.getProperty(PREFIX + "snapshotFile", DEFAULT_SNAPSHOT_FILE));
+        config.setSnapshotIntervalMillis(Long.getLong(PREFIX + "snapshotIntervalMillis", config.getSnapshotIntervalMillis()));
+        config.setShutdownDrainMillis(Long.getLong(PREFIX + "shutdownDrainMillis", config.getShutdownDrainMillis()));
+        config.setOfflineDirectory(System.getProperty(PREFIX + "offlineDirectory", config.getOfflineDirectory()));
+        config.setOfflineSegmentSize(Integer.getInteger(PREFIX + "offlineSegmentSize", config.getOfflineSegmentSize()));
+        config.setOfflineMaxMessages(Integer.getInteger(PREFIX + "offlineMaxMessages", config.getOfflineMaxMessages()));
+        config.setOfflineMaxBytes(Long.getLong(PREFIX + "offlineMaxBytes", config.getOfflineMaxBytes()));
+        config.setOfflineTtlMillis(Long.getLong(PREFIX + "offlineTtlMillis", config.getOfflineTtlMillis()));
+        config.setOfflineCommitMillis(Long.getLong(PREFIX + "offlineCommitMillis", config.getOfflineCommitMillis()));
+        config.setOfflineBatchSize(Integer.getInteger(PREFIX + "offlineBatchSize", config.getOfflineBatchSize()));
+        config.setPresenceWindowMillis(Long.getLong(PREFIX + "presenceWindowMillis", config.getPresenceWindowMillis()));
+        config.setPresenceBackedUpDepth(Integer.getInteger(PREFIX + "presenceBackedUpDepth", config.getPresenceBackedUpDepth()));
+        config.setPresenceHistory(Integer.getInteger(PREFIX + "presenceHistory", config.getPresenceHistory()));
+        config.setNodeId(System.getProperty(PREFIX + "nodeId", config.getNodeId()));
+        config.setFrameRateLimit(rateLimit("frameRateLimit", config.getFrameRateLimit()));
+        config.setMessageRateLimit(rateLimit("messageRateLimit", config.getMessageRateLimit()));
+        config.setInviteRateLimit(rateLimit("inviteRateLimit", config.getInviteRateLimit()));
+        config.setGetUsersRateLimit(rateLimit("getUsersRateLimit", config.getGetUsersRateLimit()));
+        config.setTypingRateLimit(rateLimit("typingRateLimit", config.getTypingRateLimit()));
+        config.setThrottleStrikeLimit(rateLimit("throttleStrikeLimit", config.getThrottleStrikeLimit()));
+        config.setIdleTimeoutMillis(Long.getLong(PREFIX + "idleTimeoutMillis", config.getIdleTimeoutMillis()));
+        config.setPingTimeoutMillis(Long.getLong(PREFIX + "pingTimeoutMillis", config.getPingTimeoutMillis()));
+        config.setReaperTickMillis(Long.getLong(PREFIX + "reaperTickMillis", config.getReaperTickMillis()));
+        config.setMetricsPort(Integer.getInteger(PREFIX + "metricsPort", DEFAULT_METRICS_PORT));
+        return config;
+    }
+
+    private static RateLimit rateLimit(final String name, final RateLimit defaultLimit) {
+        final RateLimit limit = RateLimit.from(System.getProperty(PREFIX + name));
+        return null == limit ? defaultLimit : limit;
+    }
+}
@@ -1,61 +1,96 @@
 package model;
 
+import model.codec.FrameReader;
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
+import model.log.Log;
+
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Set;
-
-import static model.Message.toMessage;
-import static model.enums.MessageTypeEnum.ACCESS_DENIED;
-import static model.enums.MessageTypeEnum.BAD_REQUEST;
-import static model.enums.MessageTypeEnum.GET_USERS;
-import static model.enums.MessageTypeEnum.INVITE;
-import static model.enums.MessageTypeEnum.INVITE_ACCEPT;
-import static model.enums.MessageTypeEnum.INVITE_DECLINE;
-import static model.enums.MessageTypeEnum.LOGIN;
-import static model.enums.MessageTypeEnum.LOGIN_ACK;
-import static model.enums.MessageTypeEnum.LOGIN_DENIED;
-import static model.enums.MessageTypeEnum.SESSION_EXIT;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * Represents a connection to an active user that can send and receive messages to that user and to other active users
- * via the server.
+ * via the server.  Blocks a thread on the socket; the server decides whether that is a platform or a virtual thread.
+ * See NioConnection for the event loop alternative.
+ *
+ * Messages sent to this user are queued and written by a writer task on the server's writer pool, so a sender is never
+ * blocked by this user's socket.
+ *
+ * The reader, the writer task, a full outbound queue and the idle reaper may all close the connection, possibly at
+ * once, so close only does anything the first time.
  */
-public class ServerThread extends Thread {
+public class ServerThread implements Runnable, Connection, OutboundQueue.Writer {
+    private static final Log LOG = Log.get(ServerThread.class);
+
     private int threadId;
-    private String userName;
+    private volatile String userName;
     private Server server;
     private Socket socket;
     private DataInputStream in;
     private DataOutputStream out;
-    private boolean run;
-
-    private static String SERVER = "server";
+    private FrameReader reader;
+    private volatile MessageCodec codec;
+    // Messages waiting to be written to this user.
+    private OutboundQueue outbound;
+    // What this connection may still send, only used by the thread reading it.
+    private RateLimiter limiter;
+    // Where the server's idle reaper tracks this connection.
+    private IdleReaper.Entry idle;
+    private volatile boolean run;
+    private AtomicBoolean closed;
 
     public ServerThread(final Server server,
                         final Socket socket,
                         final DataInputStream in,
                         final DataOutputStream out) {
-        super();
-        this.threadId = socket.getPort();
+        this.threadId = server.nextConnectionId();
         this.server = server;
         this.socket = socket;
         this.in = in;
         this.out = out;
+        this.reader = new FrameReader(in);
+        this.codec = MessageCodecs.TEXT;
+        this.outbound = new OutboundQueue(server.getConfig().getOutboundCapacity(), server.getConfig().getOverflowPolicy(),
+                () -> server.getWriters().execute(this::drain));
+        this.limiter = new RateLimiter(server.getConfig(), System.nanoTime());
+        this.idle = server.getReaper().track(this);
         this.userName = null;
         this.run = true;
-        start();
+        this.closed = new AtomicBoolean(false);
     }
 
+    @Override
     public int getThreadId() {
         return threadId;
     }
 
+    @Override
     public String getUserName() {
         return userName;
     }
+    @Override
+    public void setUserName(final String userName) {
+        this.userName = userName;
+    }
+
+    @Override
+    public MessageCodec getCodec() {
+        return codec;
+    }
+    @Override
+    public void setCodec(final MessageCodec codec) {
+        final MessageCodec previous = this.codec;
+        this.codec = codec;
+        if (previous != codec) {
+            previous.end();
+        }
+    }
 
+    @Override
     public void run() {
         while (run) {
             receive();
@@ -63,191 +98,84 @@ public class ServerThread extends Thread {
     }
     private void receive() {
         try {
-            final String message = in.readUTF();
-            System.out.println("Server received: " + message);
-            processMessage(toMessage(message));
+            final int length = reader.readFrame();
+            idle.touch();
+            final long start = System.nanoTime();
+            final Message message = reader.decode(length, codec);
+            server.getMetrics().getDecodeNanos().record(System.nanoTime() - start);
+            LOG.trace("Server received", threadId, userName, null == message ? null : message.getType(), message);
+            if (server.getRouter().admit(this, limiter, message)) {
+                server.getRouter().processMessage(this, message);
+            }
         } catch (IOException e) {
-            System.out.println("Error in ServerThread.receive: " + e.getMessage());
+            LOG.error("Error in ServerThread.receive", threadId, userName, e);
             close();
         }
     }
 
-    // Synchronize on this in case multiple other server threads are trying to forward messages.
-    public synchronized void send(final Message message) {
-        try {
-            final String send = message.toString();
-            System.out.println("Server sent: " + send);
-            out.writeUTF(send);
-            out.flush();
-        } catch (IOException e) {
-            System.out.println("Error in ServerThread.send: " + e.getMessage());
+    // Never blocks, the message is written later by the writer task.
+    @Override
+    public void send(final Message message) {
+        if (closed.get()) {
+            return;
+        }
+        if (!outbound.offer(message)) {
+            LOG.warn("Error in ServerThread.send: outbound queue full", threadId, userName, message.getType());
             close();
         }
     }
 
-    // Depending on the message type and information, will send a message back to the current user or forward it to the target user.
-    private void processMessage(final Message message) {
-        if (null == message) {
-            send(new Message()
-                    .withType(BAD_REQUEST)
-                    .withSourceUser(SERVER)
-                    .withText("Invalid Message."));
-            return;
-        }
-        if (LOGIN != message.getType() && null == userName) {
-            send(new Message()
-                    .withType(ACCESS_DENIED)
-                    .withSourceUser(SERVER)
-                    .withText("Must log in first."));
+    @Override
+    public int getQueueDepth() {
+        return outbound.getDepth();
+    }
+
+    @Override
+    public void afterSent(final Consumer<Boolean> callback) {
+        outbound.afterWritten(callback);
+    }
+
+    // Runs on the server's writer pool.
+    private void drain() {
+        if (closed.get()) {
             return;
         }
-        final String targetUserName = message.getTargetUser();
-        final ServerThread target = server.getUserByUserName(targetUserName);
-        switch(message.getType()) {
-            case LOGIN:
-                if (server.getActiveUsers().contains(message.getSourceUser())) {
-                    send(new Message()
-                            .withType(LOGIN_DENIED)
-                            .withSourceUser(SERVER)
-                            .withTargetUser(message.getSourceUser())
-                            .withText("Username already exists."));
-                } else {
-                    server.getActiveUsers().add(message.getSourceUser());
-                    this.userName = message.getSourceUser();
-                    send(new Message()
-                            .withType(LOGIN_ACK)
-                            .withSourceUser(SERVER)
-                            .withTargetUser(message.getSourceUser()));
-                }
-                break;
-            case GET_USERS:
-                send(new Message()
-                        .withType(GET_USERS)
-                        .withSourceUser(SERVER)
-                        .withText(setToString(server.getActiveUsers())));
-                break;
-            case INVITE:
-                if (null != target) {
-                    target.send(new Message()
-                            .withType(INVITE)
-                            .withSourceUser(userName));
-                } else {
-                    send(new Message()
-                            .withType(INVITE_DECLINE)
-                            .withSourceUser(targetUserName)
-                            .withText("User is no longer online."));
-                }
-                break;
-            case INVITE_ACCEPT:
-                if (null != target) {
-                    target.send(new Message()
-                            .withType(INVITE_ACCEPT)
-                            .withSourceUser(userName));
-                    server.activateSession(userName, targetUserName);
-                } else {
-                    send(new Message()
-                            .withType(SESSION_EXIT)
-                            .withSourceUser(targetUserName)
-                            .withText("User no longer online."));
-                }
-                break;
-            case INVITE_DECLINE:
-                forwardMessage(targetUserName, target, message);
-                break;
-            case SESSION_EXIT:
-                server.deActivateSession(userName, message.getText());
-                forwardMessageIfInSession(targetUserName, target, message);
-                break;
-            case TYPING:
-                forwardMessageIfInSession(targetUserName, target, message);
-                break;
-            case NOT_TYPING:
-                forwardMessageIfInSession(targetUserName, target, message);
-                break;
-            case TEXT_CLEARED:
-                forwardMessageIfInSession(targetUserName, target, message);
-                break;
-            case MESSAGE:
-                server.logSessionText(userName, targetUserName, message.getText());
-                forwardMessageIfInSession(targetUserName, target, message);
-                break;
-            case LOGOUT:
-                server.getActiveUsers().remove(userName);
-                userName = null;
-                break;
-            default:
-                send(new Message()
-                        .withType(BAD_REQUEST)
-                        .withSourceUser(SERVER)
-                        .withText("Invalid Message type: " +message.getType()));
-                break;
+        try {
+            outbound.drain(this);
+        } catch (IOException e) {
+            LOG.error("Error in ServerThread.drain", threadId, userName, e);
+            close();
         }
     }
 
-    // Only send these messages if the related session is active.
-    private void forwardMessageIfInSession(final String targetUserName, final ServerThread target, final Message message) {
-        if (null == targetUserName || "".equals(targetUserName)) {
-            send(new Message()
-                    .withType(BAD_REQUEST)
-                    .withSourceUser(SERVER)
-                    .withText("Target user name is required."));
-        }
-        if (server.isSessionActive(userName, targetUserName)) {
-            if (null != target) {
-                target.send(new Message()
-                        .withType(message.getType())
-                        .withSourceUser(userName)
-                        .withText(message.getText()));
-            } else {
-                send(new Message()
-                        .withType(SESSION_EXIT)
-                        .withSourceUser(SERVER)
-                        .withText("User no longer online."));
-            }
-        } else {
-            send(new Message()
-                    .withType(BAD_REQUEST)
-                    .withSourceUser(SERVER)
-                    .withText("Session is no longer active."));
-        }
+    @Override
+    public boolean isReady() {
+        return true;
     }
 
-    private void forwardMessage(final String targetUserName, final ServerThread target, final Message message) {
-        if (null == targetUserName || "".equals(targetUserName)) {
-            send(new Message()
-                    .withType(BAD_REQUEST)
-                    .withSourceUser(SERVER)
-                    .withText("Target user name is required."));
-        }
-        if (null != target) {
-            target.send(new Message()
-                    .withType(message.getType())
-                    .withSourceUser(userName)
-                    .withText(message.getText()));
-        } else {
-            send(new Message()
-                    .withType(SESSION_EXIT)
-                    .withSourceUser(SERVER)
-                    .withText("User no longer online."));
-        }
+    @Override
+    public void write(final Message message) throws IOException {
+        LOG.trace("Server sent", threadId, userName, message.getType(), message);
+        MessageCodecs.write(codec, message, out);
     }
 
-    // Returns a comma delimited string.
-    private String setToString(final Set<String> strings) {
-        StringBuilder builder = new StringBuilder();
-        boolean isFirst = true;
-        for (String string : strings) {
-            if (isFirst) {
-                builder.append(string);
-                isFirst = false;
-            } else {
-                builder.append(",").append(string);
-            }
-        }
-        return builder.toString();
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    // Writes block, so once flushed it is all on the socket.
+    @Override
+    public boolean isFlushed() {
+        return true;
     }
 
+    @Override
     public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        run = false;
         try {
             if (null != socket) {
                 socket.close();
@@ -259,10 +187,12 @@ public class ServerThread extends Thread {
                 out.close();
             }
         } catch (IOException e) {
-            System.out.println("Error in ServerThread.close: " + e.getMessage());
+            LOG.error("Error in ServerThread.close", threadId, userName, e);
         }
+        outbound.clear();
+        codec.end();
+        idle.cancel();
         server.removeThread(this);
-        run = false;
         userName = null;
     }
 }
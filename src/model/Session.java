@@ -2,20 +2,36 @@ package model;
 
 import model.enums.SessionStatusEnum;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Represents a conversation between two users.
- * Stores the chat history between the two for the life of the server.
+ * Holds the most recent messages between the two; the full chat history is kept in the server's SessionLogStore.
  */
 public class Session {
 
-    // The id is comprised of the sorted concatenation of the two user's names.
+    // The id the session's history is kept under in the log store, see Server.getLogId.
     private String id;
 
+    // The two users' ids packed into one long, see Server.getSessionKey.
+    private long key;
+
+    // The two users, in name order.
+    private String firstUserName;
+    private String secondUserName;
+
     private SessionStatusEnum status;
 
-    private List<String> log;
+    // The newest messages (null until loaded from the store).
+    private MessageRing tail;
+
+    // When the session was last used, for evicting idle sessions.
+    private long lastAccess;
+
+    // Neighbours in the SessionTable's least recently used order.
+    Session older;
+    Session newer;
 
     public String getId() {
         return id;
@@ -24,6 +40,27 @@ public class Session {
         this.id = id;
     }
 
+    public long getKey() {
+        return key;
+    }
+    public void setKey(long key) {
+        this.key = key;
+    }
+
+    public String getFirstUserName() {
+        return firstUserName;
+    }
+    public void setFirstUserName(String firstUserName) {
+        this.firstUserName = firstUserName;
+    }
+
+    public String getSecondUserName() {
+        return secondUserName;
+    }
+    public void setSecondUserName(String secondUserName) {
+        this.secondUserName = secondUserName;
+    }
+
     public SessionStatusEnum getStatus() {
         return status;
     }
@@ -31,23 +68,64 @@ public class Session {
         this.status = status;
     }
 
-    public List<String> getLog() {
-        return log;
+    public MessageRing getTail() {
+        return tail;
+    }
+    public void setTail(MessageRing tail) {
+        this.tail = tail;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
     }
-    public void setLog(List<String> log) {
-        this.log = log;
+    public void setLastAccess(long lastAccess) {
+        this.lastAccess = lastAccess;
     }
 
     public Session withId(final String id) {
         setId(id);
         return this;
     }
+    public Session withKey(final long key) {
+        setKey(key);
+        return this;
+    }
+    public Session withFirstUserName(final String firstUserName) {
+        setFirstUserName(firstUserName);
+        return this;
+    }
+    public Session withSecondUserName(final String secondUserName) {
+        setSecondUserName(secondUserName);
+        return this;
+    }
     public Session withStatus(final SessionStatusEnum status) {
         setStatus(status);
         return this;
     }
-    public Session withLog(final List<String> log) {
-        setLog(log);
+    public Session withTail(final MessageRing tail) {
+        setTail(tail);
         return this;
     }
+    public Session withLastAccess(final long lastAccess) {
+        setLastAccess(lastAccess);
+        return this;
+    }
+
+    // Adds a message to the tail and returns the change in resident bytes.
+    public long addToTail(final String text) {
+        if (null == tail) {
+            return 0; // not loaded, the store has it
+        }
+        return tail.add(text);
+    }
+
+    // The estimated heap held by the tail.
+    public long getTailBytes() {
+        return null == tail ? 0 : tail.getBytes();
+    }
+
+    // A copy of the tail that is safe to use outside the server lock.
+    public List<String> getRecent() {
+        return null == tail ? new ArrayList<>() : tail.toList();
+    }
 }
@@ -0,0 +1,268 @@
+package model;
+
+import model.enums.SessionStatusEnum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The sessions a server had, written periodically and at shutdown so that after a restart users carry on in the
+ * sessions they had open rather than inviting each other again.  The file is laid out as:
+ *
+ *   [magic int][count int][taken at long][record offset int]...[record]...
+ *
+ * with one record per session, sorted by log id so any one is found with a binary search:
+ *
+ *   [status byte][history size long][last access long][log id][first user][second user]
+ *
+ * each string being a length int followed by UTF-8 bytes.  The history size is how many messages the session's log
+ * held, which lets the log store skip recovering all but the newest segment of it (see SessionLogStore.setKnownSizes).
+ *
+ * A restarted server maps the latest snapshot read only and only looks a session up when it is first used, so starting
+ * takes the same time however many sessions there were.  Each record is handed out once; from then on the session
+ * lives in the server's table and later snapshots are taken from there.  Snapshots are written to a temporary file
+ * that is then moved over the previous one, so a crash leaves one or the other whole.
+ */
+public class SessionSnapshot {
+    private static final int MAGIC = 0x53534E31; // "SSN1"
+    private static final int HEADER_LENGTH = 16;
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    // One session's record.
+    public static class Entry {
+        private final String logId;
+        private final String firstUserName;
+        private final String secondUserName;
+        private final SessionStatusEnum status;
+        private final long historySize;
+        private final long lastAccess;
+
+        public Entry(final String logId, final String firstUserName, final String secondUserName,
+                     final SessionStatusEnum status, final long historySize, final long lastAccess) {
+            this.logId = logId;
+            this.firstUserName = firstUserName;
+            this.secondUserName = secondUserName;
+            this.status = status;
+            this.historySize = historySize;
+            this.lastAccess = lastAccess;
+        }
+
+        public String getLogId() {
+            return logId;
+        }
+        public String getFirstUserName() {
+            return firstUserName;
+        }
+        public String getSecondUserName() {
+            return secondUserName;
+        }
+        public SessionStatusEnum getStatus() {
+            return status;
+        }
+        public long getHistorySize() {
+            return historySize;
+        }
+        public long getLastAccess() {
+            return lastAccess;
+        }
+
+        public Entry withHistorySize(final long historySize) {
+            return new Entry(logId, firstUserName, secondUserName, status, historySize, lastAccess);
+        }
+    }
+
+    private ByteBuffer buffer;
+    private int count;
+    private long takenAt;
+    // The records handed out so far, and how many are left.  Guarded by this.
+    private BitSet taken;
+    private int remaining;
+
+    private SessionSnapshot(final ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_LENGTH || MAGIC != buffer.getInt(0)) {
+            throw new IOException("Not a session snapshot.");
+        }
+        this.buffer = buffer;
+        this.count = buffer.getInt(4);
+        this.takenAt = buffer.getLong(8);
+        if (count < 0 || HEADER_LENGTH + 4L * count > buffer.capacity()) {
+            throw new IOException("Session snapshot is truncated.");
+        }
+        this.taken = new BitSet(count);
+        this.remaining = count;
+    }
+
+    // Maps the snapshot in the file read only, returns null if there isn't one.
+    public static SessionSnapshot open(final Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new SessionSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // How many sessions the snapshot holds.
+    public int size() {
+        return count;
+    }
+
+    // When the snapshot was written, in milliseconds since the epoch.
+    public long getTakenAt() {
+        return takenAt;
+    }
+
+    // The session's record the first time it is asked for, null after that or if there is none for these two users.
+    // Old snapshots may hold several records under one log id, see isShared.
+    public synchronized Entry take(final String logId, final String firstUserName, final String secondUserName) {
+        int index = find(logId);
+        if (index < 0) {
+            return null;
+        }
+        while (index > 0 && logId.equals(string(offset(index - 1) + 17))) {
+            index--;
+        }
+        for (; index < count && logId.equals(string(offset(index) + 17)); index++) {
+            if (taken.get(index)) {
+                continue;
+            }
+            final Entry entry = read(index);
+            if (entry.getFirstUserName().equals(firstUserName) && entry.getSecondUserName().equals(secondUserName)) {
+                taken.set(index);
+                remaining--;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // Whether more than one session's record is under the log id, as two pairs of names could share one before log
+    // ids had a separator.
+    public boolean isShared(final String logId) {
+        final int index = find(logId);
+        return index >= 0 && ((index > 0 && logId.equals(string(offset(index - 1) + 17)))
+                || (index + 1 < count && logId.equals(string(offset(index + 1) + 17))));
+    }
+
+    // Whether every record has been handed out.
+    public synchronized boolean isExhausted() {
+        return 0 == remaining;
+    }
+
+    // The records not handed out yet.
+    public synchronized List<Entry> getRemaining() {
+        final List<Entry> entries = new ArrayList<>(remaining);
+        for (int i = taken.nextClearBit(0); i < count; i = taken.nextClearBit(i + 1)) {
+            entries.add(read(i));
+        }
+        return entries;
+    }
+
+    // How many messages the session's history held when the snapshot was written, 0 if it isn't in the snapshot.
+    // Safe from any thread, whether or not the record has been handed out.
+    public long getHistorySize(final String logId) {
+        final int index = find(logId);
+        return index < 0 ? 0 : buffer.getLong(offset(index) + 1);
+    }
+
+    // Writes the sessions to the file, replacing any snapshot already there.
+    public static void write(final Path file, final List<Entry> entries, final long takenAt) throws IOException {
+        final List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(Entry::getLogId));
+        final List<byte[]> records = new ArrayList<>(sorted.size());
+        long length = HEADER_LENGTH + 4L * sorted.size();
+        for (Entry entry : sorted) {
+            final byte[] record = record(entry);
+            records.add(record);
+            length += record.length;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Session snapshot of " + length + " bytes is too large.");
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        buffer.putInt(MAGIC).putInt(sorted.size()).putLong(takenAt);
+        int offset = HEADER_LENGTH + 4 * sorted.size();
+        for (byte[] record : records) {
+            buffer.putInt(offset);
+            offset += record.length;
+        }
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        buffer.flip();
+
+        final Path temporary = file.resolveSibling(file.getFileName() + TEMPORARY_SUFFIX);
+        if (null != file.getParent()) {
+            Files.createDirectories(file.getParent());
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] record(final Entry entry) {
+        final byte[] logId = entry.getLogId().getBytes(StandardCharsets.UTF_8);
+        final byte[] first = entry.getFirstUserName().getBytes(StandardCharsets.UTF_8);
+        final byte[] second = entry.getSecondUserName().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer record = ByteBuffer.allocate(17 + 12 + logId.length + first.length + second.length);
+        record.put((byte) entry.getStatus().ordinal()).putLong(entry.getHistorySize()).putLong(entry.getLastAccess());
+        record.putInt(logId.length).put(logId);
+        record.putInt(first.length).put(first);
+        record.putInt(second.length).put(second);
+        return record.array();
+    }
+
+    // The index of the log id's record, or -1.
+    private int find(final String logId) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int compared = string(offset(middle) + 17).compareTo(logId);
+            if (compared < 0) {
+                low = middle + 1;
+            } else if (compared > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private Entry read(final int index) {
+        final int offset = offset(index);
+        final String logId = string(offset + 17);
+        final int firstOffset = offset + 21 + buffer.getInt(offset + 17);
+        final String first = string(firstOffset);
+        final String second = string(firstOffset + 4 + buffer.getInt(firstOffset));
+        return new Entry(logId, first, second, SessionStatusEnum.values()[buffer.get(offset)],
+                buffer.getLong(offset + 1), buffer.getLong(offset + 9));
+    }
+
+    private int offset(final int index) {
+        return buffer.getInt(HEADER_LENGTH + 4 * index);
+    }
+
+    // The length prefixed string at the offset.
+    private String string(final int offset) {
+        final byte[] bytes = new byte[buffer.getInt(offset)];
+        buffer.get(offset + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
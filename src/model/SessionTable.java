@@ -0,0 +1,113 @@
+package model;
+
+import model.enums.SessionStatusEnum;
+
+import java.util.List;
+
+/**
+ * The sessions resident in memory by their packed key, with the inactive ones in least recently used order so they can
+ * be evicted oldest first.  The order is a list threaded through the sessions themselves, so touching a session on
+ * every message moves two links instead of allocating, the way the LinkedHashMap it replaces did.  Active sessions are
+ * left out of it, so eviction never has to walk past sessions it can't evict.
+ *
+ * Not thread safe, the server holds its session lock around every call.
+ */
+public class SessionTable {
+    private LongObjectMap<Session> keyToSession;
+    private Session oldest;
+    private Session newest;
+
+    public SessionTable() {
+        this.keyToSession = new LongObjectMap<>();
+    }
+
+    public Session get(final long key) {
+        return keyToSession.get(key);
+    }
+
+    // Adds the session as the most recently used.
+    public void put(final Session session) {
+        final Session previous = keyToSession.put(session.getKey(), session);
+        if (null != previous && isInactive(previous)) {
+            unlink(previous);
+        }
+        if (isInactive(session)) {
+            linkNewest(session);
+        }
+    }
+
+    public void remove(final Session session) {
+        if (keyToSession.remove(session.getKey(), session) && isInactive(session)) {
+            unlink(session);
+        }
+    }
+
+    // Moves the session to the most recently used end.
+    public void touch(final Session session) {
+        if (isInactive(session) && newest != session) {
+            unlink(session);
+            linkNewest(session);
+        }
+    }
+
+    // Status changes of resident sessions go through here, to keep the inactive ones in the eviction order.
+    public void activate(final Session session) {
+        if (isInactive(session)) {
+            unlink(session);
+        }
+        session.setStatus(SessionStatusEnum.ACTIVE);
+    }
+    public void deActivate(final Session session) {
+        if (!isInactive(session)) {
+            session.setStatus(SessionStatusEnum.INACTIVE);
+            linkNewest(session);
+        }
+    }
+
+    // The least recently used inactive session, follow getNewer for the rest.
+    public Session getOldest() {
+        return oldest;
+    }
+    public Session getNewer(final Session session) {
+        return session.newer;
+    }
+
+    // Every resident session, in no particular order.
+    public List<Session> values() {
+        return keyToSession.values();
+    }
+
+    public int size() {
+        return keyToSession.size();
+    }
+
+    private static boolean isInactive(final Session session) {
+        return SessionStatusEnum.INACTIVE == session.getStatus();
+    }
+
+    private void linkNewest(final Session session) {
+        session.older = newest;
+        session.newer = null;
+        if (null == newest) {
+            oldest = session;
+        } else {
+            newest.newer = session;
+        }
+        newest = session;
+    }
+
+    private void unlink(final Session session) {
+        if (null == session.older) {
+            oldest = session.newer;
+        } else {
+            session.older.newer = session.newer;
+        }
+        if (null == session.newer) {
+            newest = session.older;
+        } else {
+            session.newer.older = session.older;
+        }
+        session.older = null;
+        session.newer = null;
+    }
+}
@@ -0,0 +1,79 @@
+package model;
+
+import model.codec.DeflateCodec;
+import model.codec.MessageCodec;
+import model.enums.MessageTypeEnum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A message sent unchanged to many connections, such as a room message.  It can't be modified, and each codec's
+ * frame is encoded the first time a connection using that codec writes it and then shared by every other connection,
+ * so fanning out to a room costs one encode per codec rather than one per member.  See MessageCodecs.write.
+ */
+public class SharedMessage extends Message {
+    // Frames by codec version.  Two threads may race to encode the same one, either result is fine.
+    private AtomicReferenceArray<byte[]> frames;
+    private boolean sealed;
+
+    public SharedMessage(final Message message) {
+        super.setType(message.getType());
+        super.setSourceUser(message.getSourceUser());
+        super.setTargetUser(message.getTargetUser());
+        super.setText(message.getText());
+        this.frames = new AtomicReferenceArray<>(DeflateCodec.VERSION + 1);
+        this.sealed = true;
+    }
+
+    // The whole frame, length prefix included.  Shared, so never write to the array.
+    public byte[] getFrame(final MessageCodec codec) throws IOException {
+        final int version = codec.getVersion();
+        if (version >= frames.length()) {
+            return toArray(codec.toFrame(this));
+        }
+        byte[] frame = frames.get(version);
+        if (null == frame) {
+            frame = toArray(codec.toFrame(this));
+            frames.set(version, frame);
+        }
+        return frame;
+    }
+
+    private static byte[] toArray(final ByteBuffer frame) {
+        if (frame.hasArray() && 0 == frame.arrayOffset() + frame.position() && frame.remaining() == frame.array().length) {
+            return frame.array();
+        }
+        final byte[] copy = new byte[frame.remaining()];
+        frame.duplicate().get(copy);
+        return copy;
+    }
+
+    @Override
+    public void setType(final MessageTypeEnum type) {
+        checkSealed();
+        super.setType(type);
+    }
+    @Override
+    public void setSourceUser(final String sourceUser) {
+        checkSealed();
+        super.setSourceUser(sourceUser);
+    }
+    @Override
+    public void setTargetUser(final String targetUser) {
+        checkSealed();
+        super.setTargetUser(targetUser);
+    }
+    @Override
+    public void setText(final String text) {
+        checkSealed();
+        super.setText(text);
+    }
+
+    private void checkSealed() {
+        if (sealed) {
+            throw new UnsupportedOperationException("Shared messages can't be changed.");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package model;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the SSLContexts for TLS connections, from PKCS12 key and trust stores (see selfSigned for making a pair to test
+ * with).  TLS is optional: a server only uses it when given a context (ServerConfig.withSslContext), a client when it
+ * connects with the context's socket factory.
+ *
+ * Reconnects shouldn't pay for a full handshake each, so sessions are resumed: the server hands out stateless session
+ * tickets (TLS 1.3) and also caches sessions (TLS 1.2), and a client that keeps one context for all its connections
+ * offers the ticket it was given last time it connected to that host and port.
+ */
+public final class TlsContexts {
+    private static final String PREFIX = "messenger.";
+
+    private static final int SESSION_CACHE_SIZE = 20480;
+    private static final int SESSION_TIMEOUT_SECONDS = (int) TimeUnit.HOURS.toSeconds(8);
+
+    static {
+        // Read once when the JSSE provider starts up, so they must be set before the first context is made.
+        if (null == System.getProperty("jdk.tls.server.enableSessionTicketExtension")) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+        }
+        if (null == System.getProperty("jdk.tls.client.enableSessionTicketExtension")) {
+            System.setProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+        }
+    }
+
+    private TlsContexts() {
+    }
+
+    // A server context presenting the first key in the store.
+    public static SSLContext server(final Path keyStore, final char[] password) throws IOException, GeneralSecurityException {
+        final KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(load(keyStore, password), password);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        configure(context.getServerSessionContext());
+        return context;
+    }
+
+    // A client context trusting the certificates in the store.  Share one between connections so they can resume.
+    public static SSLContext client(final Path trustStore, final char[] password) throws IOException, GeneralSecurityException {
+        final TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(load(trustStore, password));
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        configure(context.getClientSessionContext());
+        return context;
+    }
+
+    // The server context from messenger.tlsKeyStore and messenger.tlsKeyStorePassword, null if no key store is set.
+    public static SSLContext serverFromSystemProperties() throws IOException, GeneralSecurityException {
+        final String keyStore = System.getProperty(PREFIX + "tlsKeyStore");
+        return null == keyStore ? null : server(Paths.get(keyStore), password(PREFIX + "tlsKeyStorePassword"));
+    }
+
+    // The client context from messenger.tlsTrustStore and messenger.tlsTrustStorePassword, null if no trust store is set.
+    public static SSLContext clientFromSystemProperties() throws IOException, GeneralSecurityException {
+        final String trustStore = System.getProperty(PREFIX + "tlsTrustStore");
+        return null == trustStore ? null : client(Paths.get(trustStore), password(PREFIX + "tlsTrustStorePassword"));
+    }
+
+    // Generates a self signed certificate for localhost with the JDK's keytool, into a key store for the server and a
+    // trust store holding just the certificate for clients, both under the password (six characters or more, keytool's
+    // rule).  For development and benchmarks only.
+    public static void selfSigned(final Path keyStore, final Path trustStore, final char[] password) throws IOException {
+        final String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        final String storePass = new String(password);
+        final Path certificate = Files.createTempFile("messenger", ".crt");
+        try {
+            Files.deleteIfExists(keyStore);
+            Files.deleteIfExists(trustStore);
+            keytool(Arrays.asList(keytool, "-genkeypair", "-alias", "messenger", "-keyalg", "EC", "-groupname", "secp256r1",
+                    "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "365",
+                    "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", storePass));
+            keytool(Arrays.asList(keytool, "-exportcert", "-alias", "messenger", "-rfc", "-file", certificate.toString(),
+                    "-keystore", keyStore.toString(), "-storepass", storePass));
+            keytool(Arrays.asList(keytool, "-importcert", "-noprompt", "-alias", "messenger", "-file", certificate.toString(),
+                    "-storetype", "PKCS12", "-keystore", trustStore.toString(), "-storepass", storePass));
+        } finally {
+            Files.deleteIfExists(certificate);
+        }
+    }
+
+    private static void keytool(final List<String> command) throws IOException {
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        final String output = new String(process.getInputStream().readAllBytes());
+        try {
+            if (0 != process.waitFor()) {
+                throw new IOException("Error in TlsContexts.keytool: " + output.trim());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Error in TlsContexts.keytool: interrupted", e);
+        }
+    }
+
+    private static char[] password(final String property) {
+        return System.getProperty(property, "").toCharArray();
+    }
+
+    private static KeyStore load(final Path path, final char[] password) throws IOException, GeneralSecurityException {
+        final KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(path)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+
+    private static void configure(final SSLSessionContext sessions) {
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+    }
+}
@@ -0,0 +1,209 @@
+package model;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rows of a chat window, kept at a flat memory cost however long the chat runs.  Every row is written once to a
+ * local cache file as it is added; only the newest rows stay in memory (a ring of the given capacity), and older ones
+ * are read back from the file a page at a time when scrolled to, keeping the few pages read last.  Pages of history
+ * fetched from the server go above everything else and take the same path.
+ *
+ * Rows are numbered from the oldest, 0, to size - 1.  Internally rows added at the end count up from 0 and pages added
+ * at the top count down from -1, so neither end ever renumbers the other and each has an append only index file of
+ * where its rows start in the data file.
+ *
+ * Not thread safe, the client only uses it on the event thread.
+ */
+public class Transcript implements Closeable {
+    public static final int DEFAULT_CAPACITY = 1000;
+    private static final int PAGE_SIZE = 256;
+    private static final int MAX_PAGES = 8;
+
+    private Path directory;
+    private FileChannel data;
+    private FileChannel tailIndex;
+    private FileChannel headIndex;
+    // Buffered writers over the channels above, flushed before anything is read back.
+    private DataOutputStream dataOut;
+    private DataOutputStream tailIndexOut;
+    private DataOutputStream headIndexOut;
+    private long dataLength;
+    private boolean dirty;
+
+    // Rows added at the end, the newest of them in a ring.
+    private int tailSize;
+    private String[] recent;
+    private int recentCount;
+    // Rows added at the top.
+    private int headSize;
+    // Pages of older rows read back from the file, by page number of the internal row number, least recently used first.
+    private LinkedHashMap<Integer, String[]> pages;
+
+    public Transcript(final Path directory, final int capacity) throws IOException {
+        this.directory = directory;
+        this.data = open(directory.resolve("rows"));
+        this.tailIndex = open(directory.resolve("tail"));
+        this.headIndex = open(directory.resolve("head"));
+        this.dataOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(data)));
+        this.tailIndexOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(tailIndex)));
+        this.headIndexOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(headIndex)));
+        this.recent = new String[capacity];
+        this.pages = new LinkedHashMap<>(MAX_PAGES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, String[]> eldest) {
+                return size() > MAX_PAGES;
+            }
+        };
+    }
+
+    // A transcript cached in a new temporary directory, removed again on close.
+    public static Transcript temporary() throws IOException {
+        return new Transcript(Files.createTempDirectory("transcript"), DEFAULT_CAPACITY);
+    }
+
+    public int size() {
+        return headSize + tailSize;
+    }
+
+    // How many rows are held in memory.
+    public int getResident() {
+        int resident = recentCount;
+        for (String[] page : pages.values()) {
+            resident += page.length;
+        }
+        return resident;
+    }
+
+    public void add(final String row) throws IOException {
+        tailIndexOut.writeLong(write(row));
+        recent[tailSize % recent.length] = row;
+        recentCount = Math.min(recentCount + 1, recent.length);
+        // A cached page holding the end may have been read short.
+        pages.remove(Math.floorDiv(tailSize, PAGE_SIZE));
+        tailSize++;
+    }
+
+    // Puts the rows, oldest first, above all the others.
+    public void addFirst(final List<String> rows) throws IOException {
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            headIndexOut.writeLong(write(rows.get(i)));
+            pages.remove(Math.floorDiv(-headSize - 1, PAGE_SIZE));
+            headSize++;
+        }
+    }
+
+    public String get(final int index) throws IOException {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Error in Transcript.get: " + index + " of " + size());
+        }
+        final int row = index - headSize;
+        if (row >= tailSize - recentCount) {
+            return recent[row % recent.length];
+        }
+        final int number = Math.floorDiv(row, PAGE_SIZE);
+        String[] page = pages.get(number);
+        if (null == page) {
+            page = readPage(number);
+            pages.put(number, page);
+        }
+        return page[row - number * PAGE_SIZE];
+    }
+
+    // Splits a line into rows at its line breaks and, for long ones, at the last space before the given column.
+    public static List<String> wrap(final String line, final int columns) {
+        final List<String> rows = new ArrayList<>();
+        for (String part : line.split("\n", -1)) {
+            int start = 0;
+            while (part.length() - start > columns) {
+                final int space = part.lastIndexOf(' ', start + columns);
+                final int end = space > start ? space : start + columns;
+                rows.add(part.substring(start, end));
+                start = space > start ? end + 1 : end;
+            }
+            rows.add(part.substring(start));
+        }
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pages.clear();
+        data.close();
+        tailIndex.close();
+        headIndex.close();
+        Files.deleteIfExists(directory.resolve("rows"));
+        Files.deleteIfExists(directory.resolve("tail"));
+        Files.deleteIfExists(directory.resolve("head"));
+        Files.deleteIfExists(directory);
+    }
+
+    // Appends the row as its length and UTF-8 bytes, returns where it starts.
+    private long write(final String row) throws IOException {
+        final byte[] bytes = row.getBytes(StandardCharsets.UTF_8);
+        final long offset = dataLength;
+        dataOut.writeInt(bytes.length);
+        dataOut.write(bytes);
+        dataLength += Integer.BYTES + bytes.length;
+        dirty = true;
+        return offset;
+    }
+
+    // Reads the rows of a page that exist, in internal row order.
+    private String[] readPage(final int number) throws IOException {
+        if (dirty) {
+            dataOut.flush();
+            tailIndexOut.flush();
+            headIndexOut.flush();
+            dirty = false;
+        }
+        final int first = Math.max(number * PAGE_SIZE, -headSize);
+        final int last = Math.min(number * PAGE_SIZE + PAGE_SIZE, tailSize);
+        final String[] page = new String[PAGE_SIZE];
+        final ByteBuffer offset = ByteBuffer.allocate(Long.BYTES);
+        final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        for (int row = first; row < last; row++) {
+            offset.clear();
+            if (row < 0) {
+                readFully(headIndex, offset, (long) (-row - 1) * Long.BYTES);
+            } else {
+                readFully(tailIndex, offset, (long) row * Long.BYTES);
+            }
+            final long position = offset.flip().getLong();
+            length.clear();
+            readFully(data, length, position);
+            final ByteBuffer bytes = ByteBuffer.allocate(length.flip().getInt());
+            readFully(data, bytes, position + Integer.BYTES);
+            page[row - number * PAGE_SIZE] = new String(bytes.array(), StandardCharsets.UTF_8);
+        }
+        return page;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Error in Transcript.readFully: cache truncated at " + position);
+            }
+            position += read;
+        }
+    }
+
+    private static FileChannel open(final Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}
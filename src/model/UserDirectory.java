@@ -0,0 +1,215 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static model.enums.MessageTypeEnum.GET_USERS;
+import static model.enums.MessageTypeEnum.USERS_SNAPSHOT;
+import static model.enums.MessageTypeEnum.USER_JOINED;
+import static model.enums.MessageTypeEnum.USER_LEFT;
+
+/**
+ * The logged in users and the connection each one is on.  Lookups by user name are constant time and never lock, and
+ * the set of active user names is a live view of the same map so the two can't drift apart.
+ *
+ * Every log in and log out bumps the directory's version and is kept as a USER_JOINED or USER_LEFT delta carrying that
+ * version, so a subscriber that knows an earlier version can be brought up to date with just the deltas it missed.
+ * Only the most recent deltas are kept; anyone further behind gets a snapshot, which is built and encoded once per
+ * version however many connections ask for it.
+ *
+ * Every user name is also interned to a small int id the first time it logs in (or is named in a session), which
+ * stays with the name for the life of the server so sessions keyed by ids outlive the logins that made them.
+ */
+public class UserDirectory {
+
+    // Told about each change after it is made.  Changes on different threads may be reported out of order, the
+    // versions tell them apart.
+    public interface Listener {
+        void changed(SharedMessage delta);
+    }
+
+    private static final String SERVER = "server";
+
+    private ConcurrentMap<String, Connection> userNameToConnection;
+    private Set<String> userNames;
+    // Ids by user name, handed out densely from 0.
+    private ConcurrentMap<String, Integer> nameToId;
+    private AtomicInteger nextId;
+    private Listener listener;
+    // Guards the version, the deltas and the cached snapshot, so each version matches exactly one set of users.
+    private ReentrantLock lock;
+    private long version;
+    // The most recent deltas, the one for version v at v % deltas.length.
+    private SharedMessage[] deltas;
+    private volatile Snapshot snapshot;
+
+    public UserDirectory() {
+        this(1024);
+    }
+
+    public UserDirectory(final int history) {
+        this.userNameToConnection = new ConcurrentHashMap<>();
+        this.userNames = Collections.unmodifiableSet(userNameToConnection.keySet());
+        this.nameToId = new ConcurrentHashMap<>();
+        this.nextId = new AtomicInteger();
+        this.lock = new ReentrantLock();
+        this.version = 0;
+        this.deltas = new SharedMessage[Math.max(1, history)];
+    }
+
+    public void setListener(final Listener listener) {
+        this.listener = listener;
+    }
+
+    // The user name's id, given it one if it has none yet.
+    public int intern(final String userName) {
+        final Integer id = nameToId.get(userName);
+        return null != id ? id : nameToId.computeIfAbsent(userName, name -> nextId.getAndIncrement());
+    }
+
+    // The user name's id, or -1 if it was never interned.  Never allocates.
+    public int getId(final String userName) {
+        final Integer id = null == userName ? null : nameToId.get(userName);
+        return null == id ? -1 : id;
+    }
+
+    // Atomically takes the user name for the connection, returns false if someone else already has it.
+    public boolean claim(final String userName, final Connection connection) {
+        intern(userName);
+        final SharedMessage delta;
+        lock.lock();
+        try {
+            if (null != userNameToConnection.putIfAbsent(userName, connection)) {
+                return false;
+            }
+            delta = record(new Message().withType(USER_JOINED).withSourceUser(userName));
+        } finally {
+            lock.unlock();
+        }
+        changed(delta);
+        return true;
+    }
+
+    // Gives the user name back, but only if this connection is the one holding it.  Returns false if it wasn't.
+    public boolean release(final String userName, final Connection connection) {
+        if (null == userName) {
+            return false;
+        }
+        final SharedMessage delta;
+        lock.lock();
+        try {
+            if (!userNameToConnection.remove(userName, connection)) {
+                return false;
+            }
+            delta = record(new Message().withType(USER_LEFT).withSourceUser(userName));
+        } finally {
+            lock.unlock();
+        }
+        changed(delta);
+        return true;
+    }
+
+    private SharedMessage record(final Message message) {
+        version++;
+        final SharedMessage delta = new SharedMessage(message.withText(Long.toString(version)));
+        deltas[(int) (version % deltas.length)] = delta;
+        return delta;
+    }
+
+    private void changed(final SharedMessage delta) {
+        final Listener current = listener;
+        if (null != current) {
+            current.changed(delta);
+        }
+    }
+
+    // Returns the connection logged in with the user name, or null if the user is offline.
+    public Connection get(final String userName) {
+        return null == userName ? null : userNameToConnection.get(userName);
+    }
+
+    // A read only, live view of the logged in user names.
+    public Set<String> getUserNames() {
+        return userNames;
+    }
+
+    public int size() {
+        return userNameToConnection.size();
+    }
+
+    public long getVersion() {
+        lock.lock();
+        try {
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The deltas after the given version in order, empty if it is current, or null if it is too old (or from before a
+    // restart) and a snapshot is needed instead.
+    public List<SharedMessage> getDeltasSince(final long known) {
+        lock.lock();
+        try {
+            if (known < 0 || known > version || known < version - deltas.length) {
+                return null;
+            }
+            final List<SharedMessage> missed = new ArrayList<>((int) (version - known));
+            for (long v = known + 1; v <= version; v++) {
+                missed.add(deltas[(int) (v % deltas.length)]);
+            }
+            return missed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // USERS_SNAPSHOT, the version followed by every user name, comma delimited.
+    public SharedMessage getSnapshot() {
+        return currentSnapshot().snapshot;
+    }
+
+    // The GET_USERS reply older clients expect, every user name comma delimited.
+    public SharedMessage getUserList() {
+        return currentSnapshot().userList;
+    }
+
+    private Snapshot currentSnapshot() {
+        lock.lock();
+        try {
+            Snapshot current = snapshot;
+            if (null == current || current.version != version) {
+                current = new Snapshot(version, String.join(",", userNames));
+                snapshot = current;
+            }
+            return current;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Both forms of the user list for one version.
+    private static class Snapshot {
+        private final long version;
+        private final SharedMessage snapshot;
+        private final SharedMessage userList;
+
+        private Snapshot(final long version, final String names) {
+            this.version = version;
+            this.snapshot = new SharedMessage(new Message()
+                    .withType(USERS_SNAPSHOT)
+                    .withSourceUser(SERVER)
+                    .withText(names.isEmpty() ? Long.toString(version) : version + "," + names));
+            this.userList = new SharedMessage(new Message()
+                    .withType(GET_USERS)
+                    .withSourceUser(SERVER)
+                    .withText(names));
+        }
+    }
+}
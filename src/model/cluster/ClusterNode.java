@@ -0,0 +1,136 @@
+package model.cluster;
+
+import model.Connection;
+import model.Message;
+import model.Server;
+import model.log.Log;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static model.enums.MessageTypeEnum.INVITE_ACCEPT;
+import static model.enums.MessageTypeEnum.MESSAGE;
+import static model.enums.MessageTypeEnum.SESSION_EXIT;
+
+/**
+ * One Server's membership of a cluster.  It announces the users logging in and out of this node over the message bus,
+ * claims the users announced by other nodes as RemoteConnections, and delivers messages the other nodes pass on for
+ * users held here.
+ *
+ * Sessions and their history are kept by each node, so starting or ending a session with a remote user also updates
+ * the session here, and messages received for it are logged here too.  Rooms are not shared between nodes.
+ */
+public class ClusterNode implements MessageBus.Receiver {
+    private static final Log LOG = Log.get(ClusterNode.class);
+
+    private Server server;
+    private MessageBus bus;
+    private String nodeId;
+    // Every user held by another node, by user name.
+    private Map<String, RemoteConnection> remoteUsers;
+
+    public ClusterNode(final Server server, final MessageBus bus, final String nodeId) {
+        this.server = server;
+        this.bus = bus;
+        this.nodeId = nodeId;
+        this.remoteUsers = new ConcurrentHashMap<>();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getRemoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    public void start() {
+        bus.connect(nodeId, this);
+    }
+
+    public void close() {
+        bus.disconnect(nodeId);
+    }
+
+    // A local user logged in or out.
+    public void userOnline(final String userName) {
+        bus.publishPresence(nodeId, userName, true);
+    }
+    public void userOffline(final String userName) {
+        bus.publishPresence(nodeId, userName, false);
+    }
+
+    void send(final RemoteConnection target, final Message message) {
+        bus.send(nodeId, target.getNodeId(), target.getUserName(), message);
+    }
+
+    @Override
+    public void onNodeJoined(final String joinedNodeId) {
+        LOG.info("Node joined", joinedNodeId);
+        for (String userName : new ArrayList<>(server.getActiveUsers())) {
+            if (!(server.getUserByUserName(userName) instanceof RemoteConnection)) {
+                userOnline(userName);
+            }
+        }
+    }
+
+    @Override
+    public void onNodeLeft(final String leftNodeId) {
+        LOG.info("Node left", leftNodeId);
+        for (RemoteConnection remote : new ArrayList<>(remoteUsers.values())) {
+            if (remote.getNodeId().equals(leftNodeId)) {
+                release(remote);
+            }
+        }
+    }
+
+    @Override
+    public void onPresence(final String fromNodeId, final String userName, final boolean online) {
+        final RemoteConnection existing = remoteUsers.get(userName);
+        if (!online) {
+            if (null != existing && existing.getNodeId().equals(fromNodeId)) {
+                release(existing);
+            }
+            return;
+        }
+        if (null != existing) {
+            if (existing.getNodeId().equals(fromNodeId)) {
+                // Repeated when a node joins.
+                return;
+            }
+            // The user moved nodes and the log in got here before the log out, which is now ignored.
+            release(existing);
+        }
+        final RemoteConnection remote = new RemoteConnection(this, fromNodeId, userName);
+        if (server.claimUserName(userName, remote)) {
+            remoteUsers.put(userName, remote);
+        } else {
+            // Both nodes let the name in before hearing about the other, each keeps its own user.
+            LOG.warn("User name held by more than one node", userName + "@" + fromNodeId);
+        }
+    }
+
+    @Override
+    public void onMessage(final String fromNodeId, final String targetUserName, final Message message) {
+        final Connection target = server.getUserByUserName(targetUserName);
+        if (null == target || target instanceof RemoteConnection) {
+            LOG.debug("Dropped message for a user no longer here", targetUserName + "@" + fromNodeId);
+            return;
+        }
+        final String sourceUserName = message.getSourceUser();
+        if (INVITE_ACCEPT == message.getType()) {
+            server.activateSession(targetUserName, sourceUserName);
+        } else if (SESSION_EXIT == message.getType()) {
+            server.deActivateSession(targetUserName, sourceUserName);
+        } else if (MESSAGE == message.getType()) {
+            server.logSessionText(sourceUserName, targetUserName, message.getText());
+        }
+        target.send(message);
+    }
+
+    private void release(final RemoteConnection remote) {
+        remoteUsers.remove(remote.getUserName(), remote);
+        server.releaseUserName(remote.getUserName(), remote);
+    }
+}
@@ -0,0 +1,110 @@
+package model.cluster;
+
+import model.Message;
+import model.log.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A message bus between nodes in the same process, so a cluster can be run and tested on one machine.  Each node gets
+ * its deliveries on its own thread, the same as from a real bus, and messages are copied on the way so nodes never
+ * share one.
+ */
+public class LoopbackMessageBus implements MessageBus {
+    private static final Log LOG = Log.get(LoopbackMessageBus.class);
+
+    private Map<String, Node> nodes;
+
+    public LoopbackMessageBus() {
+        this.nodes = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void connect(final String nodeId, final Receiver receiver) {
+        final Node node = new Node(nodeId, receiver);
+        if (null != nodes.putIfAbsent(nodeId, node)) {
+            node.close();
+            throw new IllegalStateException("Node already connected: " + nodeId);
+        }
+        for (Node other : nodes.values()) {
+            if (other != node) {
+                other.deliver(() -> other.receiver.onNodeJoined(nodeId));
+                node.deliver(() -> receiver.onNodeJoined(other.nodeId));
+            }
+        }
+    }
+
+    @Override
+    public void disconnect(final String nodeId) {
+        final Node node = nodes.remove(nodeId);
+        if (null == node) {
+            return;
+        }
+        node.close();
+        for (Node other : nodes.values()) {
+            other.deliver(() -> other.receiver.onNodeLeft(nodeId));
+        }
+    }
+
+    @Override
+    public void publishPresence(final String nodeId, final String userName, final boolean online) {
+        for (Node other : nodes.values()) {
+            if (!other.nodeId.equals(nodeId)) {
+                other.deliver(() -> other.receiver.onPresence(nodeId, userName, online));
+            }
+        }
+    }
+
+    @Override
+    public void send(final String nodeId, final String targetNodeId, final String targetUserName, final Message message) {
+        final Node target = nodes.get(targetNodeId);
+        if (null == target) {
+            LOG.debug("Dropped message for a node that left", targetUserName + "@" + targetNodeId);
+            return;
+        }
+        final Message copy = new Message()
+                .withType(message.getType())
+                .withSourceUser(message.getSourceUser())
+                .withTargetUser(message.getTargetUser())
+                .withText(message.getText());
+        target.deliver(() -> target.receiver.onMessage(nodeId, targetUserName, copy));
+    }
+
+    private static class Node {
+        private final String nodeId;
+        private final Receiver receiver;
+        private final ExecutorService inbox;
+
+        private Node(final String nodeId, final Receiver receiver) {
+            this.nodeId = nodeId;
+            this.receiver = receiver;
+            this.inbox = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "bus-" + nodeId);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        private void deliver(final Runnable delivery) {
+            try {
+                inbox.execute(() -> {
+                    try {
+                        delivery.run();
+                    } catch (RuntimeException e) {
+                        LOG.error("Error in LoopbackMessageBus.deliver", nodeId, e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The node is disconnecting.
+            }
+        }
+
+        private void close() {
+            inbox.shutdown();
+        }
+    }
+}
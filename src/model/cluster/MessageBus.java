@@ -0,0 +1,37 @@
+package model.cluster;
+
+import model.Message;
+
+/**
+ * How the nodes of a cluster talk to each other.  Each node announces the users it holds and passes messages for users
+ * held elsewhere to the node that holds them.  Deliveries to a node arrive on one thread at a time, in the order they
+ * were sent from any one thread.
+ */
+public interface MessageBus {
+
+    // What a node is told by the bus.
+    interface Receiver {
+        // Another node joined, it needs to hear about every user this node holds.
+        void onNodeJoined(String nodeId);
+
+        // Another node left or was lost, along with all of its users.
+        void onNodeLeft(String nodeId);
+
+        // A user logged in to or out of another node.
+        void onPresence(String nodeId, String userName, boolean online);
+
+        // A message from another node for a user held by this one.
+        void onMessage(String nodeId, String targetUserName, Message message);
+    }
+
+    // Joins the node to the cluster, it starts hearing from the others.
+    void connect(String nodeId, Receiver receiver);
+
+    void disconnect(String nodeId);
+
+    // Tells every other node about a user logging in to or out of this one.
+    void publishPresence(String nodeId, String userName, boolean online);
+
+    // Passes a message to the user held by the target node.
+    void send(String nodeId, String targetNodeId, String targetUserName, Message message);
+}
@@ -0,0 +1,77 @@
+package model.cluster;
+
+import model.Connection;
+import model.Message;
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
+
+import java.util.function.Consumer;
+
+/**
+ * Stands in for a user logged in to another node.  It is claimed in the local user directory under the user's name, so
+ * the router, GET_USERS and presence subscribers treat remote users like local ones, and whatever is sent to it goes
+ * over the message bus to the node holding the user.
+ */
+public class RemoteConnection implements Connection {
+    // Not a local connection, so it has no thread id.
+    public static final int NO_THREAD = -1;
+
+    private ClusterNode cluster;
+    private String nodeId;
+    private String userName;
+
+    public RemoteConnection(final ClusterNode cluster, final String nodeId, final String userName) {
+        this.cluster = cluster;
+        this.nodeId = nodeId;
+        this.userName = userName;
+    }
+
+    // The node holding the user.
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public int getThreadId() {
+        return NO_THREAD;
+    }
+
+    @Override
+    public String getUserName() {
+        return userName;
+    }
+    @Override
+    public void setUserName(final String userName) {
+        this.userName = userName;
+    }
+
+    // The node holding the user picks the codec for its own connection.
+    @Override
+    public MessageCodec getCodec() {
+        return MessageCodecs.TEXT;
+    }
+    @Override
+    public void setCodec(final MessageCodec codec) {
+    }
+
+    @Override
+    public void send(final Message message) {
+        cluster.send(this, message);
+    }
+
+    // Nothing queues locally, backpressure is up to the node holding the user.
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    // Handed to the bus as soon as it is sent, what happens after is up to the node holding the user.
+    @Override
+    public void afterSent(final Consumer<Boolean> callback) {
+        callback.accept(true);
+    }
+
+    @Override
+    public void close() {
+    }
+}
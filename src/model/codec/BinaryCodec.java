@@ -0,0 +1,125 @@
+package model.codec;
+
+import model.Message;
+import model.enums.MessageTypeEnum;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Version 1 of the compact binary format.  A frame body is laid out as:
+ *
+ *   [version byte][type code byte][varint length][source user][varint length][target user][text]
+ *
+ * Strings are standard UTF-8 and the text takes up the rest of the frame, so message text can contain anything.  The
+ * version byte is never '{' which is how receivers tell these frames apart from legacy text frames.
+ */
+public class BinaryCodec implements MessageCodec {
+
+    public static final int VERSION = 1;
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public void write(final Message message, final DataOutputStream out) throws IOException {
+        final String source = valueOf(message.getSourceUser());
+        final String target = valueOf(message.getTargetUser());
+        final String text = valueOf(message.getText());
+        final int sourceLength = Utf8.encodedLength(source);
+        final int targetLength = Utf8.encodedLength(target);
+        out.writeShort(bodyLength(sourceLength, targetLength, Utf8.encodedLength(text)));
+        out.writeByte(VERSION);
+        out.writeByte(typeCode(message.getType()));
+        Varint.write(sourceLength, out);
+        Utf8.encode(source, out);
+        Varint.write(targetLength, out);
+        Utf8.encode(target, out);
+        Utf8.encode(text, out);
+    }
+
+    @Override
+    public ByteBuffer toFrame(final Message message) throws IOException {
+        final String source = valueOf(message.getSourceUser());
+        final String target = valueOf(message.getTargetUser());
+        final String text = valueOf(message.getText());
+        final int sourceLength = Utf8.encodedLength(source);
+        final int targetLength = Utf8.encodedLength(target);
+        final int length = bodyLength(sourceLength, targetLength, Utf8.encodedLength(text));
+        final ByteBuffer frame = ByteBuffer.allocate(ModifiedUtf8.HEADER_LENGTH + length);
+        frame.putShort((short) length);
+        frame.put((byte) VERSION);
+        frame.put(typeCode(message.getType()));
+        Varint.write(sourceLength, frame);
+        Utf8.encode(source, frame);
+        Varint.write(targetLength, frame);
+        Utf8.encode(target, frame);
+        Utf8.encode(text, frame);
+        frame.flip();
+        return frame;
+    }
+
+    @Override
+    public Message read(final byte[] bytes, final int offset, final int length) throws IOException {
+        final int end = offset + length;
+        if (length < 2 || VERSION != bytes[offset]) {
+            return null;
+        }
+        final MessageTypeEnum type = MessageTypeEnum.from(bytes[offset + 1]);
+        if (null == type) {
+            return null;
+        }
+        int position = offset + 2;
+
+        final long source = Varint.read(bytes, position, end);
+        if (source < 0) {
+            return null;
+        }
+        position = Varint.next(source);
+        final int sourceLength = Varint.value(source);
+        if (0 == sourceLength || position + sourceLength > end) {
+            return null; // source user is mandatory
+        }
+        final String sourceUser = new String(bytes, position, sourceLength, StandardCharsets.UTF_8);
+        position += sourceLength;
+
+        final long target = Varint.read(bytes, position, end);
+        if (target < 0) {
+            return null;
+        }
+        position = Varint.next(target);
+        final int targetLength = Varint.value(target);
+        if (position + targetLength > end) {
+            return null;
+        }
+        final String targetUser = new String(bytes, position, targetLength, StandardCharsets.UTF_8);
+        position += targetLength;
+
+        return new Message().withType(type)
+                .withSourceUser(sourceUser)
+                .withTargetUser(targetUser)
+                .withText(new String(bytes, position, end - position, StandardCharsets.UTF_8));
+    }
+
+    private static int bodyLength(final int sourceLength, final int targetLength, final int textLength) throws UTFDataFormatException {
+        final long length = 2L + Varint.size(sourceLength) + sourceLength + Varint.size(targetLength) + targetLength + textLength;
+        if (length > ModifiedUtf8.MAX_LENGTH) {
+            throw new UTFDataFormatException("encoded message too long: " + length + " bytes");
+        }
+        return (int) length;
+    }
+
+    // Unknown types get a code no reader maps back, so the frame is rejected the same way the text codec rejects them.
+    private static byte typeCode(final MessageTypeEnum type) {
+        return null == type ? (byte) 0xFF : type.getCode();
+    }
+
+    private static String valueOf(final String string) {
+        return null == string ? "" : string;
+    }
+}
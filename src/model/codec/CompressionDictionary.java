@@ -0,0 +1,46 @@
+package model.codec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The preset dictionary both sides of a compressing connection start every message body from, so even a single
+ * message compresses well.  It holds the kind of text users paste into chats: log lines, Java stack traces and
+ * everyday chat phrases, with the most common strings last since deflate finds nearer matches more cheaply.
+ *
+ * Every peer must use exactly the same bytes, so never change it in place; a new dictionary needs a new codec version.
+ */
+public final class CompressionDictionary {
+
+    private static final byte[] BYTES = String.join("",
+            "https://www.github.com/ http://localhost:8080/ .com .org .net ",
+            "SELECT * FROM WHERE ORDER BY GROUP BY INSERT INTO VALUES UPDATE SET DELETE FROM ",
+            "{\"id\":\"name\":\"type\":\"value\":\"status\":\"message\":\"error\":\"data\":null,true,false} ",
+            "HTTP/1.1 200 OK 404 Not Found 500 Internal Server Error Content-Type: application/json ",
+            "Thanks! thank you, sounds good, let me know if you have any questions. Can you take a look at this? ",
+            "I think the problem is that it doesn't work when I try to run it, here is the error I get: ",
+            "2025-01-01T00:00:00.000Z 2026-",
+            " [main] [pool-1-thread-1] ",
+            " TRACE  DEBUG  INFO  WARN  ERROR  FATAL ",
+            "Exception in thread \"main\" java.lang.RuntimeException: java.lang.IllegalStateException: ",
+            "java.lang.IllegalArgumentException: java.lang.NullPointerException: Cannot invoke \"String.length()\" because ",
+            "java.io.IOException: java.net.SocketException: Connection reset java.util.concurrent.ExecutionException: ",
+            "\n\t... 12 more\nCaused by: ",
+            "\n\tat java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:1136)",
+            "\n\tat java.base/java.util.concurrent.ThreadPoolExecutor$Worker.run(ThreadPoolExecutor.java:635)",
+            "\n\tat java.base/java.lang.Thread.run(Thread.java:840)",
+            "\n\tat java.base/jdk.internal.reflect.NativeMethodAccessorImpl.invoke0(Native Method)",
+            "\n\tat org.springframework.",
+            "\n\tat org.junit.",
+            "\n\tat com.",
+            "\n\tat model.",
+            "\n\tat java.base/java.",
+            ".java:1)\n\tat ").getBytes(StandardCharsets.UTF_8);
+
+    private CompressionDictionary() {
+    }
+
+    // Shared, so never write to the array.
+    public static byte[] get() {
+        return BYTES;
+    }
+}
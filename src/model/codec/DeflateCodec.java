@@ -0,0 +1,249 @@
+package model.codec;
+
+import model.Message;
+import model.enums.MessageTypeEnum;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Version 2: the binary format with large bodies compressed.  A message whose type carries bulk text (see
+ * MessageTypeEnum.isCompressible) and whose text reaches the threshold has its text deflated, starting from the shared
+ * CompressionDictionary, into a frame laid out as:
+ *
+ *   [version byte][type code byte][varint length][source user][varint length][target user][varint text length][deflated text]
+ *
+ * Everything else, and any text that doesn't get smaller, goes out as an ordinary version 1 frame, so control frames
+ * such as TYPING and LOGIN_ACK never pay for compression.
+ *
+ * Unlike the other codecs each connection gets its own instance, which keeps its Deflater and Inflater (created the
+ * first time they are needed) for the life of the connection rather than making new ones per message, and ends them
+ * when the connection closes (see end) rather than leaving their native memory to the garbage collector.  A connection
+ * writes from one thread at a time and reads from one thread; the locks only keep end from pulling the Deflater or
+ * Inflater out from under a write or read still running on another thread.
+ */
+public class DeflateCodec implements MessageCodec {
+
+    public static final int VERSION = 2;
+    // Texts shorter than this many characters are sent uncompressed.
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private int threshold;
+    private Deflater deflater;
+    private Inflater inflater;
+    // Reused output of the last deflate and inflate.
+    private byte[] compressed;
+    private byte[] text;
+    // Guard the deflater and the inflater against end.
+    private ReentrantLock deflating;
+    private ReentrantLock inflating;
+    private volatile boolean ended;
+
+    public DeflateCodec(final int threshold) {
+        this.threshold = threshold;
+        this.compressed = new byte[0];
+        this.text = new byte[0];
+        this.deflating = new ReentrantLock();
+        this.inflating = new ReentrantLock();
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public void write(final Message message, final DataOutputStream out) throws IOException {
+        final ByteBuffer frame = compress(message);
+        if (null == frame) {
+            MessageCodecs.BINARY.write(message, out);
+        } else {
+            out.write(frame.array(), 0, frame.limit());
+        }
+    }
+
+    @Override
+    public ByteBuffer toFrame(final Message message) throws IOException {
+        final ByteBuffer frame = compress(message);
+        return null == frame ? MessageCodecs.BINARY.toFrame(message) : frame;
+    }
+
+    @Override
+    public Message read(final byte[] bytes, final int offset, final int length) throws IOException {
+        final int end = offset + length;
+        if (length < 2 || VERSION != bytes[offset]) {
+            return null;
+        }
+        final MessageTypeEnum type = MessageTypeEnum.from(bytes[offset + 1]);
+        if (null == type) {
+            return null;
+        }
+        int position = offset + 2;
+
+        final long source = Varint.read(bytes, position, end);
+        if (source < 0) {
+            return null;
+        }
+        position = Varint.next(source);
+        final int sourceLength = Varint.value(source);
+        if (0 == sourceLength || position + sourceLength > end) {
+            return null; // source user is mandatory
+        }
+        final String sourceUser = new String(bytes, position, sourceLength, StandardCharsets.UTF_8);
+        position += sourceLength;
+
+        final long target = Varint.read(bytes, position, end);
+        if (target < 0) {
+            return null;
+        }
+        position = Varint.next(target);
+        final int targetLength = Varint.value(target);
+        if (position + targetLength > end) {
+            return null;
+        }
+        final String targetUser = new String(bytes, position, targetLength, StandardCharsets.UTF_8);
+        position += targetLength;
+
+        // The text may not inflate to more than an uncompressed frame could have held.
+        final long textLength = Varint.read(bytes, position, end);
+        if (textLength < 0 || Varint.value(textLength) > ModifiedUtf8.MAX_LENGTH) {
+            return null;
+        }
+        position = Varint.next(textLength);
+        final int inflatedLength = inflate(bytes, position, end - position, Varint.value(textLength));
+        if (inflatedLength < 0) {
+            return null;
+        }
+        return new Message().withType(type)
+                .withSourceUser(sourceUser)
+                .withTargetUser(targetUser)
+                .withText(new String(text, 0, inflatedLength, StandardCharsets.UTF_8));
+    }
+
+    // Ends the Deflater and Inflater.  Anything written afterwards goes out uncompressed and compressed frames read
+    // afterwards are refused.
+    @Override
+    public void end() {
+        deflating.lock();
+        try {
+            ended = true;
+            if (null != deflater) {
+                deflater.end();
+                deflater = null;
+            }
+        } finally {
+            deflating.unlock();
+        }
+        inflating.lock();
+        try {
+            if (null != inflater) {
+                inflater.end();
+                inflater = null;
+            }
+        } finally {
+            inflating.unlock();
+        }
+    }
+
+    // The compressed frame, or null if the message should go out as a plain binary frame.
+    private ByteBuffer compress(final Message message) throws IOException {
+        final String body = message.getText();
+        if (null == message.getType() || !message.getType().isCompressible() || null == body || body.length() < threshold) {
+            return null;
+        }
+        deflating.lock();
+        try {
+            return ended ? null : deflate(message, body);
+        } finally {
+            deflating.unlock();
+        }
+    }
+
+    private ByteBuffer deflate(final Message message, final String body) {
+        final byte[] raw = body.getBytes(StandardCharsets.UTF_8);
+        if (null == deflater) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        deflater.reset();
+        deflater.setDictionary(CompressionDictionary.get());
+        deflater.setInput(raw);
+        deflater.finish();
+        // Give up as soon as the output would be no smaller than the input.
+        final int limit = raw.length - Varint.size(raw.length);
+        if (compressed.length < limit) {
+            compressed = new byte[limit];
+        }
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < limit) {
+            compressedLength += deflater.deflate(compressed, compressedLength, limit - compressedLength);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+
+        final byte[] source = valueOf(message.getSourceUser()).getBytes(StandardCharsets.UTF_8);
+        final byte[] target = valueOf(message.getTargetUser()).getBytes(StandardCharsets.UTF_8);
+        final long length = 2L + Varint.size(source.length) + source.length + Varint.size(target.length) + target.length
+                + Varint.size(raw.length) + compressedLength;
+        if (length > ModifiedUtf8.MAX_LENGTH || raw.length > ModifiedUtf8.MAX_LENGTH) {
+            return null; // the binary codec reports it
+        }
+        final ByteBuffer frame = ByteBuffer.allocate(ModifiedUtf8.HEADER_LENGTH + (int) length);
+        frame.putShort((short) length);
+        frame.put((byte) VERSION);
+        frame.put(message.getType().getCode());
+        Varint.write(source.length, frame);
+        frame.put(source);
+        Varint.write(target.length, frame);
+        frame.put(target);
+        Varint.write(raw.length, frame);
+        frame.put(compressed, 0, compressedLength);
+        frame.flip();
+        return frame;
+    }
+
+    // Inflates into the text buffer, returns the length or -1 if the data doesn't inflate to exactly the expected length.
+    private int inflate(final byte[] bytes, final int offset, final int length, final int expected) {
+        inflating.lock();
+        try {
+            return ended ? -1 : inflateText(bytes, offset, length, expected);
+        } finally {
+            inflating.unlock();
+        }
+    }
+
+    private int inflateText(final byte[] bytes, final int offset, final int length, final int expected) {
+        if (null == inflater) {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        inflater.setDictionary(CompressionDictionary.get());
+        inflater.setInput(bytes, offset, length);
+        if (text.length < expected) {
+            text = new byte[expected];
+        }
+        int inflated = 0;
+        try {
+            while (inflated < expected) {
+                final int read = inflater.inflate(text, inflated, expected - inflated);
+                if (0 == read && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += read;
+            }
+        } catch (DataFormatException e) {
+            return -1;
+        }
+        return inflated == expected ? inflated : -1;
+    }
+
+    private static String valueOf(final String string) {
+        return null == string ? "" : string;
+    }
+}
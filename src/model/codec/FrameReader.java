@@ -0,0 +1,49 @@
+package model.codec;
+
+import model.Message;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Reads length prefixed frames off a blocking stream and decodes them with whichever codec wrote them.  The body
+ * buffer is reused between frames so a connection doesn't allocate a new array per message.
+ */
+public class FrameReader {
+    private DataInputStream in;
+    private byte[] buffer;
+
+    public FrameReader(final DataInputStream in) {
+        this.in = in;
+        this.buffer = new byte[256];
+    }
+
+    // Blocks until a whole frame is read, returns null if it isn't a valid message.
+    public Message read() throws IOException {
+        return decode(readFrame());
+    }
+
+    // As above, letting the connection's codec read the frames it wrote (see MessageCodecs.decode).
+    public Message read(final MessageCodec codec) throws IOException {
+        return decode(readFrame(), codec);
+    }
+
+    // Blocks until a whole frame is read into the buffer, returns its length.  Split from decode so the two can be timed
+    // separately.
+    public int readFrame() throws IOException {
+        final int length = in.readUnsignedShort();
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        in.readFully(buffer, 0, length);
+        return length;
+    }
+
+    // Decodes the frame just read, returns null if it isn't a valid message.
+    public Message decode(final int length) throws IOException {
+        return MessageCodecs.decode(buffer, 0, length);
+    }
+    public Message decode(final int length, final MessageCodec codec) throws IOException {
+        return MessageCodecs.decode(buffer, 0, length, codec);
+    }
+}
@@ -0,0 +1,31 @@
+package model.codec;
+
+import model.Message;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a Message into a single wire frame.  Every codec uses the same 2 byte length prefix as writeUTF so a frame can
+ * be cut out of the stream before knowing which codec wrote it; MessageCodecs.decode picks the codec from its first byte.
+ */
+public interface MessageCodec {
+
+    // The protocol version agreed on at LOGIN (0 is the legacy text format).
+    int getVersion();
+
+    // Writes one complete frame, length prefix included, straight into the stream's buffer.
+    void write(Message message, DataOutputStream out) throws IOException;
+
+    // Builds one complete frame, length prefix included, ready to be written to a channel.
+    ByteBuffer toFrame(Message message) throws IOException;
+
+    // Reads a frame body (without the length prefix), returns null if it isn't a valid message.
+    Message read(byte[] bytes, int offset, int length) throws IOException;
+
+    // Frees anything the codec holds outside the heap, once the connection using it is closed.  The shared stateless
+    // codecs hold nothing.
+    default void end() {
+    }
+}
@@ -0,0 +1,137 @@
+package model.codec;
+
+import model.Message;
+import model.SharedMessage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The available codecs and how a connection agrees on one.
+ *
+ * Every connection starts on the text codec.  A client that understands newer versions puts an offer such as
+ * "codec=2" in its LOGIN text; the server answers in the LOGIN_ACK text with the version it picked, and from then on
+ * each side sends with that codec.  Receivers always detect the codec per frame, so frames already in flight during
+ * the switch (or from older clients that never offer) are still read correctly.
+ *
+ * Version 2 adds compression (see DeflateCodec), and keeps state, so each connection negotiating it gets its own
+ * instance.  The server can leave it out of what it picks.
+ */
+public final class MessageCodecs {
+
+    public static final MessageCodec TEXT = new TextCodec();
+    public static final MessageCodec BINARY = new BinaryCodec();
+
+    // The LOGIN / LOGIN_ACK option naming the codec version.
+    public static final String CODEC_OPTION = "codec";
+    // Reads compressed frames for callers without a compressing codec of their own (eg. the offline queue or a
+    // connection that hasn't negotiated one yet), borrowed for each frame rather than a new Inflater per frame.  Only
+    // a few are kept, any more are ended when given back, so a thread per connection doesn't hold an Inflater each.
+    private static final BlockingQueue<DeflateCodec> INFLATING = new ArrayBlockingQueue<>(
+            Runtime.getRuntime().availableProcessors());
+
+    private MessageCodecs() {
+    }
+
+    // Reads a frame body written by any codec, returns null if it isn't a valid message.
+    public static Message decode(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length > 0 && BinaryCodec.VERSION == bytes[offset]) {
+            return BINARY.read(bytes, offset, length);
+        }
+        if (length > 0 && DeflateCodec.VERSION == bytes[offset]) {
+            DeflateCodec inflating = INFLATING.poll();
+            if (null == inflating) {
+                inflating = new DeflateCodec(DeflateCodec.DEFAULT_THRESHOLD);
+            }
+            try {
+                return inflating.read(bytes, offset, length);
+            } finally {
+                if (!INFLATING.offer(inflating)) {
+                    inflating.end();
+                }
+            }
+        }
+        return TEXT.read(bytes, offset, length);
+    }
+
+    // Reads a frame body written by any codec, letting the connection's own codec read the frames it wrote so a
+    // compressing codec reuses its inflater.
+    public static Message decode(final byte[] bytes, final int offset, final int length, final MessageCodec codec) throws IOException {
+        if (length > 0 && codec.getVersion() > BinaryCodec.VERSION && codec.getVersion() == bytes[offset]) {
+            return codec.read(bytes, offset, length);
+        }
+        return decode(bytes, offset, length);
+    }
+
+    // Writes a frame with the codec, reusing the already encoded frame of a SharedMessage.
+    public static void write(final MessageCodec codec, final Message message, final DataOutputStream out) throws IOException {
+        if (message instanceof SharedMessage) {
+            out.write(((SharedMessage) message).getFrame(codec));
+        } else {
+            codec.write(message, out);
+        }
+    }
+
+    // Builds a frame with the codec, wrapping the already encoded frame of a SharedMessage rather than copying it.
+    public static ByteBuffer toFrame(final MessageCodec codec, final Message message) throws IOException {
+        if (message instanceof SharedMessage) {
+            return ByteBuffer.wrap(((SharedMessage) message).getFrame(codec)).asReadOnlyBuffer();
+        }
+        return codec.toFrame(message);
+    }
+
+    // The LOGIN text offering the newest codec this side supports.
+    public static String offer() {
+        return CODEC_OPTION + "=" + DeflateCodec.VERSION;
+    }
+
+    // The LOGIN_ACK text confirming the codec picked.  Empty for the text codec so older clients see the same ack as before.
+    public static String answer(final MessageCodec codec) {
+        return TextCodec.VERSION == codec.getVersion() ? "" : CODEC_OPTION + "=" + codec.getVersion();
+    }
+
+    // Picks the newest supported codec named in a LOGIN offer or LOGIN_ACK answer, falling back to text.
+    public static MessageCodec negotiate(final String text) {
+        return negotiate(text, DeflateCodec.DEFAULT_THRESHOLD);
+    }
+
+    // As above, compressing texts of at least compressionThreshold characters, or never compressing if it is 0.
+    public static MessageCodec negotiate(final String text, final int compressionThreshold) {
+        final String version = option(text, CODEC_OPTION);
+        if (null == version) {
+            return TEXT;
+        }
+        try {
+            final int offered = Integer.parseInt(version);
+            if (offered >= DeflateCodec.VERSION && compressionThreshold > 0) {
+                return new DeflateCodec(compressionThreshold);
+            }
+            return offered >= BinaryCodec.VERSION ? BINARY : TEXT;
+        } catch (NumberFormatException e) {
+            return TEXT;
+        }
+    }
+
+    // Finds the value of key in a "key=value;key=value" option string, or null if it isn't there.
+    public static String option(final String text, final String key) {
+        if (null == text) {
+            return null;
+        }
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf(';', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            final int equals = text.indexOf('=', start);
+            if (equals > start && equals < end && text.regionMatches(start, key, 0, key.length()) && equals - start == key.length()) {
+                return text.substring(equals + 1, end);
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+}
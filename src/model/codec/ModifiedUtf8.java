@@ -0,0 +1,108 @@
+package model.codec;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the same framing DataOutputStream.writeUTF and DataInputStream.readUTF use: a 2 byte unsigned
+ * length followed by the string in modified UTF-8.  Lets buffer based connections talk to stream based ones unchanged.
+ */
+public final class ModifiedUtf8 {
+
+    // The size of the unsigned short length prefix.
+    public static final int HEADER_LENGTH = 2;
+    // The largest encoded string a single frame can carry.
+    public static final int MAX_LENGTH = 65535;
+
+    private ModifiedUtf8() {
+    }
+
+    // The number of bytes the string takes once encoded, not counting the length prefix.
+    public static int encodedLength(final String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    // Builds a complete frame (length prefix and body) ready to be written to a channel.
+    public static ByteBuffer toFrame(final String string) throws UTFDataFormatException {
+        final int length = encodedLength(string);
+        if (length > MAX_LENGTH) {
+            throw new UTFDataFormatException("encoded string too long: " + length + " bytes");
+        }
+        final ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+        frame.putShort((short) length);
+        encode(string, frame);
+        frame.flip();
+        return frame;
+    }
+
+    // Writes the string body (without the length prefix) into the buffer.
+    public static void encode(final String string, final ByteBuffer buffer) {
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer.put((byte) c);
+            } else if (c > 0x07FF) {
+                buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    // Reads a string body of the given length out of the array, mirroring DataInputStream.readUTF.
+    public static String decode(final byte[] bytes, final int offset, final int length) throws UTFDataFormatException {
+        final char[] chars = new char[length];
+        final int end = offset + length;
+        int count = 0;
+        int i = offset;
+        while (i < end) {
+            final int b = bytes[i] & 0xFF;
+            switch (b >> 4) {
+                case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+                    chars[count++] = (char) b;
+                    i++;
+                    break;
+                case 12: case 13:
+                    if (i + 2 > end) {
+                        throw new UTFDataFormatException("malformed input: partial character at end");
+                    }
+                    final int b2 = bytes[i + 1];
+                    if ((b2 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException("malformed input around byte " + (i + 1 - offset));
+                    }
+                    chars[count++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+                    i += 2;
+                    break;
+                case 14:
+                    if (i + 3 > end) {
+                        throw new UTFDataFormatException("malformed input: partial character at end");
+                    }
+                    final int c2 = bytes[i + 1];
+                    final int c3 = bytes[i + 2];
+                    if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException("malformed input around byte " + (i + 2 - offset));
+                    }
+                    chars[count++] = (char) (((b & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+                    i += 3;
+                    break;
+                default:
+                    throw new UTFDataFormatException("malformed input around byte " + (i - offset));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
@@ -0,0 +1,36 @@
+package model.codec;
+
+import model.Message;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original format: Message.toString sent with writeUTF.  Still what every connection starts with, and what older
+ * clients keep using for the life of the connection.
+ */
+public class TextCodec implements MessageCodec {
+
+    public static final int VERSION = 0;
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public void write(final Message message, final DataOutputStream out) throws IOException {
+        out.writeUTF(message.toString());
+    }
+
+    @Override
+    public ByteBuffer toFrame(final Message message) throws IOException {
+        return ModifiedUtf8.toFrame(message.toString());
+    }
+
+    @Override
+    public Message read(final byte[] bytes, final int offset, final int length) throws IOException {
+        return Message.toMessage(ModifiedUtf8.decode(bytes, offset, length));
+    }
+}
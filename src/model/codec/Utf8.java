@@ -0,0 +1,86 @@
+package model.codec;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Standard UTF-8 encoding written directly into a stream or buffer, so encoding a message doesn't need an intermediate
+ * byte array per string.  Unpaired surrogates are replaced with '?' the same way String.getBytes does.
+ */
+public final class Utf8 {
+
+    private Utf8() {
+    }
+
+    public static int encodedLength(final String string) {
+        int length = 0;
+        final int size = string.length();
+        for (int i = 0; i < size; i++) {
+            final char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public static void encode(final String string, final DataOutput out) throws IOException {
+        final int size = string.length();
+        for (int i = 0; i < size; i++) {
+            final char c = string.charAt(i);
+            if (c < 0x80) {
+                out.writeByte(c);
+            } else if (c < 0x800) {
+                out.writeByte(0xC0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(string.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                out.writeByte(0xF0 | (codePoint >> 18));
+                out.writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                out.writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                out.writeByte(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out.writeByte('?');
+            } else {
+                out.writeByte(0xE0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3F));
+                out.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    public static void encode(final String string, final ByteBuffer buffer) {
+        final int size = string.length();
+        for (int i = 0; i < size; i++) {
+            final char c = string.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < size && Character.isLowSurrogate(string.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
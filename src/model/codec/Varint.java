@@ -0,0 +1,68 @@
+package model.codec;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 varints: 7 bits per byte, high bit set on every byte but the last.  Used for the string lengths in
+ * binary frames so short user names cost one byte.
+ */
+public final class Varint {
+
+    private Varint() {
+    }
+
+    public static int size(final int value) {
+        int size = 1;
+        int rest = value >>> 7;
+        while (0 != rest) {
+            size++;
+            rest >>>= 7;
+        }
+        return size;
+    }
+
+    public static void write(final int value, final DataOutput out) throws IOException {
+        int rest = value;
+        while ((rest & ~0x7F) != 0) {
+            out.writeByte((rest & 0x7F) | 0x80);
+            rest >>>= 7;
+        }
+        out.writeByte(rest);
+    }
+
+    public static void write(final int value, final ByteBuffer buffer) {
+        int rest = value;
+        while ((rest & ~0x7F) != 0) {
+            buffer.put((byte) ((rest & 0x7F) | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    // Reads a varint starting at position without allocating.  Returns the value and the position after it packed into
+    // one long (see value and next), or -1 if the varint runs past end or is too long.
+    public static long read(final byte[] bytes, final int position, final int end) {
+        int value = 0;
+        int shift = 0;
+        int i = position;
+        while (i < end && shift < 32) {
+            final int b = bytes[i++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return ((long) i << 32) | (value & 0xFFFFFFFFL);
+            }
+            shift += 7;
+        }
+        return -1;
+    }
+
+    public static int value(final long read) {
+        return (int) read;
+    }
+
+    public static int next(final long read) {
+        return (int) (read >>> 32);
+    }
+}
@@ -0,0 +1,37 @@
+package model.enums;
+
+import java.util.EnumSet;
+import java.util.Optional;
+
+/**
+ * Log levels, from most to least verbose.
+ */
+public enum LogLevelEnum {
+    TRACE("TRACE"),     // Every message sent and received.  Only for debugging, it is very noisy.
+    DEBUG("DEBUG"),     // Session changes and other routine state changes.
+    INFO("INFO"),       // Connections, startup and shutdown.
+    WARN("WARN"),       // Recoverable problems such as dropped messages.
+    ERROR("ERROR"),     // Failed reads and writes, closed connections.
+    OFF("OFF");         // Nothing.
+
+    private final String value;
+    private static EnumSet<LogLevelEnum> FULL_SET = EnumSet.allOf(LogLevelEnum.class);
+
+    private LogLevelEnum(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public static LogLevelEnum from(final String value) {
+        final Optional<LogLevelEnum> optional = FULL_SET.stream().filter(field -> field.getValue().equalsIgnoreCase(value)).findFirst();
+        return optional.isPresent() ? optional.get() : null;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -7,38 +7,80 @@ import java.util.Optional;
  * The list of allowable message types.
  */
 public enum MessageTypeEnum {
-    LOGIN("LOGIN"),                     // Always sent first, establishing the user name and setting its status to online (not really a log in as a handshake.
-    LOGIN_ACK("LOGIN_ACK"),             // Denotes that the server has accepted the login.
-    LOGIN_DENIED("LOGIN_DENIED"),       // Denotes that the server rejected the login.
-    ACCESS_DENIED("ACCESS_DENIED"),     // Sent to clients that haven't logged in yet.
-    BAD_REQUEST("BAD_REQUEST"),         // Sent to clients that sent unreadable messages.
-    GET_USERS("GET_USERS"),             // Returns the list of online user names to the requester.
-    INVITE("INVITE"),                   // Invites a user to a session.
-    INVITE_DECLINE("INVITE_DECLINE"),   // Indicates that a user has declined an invite.
-    INVITE_ACCEPT("INVITE_ACCEPT"),     // Indicates that a user has accepted an invite.
-    SESSION_EXIT("SESSION_EXIT"),       // Indicates that a user has left a session.
-    TYPING("TYPING"),                   // Indicates that a user is typing.
-    NOT_TYPING("NOT_TYPING"),           // Indicates that a user has stopped typing.
-    TEXT_CLEARED("TEXT_CLEARED"),       // Indicates that a user no longer has text in their prompt.
-    MESSAGE("MESSAGE"),                 // Sends a message to the other user in a session.
-    LOGOUT("LOGOUT");                   // Sent before terminating a client connection, setting the user name status to offline.
+    LOGIN("LOGIN", 0),                      // Always sent first, establishing the user name and setting its status to online (not really a log in as a handshake.
+    LOGIN_ACK("LOGIN_ACK", 1),              // Denotes that the server has accepted the login.
+    LOGIN_DENIED("LOGIN_DENIED", 2),        // Denotes that the server rejected the login.
+    ACCESS_DENIED("ACCESS_DENIED", 3),      // Sent to clients that haven't logged in yet.
+    BAD_REQUEST("BAD_REQUEST", 4),          // Sent to clients that sent unreadable messages.
+    GET_USERS("GET_USERS", 5),              // Returns the list of online user names to the requester.
+    INVITE("INVITE", 6),                    // Invites a user to a session.
+    INVITE_DECLINE("INVITE_DECLINE", 7),    // Indicates that a user has declined an invite.
+    INVITE_ACCEPT("INVITE_ACCEPT", 8),      // Indicates that a user has accepted an invite.
+    SESSION_EXIT("SESSION_EXIT", 9),        // Indicates that a user has left a session.
+    TYPING("TYPING", 10),                   // Indicates that a user is typing.
+    NOT_TYPING("NOT_TYPING", 11),           // Indicates that a user has stopped typing.
+    TEXT_CLEARED("TEXT_CLEARED", 12),       // Indicates that a user no longer has text in their prompt.
+    MESSAGE("MESSAGE", 13),                 // Sends a message to the other user in a session.
+    LOGOUT("LOGOUT", 14),                   // Sent before terminating a client connection, setting the user name status to offline.
+    ROOM_CREATE("ROOM_CREATE", 15),         // Creates the room named in the target user field and joins it.
+    ROOM_JOIN("ROOM_JOIN", 16),             // Joins a room.  Answered with the member list, and sent to the other members.
+    ROOM_LEAVE("ROOM_LEAVE", 17),           // Leaves a room.  Answered, and sent to the other members.
+    ROOM_MESSAGE("ROOM_MESSAGE", 18),       // Sends a message to every other member of a room.
+    SUBSCRIBE_USERS("SUBSCRIBE_USERS", 19), // Asks for user presence updates, with the directory version already known (if any) as the text.
+    USERS_SNAPSHOT("USERS_SNAPSHOT", 20),   // Every online user name, preceded by the directory version they are as of.
+    USER_JOINED("USER_JOINED", 21),         // Pushed to subscribers when a user logs in, with the new directory version as the text.
+    USER_LEFT("USER_LEFT", 22),             // Pushed to subscribers when a user logs out.
+    HISTORY("HISTORY", 23),                 // Asks for a page of the session with the target user as "cursor,size"; answered with one per message.
+    HISTORY_END("HISTORY_END", 24),         // Ends a page of history, with the cursor for the page before it (0 when there is none).
+    THROTTLED("THROTTLED", 25),             // Sent instead of processing a message over the sender's rate limit, as "type,retry millis".
+    PING("PING", 26),                       // Asks the other end to show it is still there, by sending a PONG.  Sent by the server to quiet connections.
+    PONG("PONG", 27);                       // Answers a PING.
 
     private final String value;
+    // The wire code used by the binary codec.  Never reuse or renumber a code, only add new ones.
+    private final byte code;
     private static EnumSet<MessageTypeEnum> FULL_SET = EnumSet.allOf(MessageTypeEnum.class);
+    // Presence signals that are superseded by the next one, so they are safe to drop under load.
+    private static EnumSet<MessageTypeEnum> EPHEMERAL_SET = EnumSet.of(TYPING, NOT_TYPING, TEXT_CLEARED);
+    // Types that can carry bulk text (pasted logs, long user lists), the only ones worth compressing.
+    private static EnumSet<MessageTypeEnum> COMPRESSIBLE_SET = EnumSet.of(GET_USERS, MESSAGE, ROOM_MESSAGE, USERS_SNAPSHOT, HISTORY);
+    private static MessageTypeEnum[] BY_CODE = new MessageTypeEnum[256];
+    static {
+        for (MessageTypeEnum type : FULL_SET) {
+            BY_CODE[type.getCode() & 0xFF] = type;
+        }
+    }
 
-    private MessageTypeEnum(String value) {
+    private MessageTypeEnum(String value, int code) {
         this.value = value;
+        this.code = (byte) code;
     }
 
     public String getValue() {
         return value;
     }
 
+    public byte getCode() {
+        return code;
+    }
+
+    public boolean isEphemeral() {
+        return EPHEMERAL_SET.contains(this);
+    }
+
+    public boolean isCompressible() {
+        return COMPRESSIBLE_SET.contains(this);
+    }
+
     public static MessageTypeEnum from(final String value) {
         final Optional<MessageTypeEnum> optional = FULL_SET.stream().filter(field -> field.getValue().equals(value)).findFirst();
         return optional.isPresent() ? optional.get() : null;
     }
 
+    public static MessageTypeEnum from(final byte code) {
+        return BY_CODE[code & 0xFF];
+    }
+
     @Override
     public String toString() {
         return value;
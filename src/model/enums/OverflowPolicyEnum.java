@@ -0,0 +1,34 @@
+package model.enums;
+
+import java.util.EnumSet;
+import java.util.Optional;
+
+/**
+ * What a connection does when its outbound queue is full.
+ */
+public enum OverflowPolicyEnum {
+    DROP_TYPING_THEN_DISCONNECT("drop_typing_then_disconnect"), // Drop typing indicators to make room, disconnect if that isn't enough.
+    DROP_NEWEST("drop_newest"),                                 // Drop the message being sent, never disconnect.
+    DISCONNECT("disconnect");                                   // Disconnect the slow consumer straight away.
+
+    private final String value;
+    private static EnumSet<OverflowPolicyEnum> FULL_SET = EnumSet.allOf(OverflowPolicyEnum.class);
+
+    private OverflowPolicyEnum(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public static OverflowPolicyEnum from(final String value) {
+        final Optional<OverflowPolicyEnum> optional = FULL_SET.stream().filter(field -> field.getValue().equalsIgnoreCase(value)).findFirst();
+        return optional.isPresent() ? optional.get() : null;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
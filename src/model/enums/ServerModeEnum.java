@@ -0,0 +1,34 @@
+package model.enums;
+
+import java.util.EnumSet;
+import java.util.Optional;
+
+/**
+ * The ways the server can service client connections.
+ */
+public enum ServerModeEnum {
+    BLOCKING("blocking"),   // One ServerThread blocked on each socket, each on its own platform thread.
+    VIRTUAL("virtual"),     // One ServerThread blocked on each socket, each on its own virtual thread (Java 21+).
+    NIO("nio");             // A small pool of selector event loops shared by all sockets.
+
+    private final String value;
+    private static EnumSet<ServerModeEnum> FULL_SET = EnumSet.allOf(ServerModeEnum.class);
+
+    private ServerModeEnum(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public static ServerModeEnum from(final String value) {
+        final Optional<ServerModeEnum> optional = FULL_SET.stream().filter(field -> field.getValue().equalsIgnoreCase(value)).findFirst();
+        return optional.isPresent() ? optional.get() : null;
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
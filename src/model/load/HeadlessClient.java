@@ -0,0 +1,193 @@
+package model.load;
+
+import model.Message;
+import model.codec.FrameReader;
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
+import model.enums.MessageTypeEnum;
+import model.log.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+
+import static model.enums.MessageTypeEnum.GET_USERS;
+import static model.enums.MessageTypeEnum.HISTORY;
+import static model.enums.MessageTypeEnum.INVITE;
+import static model.enums.MessageTypeEnum.INVITE_ACCEPT;
+import static model.enums.MessageTypeEnum.INVITE_DECLINE;
+import static model.enums.MessageTypeEnum.LOGIN;
+import static model.enums.MessageTypeEnum.LOGIN_ACK;
+import static model.enums.MessageTypeEnum.LOGOUT;
+import static model.enums.MessageTypeEnum.MESSAGE;
+import static model.enums.MessageTypeEnum.NOT_TYPING;
+import static model.enums.MessageTypeEnum.PING;
+import static model.enums.MessageTypeEnum.PONG;
+import static model.enums.MessageTypeEnum.ROOM_CREATE;
+import static model.enums.MessageTypeEnum.ROOM_JOIN;
+import static model.enums.MessageTypeEnum.ROOM_LEAVE;
+import static model.enums.MessageTypeEnum.ROOM_MESSAGE;
+import static model.enums.MessageTypeEnum.SESSION_EXIT;
+import static model.enums.MessageTypeEnum.SUBSCRIBE_USERS;
+import static model.enums.MessageTypeEnum.TYPING;
+import static model.log.LogEvent.NO_CONNECTION;
+
+/**
+ * A client connection with no user interface.  Speaks the same protocol as the Swing Client (including the codec
+ * offer at LOGIN) and hands every received message to a listener on its reader thread.  Sends may come from any
+ * thread.
+ */
+public class HeadlessClient {
+    private static final Log LOG = Log.get(HeadlessClient.class);
+
+    // Receives everything the server sends, always on the reader thread.
+    public interface Listener {
+        void onMessage(HeadlessClient client, Message message);
+
+        // The connection was lost, error is null if close was called.
+        void onClose(HeadlessClient client, IOException error);
+    }
+
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private FrameReader reader;
+    private volatile MessageCodec codec;
+    private volatile String userName;
+    private Listener listener;
+    private volatile boolean run;
+
+    public HeadlessClient(final Socket socket, final Listener listener, final ThreadFactory readers) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.reader = new FrameReader(in);
+        this.codec = MessageCodecs.TEXT;
+        this.listener = listener;
+        this.run = true;
+        readers.newThread(this::receive).start();
+    }
+
+    public String getUserName() {
+        return userName;
+    }
+
+    private void receive() {
+        IOException error = null;
+        try {
+            while (run) {
+                final Message message = reader.read(codec);
+                if (null != message && LOGIN_ACK == message.getType()) {
+                    final MessageCodec previous = codec;
+                    codec = MessageCodecs.negotiate(message.getText());
+                    previous.end();
+                } else if (null != message && PING == message.getType()) {
+                    // Answered here so a busy listener can't get the connection reaped.  The source user is mandatory
+                    // on the wire but unused, and there isn't one before logging in.
+                    send(new Message().withType(PONG).withSourceUser(null == userName ? "-" : userName));
+                }
+                listener.onMessage(this, message);
+            }
+        } catch (IOException e) {
+            if (run) {
+                error = e;
+                LOG.error("Error in HeadlessClient.receive", NO_CONNECTION, userName, e);
+            }
+        }
+        close();
+        listener.onClose(this, error);
+    }
+
+    public synchronized void send(final Message message) throws IOException {
+        codec.write(message, out);
+        out.flush();
+    }
+
+    // Offers the binary codec unless text is asked for.
+    public void login(final String userName, final boolean binary) throws IOException {
+        this.userName = userName;
+        send(new Message().withType(LOGIN).withSourceUser(userName).withText(binary ? MessageCodecs.offer() : null));
+    }
+
+    public void getUsers() throws IOException {
+        send(GET_USERS, null, null);
+    }
+
+    // Subscribes to user joined / left deltas after the given directory version, or from a snapshot if null.
+    public void subscribeUsers(final String knownVersion) throws IOException {
+        send(SUBSCRIBE_USERS, null, knownVersion);
+    }
+
+    public void invite(final String targetUserName) throws IOException {
+        send(INVITE, targetUserName, null);
+    }
+
+    public void acceptInvite(final String targetUserName) throws IOException {
+        send(INVITE_ACCEPT, targetUserName, null);
+    }
+
+    public void declineInvite(final String targetUserName) throws IOException {
+        send(INVITE_DECLINE, targetUserName, null);
+    }
+
+    public void typing(final String targetUserName) throws IOException {
+        send(TYPING, targetUserName, null);
+    }
+
+    public void notTyping(final String targetUserName) throws IOException {
+        send(NOT_TYPING, targetUserName, null);
+    }
+
+    public void message(final String targetUserName, final String text) throws IOException {
+        send(MESSAGE, targetUserName, text);
+    }
+
+    public void sessionExit(final String targetUserName) throws IOException {
+        send(SESSION_EXIT, targetUserName, null);
+    }
+
+    // Asks for up to size messages of the session with the user, ending just before the cursor, or the newest ones
+    // when the cursor is negative.  The HISTORY_END that follows them has the cursor for the page before.
+    public void history(final String targetUserName, final long cursor, final int size) throws IOException {
+        send(HISTORY, targetUserName, (cursor < 0 ? "" : Long.toString(cursor)) + "," + size);
+    }
+
+    public void createRoom(final String roomName) throws IOException {
+        send(ROOM_CREATE, roomName, null);
+    }
+
+    public void joinRoom(final String roomName) throws IOException {
+        send(ROOM_JOIN, roomName, null);
+    }
+
+    public void leaveRoom(final String roomName) throws IOException {
+        send(ROOM_LEAVE, roomName, null);
+    }
+
+    public void roomMessage(final String roomName, final String text) throws IOException {
+        send(ROOM_MESSAGE, roomName, text);
+    }
+
+    public void logout() throws IOException {
+        send(LOGOUT, null, null);
+    }
+
+    private void send(final MessageTypeEnum type, final String targetUserName, final String text) throws IOException {
+        send(new Message().withType(type).withSourceUser(userName).withTargetUser(targetUserName).withText(text));
+    }
+
+    public void close() {
+        run = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOG.error("Error in HeadlessClient.close", NO_CONNECTION, userName, e);
+        }
+        codec.end();
+    }
+}
@@ -0,0 +1,201 @@
+package model.load;
+
+import model.metrics.Histogram;
+
+import javax.net.SocketFactory;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a number of VirtualUsers against a server for a fixed time and reports throughput, chat message delivery
+ * latency and errors.  Users are started evenly over the ramp up time, then all log out together at the end.
+ *
+ * The generator and the server should run in separate processes (see LoadStart) so they don't compete for the same
+ * heap and threads.
+ */
+public class LoadGenerator {
+    private String host;
+    private int port;
+    private int users;
+    private long durationMillis;
+    private long rampUpMillis;
+    private long thinkMillis;
+    private int messagesPerSession;
+    private int messageSize;
+    private boolean binary;
+    private long reportMillis;
+    // Plain sockets, or eg. an SSLSocketFactory to load a TLS server.
+    private SocketFactory socketFactory;
+
+    public LoadGenerator() {
+        this.host = "localhost";
+        this.port = 1234;
+        this.users = 100;
+        this.durationMillis = 60 * 1000L;
+        this.rampUpMillis = 5 * 1000L;
+        this.thinkMillis = 1000L;
+        this.messagesPerSession = 20;
+        this.messageSize = 64;
+        this.binary = true;
+        this.reportMillis = 5 * 1000L;
+        this.socketFactory = SocketFactory.getDefault();
+    }
+
+    public String getHost() {
+        return host;
+    }
+    public int getPort() {
+        return port;
+    }
+    public int getUsers() {
+        return users;
+    }
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+    public long getRampUpMillis() {
+        return rampUpMillis;
+    }
+    public long getThinkMillis() {
+        return thinkMillis;
+    }
+    public int getMessagesPerSession() {
+        return messagesPerSession;
+    }
+    public int getMessageSize() {
+        return messageSize;
+    }
+    public boolean isBinary() {
+        return binary;
+    }
+    public long getReportMillis() {
+        return reportMillis;
+    }
+
+    public SocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    public LoadGenerator withHost(final String host) {
+        this.host = host;
+        return this;
+    }
+    public LoadGenerator withPort(final int port) {
+        this.port = port;
+        return this;
+    }
+    public LoadGenerator withUsers(final int users) {
+        this.users = users;
+        return this;
+    }
+    public LoadGenerator withDurationMillis(final long durationMillis) {
+        this.durationMillis = durationMillis;
+        return this;
+    }
+    public LoadGenerator withRampUpMillis(final long rampUpMillis) {
+        this.rampUpMillis = rampUpMillis;
+        return this;
+    }
+    // The average pause between a user's actions, 0 to go as fast as possible.
+    public LoadGenerator withThinkMillis(final long thinkMillis) {
+        this.thinkMillis = thinkMillis;
+        return this;
+    }
+    // How many messages the inviting user sends before ending the session and inviting again.
+    public LoadGenerator withMessagesPerSession(final int messagesPerSession) {
+        this.messagesPerSession = messagesPerSession;
+        return this;
+    }
+    public LoadGenerator withMessageSize(final int messageSize) {
+        this.messageSize = messageSize;
+        return this;
+    }
+    // Whether users offer the binary codec at LOGIN like the Swing client does.
+    public LoadGenerator withBinary(final boolean binary) {
+        this.binary = binary;
+        return this;
+    }
+    // How often progress is printed, 0 for only the final report.
+    public LoadGenerator withReportMillis(final long reportMillis) {
+        this.reportMillis = reportMillis;
+        return this;
+    }
+    public LoadGenerator withSocketFactory(final SocketFactory socketFactory) {
+        this.socketFactory = socketFactory;
+        return this;
+    }
+
+    public LoadStats run(final PrintStream out) throws InterruptedException {
+        final LoadStats stats = new LoadStats();
+        final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), daemons("load-scheduler-"));
+        final ThreadFactory readers = daemons("load-reader-");
+
+        // Unique names so runs can be repeated against the same server.
+        final String prefix = "load" + Long.toString(System.currentTimeMillis() % 1000000, 36) + "-";
+        final List<VirtualUser> virtualUsers = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            final int partner = i ^ 1;
+            final VirtualUser user = new VirtualUser(this, stats, scheduler, prefix + i,
+                    partner < users ? prefix + partner : null, 0 == i % 2 && partner < users);
+            virtualUsers.add(user);
+            scheduler.schedule(() -> user.start(readers), rampUpMillis * i / Math.max(1, users), TimeUnit.MILLISECONDS);
+        }
+
+        final long start = System.nanoTime();
+        if (reportMillis > 0) {
+            scheduler.scheduleAtFixedRate(() -> out.println(progress(stats, start)), reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+        }
+        Thread.sleep(durationMillis);
+        virtualUsers.forEach(VirtualUser::stop);
+        final long elapsed = System.nanoTime() - start;
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        out.println(report(stats, elapsed));
+        return stats;
+    }
+
+    private String progress(final LoadStats stats, final long start) {
+        final long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+        return String.format("t=%ds sent=%d received=%d chat delivered=%d p99=%.1fms errors=%d", seconds,
+                stats.getSent(), stats.getReceived(), stats.getChatReceived(),
+                stats.getLatency().getPercentile(99) / 1000.0, stats.getErrorCount());
+    }
+
+    public String report(final LoadStats stats, final long elapsedNanos) {
+        final double seconds = Math.max(1, elapsedNanos) / 1e9;
+        final Histogram latency = stats.getLatency();
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format("users=%d duration=%.1fs think=%dms messages/session=%d codec=%s%n",
+                users, seconds, thinkMillis, messagesPerSession, binary ? "binary" : "text"));
+        builder.append(String.format("sent: %d messages (%.1f/s), %d chat messages (%.1f/s)%n",
+                stats.getSent(), stats.getSent() / seconds, stats.getChatSent(), stats.getChatSent() / seconds));
+        builder.append(String.format("received: %d messages (%.1f/s), %d chat messages (%.1f/s)%n",
+                stats.getReceived(), stats.getReceived() / seconds, stats.getChatReceived(), stats.getChatReceived() / seconds));
+        builder.append(String.format("sessions started: %d%n", stats.getSessions()));
+        builder.append(String.format("delivery latency ms: p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+                latency.getPercentile(50) / 1000.0, latency.getPercentile(90) / 1000.0, latency.getPercentile(99) / 1000.0,
+                latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0));
+        builder.append(String.format("errors: %d", stats.getErrorCount()));
+        for (Map.Entry<String, Long> error : stats.getErrors().entrySet()) {
+            builder.append(String.format("%n  %s: %d", error.getKey(), error.getValue()));
+        }
+        return builder.toString();
+    }
+
+    private static ThreadFactory daemons(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
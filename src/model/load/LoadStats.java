@@ -0,0 +1,88 @@
+package model.load;
+
+import model.enums.MessageTypeEnum;
+import model.metrics.Histogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared by every virtual user in a load run.
+ */
+public class LoadStats {
+    private LongAdder sent;
+    private LongAdder received;
+    private LongAdder chatSent;
+    private LongAdder chatReceived;
+    private LongAdder sessions;
+    private Histogram latency;
+    private Map<String, LongAdder> errors;
+
+    public LoadStats() {
+        this.sent = new LongAdder();
+        this.received = new LongAdder();
+        this.chatSent = new LongAdder();
+        this.chatReceived = new LongAdder();
+        this.sessions = new LongAdder();
+        this.latency = new Histogram();
+        this.errors = new ConcurrentHashMap<>();
+    }
+
+    public void sent(final MessageTypeEnum type) {
+        sent.increment();
+        if (MessageTypeEnum.MESSAGE == type) {
+            chatSent.increment();
+        }
+    }
+
+    public void received(final MessageTypeEnum type) {
+        received.increment();
+        if (MessageTypeEnum.MESSAGE == type) {
+            chatReceived.increment();
+        }
+    }
+
+    // Records the time from a chat message being sent to it arriving at the other user.
+    public void delivered(final long micros) {
+        latency.record(micros);
+    }
+
+    public void sessionStarted() {
+        sessions.increment();
+    }
+
+    public void error(final String kind) {
+        errors.computeIfAbsent(kind, key -> new LongAdder()).increment();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+    public long getReceived() {
+        return received.sum();
+    }
+    public long getChatSent() {
+        return chatSent.sum();
+    }
+    public long getChatReceived() {
+        return chatReceived.sum();
+    }
+    public long getSessions() {
+        return sessions.sum();
+    }
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public Map<String, Long> getErrors() {
+        final Map<String, Long> copy = new TreeMap<>();
+        errors.forEach((kind, count) -> copy.put(kind, count.sum()));
+        return copy;
+    }
+
+    public long getErrorCount() {
+        return errors.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+}
@@ -0,0 +1,239 @@
+package model.load;
+
+import model.Message;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static model.enums.MessageTypeEnum.INVITE;
+import static model.enums.MessageTypeEnum.INVITE_ACCEPT;
+import static model.enums.MessageTypeEnum.LOGIN;
+import static model.enums.MessageTypeEnum.MESSAGE;
+import static model.enums.MessageTypeEnum.NOT_TYPING;
+import static model.enums.MessageTypeEnum.SESSION_EXIT;
+import static model.enums.MessageTypeEnum.TYPING;
+
+/**
+ * One simulated user in a load run.  Users are paired up: the first of a pair keeps inviting the second, both chat
+ * once the invite is accepted, and the first ends the session after a set number of messages and invites again.
+ * Chatting mirrors the Swing client: TYPING when text is entered, then MESSAGE and NOT_TYPING when it is sent.
+ *
+ * Every action is a task on the shared scheduler, so thousands of users only need a reader thread each.  A session
+ * generation number stops tasks left over from an earlier session from carrying on into the next.
+ */
+public class VirtualUser implements HeadlessClient.Listener {
+    // Chat message text is "<send time in nanos>;<padding>" so the receiver can work out the delivery time.
+    private static final char TIME_SEPARATOR = ';';
+    // The source user of messages that come from the server itself.
+    private static final String SERVER = "server";
+
+    private LoadGenerator generator;
+    private LoadStats stats;
+    private ScheduledExecutorService scheduler;
+    private String userName;
+    private String partnerName;
+    private boolean inviter;
+    private String padding;
+
+    private HeadlessClient client;
+    private boolean chatting;
+    private int generation;
+    private int sentInSession;
+    private volatile boolean stopped;
+
+    public VirtualUser(final LoadGenerator generator,
+                       final LoadStats stats,
+                       final ScheduledExecutorService scheduler,
+                       final String userName,
+                       final String partnerName,
+                       final boolean inviter) {
+        this.generator = generator;
+        this.stats = stats;
+        this.scheduler = scheduler;
+        this.userName = userName;
+        this.partnerName = partnerName;
+        this.inviter = inviter;
+        final StringBuilder builder = new StringBuilder();
+        while (builder.length() < generator.getMessageSize()) {
+            builder.append('x');
+        }
+        this.padding = builder.toString();
+    }
+
+    public synchronized void start(final ThreadFactory readers) {
+        try {
+            client = new HeadlessClient(generator.getSocketFactory().createSocket(generator.getHost(), generator.getPort()), this, readers);
+            client.login(userName, generator.isBinary());
+            stats.sent(LOGIN);
+        } catch (IOException e) {
+            stats.error("connect failed");
+        }
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        chatting = false;
+        if (null != client) {
+            try {
+                client.logout();
+            } catch (IOException e) {
+                // Already gone, nothing to log out of.
+            }
+            client.close();
+        }
+    }
+
+    @Override
+    public void onMessage(final HeadlessClient client, final Message message) {
+        if (null == message) {
+            stats.error("bad frame");
+            return;
+        }
+        stats.received(message.getType());
+        switch (message.getType()) {
+            case LOGIN_ACK:
+                if (inviter) {
+                    later(this::invite);
+                }
+                break;
+            case INVITE:
+                try {
+                    client.acceptInvite(message.getSourceUser());
+                    stats.sent(INVITE_ACCEPT);
+                    startChat();
+                } catch (IOException e) {
+                    failed();
+                }
+                break;
+            case INVITE_ACCEPT:
+                stats.sessionStarted();
+                startChat();
+                break;
+            case INVITE_DECLINE:
+                // Usually the partner hasn't logged in yet, try again later.
+                later(this::invite);
+                break;
+            case SESSION_EXIT:
+                if (SERVER.equals(message.getSourceUser())) {
+                    stats.error(message.getType().getValue());
+                }
+                endChat();
+                break;
+            case MESSAGE:
+                delivered(message.getText());
+                break;
+            case LOGIN_DENIED:
+            case ACCESS_DENIED:
+            case BAD_REQUEST:
+            case THROTTLED:
+                stats.error(message.getType().getValue());
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onClose(final HeadlessClient client, final IOException error) {
+        if (!stopped) {
+            stats.error("disconnected");
+        }
+    }
+
+    private void delivered(final String text) {
+        final int end = null == text ? -1 : text.indexOf(TIME_SEPARATOR);
+        if (end > 0) {
+            try {
+                stats.delivered((System.nanoTime() - Long.parseLong(text.substring(0, end))) / 1000);
+            } catch (NumberFormatException e) {
+                stats.error("bad message text");
+            }
+        }
+    }
+
+    private synchronized void invite() {
+        if (stopped || chatting) {
+            return;
+        }
+        try {
+            client.invite(partnerName);
+            stats.sent(INVITE);
+        } catch (IOException e) {
+            failed();
+        }
+    }
+
+    private synchronized void startChat() {
+        chatting = true;
+        sentInSession = 0;
+        final int session = ++generation;
+        later(() -> type(session));
+    }
+
+    private synchronized void endChat() {
+        chatting = false;
+        generation++;
+    }
+
+    // Starts typing the next message.
+    private synchronized void type(final int session) {
+        if (stopped || !chatting || session != generation) {
+            return;
+        }
+        try {
+            client.typing(partnerName);
+            stats.sent(TYPING);
+        } catch (IOException e) {
+            failed();
+            return;
+        }
+        later(() -> sendMessage(session));
+    }
+
+    private synchronized void sendMessage(final int session) {
+        if (stopped || !chatting || session != generation) {
+            return;
+        }
+        try {
+            client.message(partnerName, System.nanoTime() + String.valueOf(TIME_SEPARATOR) + padding);
+            stats.sent(MESSAGE);
+            client.notTyping(partnerName);
+            stats.sent(NOT_TYPING);
+            if (inviter && ++sentInSession >= generator.getMessagesPerSession()) {
+                client.sessionExit(partnerName);
+                stats.sent(SESSION_EXIT);
+                endChat();
+                later(this::invite);
+                return;
+            }
+        } catch (IOException e) {
+            failed();
+            return;
+        }
+        later(() -> type(session));
+    }
+
+    // Runs the action after a random think time of 50% to 150% of the configured one.
+    private void later(final Runnable action) {
+        if (stopped) {
+            return;
+        }
+        final long think = generator.getThinkMillis();
+        final long delay = think <= 0 ? 0 : ThreadLocalRandom.current().nextLong(think / 2, think + think / 2 + 1);
+        try {
+            scheduler.schedule(action, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The run is over.
+        }
+    }
+
+    private void failed() {
+        stats.error("send failed");
+        stopped = true;
+        client.close();
+    }
+}
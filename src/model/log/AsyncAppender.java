@@ -0,0 +1,153 @@
+package model.log;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes log events from any number of threads and writes them from a single background thread, so logging threads
+ * never format text, take a stream lock or wait on the disk.
+ *
+ * Events go through a fixed size ring buffer.  A producer claims a slot by bumping the tail with a CAS and then
+ * publishes the event into it; the writer thread consumes slots in order from the head.  If the ring is full the event
+ * is dropped and counted rather than blocking the caller, and the writer reports the count once it catches up.
+ */
+public class AsyncAppender {
+
+    private AtomicReferenceArray<LogEvent> slots;
+    private int mask;
+    private AtomicLong tail;
+    private volatile long head;
+    private AtomicLong dropped;
+    private volatile boolean sleeping;
+    private volatile boolean run;
+
+    private RollingFileWriter file;
+    private PrintStream console;
+    private Thread thread;
+
+    // The capacity is rounded up to a power of two.  Either output may be null.
+    public AsyncAppender(final int capacity, final RollingFileWriter file, final PrintStream console) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.tail = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.file = file;
+        this.console = console;
+        this.run = true;
+        this.thread = new Thread(this::drain, "log-appender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Never blocks, returns false if the event was dropped because the ring is full or the appender is closed.
+    public boolean append(final LogEvent event) {
+        if (!run) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        long claimed;
+        do {
+            claimed = tail.get();
+            if (claimed - head >= slots.length()) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+        slots.lazySet((int) claimed & mask, event);
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    // The number of events dropped because the ring was full.
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        final StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        while (run || head != tail.get()) {
+            final int slot = (int) head & mask;
+            final LogEvent event = slots.get(slot);
+            if (null == event) {
+                // Either empty or a producer has claimed the slot but not published yet.
+                flush();
+                sleeping = true;
+                if (head == tail.get() && run) {
+                    LockSupport.parkNanos(this, 50_000_000L);
+                }
+                sleeping = false;
+                continue;
+            }
+            slots.lazySet(slot, null);
+            head++;
+
+            final long drops = dropped.get();
+            if (drops != reportedDrops) {
+                write("Log ring buffer full, dropped " + (drops - reportedDrops) + " events.");
+                reportedDrops = drops;
+            }
+            line.setLength(0);
+            event.format(line);
+            write(line);
+            if (null != event.getError() && null == event.getError().getMessage()) {
+                // No message to go on, so the stack trace is the only useful part.
+                for (StackTraceElement element : event.getError().getStackTrace()) {
+                    write("    at " + element);
+                }
+            }
+        }
+        flush();
+    }
+
+    private void write(final CharSequence line) {
+        if (null != console) {
+            console.println(line);
+        }
+        if (null != file) {
+            try {
+                file.write(line);
+            } catch (IOException e) {
+                if (null != console) {
+                    console.println("Error in AsyncAppender.write: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void flush() {
+        if (null != file) {
+            try {
+                file.flush();
+            } catch (IOException e) {
+                if (null != console) {
+                    console.println("Error in AsyncAppender.flush: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Writes out everything already appended, then stops the writer thread.
+    public void close() {
+        run = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (null != file) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing left to report it to.
+            }
+        }
+    }
+}
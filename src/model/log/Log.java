@@ -0,0 +1,204 @@
+package model.log;
+
+import model.enums.LogLevelEnum;
+import model.enums.MessageTypeEnum;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import static model.log.LogEvent.NO_CONNECTION;
+
+/**
+ * A named logger.  Every call first checks the level against a single volatile field, so a disabled call costs a
+ * compare and allocates nothing; callers pass raw fields (connection id, user, message) rather than building strings.
+ * Enabled calls are captured as a LogEvent and handed to the shared AsyncAppender, which formats and writes them on its
+ * own thread.
+ *
+ * Settings come from system properties:
+ *   messenger.log.level    - TRACE, DEBUG, INFO (default), WARN, ERROR or OFF
+ *   messenger.log.file     - log file, default logs/messenger.log, empty to disable the file
+ *   messenger.log.maxBytes - size at which the file rolls over, default 10MB
+ *   messenger.log.files    - how many rolled files to keep, default 5
+ *   messenger.log.buffer   - ring buffer size in events, default 8192
+ *   messenger.log.console  - also print to standard out, default false
+ */
+public final class Log {
+    private static final String PREFIX = "messenger.log.";
+    private static final String DEFAULT_FILE = "logs/messenger.log";
+
+    private static volatile LogLevelEnum level = level(System.getProperty(PREFIX + "level"));
+    private static String file = System.getProperty(PREFIX + "file", DEFAULT_FILE);
+    private static volatile AsyncAppender appender;
+    // Set once the JVM is shutting down.  The appender is closed then and kept, so events after it are dropped rather
+    // than starting a new one.
+    private static boolean shutDown;
+
+    static {
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::shutdown, "log-shutdown"));
+        } catch (IllegalStateException e) {
+            // Loaded while the JVM is already shutting down, nothing will be written anyway.
+        }
+    }
+
+    private final String name;
+
+    private Log(final String name) {
+        this.name = name;
+    }
+
+    public static Log get(final Class<?> type) {
+        return new Log(type.getSimpleName());
+    }
+
+    public static LogLevelEnum getLevel() {
+        return level;
+    }
+    public static void setLevel(final LogLevelEnum level) {
+        Log.level = level;
+    }
+
+    // Changes the log file, only has an effect before the first event is logged.
+    public static synchronized void setFile(final String file) {
+        Log.file = file;
+    }
+
+    public boolean isEnabled(final LogLevelEnum check) {
+        return check.ordinal() >= level.ordinal();
+    }
+
+    public boolean isTraceEnabled() {
+        return isEnabled(LogLevelEnum.TRACE);
+    }
+
+    public void trace(final String text, final int connectionId, final String userName, final MessageTypeEnum type, final Object detail) {
+        if (isEnabled(LogLevelEnum.TRACE)) {
+            log(LogLevelEnum.TRACE, text, connectionId, userName, type, detail, null);
+        }
+    }
+
+    public void debug(final String text) {
+        if (isEnabled(LogLevelEnum.DEBUG)) {
+            log(LogLevelEnum.DEBUG, text, NO_CONNECTION, null, null, null, null);
+        }
+    }
+    public void debug(final String text, final Object detail) {
+        if (isEnabled(LogLevelEnum.DEBUG)) {
+            log(LogLevelEnum.DEBUG, text, NO_CONNECTION, null, null, detail, null);
+        }
+    }
+
+    public void info(final String text) {
+        if (isEnabled(LogLevelEnum.INFO)) {
+            log(LogLevelEnum.INFO, text, NO_CONNECTION, null, null, null, null);
+        }
+    }
+    public void info(final String text, final Object detail) {
+        if (isEnabled(LogLevelEnum.INFO)) {
+            log(LogLevelEnum.INFO, text, NO_CONNECTION, null, null, detail, null);
+        }
+    }
+    public void info(final String text, final int connectionId, final String userName) {
+        if (isEnabled(LogLevelEnum.INFO)) {
+            log(LogLevelEnum.INFO, text, connectionId, userName, null, null, null);
+        }
+    }
+
+    public void warn(final String text, final Object detail) {
+        if (isEnabled(LogLevelEnum.WARN)) {
+            log(LogLevelEnum.WARN, text, NO_CONNECTION, null, null, detail, null);
+        }
+    }
+    public void warn(final String text, final int connectionId, final String userName, final MessageTypeEnum type) {
+        if (isEnabled(LogLevelEnum.WARN)) {
+            log(LogLevelEnum.WARN, text, connectionId, userName, type, null, null);
+        }
+    }
+
+    public void error(final String text, final Throwable error) {
+        if (isEnabled(LogLevelEnum.ERROR)) {
+            log(LogLevelEnum.ERROR, text, NO_CONNECTION, null, null, null, error);
+        }
+    }
+    public void error(final String text, final Object detail, final Throwable error) {
+        if (isEnabled(LogLevelEnum.ERROR)) {
+            log(LogLevelEnum.ERROR, text, NO_CONNECTION, null, null, detail, error);
+        }
+    }
+    public void error(final String text, final int connectionId, final String userName, final Throwable error) {
+        if (isEnabled(LogLevelEnum.ERROR)) {
+            log(LogLevelEnum.ERROR, text, connectionId, userName, null, null, error);
+        }
+    }
+
+    public void error(final String text, final int connectionId, final String userName, final MessageTypeEnum type, final Throwable error) {
+        if (isEnabled(LogLevelEnum.ERROR)) {
+            log(LogLevelEnum.ERROR, text, connectionId, userName, type, null, error);
+        }
+    }
+
+    public void log(final LogLevelEnum at,
+                    final String text,
+                    final int connectionId,
+                    final String userName,
+                    final MessageTypeEnum type,
+                    final Object detail,
+                    final Throwable error) {
+        if (!isEnabled(at) || LogLevelEnum.OFF == at) {
+            return;
+        }
+        appender().append(new LogEvent(System.currentTimeMillis(), at, name, text, connectionId, userName, type, detail, error));
+    }
+
+    // Writes out everything logged so far and stops the appender, later events are dropped.  Runs from the shutdown
+    // hook, and is safe to call again.
+    public static synchronized void shutdown() {
+        if (shutDown) {
+            return;
+        }
+        shutDown = true;
+        if (null != appender) {
+            appender.close();
+        }
+    }
+
+    private static AsyncAppender appender() {
+        AsyncAppender current = appender;
+        if (null == current) {
+            synchronized (Log.class) {
+                current = appender;
+                if (null == current) {
+                    if (shutDown) {
+                        // Nothing logged before the shutdown, and nothing will be after it.
+                        current = new AsyncAppender(2, null, null);
+                        current.close();
+                    } else {
+                        current = createAppender();
+                    }
+                    appender = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static AsyncAppender createAppender() {
+        RollingFileWriter writer = null;
+        if (null != file && !file.isEmpty()) {
+            try {
+                writer = new RollingFileWriter(Paths.get(file),
+                        Long.getLong(PREFIX + "maxBytes", 10L * 1024 * 1024),
+                        Integer.getInteger(PREFIX + "files", 5));
+            } catch (IOException e) {
+                System.out.println("Error in Log.createAppender: " + e.getMessage());
+            }
+        }
+        final boolean console = null == writer || Boolean.getBoolean(PREFIX + "console");
+        return new AsyncAppender(Integer.getInteger(PREFIX + "buffer", 8192), writer, console ? System.out : null);
+    }
+
+    private static LogLevelEnum level(final String value) {
+        final LogLevelEnum parsed = null == value ? null : LogLevelEnum.from(value);
+        return null == parsed ? LogLevelEnum.INFO : parsed;
+    }
+}
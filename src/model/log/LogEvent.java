@@ -0,0 +1,77 @@
+package model.log;
+
+import model.enums.LogLevelEnum;
+import model.enums.MessageTypeEnum;
+
+import java.time.Instant;
+
+/**
+ * One log entry as handed to the appender.  The logging thread only captures the raw fields; turning them into text
+ * (including calling toString on the detail) happens on the appender thread.
+ */
+public class LogEvent {
+
+    // Marks a field that wasn't given.
+    public static final int NO_CONNECTION = -1;
+
+    private long timestamp;
+    private LogLevelEnum level;
+    private String logger;
+    private String text;
+    private int connectionId;
+    private String userName;
+    private MessageTypeEnum type;
+    private Object detail;
+    private Throwable error;
+
+    public LogEvent(final long timestamp,
+                    final LogLevelEnum level,
+                    final String logger,
+                    final String text,
+                    final int connectionId,
+                    final String userName,
+                    final MessageTypeEnum type,
+                    final Object detail,
+                    final Throwable error) {
+        this.timestamp = timestamp;
+        this.level = level;
+        this.logger = logger;
+        this.text = text;
+        this.connectionId = connectionId;
+        this.userName = userName;
+        this.type = type;
+        this.detail = detail;
+        this.error = error;
+    }
+
+    public LogLevelEnum getLevel() {
+        return level;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    // Formats as: time level logger [conn=.. user=.. type=..] text: detail (error)
+    public void format(final StringBuilder builder) {
+        builder.append(Instant.ofEpochMilli(timestamp)).append(' ')
+                .append(level).append(' ')
+                .append(logger);
+        if (NO_CONNECTION != connectionId) {
+            builder.append(" conn=").append(connectionId);
+        }
+        if (null != userName) {
+            builder.append(" user=").append(userName);
+        }
+        if (null != type) {
+            builder.append(" type=").append(type);
+        }
+        builder.append(" - ").append(text);
+        if (null != detail) {
+            builder.append(": ").append(detail);
+        }
+        if (null != error) {
+            builder.append(" (").append(error).append(')');
+        }
+    }
+}
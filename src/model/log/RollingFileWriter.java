@@ -0,0 +1,76 @@
+package model.log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends lines to a log file, rolling it over to file.1, file.2 ... once it passes a size limit and keeping at most
+ * the configured number of old files.  Only used from the appender thread.
+ */
+public class RollingFileWriter {
+
+    private Path file;
+    private long maxBytes;
+    private int maxFiles;
+    private BufferedWriter writer;
+    private long size;
+
+    public RollingFileWriter(final Path file, final long maxBytes, final int maxFiles) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        if (null != file.getParent()) {
+            Files.createDirectories(file.getParent());
+        }
+        open();
+    }
+
+    public void write(final CharSequence line) throws IOException {
+        writer.append(line).append('\n');
+        // Close enough for deciding when to roll, most log text is ASCII.
+        size += line.length() + 1;
+        if (size >= maxBytes) {
+            roll();
+        }
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private void open() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+        size = Files.size(file);
+    }
+
+    private void roll() throws IOException {
+        writer.close();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            final Path older = rolled(i);
+            if (Files.exists(older)) {
+                Files.move(older, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rolled(final int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+}
@@ -0,0 +1,83 @@
+package model.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values such as latencies.  Values under 64 are counted exactly, larger ones in
+ * buckets 1/32 of a power of two wide, so any percentile is within about 3% of the real value.  Values past 2^36 (about
+ * a minute in nanoseconds) are counted in the last bucket.
+ *
+ * Buckets are LongAdders so threads recording into the same bucket don't contend on one cache line.
+ */
+public class Histogram {
+    private static final int SUB_BUCKETS = 32;
+    private static final int BUCKETS = 32 * SUB_BUCKETS;
+
+    private LongAdder[] counts;
+    private LongAdder count;
+    private AtomicLong max;
+
+    public Histogram() {
+        this.counts = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+        this.count = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    public void record(final long value) {
+        final long recorded = Math.max(0, value);
+        counts[Math.min(BUCKETS - 1, index(recorded))].increment();
+        count.increment();
+        long current;
+        while (recorded > (current = max.get()) && !max.compareAndSet(current, recorded)) {
+            // Lost to another thread, check again.
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // The value that the given percentage (0 to 100) of recorded values are at or below, 0 if nothing was recorded.
+    public long getPercentile(final double percentile) {
+        final long total = getCount();
+        if (0 == total) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i].sum();
+            if (seen >= rank) {
+                return Math.min(highest(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    private static int index(final long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Keep the top six bits, the shift says which power of two we are in.
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    // The largest value that falls in the bucket.
+    private static long highest(final int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,44 @@
+package model.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import model.log.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves a MetricsRegistry as plain text at http://localhost:port/metrics.  Only listens on the loopback address.
+ */
+public class MetricsEndpoint {
+    private static final Log LOG = Log.get(MetricsEndpoint.class);
+
+    private HttpServer server;
+
+    public MetricsEndpoint(final MetricsRegistry registry, final int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> respond(exchange, registry));
+        server.start();
+        LOG.info("Serving metrics", "http://localhost:" + getPort() + "/metrics");
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private static void respond(final HttpExchange exchange, final MetricsRegistry registry) throws IOException {
+        final byte[] body = registry.toText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public void close() {
+        server.stop(0);
+    }
+}
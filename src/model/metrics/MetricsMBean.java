@@ -0,0 +1,72 @@
+package model.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanConstructorInfo;
+import java.util.Map;
+
+/**
+ * Exposes a MetricsRegistry over JMX, one read only long attribute per metric (see MetricsRegistry.attributes).
+ */
+public class MetricsMBean implements DynamicMBean {
+    private MetricsRegistry registry;
+
+    public MetricsMBean(final MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        final Long value = registry.attributes().get(attribute);
+        if (null == value) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final Map<String, Long> values = registry.attributes();
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    // Built on each call since histograms and per type counters may be added after registration.
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final Map<String, Long> values = registry.attributes();
+        final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String name : values.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Messenger server metrics", attributes,
+                new MBeanConstructorInfo[0], new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+    }
+}
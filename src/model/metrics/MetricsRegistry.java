@@ -0,0 +1,84 @@
+package model.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named gauges, counters and histograms.  Metrics are created once up front and held directly by the code that updates
+ * them, so the registry is only consulted when metrics are read.
+ *
+ * Names follow the Prometheus text format, eg. messenger_messages_received_total{type="LOGIN"}, and histograms are read
+ * out as a set of quantiles plus a count and max.
+ */
+public class MetricsRegistry {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private ConcurrentMap<String, LongSupplier> gauges;
+    private ConcurrentMap<String, LongAdder> counters;
+    private ConcurrentMap<String, Histogram> histograms;
+
+    public MetricsRegistry() {
+        this.gauges = new ConcurrentHashMap<>();
+        this.counters = new ConcurrentHashMap<>();
+        this.histograms = new ConcurrentHashMap<>();
+    }
+
+    // A value read when metrics are read, eg. the size of a map.
+    public void gauge(final String name, final LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public LongAdder counter(final String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public Histogram histogram(final String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    // Adds a label to a metric name, eg. label("requests_total", "type", "LOGIN") is requests_total{type="LOGIN"}.
+    public static String label(final String name, final String label, final String value) {
+        return name + "{" + label + "=\"" + value + "\"}";
+    }
+
+    // Every metric's current value by name, sorted so related metrics stay together.
+    public Map<String, Long> snapshot() {
+        final Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        histograms.forEach((name, histogram) -> {
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                values.put(name + "{quantile=\"" + QUANTILES[i] + "\"}", histogram.getPercentile(PERCENTILES[i]));
+            }
+            values.put(name + "_max", histogram.getMax());
+            values.put(name + "_count", histogram.getCount());
+        });
+        return values;
+    }
+
+    // The snapshot in the plain text scrape format, one "name value" line per metric.
+    public String toText() {
+        final StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    // The snapshot with names made safe for use as JMX attributes, eg. messenger_messages_received_total_LOGIN.
+    public Map<String, Long> attributes() {
+        final Map<String, Long> attributes = new LinkedHashMap<>();
+        snapshot().forEach((name, value) -> attributes.put(attributeName(name), value));
+        return attributes;
+    }
+
+    static String attributeName(final String name) {
+        return name.replaceAll("\\{[a-z]+=\"([^\"]*)\"}", "_$1").replaceAll("[^A-Za-z0-9_]", "_");
+    }
+}
@@ -0,0 +1,183 @@
+package model.metrics;
+
+import model.Server;
+import model.enums.MessageTypeEnum;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import static model.metrics.MetricsRegistry.label;
+
+/**
+ * The metrics a Server keeps.  Per type counters are held in arrays indexed by the type's ordinal and histograms are
+ * held directly, so the hot path never looks anything up by name.  Times are in nanoseconds.
+ */
+public class ServerMetrics {
+    private static final String PREFIX = "messenger_";
+
+    private MetricsRegistry registry;
+    private LongAdder[] received;
+    private LongAdder[] forwarded;
+    private LongAdder[] replied;
+    private LongAdder[] throttled;
+    private LongAdder throttledInvalid;
+    private LongAdder throttleDisconnects;
+    private LongAdder idlePings;
+    private LongAdder idleReaped;
+    private LongAdder invalid;
+    private LongAdder presenceSuppressed;
+    private LongAdder presenceSnapshots;
+    private LongAdder offlineQueued;
+    private LongAdder offlineDelivered;
+    private LongAdder offlineRejected;
+    private LongAdder offlineExpired;
+    private Histogram decodeNanos;
+    private Histogram routeNanos;
+    private Histogram sendNanos;
+
+    public ServerMetrics(final Server server) {
+        this.registry = new MetricsRegistry();
+        registry.gauge(PREFIX + "connections", server::getConnectionCount);
+        registry.gauge(PREFIX + "users", () -> server.getActiveUsers().size());
+        registry.gauge(PREFIX + "users_remote", server::getRemoteUserCount);
+        registry.gauge(PREFIX + "users_version", server::getUsersVersion);
+        registry.gauge(PREFIX + "presence_subscribers", () -> server.getPresenceFeed().size());
+        registry.gauge(PREFIX + "offline_pending", () -> server.getOfflineDelivery().getStore().size());
+        registry.gauge(PREFIX + "rooms", () -> server.getRooms().size());
+        registry.gauge(PREFIX + "sessions_resident", server::getResidentSessionCount);
+        registry.gauge(PREFIX + "sessions_resident_bytes", server::getResidentSessionBytes);
+        registry.gauge(PREFIX + "sessions_evicted_total", server::getSessionEvictions);
+        registry.gauge(PREFIX + "session_logs_open", server::getOpenSessionLogCount);
+        registry.gauge(PREFIX + "sessions_restored_total", server::getRestoredSessions);
+        registry.gauge(PREFIX + "startup_millis", server::getStartupMillis);
+        registry.gauge(PREFIX + "first_message_millis", server::getFirstMessageMillis);
+
+        final MessageTypeEnum[] types = MessageTypeEnum.values();
+        this.received = new LongAdder[types.length];
+        this.forwarded = new LongAdder[types.length];
+        this.replied = new LongAdder[types.length];
+        this.throttled = new LongAdder[types.length];
+        for (MessageTypeEnum type : types) {
+            received[type.ordinal()] = registry.counter(label(PREFIX + "messages_received_total", "type", type.getValue()));
+            forwarded[type.ordinal()] = registry.counter(label(PREFIX + "messages_forwarded_total", "type", type.getValue()));
+            replied[type.ordinal()] = registry.counter(label(PREFIX + "messages_replied_total", "type", type.getValue()));
+            throttled[type.ordinal()] = registry.counter(label(PREFIX + "messages_throttled_total", "type", type.getValue()));
+        }
+        this.invalid = registry.counter(PREFIX + "messages_invalid_total");
+        this.throttledInvalid = registry.counter(PREFIX + "messages_invalid_throttled_total");
+        this.throttleDisconnects = registry.counter(PREFIX + "throttle_disconnects_total");
+        this.idlePings = registry.counter(PREFIX + "idle_pings_total");
+        this.idleReaped = registry.counter(PREFIX + "idle_reaped_total");
+        this.presenceSuppressed = registry.counter(PREFIX + "presence_suppressed_total");
+        this.presenceSnapshots = registry.counter(PREFIX + "presence_snapshots_total");
+        this.offlineQueued = registry.counter(PREFIX + "offline_queued_total");
+        this.offlineDelivered = registry.counter(PREFIX + "offline_delivered_total");
+        this.offlineRejected = registry.counter(PREFIX + "offline_rejected_total");
+        this.offlineExpired = registry.counter(PREFIX + "offline_expired_total");
+        this.decodeNanos = registry.histogram(PREFIX + "decode_nanos");
+        this.routeNanos = registry.histogram(PREFIX + "route_nanos");
+        this.sendNanos = registry.histogram(PREFIX + "send_nanos");
+    }
+
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    // A message read from a connection, null if it couldn't be decoded.
+    public void received(final MessageTypeEnum type) {
+        if (null == type) {
+            invalid.increment();
+        } else {
+            received[type.ordinal()].increment();
+        }
+    }
+
+    // A message passed on to another user.
+    public void forwarded(final MessageTypeEnum type) {
+        forwarded[type.ordinal()].increment();
+    }
+
+    // The same message passed on to several users at once, eg. to a room.
+    public void forwarded(final MessageTypeEnum type, final int count) {
+        forwarded[type.ordinal()].add(count);
+    }
+
+    // A message the server sent back itself, eg. LOGIN_ACK or BAD_REQUEST.
+    public void replied(final MessageTypeEnum type) {
+        replied[type.ordinal()].increment();
+    }
+
+    // A frame refused for being over the sender's rate limit, null if it couldn't be decoded either.
+    public void throttled(final MessageTypeEnum type) {
+        if (null == type) {
+            throttledInvalid.increment();
+        } else {
+            throttled[type.ordinal()].increment();
+        }
+    }
+
+    public long getReceived(final MessageTypeEnum type) {
+        return received[type.ordinal()].sum();
+    }
+    public long getForwarded(final MessageTypeEnum type) {
+        return forwarded[type.ordinal()].sum();
+    }
+    public long getReplied(final MessageTypeEnum type) {
+        return replied[type.ordinal()].sum();
+    }
+    public long getThrottled(final MessageTypeEnum type) {
+        return throttled[type.ordinal()].sum();
+    }
+
+    // Connections dropped for sending over their rate limits for too long, see RateLimiter.
+    public LongAdder getThrottleDisconnects() {
+        return throttleDisconnects;
+    }
+
+    // PINGs sent to quiet connections, and connections closed for not answering, see IdleReaper.
+    public LongAdder getIdlePings() {
+        return idlePings;
+    }
+    public LongAdder getIdleReaped() {
+        return idleReaped;
+    }
+
+    // Presence signals coalesced away rather than forwarded, see PresenceCoalescer.
+    public LongAdder getPresenceSuppressed() {
+        return presenceSuppressed;
+    }
+
+    // Full user lists sent to presence subscribers that were new or too far behind for deltas, see PresenceFeed.
+    public LongAdder getPresenceSnapshots() {
+        return presenceSnapshots;
+    }
+
+    // Messages for offline users: queued, handed over at their next login, refused for a full queue, or dropped
+    // undelivered after their time to live.  See OfflineDelivery.
+    public LongAdder getOfflineQueued() {
+        return offlineQueued;
+    }
+    public LongAdder getOfflineDelivered() {
+        return offlineDelivered;
+    }
+    public LongAdder getOfflineRejected() {
+        return offlineRejected;
+    }
+    public LongAdder getOfflineExpired() {
+        return offlineExpired;
+    }
+
+    // Time to turn a frame into a Message.
+    public Histogram getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    // Time spent in MessageRouter.processMessage, including the sends it makes.
+    public Histogram getRouteNanos() {
+        return routeNanos;
+    }
+
+    // Time spent in each Connection.send.
+    public Histogram getSendNanos() {
+        return sendNanos;
+    }
+}
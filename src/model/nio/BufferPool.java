@@ -0,0 +1,37 @@
+package model.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Reuses the large buffers TLS connections need only while they have data in flight, so an idle connection holds none.
+ * One pool per event loop, and only used on that loop's thread, so no locking.
+ */
+class BufferPool {
+    private int bufferSize;
+    private int maxPooled;
+    private ArrayDeque<ByteBuffer> free;
+
+    BufferPool(final int bufferSize, final int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.free = new ArrayDeque<>();
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    // An empty buffer of at least the pool's size.
+    ByteBuffer acquire() {
+        final ByteBuffer buffer = free.poll();
+        return null == buffer ? ByteBuffer.allocate(bufferSize) : buffer;
+    }
+
+    void release(final ByteBuffer buffer) {
+        if (free.size() < maxPooled && buffer.capacity() == bufferSize) {
+            buffer.clear();
+            free.push(buffer);
+        }
+    }
+}
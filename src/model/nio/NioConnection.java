@@ -0,0 +1,302 @@
+package model.nio;
+
+import model.Connection;
+import model.IdleReaper;
+import model.Message;
+import model.OutboundQueue;
+import model.RateLimiter;
+import model.Server;
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
+import model.log.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static model.codec.ModifiedUtf8.HEADER_LENGTH;
+
+/**
+ * A connection to an active user that is serviced by a shared NioEventLoop rather than a dedicated thread.  Incoming
+ * bytes are buffered until a full length prefixed frame is available, then decoded with whichever codec wrote it, so
+ * clients using plain DataOutputStreams work unchanged.
+ *
+ * With TLS the frames go through a TlsTransport on their way to and from the channel, otherwise straight to it.
+ *
+ * Reads and writes only ever happen on the owning event loop.  Other threads may call send, which queues the message
+ * and asks the event loop to drain the queue.  The loop encodes a batch of messages and writes them in one go, and stops
+ * taking more from the queue while the socket is backed up so the overflow policy can kick in.
+ */
+public class NioConnection implements Connection, OutboundQueue.Writer {
+    private static final Log LOG = Log.get(NioConnection.class);
+    // Most frames are small so start small and grow to fit the occasional large message.
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // Stop encoding more messages once this many bytes are waiting on the socket.
+    private static final int PENDING_LIMIT = 64 * 1024;
+
+    private int threadId;
+    private volatile String userName;
+    private volatile MessageCodec codec;
+    private Server server;
+    private NioEventLoop loop;
+    private SocketChannel channel;
+    // Null for plaintext.
+    private TlsTransport tls;
+    private volatile SelectionKey key;
+    private ByteBuffer readBuffer;
+    // Messages waiting to be encoded and written.
+    private OutboundQueue outbound;
+    // What this connection may still send (event loop only).
+    private RateLimiter limiter;
+    // Where the server's idle reaper tracks this connection.
+    private IdleReaper.Entry idle;
+    // Encoded frames the socket hasn't taken yet (event loop only).
+    private Deque<ByteBuffer> pending;
+    private int pendingBytes;
+    private AtomicBoolean closed;
+
+    public NioConnection(final Server server,
+                         final NioEventLoop loop,
+                         final SocketChannel channel,
+                         final TlsTransport tls) {
+        this.threadId = server.nextConnectionId();
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.tls = tls;
+        this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.outbound = new OutboundQueue(server.getConfig().getOutboundCapacity(), server.getConfig().getOverflowPolicy(),
+                () -> loop.execute(this::drain));
+        this.pending = new ArrayDeque<>();
+        this.pendingBytes = 0;
+        this.closed = new AtomicBoolean(false);
+        this.limiter = new RateLimiter(server.getConfig(), System.nanoTime());
+        this.idle = server.getReaper().track(this);
+        this.codec = MessageCodecs.TEXT;
+        this.userName = null;
+    }
+
+    @Override
+    public int getThreadId() {
+        return threadId;
+    }
+
+    @Override
+    public String getUserName() {
+        return userName;
+    }
+    @Override
+    public void setUserName(final String userName) {
+        this.userName = userName;
+    }
+
+    @Override
+    public MessageCodec getCodec() {
+        return codec;
+    }
+    @Override
+    public void setCodec(final MessageCodec codec) {
+        final MessageCodec previous = this.codec;
+        this.codec = codec;
+        if (previous != codec) {
+            previous.end();
+        }
+    }
+
+    // Called on the event loop once the connection is handed over.
+    void register(final Selector selector) throws IOException {
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    // Reads whatever is available and processes every complete frame.
+    void onReadable() {
+        try {
+            if (null == tls) {
+                if (channel.read(readBuffer) < 0) {
+                    close();
+                    return;
+                }
+            } else {
+                final ByteBuffer plain = tls.read(channel, readBuffer);
+                if (null == plain) {
+                    close();
+                    return;
+                }
+                readBuffer = plain;
+            }
+            idle.touch();
+            readBuffer.flip();
+            while (readBuffer.remaining() >= HEADER_LENGTH) {
+                final int position = readBuffer.position();
+                final int length = readBuffer.getShort(position) & 0xFFFF;
+                if (readBuffer.remaining() < HEADER_LENGTH + length) {
+                    if (readBuffer.capacity() < HEADER_LENGTH + length) {
+                        // Grow so the rest of this frame fits, keeping what we have already read.
+                        final ByteBuffer larger = ByteBuffer.allocate(HEADER_LENGTH + length);
+                        larger.put(readBuffer);
+                        readBuffer = larger;
+                        return;
+                    }
+                    break;
+                }
+                final long start = System.nanoTime();
+                final Message message = MessageCodecs.decode(readBuffer.array(), position + HEADER_LENGTH, length, codec);
+                server.getMetrics().getDecodeNanos().record(System.nanoTime() - start);
+                readBuffer.position(position + HEADER_LENGTH + length);
+                LOG.trace("Server received", threadId, userName, null == message ? null : message.getType(), message);
+                if (server.getRouter().admit(this, limiter, message)) {
+                    server.getRouter().processMessage(this, message);
+                }
+                if (closed.get()) {
+                    return;
+                }
+            }
+            readBuffer.compact();
+            if (null != tls) {
+                // Sends anything held back until the handshake was done, and any handshake reply that didn't fit.
+                flush();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            LOG.error("Error in NioConnection.onReadable", threadId, userName, e);
+            close();
+        }
+    }
+
+    // Safe to call from any thread, the write itself happens on the event loop.
+    @Override
+    public void send(final Message message) {
+        if (closed.get()) {
+            return;
+        }
+        if (!outbound.offer(message)) {
+            LOG.warn("Error in NioConnection.send: outbound queue full", threadId, userName, message.getType());
+            close();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.getDepth();
+    }
+
+    @Override
+    public void afterSent(final Consumer<Boolean> callback) {
+        outbound.afterWritten(callback);
+    }
+
+    // Runs on the event loop when the queue has something new in it.
+    private void drain() {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            outbound.drain(this);
+        } catch (IOException | RuntimeException e) {
+            // Runs as a loop task, so this is the only place that knows which connection failed.
+            LOG.error("Error in NioConnection.drain", threadId, userName, e);
+            close();
+        }
+    }
+
+    // Runs on the event loop once a backed up socket can take more.
+    void onWritable() {
+        try {
+            flush();
+            if (isReady()) {
+                outbound.drain(this);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            LOG.error("Error in NioConnection.onWritable", threadId, userName, e);
+            close();
+        }
+    }
+
+    @Override
+    public boolean isReady() {
+        return pendingBytes < PENDING_LIMIT;
+    }
+
+    @Override
+    public boolean isFlushed() {
+        return pending.isEmpty() && (null == tls || tls.isFlushed());
+    }
+
+    @Override
+    public void write(final Message message) throws IOException {
+        LOG.trace("Server sent", threadId, userName, message.getType(), message);
+        final ByteBuffer frame = MessageCodecs.toFrame(codec, message);
+        pending.add(frame);
+        pendingBytes += frame.remaining();
+    }
+
+    // Writes as much as the socket will take, waiting for OP_WRITE if it fills up.
+    @Override
+    public void flush() throws IOException {
+        ByteBuffer frame;
+        while (null != (frame = pending.peek())) {
+            final int remaining = frame.remaining();
+            if (null == tls) {
+                channel.write(frame);
+            } else {
+                tls.write(channel, frame);
+            }
+            pendingBytes -= remaining - frame.remaining();
+            if (frame.hasRemaining()) {
+                // Only a full socket is worth waiting on.  A frame held back by the handshake goes out from onReadable
+                // once the peer answers, and waiting on OP_WRITE meanwhile would just spin.
+                if (null == tls || !tls.isFlushed()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            pending.poll();
+        }
+        if (null != tls && !tls.flush(channel)) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    // Safe to call from any thread.  A TLS connection is closed on the event loop, which owns its engine and buffers.
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (null == tls || Thread.currentThread() == loop) {
+            closeChannel();
+        } else {
+            loop.execute(this::closeChannel);
+        }
+        outbound.clear();
+        codec.end();
+        idle.cancel();
+        server.removeThread(this);
+        userName = null;
+    }
+
+    private void closeChannel() {
+        try {
+            if (null != key) {
+                key.cancel();
+            }
+            if (null != tls) {
+                tls.close(channel);
+            }
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("Error in NioConnection.close", threadId, userName, e);
+        }
+    }
+}
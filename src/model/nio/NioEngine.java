@@ -0,0 +1,66 @@
+package model.nio;
+
+import model.Server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of event loops that replaces the thread per connection model.  Accepted channels are spread across
+ * the loops round robin and each loop multiplexes all of its connections on one selector.  When the server has an
+ * SSLContext each connection gets its own SSLEngine, and each loop a pool of the record sized buffers they share.
+ */
+public class NioEngine {
+    // Buffers kept per loop, a loop only needs a few at a time as connections give them back once empty.
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private Server server;
+    private NioEventLoop[] loops;
+    private AtomicInteger next;
+    // Null for plaintext.
+    private SSLContext tls;
+    private BufferPool[] pools;
+
+    public NioEngine(final Server server, final int loopCount) throws IOException {
+        this.server = server;
+        this.loops = new NioEventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(i);
+        }
+        this.next = new AtomicInteger();
+        this.tls = server.getConfig().getSslContext();
+        if (null != tls) {
+            final SSLSession session = tls.createSSLEngine().getSession();
+            final int bufferSize = Math.max(session.getPacketBufferSize(), session.getApplicationBufferSize());
+            this.pools = new BufferPool[loops.length];
+            for (int i = 0; i < loops.length; i++) {
+                pools[i] = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
+            }
+        }
+    }
+
+    // Wraps the accepted channel in a connection and assigns it to the next loop.
+    public NioConnection register(final SocketChannel channel) {
+        final int index = Math.floorMod(next.getAndIncrement(), loops.length);
+        final NioEventLoop loop = loops[index];
+        TlsTransport transport = null;
+        if (null != tls) {
+            final SSLEngine engine = tls.createSSLEngine();
+            engine.setUseClientMode(false);
+            transport = new TlsTransport(engine, pools[index]);
+        }
+        final NioConnection connection = new NioConnection(server, loop, channel, transport);
+        loop.register(connection);
+        return connection;
+    }
+
+    public void close() {
+        for (NioEventLoop loop : loops) {
+            loop.close();
+        }
+    }
+}
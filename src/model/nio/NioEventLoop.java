@@ -0,0 +1,104 @@
+package model.nio;
+
+import model.log.Log;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread that services many NioConnections.  Work from other threads (new registrations, pending
+ * flushes) is handed over through a task queue and picked up the next time the selector wakes.
+ */
+public class NioEventLoop extends Thread {
+    private static final Log LOG = Log.get(NioEventLoop.class);
+
+    private Selector selector;
+    private Queue<Runnable> tasks;
+    private volatile boolean run;
+
+    public NioEventLoop(final int index) throws IOException {
+        super("nio-event-loop-" + index);
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.run = true;
+        setDaemon(true);
+        start();
+    }
+
+    // Hand a new connection to this loop.
+    public void register(final NioConnection connection) {
+        execute(() -> {
+            try {
+                connection.register(selector);
+            } catch (IOException e) {
+                LOG.error("Error in NioEventLoop.register", connection.getThreadId(), null, e);
+                connection.close();
+            }
+        });
+    }
+
+    // Runs the task on this loop's thread.
+    public void execute(final Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (run) {
+            try {
+                selector.select();
+                runTasks();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Closed by another thread while we were looking at it.
+                    } catch (RuntimeException e) {
+                        // A bug handling one connection's frames mustn't take down every other connection on the loop.
+                        LOG.error("Error in NioEventLoop.run", connection.getThreadId(), connection.getUserName(), e);
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                LOG.error("Error in NioEventLoop.run", e);
+            }
+        }
+        // Connections closed while the server shut down still need their channels closed.
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOG.error("Error in NioEventLoop.close", e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while (null != (task = tasks.poll())) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Error in NioEventLoop.runTasks", e);
+            }
+        }
+    }
+
+    public void close() {
+        run = false;
+        selector.wakeup();
+    }
+}
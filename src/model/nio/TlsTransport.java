@@ -0,0 +1,167 @@
+package model.nio;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The TLS layer of a NioConnection, an SSLEngine between the connection's plaintext frames and its channel.  The
+ * handshake is driven from whichever side is running (reading, writing or the socket becoming writable), with the
+ * engine's delegated tasks run inline on the event loop.
+ *
+ * The network buffers, sized for a whole TLS record, come from the event loop's BufferPool and go back as soon as they
+ * are empty, so a quiet connection holds no more than its SSLEngine.  Event loop only, like the rest of NioConnection.
+ *
+ * Closing sends the peer a close_notify, so it can tell a clean end from a cut connection, and gives the buffers back.
+ */
+class TlsTransport {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private SSLEngine engine;
+    private BufferPool pool;
+    // Ciphertext read but not unwrapped yet (part of a record), and wrapped but not written yet.  Both are kept in
+    // write mode and are null while empty.
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+
+    TlsTransport(final SSLEngine engine, final BufferPool pool) {
+        this.engine = engine;
+        this.pool = pool;
+    }
+
+    // Reads what the channel has and appends the plaintext to app, returns app (or a larger copy of it if it had to
+    // grow), or null if the peer has gone.
+    ByteBuffer read(final SocketChannel channel, ByteBuffer app) throws IOException {
+        if (null == netIn) {
+            netIn = pool.acquire();
+        }
+        if (channel.read(netIn) < 0) {
+            return null;
+        }
+        netIn.flip();
+        final ByteBuffer plain = pool.acquire();
+        try {
+            while (true) {
+                final SSLEngineResult result = engine.unwrap(netIn, plain);
+                if (plain.position() > 0) {
+                    plain.flip();
+                    app = append(app, plain);
+                    plain.clear();
+                }
+                if (SSLEngineResult.Status.CLOSED == result.getStatus()) {
+                    return null;
+                }
+                if (SSLEngineResult.Status.BUFFER_OVERFLOW == result.getStatus()) {
+                    throw new IOException("Error in TlsTransport.read: record larger than " + plain.capacity());
+                }
+                // Answer the handshake before unwrapping further, the peer may be waiting on it.
+                flush(channel);
+                if (SSLEngineResult.Status.BUFFER_UNDERFLOW == result.getStatus() || !netIn.hasRemaining()
+                        || (0 == result.bytesConsumed() && 0 == result.bytesProduced())) {
+                    break;
+                }
+            }
+        } finally {
+            pool.release(plain);
+        }
+        netIn.compact();
+        if (0 == netIn.position()) {
+            pool.release(netIn);
+            netIn = null;
+        }
+        return app;
+    }
+
+    // Encrypts as much of the frame as the channel will take, returns whether all of it went.  Nothing goes before the
+    // handshake is done, the frame waits for a later flush.
+    boolean write(final SocketChannel channel, final ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            if (!flush(channel) || isHandshaking()) {
+                return false;
+            }
+            if (null == netOut) {
+                netOut = pool.acquire();
+            }
+            if (SSLEngineResult.Status.CLOSED == engine.wrap(frame, netOut).getStatus()) {
+                throw new IOException("Error in TlsTransport.write: engine closed");
+            }
+        }
+        return flush(channel);
+    }
+
+    // Writes the ciphertext waiting and carries the handshake on as far as it can without hearing from the peer, returns
+    // whether nothing is left waiting to be written.
+    boolean flush(final SocketChannel channel) throws IOException {
+        while (true) {
+            if (null != netOut) {
+                netOut.flip();
+                channel.write(netOut);
+                netOut.compact();
+                if (netOut.position() > 0) {
+                    return false;
+                }
+                pool.release(netOut);
+                netOut = null;
+            }
+            final SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (SSLEngineResult.HandshakeStatus.NEED_TASK == status) {
+                Runnable task;
+                while (null != (task = engine.getDelegatedTask())) {
+                    task.run();
+                }
+            } else if (SSLEngineResult.HandshakeStatus.NEED_WRAP == status) {
+                netOut = pool.acquire();
+                if (SSLEngineResult.Status.CLOSED == engine.wrap(EMPTY, netOut).getStatus() && 0 == netOut.position()) {
+                    throw new IOException("Error in TlsTransport.flush: engine closed");
+                }
+            } else {
+                return true;
+            }
+        }
+    }
+
+    // Whether no ciphertext is waiting to be written.  False only while the socket is full; a frame held back by the
+    // handshake waits for the peer, not the socket.
+    boolean isFlushed() {
+        return null == netOut;
+    }
+
+    // Ends the session with a close_notify after whatever ciphertext is still waiting, written as far as the socket
+    // takes it without blocking, and returns the buffers to the pool.  Call before closing the channel.
+    void close(final SocketChannel channel) {
+        engine.closeOutbound();
+        try {
+            if (null == netOut) {
+                netOut = pool.acquire();
+            }
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            channel.write(netOut);
+        } catch (IOException e) {
+            // The peer has likely gone already, the close_notify is only a courtesy.
+        } finally {
+            pool.release(netOut);
+            netOut = null;
+            if (null != netIn) {
+                pool.release(netIn);
+                netIn = null;
+            }
+        }
+    }
+
+    private boolean isHandshaking() {
+        final SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING != status && SSLEngineResult.HandshakeStatus.FINISHED != status;
+    }
+
+    private static ByteBuffer append(final ByteBuffer app, final ByteBuffer plain) {
+        if (app.remaining() >= plain.remaining()) {
+            return app.put(plain);
+        }
+        final ByteBuffer larger = ByteBuffer.allocate(Math.max(app.capacity() * 2, app.position() + plain.remaining()));
+        app.flip();
+        return larger.put(app).put(plain);
+    }
+}
@@ -0,0 +1,142 @@
+package model.store;
+
+import model.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps offline messages in the heap, so they are lost on restart.  Useful for tests and for running without a
+ * writable data directory.  Message sizes are counted as their text length.
+ */
+public class InMemoryOfflineQueueStore implements OfflineQueueStore {
+
+    private int maxMessages;
+    private long maxBytes;
+    private long ttlMillis;
+    private ConcurrentMap<String, UserQueue> userToQueue;
+    private AtomicLong size;
+
+    public InMemoryOfflineQueueStore(final int maxMessages, final long maxBytes, final long ttlMillis) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.userToQueue = new ConcurrentHashMap<>();
+        this.size = new AtomicLong();
+    }
+
+    @Override
+    public boolean append(final String userName, final Message message) {
+        final Entry entry = new Entry(message, System.currentTimeMillis() + ttlMillis);
+        final UserQueue queue = userToQueue.computeIfAbsent(userName, name -> new UserQueue());
+        synchronized (queue) {
+            if (queue.entries.size() >= maxMessages || queue.bytes + entry.bytes > maxBytes) {
+                return false;
+            }
+            queue.entries.add(entry);
+            queue.bytes += entry.bytes;
+        }
+        size.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public OfflineBatch peek(final String userName, final int max) {
+        final List<Message> messages = new ArrayList<>();
+        final UserQueue queue = userToQueue.get(userName);
+        if (null == queue) {
+            return new OfflineBatch(messages, null, 0);
+        }
+        synchronized (queue) {
+            size.addAndGet(-queue.expire(System.currentTimeMillis()));
+            final Iterator<Entry> entries = queue.entries.iterator();
+            while (entries.hasNext() && messages.size() < max) {
+                messages.add(entries.next().message);
+            }
+            return new OfflineBatch(messages, queue, queue.head + messages.size());
+        }
+    }
+
+    @Override
+    public void remove(final String userName, final OfflineBatch batch) {
+        final UserQueue queue = userToQueue.get(userName);
+        if (null == queue || queue != batch.getQueue()) {
+            return;
+        }
+        synchronized (queue) {
+            while (queue.head < batch.getEnd() && !queue.entries.isEmpty()) {
+                queue.bytes -= queue.entries.poll().bytes;
+                queue.head++;
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public long size(final String userName) {
+        final UserQueue queue = userToQueue.get(userName);
+        if (null == queue) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.entries.size();
+        }
+    }
+
+    @Override
+    public long size() {
+        return size.get();
+    }
+
+    @Override
+    public long expire() {
+        final long now = System.currentTimeMillis();
+        long expired = 0;
+        for (UserQueue queue : userToQueue.values()) {
+            synchronized (queue) {
+                expired += queue.expire(now);
+            }
+        }
+        size.addAndGet(-expired);
+        return expired;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static class UserQueue {
+        private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        private long bytes;
+        // The sequence number of the oldest entry, counting every entry ever queued.
+        private long head;
+
+        // Messages are queued in time order, so the expired ones are all at the front.
+        private long expire(final long now) {
+            long expired = 0;
+            while (!entries.isEmpty() && entries.peek().expiresAt <= now) {
+                bytes -= entries.poll().bytes;
+                head++;
+                expired++;
+            }
+            return expired;
+        }
+    }
+
+    private static class Entry {
+        private final Message message;
+        private final long expiresAt;
+        private final long bytes;
+
+        private Entry(final Message message, final long expiresAt) {
+            this.message = message;
+            this.expiresAt = expiresAt;
+            this.bytes = null == message.getText() ? 0 : message.getText().length();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package model.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Keeps every session's history in the heap for the life of the server, the way sessions originally worked.  Useful
+ * for tests and for running without a writable data directory.
+ */
+public class InMemorySessionLogStore implements SessionLogStore {
+
+    private ConcurrentMap<String, List<String>> idToLog;
+
+    public InMemorySessionLogStore() {
+        this.idToLog = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public Set<String> getSessionIds() {
+        return Collections.unmodifiableSet(idToLog.keySet());
+    }
+
+    @Override
+    public void append(final String sessionId, final String text) {
+        final List<String> log = idToLog.computeIfAbsent(sessionId, id -> new ArrayList<>());
+        synchronized (log) {
+            log.add(text);
+        }
+    }
+
+    @Override
+    public long size(final String sessionId) {
+        final List<String> log = idToLog.get(sessionId);
+        if (null == log) {
+            return 0;
+        }
+        synchronized (log) {
+            return log.size();
+        }
+    }
+
+    @Override
+    public List<String> tail(final String sessionId, final int count) {
+        final List<String> log = idToLog.get(sessionId);
+        if (null == log) {
+            return new ArrayList<>();
+        }
+        synchronized (log) {
+            return new ArrayList<>(log.subList(Math.max(0, log.size() - count), log.size()));
+        }
+    }
+
+    @Override
+    public List<String> read(final String sessionId, final long from, final int count) {
+        final List<String> log = idToLog.get(sessionId);
+        if (null == log) {
+            return new ArrayList<>();
+        }
+        synchronized (log) {
+            final int start = (int) Math.min(Math.max(0, from), log.size());
+            return new ArrayList<>(log.subList(start, (int) Math.min(log.size(), start + (long) count)));
+        }
+    }
+
+    @Override
+    public void replay(final String sessionId, final Consumer<String> consumer) {
+        final List<String> log = idToLog.get(sessionId);
+        if (null == log) {
+            return;
+        }
+        final List<String> copy;
+        synchronized (log) {
+            copy = new ArrayList<>(log);
+        }
+        copy.forEach(consumer);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,468 @@
+package model.store;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The history of one session: a directory of fixed size, memory mapped segment files.  Each segment starts with a
+ * header (a magic number and the offset where committed data ends) followed by length prefixed UTF-8 records:
+ *
+ *   [magic int][end int][length int][bytes]...[length int][bytes]
+ *
+ * Appends copy the record into the mapped segment and then move the end offset, so a crash never exposes a half
+ * written record.  When a record doesn't fit the current segment a new one is started.
+ *
+ * Alongside the segments an index of every record's segment and offset is kept in mapped index files of 64k entries
+ * each, so any run of records can be read without walking the ones before it.  The index is rewritten from the
+ * segments as they are recovered on open, so it never has to be trusted over them.
+ *
+ * Given how many records the log was known to hold at some earlier point, opening only recovers from the segment the
+ * last of them is in: every segment before it was full and committed by then, and is never written again.
+ *
+ * An open log holds two mappings (its current segment and index file), so the store only keeps so many open and closes
+ * the rest.  Each use retains the log until it releases it, and a log is only closed while nobody holds it; closing
+ * unmaps its buffers there and then rather than leaving them to the garbage collector.
+ */
+class MappedSessionLog {
+    private static final int MAGIC = 0x534C4731; // "SLG1"
+    private static final int END_OFFSET = 4;
+    static final int HEADER_LENGTH = 8;
+    private static final String SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    // Index entries per index file, each a long of the segment number (high int) and record offset (low int).
+    static final int INDEX_ENTRIES = 64 * 1024;
+    // Unmaps a buffer straight away, null if the JDK doesn't allow it and it is left to the collector.
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private Path directory;
+    private int segmentSize;
+    private List<Path> segments;
+    // The last segment, mapped read-write for appends.
+    private MappedByteBuffer current;
+    // Index files in order, mapped read-write as they are needed.
+    private List<MappedByteBuffer> indexes;
+    private long count;
+    private ReentrantLock lock;
+    // How many uses are in progress, and whether it has been closed, guarded by lock.
+    private int users;
+    private boolean closed;
+    // When it was last retained, in the store's own clock.
+    private volatile long used;
+
+    MappedSessionLog(final Path directory, final int segmentSize) throws IOException {
+        this(directory, segmentSize, 0);
+    }
+
+    // Known is how many records the log held at some earlier point, 0 if not known.
+    MappedSessionLog(final Path directory, final int segmentSize, final long known) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segments = new ArrayList<>();
+        this.indexes = new ArrayList<>();
+        this.lock = new ReentrantLock();
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+        if (segments.isEmpty()) {
+            roll();
+        } else {
+            // Replay the segments to recover the message count and drop anything past the last committed record.
+            for (int i = resume(known); i < segments.size(); i++) {
+                count += recover(segments.get(i), i);
+            }
+            current = map(segments.get(segments.size() - 1), FileChannel.MapMode.READ_WRITE, segmentSize);
+        }
+    }
+
+    // Holds the log open until released.  Returns false if it has already been closed.
+    boolean retain(final long now) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            users++;
+            used = now;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            users--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getUsed() {
+        return used;
+    }
+
+    long size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void append(final byte[] bytes) throws IOException {
+        if (HEADER_LENGTH + 4 + bytes.length > segmentSize) {
+            throw new IOException("Record of " + bytes.length + " bytes is larger than a segment.");
+        }
+        lock.lock();
+        try {
+            int end = current.getInt(END_OFFSET);
+            if (end + 4 + bytes.length > segmentSize) {
+                roll();
+                end = HEADER_LENGTH;
+            }
+            current.putInt(end, bytes.length);
+            current.put(end + 4, bytes);
+            index(count, segments.size() - 1, end);
+            // Commit.
+            current.putInt(END_OFFSET, end + 4 + bytes.length);
+            count++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hands every record to the consumer, oldest first.  Only one segment is mapped at a time.
+    void replay(final Consumer<String> consumer) throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        final ByteBuffer last = snapshot(paths);
+        for (int i = 0; i < paths.size(); i++) {
+            final ByteBuffer segment = i == paths.size() - 1 ? last : committed(paths.get(i));
+            try {
+                int position = HEADER_LENGTH;
+                while (position < segment.limit()) {
+                    final int length = segment.getInt(position);
+                    consumer.accept(decode(segment, position + 4, length));
+                    position += 4 + length;
+                }
+            } finally {
+                unmapCommitted(segment, last);
+            }
+        }
+    }
+
+    // The newest count records, oldest first.  Walks segments from the newest back and only decodes what it returns.
+    List<String> tail(final int count) throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        final ByteBuffer last = snapshot(paths);
+        final LinkedList<String> tail = new LinkedList<>();
+        for (int i = paths.size() - 1; i >= 0 && tail.size() < count; i--) {
+            final ByteBuffer segment = i == paths.size() - 1 ? last : committed(paths.get(i));
+            try {
+                final int[] positions = positions(segment);
+                for (int j = positions.length - 1; j >= 0 && tail.size() < count; j--) {
+                    tail.addFirst(decode(segment, positions[j] + 4, segment.getInt(positions[j])));
+                }
+            } finally {
+                unmapCommitted(segment, last);
+            }
+        }
+        return tail;
+    }
+
+    // Up to count records starting with the from'th (0 being the oldest), oldest first.  Positions come from the index,
+    // so the cost depends only on how many are read, never on how far into the history they are.
+    List<String> read(final long from, final int count) throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        final long[] entries;
+        final ByteBuffer last;
+        lock.lock();
+        try {
+            paths.addAll(segments);
+            last = current.duplicate();
+            last.limit(current.getInt(END_OFFSET));
+            final long start = Math.max(0, from);
+            entries = new long[(int) Math.max(0, Math.min(count, this.count - start))];
+            for (int i = 0; i < entries.length; i++) {
+                final long record = start + i;
+                entries[i] = indexes.get((int) (record / INDEX_ENTRIES)).getLong((int) (record % INDEX_ENTRIES) * 8);
+            }
+        } finally {
+            lock.unlock();
+        }
+        final List<String> records = new ArrayList<>(entries.length);
+        int mapped = -1;
+        ByteBuffer segment = null;
+        try {
+            for (long entry : entries) {
+                final int number = (int) (entry >>> 32);
+                final int position = (int) entry;
+                if (number != mapped) {
+                    unmapCommitted(segment, last);
+                    segment = number == paths.size() - 1 ? last : committed(paths.get(number));
+                    mapped = number;
+                }
+                records.add(decode(segment, position + 4, segment.getInt(position)));
+            }
+        } finally {
+            unmapCommitted(segment, last);
+        }
+        return records;
+    }
+
+    // Closes the log unless it is in use, returns how many records it held or -1 if it was in use.
+    long closeIfUnused() {
+        lock.lock();
+        try {
+            if (users > 0) {
+                return -1;
+            }
+            close();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Forces everything to disk, and unmaps it unless someone is still using it (only at shutdown).
+    void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            current.force();
+            for (MappedByteBuffer index : indexes) {
+                index.force();
+            }
+            if (0 == users) {
+                unmap(current);
+                for (MappedByteBuffer index : indexes) {
+                    unmap(index);
+                }
+                current = null;
+                indexes.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Copies the segment paths and returns a view of the current segment limited to what is committed right now, so
+    // readers can walk the history without holding the lock or seeing appends made after this point.
+    private ByteBuffer snapshot(final List<Path> paths) {
+        lock.lock();
+        try {
+            paths.addAll(segments);
+            final ByteBuffer last = current.duplicate();
+            last.limit(current.getInt(END_OFFSET));
+            return last;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Maps an older, full segment read only, limited to its committed records.
+    private ByteBuffer committed(final Path segment) throws IOException {
+        final MappedByteBuffer buffer = map(segment, FileChannel.MapMode.READ_ONLY, 0);
+        buffer.limit(buffer.getInt(END_OFFSET));
+        return buffer;
+    }
+
+    private void roll() throws IOException {
+        if (null != current) {
+            current.force();
+        }
+        final Path segment = directory.resolve(String.format("%016d%s", segments.size(), SUFFIX));
+        current = map(segment, FileChannel.MapMode.READ_WRITE, segmentSize);
+        current.putInt(0, MAGIC);
+        current.putInt(END_OFFSET, HEADER_LENGTH);
+        segments.add(segment);
+    }
+
+    // Validates a segment, truncating its end offset to the last whole record, and returns how many records it holds.
+    // Indexes each record on the way, after those of the segments before it.
+    private int recover(final Path segment, final int number) throws IOException {
+        final MappedByteBuffer buffer = map(segment, FileChannel.MapMode.READ_WRITE, segmentSize);
+        try {
+            return recover(buffer, number);
+        } finally {
+            unmap(buffer);
+        }
+    }
+
+    private int recover(final MappedByteBuffer buffer, final int number) throws IOException {
+        if (MAGIC != buffer.getInt(0)) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(END_OFFSET, HEADER_LENGTH);
+            return 0;
+        }
+        final int end = Math.min(buffer.getInt(END_OFFSET), buffer.capacity());
+        int position = HEADER_LENGTH;
+        int records = 0;
+        while (position + 4 <= end) {
+            final int length = buffer.getInt(position);
+            if (length < 0 || position + 4 + length > end) {
+                break;
+            }
+            index(count + records, number, position);
+            position += 4 + length;
+            records++;
+        }
+        if (position != buffer.getInt(END_OFFSET)) {
+            buffer.putInt(END_OFFSET, position);
+        }
+        return records;
+    }
+
+    // The segment to start recovering from given that the first known records were committed, with count set to the
+    // records in the segments before it.  0, replaying everything, unless the index bears out where they are.
+    private int resume(final long known) throws IOException {
+        if (known <= 0 || !Files.exists(indexFile((int) ((known - 1) / INDEX_ENTRIES)))) {
+            return 0;
+        }
+        final int number = (int) (indexEntry(known - 1) >>> 32);
+        if (number <= 0 || number >= segments.size()) {
+            return 0;
+        }
+        // The first record in that segment.
+        long low = 0;
+        long high = known - 1;
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+            if ((int) (indexEntry(middle) >>> 32) < number) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        final long first = indexEntry(low);
+        if (low == 0 || (int) (first >>> 32) != number || (int) first != HEADER_LENGTH
+                || (int) (indexEntry(low - 1) >>> 32) != number - 1) {
+            return 0;
+        }
+        count = low;
+        return number;
+    }
+
+    private int[] positions(final ByteBuffer segment) {
+        final int end = segment.limit();
+        int[] positions = new int[64];
+        int size = 0;
+        int position = HEADER_LENGTH;
+        while (position < end) {
+            if (size == positions.length) {
+                final int[] larger = new int[size * 2];
+                System.arraycopy(positions, 0, larger, 0, size);
+                positions = larger;
+            }
+            positions[size++] = position;
+            position += 4 + segment.getInt(position);
+        }
+        final int[] result = new int[size];
+        System.arraycopy(positions, 0, result, 0, size);
+        return result;
+    }
+
+    // Records where the record is, mapping the next index file when it starts one.  Only rewrites an entry that
+    // differs, so recovering an intact index doesn't dirty its pages.  Must hold the lock or be opening.
+    private void index(final long record, final int number, final int position) throws IOException {
+        final MappedByteBuffer index = indexFor(record);
+        final long entry = ((long) number << 32) | (position & 0xFFFFFFFFL);
+        final int offset = (int) (record % INDEX_ENTRIES) * 8;
+        if (index.getLong(offset) != entry) {
+            index.putLong(offset, entry);
+        }
+    }
+
+    private long indexEntry(final long record) throws IOException {
+        return indexFor(record).getLong((int) (record % INDEX_ENTRIES) * 8);
+    }
+
+    // The index file holding the record's entry, mapping it (and any before it) if it isn't yet.
+    private MappedByteBuffer indexFor(final long record) throws IOException {
+        final int file = (int) (record / INDEX_ENTRIES);
+        while (indexes.size() <= file) {
+            indexes.add(map(indexFile(indexes.size()), FileChannel.MapMode.READ_WRITE, INDEX_ENTRIES * 8));
+        }
+        return indexes.get(file);
+    }
+
+    private Path indexFile(final int number) {
+        return directory.resolve(String.format("%016d%s", number, INDEX_SUFFIX));
+    }
+
+    // Maps a file read-write at the given size, or read only at its current size.
+    private MappedByteBuffer map(final Path file, final FileChannel.MapMode mode, final int size) throws IOException {
+        final StandardOpenOption[] options = FileChannel.MapMode.READ_ONLY == mode
+                ? new StandardOpenOption[] {StandardOpenOption.READ}
+                : new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE};
+        try (FileChannel channel = FileChannel.open(file, options)) {
+            return channel.map(mode, 0, FileChannel.MapMode.READ_ONLY == mode ? channel.size() : size);
+        }
+    }
+
+    // Unmaps an older segment a reader mapped for itself, once it is done with it.
+    private static void unmapCommitted(final ByteBuffer segment, final ByteBuffer last) {
+        if (null != segment && segment != last) {
+            unmap((MappedByteBuffer) segment);
+        }
+    }
+
+    // Touching the buffer after this crashes the JVM, so only once nothing can.
+    private static void unmap(final MappedByteBuffer buffer) {
+        if (null == INVOKE_CLEANER) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // Left to the collector.
+        }
+    }
+
+    private static String decode(final ByteBuffer segment, final int position, final int length) {
+        final byte[] bytes = new byte[length];
+        segment.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,285 @@
+package model.store;
+
+import model.log.Log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps each session's history in its own directory of memory mapped segment files (see MappedSessionLog), so the
+ * history survives a restart and takes no heap beyond what is being read.  Opening the store only lists the sessions;
+ * each one's segments are recovered the first time it is used, and only from where its known size (see setKnownSizes)
+ * ends when there is one.
+ *
+ * Each open log holds a segment and an index file mapped, so only the most recently used maxOpen logs are kept open.
+ * Past that the least recently used ones not in use right now are closed, unmapping their files, and opened again
+ * the next time they are appended to or read.  A closed log remembers how many records it held so reopening only
+ * recovers its last segment.
+ *
+ * Session directories are named with the hex encoded session id so user names can't escape the data directory.
+ */
+public class MappedSessionLogStore implements SessionLogStore {
+    private static final Log LOG = Log.get(MappedSessionLogStore.class);
+    public static final int DEFAULT_MAX_OPEN = 1024;
+
+    private Path directory;
+    private int segmentSize;
+    private int maxOpen;
+    // Every session with history, and those open right now.
+    private Set<String> ids;
+    private ConcurrentMap<String, MappedSessionLog> idToLog;
+    // How many records each log held when it was last closed.
+    private ConcurrentMap<String, Long> closedSizes;
+    private volatile ToLongFunction<String> knownSizes;
+    // Ticks on every use, to tell which logs were used least recently.
+    private AtomicLong clock;
+    // Held while closing logs over the limit, one thread at a time does it.
+    private ReentrantLock closing;
+
+    public MappedSessionLogStore(final Path directory, final int segmentSize) throws IOException {
+        this(directory, segmentSize, DEFAULT_MAX_OPEN);
+    }
+
+    public MappedSessionLogStore(final Path directory, final int segmentSize, final int maxOpen) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxOpen = Math.max(1, maxOpen);
+        this.ids = ConcurrentHashMap.newKeySet();
+        this.idToLog = new ConcurrentHashMap<>();
+        this.closedSizes = new ConcurrentHashMap<>();
+        this.knownSizes = sessionId -> 0;
+        this.clock = new AtomicLong();
+        this.closing = new ReentrantLock();
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> sessions = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path session : sessions) {
+                final String sessionId = fromFileName(session.getFileName().toString());
+                if (null != sessionId) {
+                    ids.add(sessionId);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getSessionIds() {
+        return Collections.unmodifiableSet(ids);
+    }
+
+    @Override
+    public void setKnownSizes(final ToLongFunction<String> knownSizes) {
+        this.knownSizes = knownSizes;
+    }
+
+    @Override
+    public void append(final String sessionId, final String text) throws IOException {
+        final MappedSessionLog log = acquire(sessionId, true);
+        try {
+            log.append(text.getBytes(StandardCharsets.UTF_8));
+            ids.add(sessionId);
+        } finally {
+            log.release();
+        }
+    }
+
+    @Override
+    public long size(final String sessionId) {
+        final MappedSessionLog log = get(sessionId);
+        if (null == log) {
+            return 0;
+        }
+        try {
+            return log.size();
+        } finally {
+            log.release();
+        }
+    }
+
+    @Override
+    public List<String> tail(final String sessionId, final int count) throws IOException {
+        final MappedSessionLog log = get(sessionId);
+        if (null == log) {
+            return new ArrayList<>();
+        }
+        try {
+            return log.tail(count);
+        } finally {
+            log.release();
+        }
+    }
+
+    @Override
+    public List<String> read(final String sessionId, final long from, final int count) throws IOException {
+        final MappedSessionLog log = get(sessionId);
+        if (null == log) {
+            return new ArrayList<>();
+        }
+        try {
+            return log.read(from, count);
+        } finally {
+            log.release();
+        }
+    }
+
+    @Override
+    public void replay(final String sessionId, final Consumer<String> consumer) throws IOException {
+        final MappedSessionLog log = get(sessionId);
+        if (null == log) {
+            return;
+        }
+        try {
+            log.replay(consumer);
+        } finally {
+            log.release();
+        }
+    }
+
+    // Closes the session's log unless it is in use right now.
+    @Override
+    public void release(final String sessionId) {
+        final MappedSessionLog log = idToLog.get(sessionId);
+        if (null != log) {
+            close(sessionId, log);
+        }
+    }
+
+    // How many logs are open, each holding a segment and an index file mapped.
+    @Override
+    public int getOpenCount() {
+        return idToLog.size();
+    }
+
+    @Override
+    public void close() {
+        for (MappedSessionLog log : idToLog.values()) {
+            log.close();
+        }
+        idToLog.clear();
+    }
+
+    // The session's log retained for the caller, who must release it.  Null if it has no history, or opening it failed
+    // (seen as empty for now, opening it is tried again next time).
+    private MappedSessionLog get(final String sessionId) {
+        try {
+            return acquire(sessionId, false);
+        } catch (IOException e) {
+            LOG.error("Error in MappedSessionLogStore.get", sessionId, e);
+            return null;
+        }
+    }
+
+    // The session's log retained for the caller, opening it if need be.  Null if it has no history and create is false.
+    private MappedSessionLog acquire(final String sessionId, final boolean create) throws IOException {
+        while (true) {
+            MappedSessionLog log = idToLog.get(sessionId);
+            if (null == log) {
+                if (!create && !ids.contains(sessionId)) {
+                    return null;
+                }
+                try {
+                    log = idToLog.computeIfAbsent(sessionId, this::open);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            if (log.retain(clock.incrementAndGet())) {
+                closeLeastUsed();
+                return log;
+            }
+            // Closed since it was looked up, open it again.
+            idToLog.remove(sessionId, log);
+        }
+    }
+
+    // Closes the least recently used logs not in use once more than maxOpen are open.  Goes an eighth below the limit
+    // so the sort is paid for once every so many opens rather than on each.
+    private void closeLeastUsed() {
+        if (idToLog.size() <= maxOpen || !closing.tryLock()) {
+            return;
+        }
+        try {
+            // Their use times are copied first, they change while sorting.
+            final Map<String, Long> used = new HashMap<>();
+            for (Map.Entry<String, MappedSessionLog> entry : idToLog.entrySet()) {
+                used.put(entry.getKey(), entry.getValue().getUsed());
+            }
+            final List<String> byUse = new ArrayList<>(used.keySet());
+            byUse.sort(Comparator.comparingLong(used::get));
+            int excess = byUse.size() - (maxOpen - maxOpen / 8);
+            for (int i = 0; i < byUse.size() && excess > 0; i++) {
+                final String sessionId = byUse.get(i);
+                final MappedSessionLog log = idToLog.get(sessionId);
+                if (null == log) {
+                    continue;
+                }
+                if (close(sessionId, log)) {
+                    excess--;
+                }
+            }
+        } finally {
+            closing.unlock();
+        }
+    }
+
+    // Closes the log unless it is in use, returns whether it did.
+    private boolean close(final String sessionId, final MappedSessionLog log) {
+        final long size = log.closeIfUnused();
+        if (size < 0) {
+            return false;
+        }
+        closedSizes.put(sessionId, size);
+        idToLog.remove(sessionId, log);
+        return true;
+    }
+
+    private MappedSessionLog open(final String sessionId) {
+        try {
+            final long known = Math.max(knownSizes.applyAsLong(sessionId), closedSizes.getOrDefault(sessionId, 0L));
+            return new MappedSessionLog(directory.resolve(toFileName(sessionId)), segmentSize, known);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String toFileName(final String sessionId) {
+        final StringBuilder builder = new StringBuilder();
+        for (byte b : sessionId.getBytes(StandardCharsets.UTF_8)) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    // Returns null for anything that isn't a session directory.
+    static String fromFileName(final String fileName) {
+        if (0 != fileName.length() % 2) {
+            return null;
+        }
+        final byte[] bytes = new byte[fileName.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(fileName.charAt(2 * i), 16);
+            final int low = Character.digit(fileName.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,40 @@
+package model.store;
+
+import model.Message;
+
+import java.util.List;
+
+/**
+ * Messages peeked from one user's offline queue, and where in that queue they end.  Removing the batch once it has
+ * been delivered takes off exactly these messages (and any older ones still there), however many expired in between,
+ * so nothing newer is lost with them.
+ */
+public class OfflineBatch {
+    private final List<Message> messages;
+    // The queue peeked, so a batch outliving it removes nothing from the one that replaces it.
+    private final Object queue;
+    // The sequence number just past the last message peeked.
+    private final long end;
+
+    OfflineBatch(final List<Message> messages, final Object queue, final long end) {
+        this.messages = messages;
+        this.queue = queue;
+        this.end = end;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    Object getQueue() {
+        return queue;
+    }
+
+    long getEnd() {
+        return end;
+    }
+}
@@ -0,0 +1,335 @@
+package model.store;
+
+import model.Message;
+import model.codec.MessageCodecs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The offline queue of one user: a directory of append only segment files and a head file holding the sequence number
+ * of the oldest message not yet delivered.  Each segment is named after the sequence number of its first record, and
+ * each record is a binary codec frame body with its length and expiry time in front:
+ *
+ *   [length int][expires at long][bytes]...
+ *
+ * Appends are written straight to the file; nothing is forced to disk until commit, which the store calls for every
+ * changed queue on a timer so one fsync covers all the appends made in between.  Delivered messages only move the head,
+ * and segments are deleted once the head passes them.  Only the position of each pending record is kept in the heap.
+ */
+class OfflineQueueLog {
+    static final int APPENDED = 0;
+    static final int FULL = 1;
+    // The log was deleted after emptying, the caller has to open a new one.
+    static final int GONE = 2;
+
+    private static final String SUFFIX = ".seg";
+    private static final String HEAD = "head";
+    private static final int RECORD_HEADER = 12;
+
+    private Path directory;
+    private int segmentSize;
+    private ReentrantLock lock;
+    private ArrayDeque<Path> segments;
+    private ArrayDeque<Entry> pending;
+    private long bytes;
+    // The sequence number of the oldest pending message, and of the next one appended.
+    private long head;
+    private long next;
+    private long currentSize;
+    // Open for appends until the next commit.
+    private FileChannel channel;
+    private boolean headChanged;
+    private boolean gone;
+
+    OfflineQueueLog(final Path directory, final int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.lock = new ReentrantLock();
+        this.segments = new ArrayDeque<>();
+        this.pending = new ArrayDeque<>();
+        Files.createDirectories(directory);
+        final Path headFile = directory.resolve(HEAD);
+        if (Files.exists(headFile)) {
+            final byte[] saved = Files.readAllBytes(headFile);
+            head = saved.length == 8 ? ByteBuffer.wrap(saved).getLong() : 0;
+        }
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        next = head;
+        for (Path segment : files) {
+            recover(segment);
+        }
+        dropDeliveredSegments();
+    }
+
+    // Reads the positions of a segment's records back, truncating a record left half written by a crash.
+    private void recover(final Path segment) throws IOException {
+        long sequence = firstSequence(segment);
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long size = file.size();
+            final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            long position = 0;
+            while (position + RECORD_HEADER <= size) {
+                header.clear();
+                file.read(header, position);
+                final int length = header.getInt(0);
+                if (length < 0 || position + RECORD_HEADER + length > size) {
+                    break;
+                }
+                if (sequence >= head) {
+                    pending.add(new Entry(segment, position, length, header.getLong(4)));
+                    bytes += length;
+                }
+                position += RECORD_HEADER + length;
+                sequence++;
+            }
+            if (position < size) {
+                file.truncate(position);
+            }
+            currentSize = position;
+        }
+        segments.add(segment);
+        next = Math.max(next, sequence);
+    }
+
+    int append(final byte[] body, final long expiresAt, final int maxMessages, final long maxBytes) throws IOException {
+        lock.lock();
+        try {
+            if (gone) {
+                return GONE;
+            }
+            if (pending.size() >= maxMessages || bytes + body.length > maxBytes) {
+                return FULL;
+            }
+            if (segments.isEmpty() || (currentSize > 0 && currentSize + RECORD_HEADER + body.length > segmentSize)) {
+                roll();
+            }
+            final Path segment = segments.peekLast();
+            if (null == channel) {
+                channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + body.length);
+            record.putInt(body.length).putLong(expiresAt).put(body).flip();
+            long position = currentSize;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            pending.add(new Entry(segment, currentSize, body.length, expiresAt));
+            bytes += body.length;
+            currentSize = position;
+            next++;
+            return APPENDED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Up to max of the oldest pending messages, reading each segment at most once.  A record that doesn't decode is
+    // skipped but still counts towards the batch's end, so it is removed with the batch.
+    OfflineBatch peek(final int max) throws IOException {
+        final List<Message> messages = new ArrayList<>();
+        final Map<Path, FileChannel> open = new HashMap<>();
+        lock.lock();
+        try {
+            long end = head;
+            final Iterator<Entry> entries = pending.iterator();
+            while (entries.hasNext() && end - head < max) {
+                final Entry entry = entries.next();
+                end++;
+                FileChannel file = open.get(entry.segment);
+                if (null == file) {
+                    file = FileChannel.open(entry.segment, StandardOpenOption.READ);
+                    open.put(entry.segment, file);
+                }
+                final ByteBuffer body = ByteBuffer.allocate(entry.length);
+                long position = entry.position + RECORD_HEADER;
+                while (body.hasRemaining()) {
+                    final int read = file.read(body, position);
+                    if (read < 0) {
+                        throw new IOException("Offline queue segment ended early: " + entry.segment);
+                    }
+                    position += read;
+                }
+                final Message message = MessageCodecs.decode(body.array(), 0, entry.length);
+                if (null != message) {
+                    messages.add(message);
+                }
+            }
+            return new OfflineBatch(messages, this, end);
+        } finally {
+            lock.unlock();
+            for (FileChannel file : open.values()) {
+                file.close();
+            }
+        }
+    }
+
+    // Removes the pending messages with sequence numbers before end, returns how many.
+    int remove(final long end) {
+        lock.lock();
+        try {
+            int removed = 0;
+            while (head + removed < end && !pending.isEmpty()) {
+                bytes -= pending.poll().length;
+                removed++;
+            }
+            advance(removed);
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops the pending messages expired by now, which are always the oldest.  Returns how many.
+    int expire(final long now) {
+        lock.lock();
+        try {
+            int expired = 0;
+            while (!pending.isEmpty() && pending.peek().expiresAt <= now) {
+                bytes -= pending.poll().length;
+                expired++;
+            }
+            advance(expired);
+            return expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Deletes the whole directory if nothing is pending, after which appends return GONE.
+    boolean deleteIfEmpty() throws IOException {
+        lock.lock();
+        try {
+            if (gone || !pending.isEmpty()) {
+                return gone;
+            }
+            closeChannel();
+            for (Path segment : segments) {
+                Files.deleteIfExists(segment);
+            }
+            segments.clear();
+            Files.deleteIfExists(directory.resolve(HEAD));
+            Files.deleteIfExists(directory);
+            gone = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Forces appends and the head to disk.
+    void commit() throws IOException {
+        lock.lock();
+        try {
+            if (gone) {
+                return;
+            }
+            if (null != channel) {
+                channel.force(false);
+                closeChannel();
+            }
+            if (headChanged) {
+                try (FileChannel file = FileChannel.open(directory.resolve(HEAD), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    final ByteBuffer saved = ByteBuffer.allocate(8).putLong(head);
+                    saved.flip();
+                    while (saved.hasRemaining()) {
+                        file.write(saved);
+                    }
+                    file.force(false);
+                }
+                headChanged = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves the head past removed messages and deletes the segments it has passed.  The newest segment is always kept
+    // for appends.
+    private void advance(final int removed) {
+        if (0 == removed) {
+            return;
+        }
+        head += removed;
+        headChanged = true;
+        dropDeliveredSegments();
+    }
+
+    private void dropDeliveredSegments() {
+        while (segments.size() > 1 && (pending.isEmpty() || segments.peekFirst() != pending.peek().segment)) {
+            try {
+                Files.deleteIfExists(segments.poll());
+            } catch (IOException e) {
+                // Left behind, the head already skips it and it is deleted with the directory.
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        if (null != channel) {
+            channel.force(false);
+            closeChannel();
+        }
+        segments.add(directory.resolve(String.format("%020d%s", next, SUFFIX)));
+        currentSize = 0;
+    }
+
+    private void closeChannel() throws IOException {
+        if (null != channel) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private static long firstSequence(final Path segment) {
+        final String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static class Entry {
+        private final Path segment;
+        private final long position;
+        private final int length;
+        private final long expiresAt;
+
+        private Entry(final Path segment, final long position, final int length, final long expiresAt) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
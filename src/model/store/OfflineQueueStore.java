@@ -0,0 +1,34 @@
+package model.store;
+
+import model.Message;
+
+import java.io.IOException;
+
+/**
+ * Holds messages for users who are offline until they next log in.  Each user's messages come back in the order they
+ * were queued.  A store caps how many messages (and bytes) it keeps per user and drops messages older than its time to
+ * live, so a user who never comes back can't make it grow without bound.
+ */
+public interface OfflineQueueStore {
+
+    // Queues a message for the user, returns false if their queue is full.
+    boolean append(String userName, Message message) throws IOException;
+
+    // Up to max of the user's oldest messages, oldest first, without removing them.
+    OfflineBatch peek(String userName, int max) throws IOException;
+
+    // Removes the batch's messages once they have been delivered, along with anything older still queued, but nothing
+    // queued after it.  Nothing if the user's queue has been emptied and started again since the peek.
+    void remove(String userName, OfflineBatch batch) throws IOException;
+
+    // The number of messages queued for the user.
+    long size(String userName);
+
+    // The number of messages queued for every user.
+    long size();
+
+    // Drops every message past its time to live, returns how many.
+    long expire() throws IOException;
+
+    void close();
+}
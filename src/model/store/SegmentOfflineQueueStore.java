@@ -0,0 +1,194 @@
+package model.store;
+
+import model.Message;
+import model.codec.MessageCodecs;
+import model.log.Log;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps each user's offline messages in their own directory of segment files (see OfflineQueueLog), so they survive a
+ * restart.  Appends go to the file system straight away and a background thread forces every queue changed since its
+ * last pass to disk every commit interval, so a burst of messages costs one fsync per queue rather than one each.  A
+ * crash can lose at most the last interval's appends, or deliver again messages whose removal wasn't committed yet.
+ *
+ * Queue directories are named with the hex encoded user name, like session directories, and are deleted once empty.
+ */
+public class SegmentOfflineQueueStore implements OfflineQueueStore {
+    private static final Log LOG = Log.get(SegmentOfflineQueueStore.class);
+
+    private Path directory;
+    private int segmentSize;
+    private int maxMessages;
+    private long maxBytes;
+    private long ttlMillis;
+    private ConcurrentMap<String, OfflineQueueLog> userToLog;
+    // Queues changed since the last commit.
+    private Set<OfflineQueueLog> changed;
+    private AtomicLong size;
+    private ScheduledExecutorService committer;
+
+    public SegmentOfflineQueueStore(final Path directory, final int segmentSize, final int maxMessages,
+                                    final long maxBytes, final long ttlMillis, final long commitMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.userToLog = new ConcurrentHashMap<>();
+        this.changed = ConcurrentHashMap.newKeySet();
+        this.size = new AtomicLong();
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> queues = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (Path queue : queues) {
+                final String userName = MappedSessionLogStore.fromFileName(queue.getFileName().toString());
+                if (null != userName) {
+                    final OfflineQueueLog log = new OfflineQueueLog(queue, segmentSize);
+                    if (!log.deleteIfEmpty()) {
+                        userToLog.put(userName, log);
+                        size.addAndGet(log.size());
+                    }
+                }
+            }
+        }
+        this.committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "offline-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer.scheduleWithFixedDelay(this::commit, commitMillis, commitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean append(final String userName, final Message message) throws IOException {
+        // Stored as a binary frame body, without the length prefix.
+        final ByteBuffer frame = MessageCodecs.BINARY.toFrame(message);
+        final byte[] body = new byte[frame.remaining() - 2];
+        frame.position(frame.position() + 2);
+        frame.get(body);
+        final long expiresAt = System.currentTimeMillis() + ttlMillis;
+        while (true) {
+            final OfflineQueueLog log;
+            try {
+                log = userToLog.computeIfAbsent(userName, this::open);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            final int result = log.append(body, expiresAt, maxMessages, maxBytes);
+            if (OfflineQueueLog.GONE == result) {
+                userToLog.remove(userName, log);
+            } else if (OfflineQueueLog.FULL == result) {
+                return false;
+            } else {
+                changed.add(log);
+                size.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public OfflineBatch peek(final String userName, final int max) throws IOException {
+        final OfflineQueueLog log = userToLog.get(userName);
+        if (null == log) {
+            return new OfflineBatch(new ArrayList<>(), null, 0);
+        }
+        expire(userName, log, System.currentTimeMillis());
+        return log.peek(max);
+    }
+
+    @Override
+    public void remove(final String userName, final OfflineBatch batch) throws IOException {
+        final OfflineQueueLog log = userToLog.get(userName);
+        // A log deleted once empty starts its sequence numbers again, so only the one peeked counts.
+        if (null != log && log == batch.getQueue()) {
+            size.addAndGet(-log.remove(batch.getEnd()));
+            changed.add(log);
+            retireIfEmpty(userName, log);
+        }
+    }
+
+    @Override
+    public long size(final String userName) {
+        final OfflineQueueLog log = userToLog.get(userName);
+        return null == log ? 0 : log.size();
+    }
+
+    @Override
+    public long size() {
+        return size.get();
+    }
+
+    @Override
+    public long expire() throws IOException {
+        final long now = System.currentTimeMillis();
+        long expired = 0;
+        for (String userName : new ArrayList<>(userToLog.keySet())) {
+            final OfflineQueueLog log = userToLog.get(userName);
+            if (null != log) {
+                expired += expire(userName, log, now);
+            }
+        }
+        return expired;
+    }
+
+    private int expire(final String userName, final OfflineQueueLog log, final long now) throws IOException {
+        final int expired = log.expire(now);
+        if (expired > 0) {
+            size.addAndGet(-expired);
+            changed.add(log);
+            retireIfEmpty(userName, log);
+        }
+        return expired;
+    }
+
+    @Override
+    public void close() {
+        committer.shutdown();
+        try {
+            committer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+    }
+
+    private void commit() {
+        for (OfflineQueueLog log : changed) {
+            changed.remove(log);
+            try {
+                log.commit();
+            } catch (IOException e) {
+                LOG.error("Error in SegmentOfflineQueueStore.commit", e);
+            }
+        }
+    }
+
+    private void retireIfEmpty(final String userName, final OfflineQueueLog log) throws IOException {
+        if (0 == log.size() && log.deleteIfEmpty()) {
+            userToLog.remove(userName, log);
+            changed.remove(log);
+        }
+    }
+
+    private OfflineQueueLog open(final String userName) {
+        try {
+            return new OfflineQueueLog(directory.resolve(MappedSessionLogStore.toFileName(userName)), segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package model.store;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Where the chat history of every session is kept.  The server only holds a short tail of recent messages per session
+ * in the heap and goes through this interface for everything older.
+ */
+public interface SessionLogStore {
+
+    // The ids of every session that has history in the store.
+    Set<String> getSessionIds();
+
+    // Adds a message to the end of the session's history, creating the history if needed.
+    void append(String sessionId, String text) throws IOException;
+
+    // The number of messages in the session's history.
+    long size(String sessionId);
+
+    // Up to count of the newest messages in the session's history, oldest first.
+    List<String> tail(String sessionId, int count) throws IOException;
+
+    // Up to count messages starting with the from'th (0 being the oldest), oldest first.  Used to page through history
+    // without reading what comes before the page.
+    List<String> read(String sessionId, long from, int count) throws IOException;
+
+    // Hands every message in the session's history to the consumer, oldest first, without loading it all at once.
+    void replay(String sessionId, Consumer<String> consumer) throws IOException;
+
+    // How many messages each session's history is known to have held when the server last took a snapshot (0 if not
+    // known), so a store recovering its files from disk only needs to check what came after.  Ignored by default.
+    default void setKnownSizes(ToLongFunction<String> knownSizes) {
+    }
+
+    // Lets go of anything held open for the session (eg. mapped files) until it is next used, when the server evicts
+    // it.  Nothing by default.
+    default void release(String sessionId) {
+    }
+
+    // How many sessions the store holds open right now, 0 if it holds nothing per session.
+    default int getOpenCount() {
+        return 0;
+    }
+
+    void close();
+}
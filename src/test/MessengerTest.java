@@ -1,12 +1,83 @@
 package test;
 
+import model.ClientEvents;
+import model.Connection;
+import model.ConnectionThreads;
+import model.IdleReaper;
+import model.LongObjectMap;
 import model.Message;
+import model.OfflineDelivery;
+import model.OutboundQueue;
+import model.RateLimit;
+import model.RateLimiter;
+import model.PresenceCoalescer;
+import model.Room;
+import model.Server;
+import model.ServerConfig;
+import model.SessionSnapshot;
+import model.SharedMessage;
+import model.TlsContexts;
+import model.Transcript;
+import model.UserDirectory;
+import model.cluster.LoopbackMessageBus;
+import model.cluster.RemoteConnection;
+import model.codec.BinaryCodec;
+import model.codec.DeflateCodec;
+import model.codec.FrameReader;
+import model.codec.MessageCodec;
+import model.codec.MessageCodecs;
 import model.enums.MessageTypeEnum;
+import model.enums.OverflowPolicyEnum;
+import model.enums.SessionStatusEnum;
+import model.metrics.Histogram;
+import model.metrics.MetricsRegistry;
+import model.nio.NioEventLoop;
+import model.store.InMemorySessionLogStore;
+import model.store.InMemoryOfflineQueueStore;
+import model.store.MappedSessionLogStore;
+import model.store.OfflineBatch;
+import model.store.OfflineQueueStore;
+import model.store.SegmentOfflineQueueStore;
 import org.junit.Test;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 /**
  * Validates important states during the interactions between client and server
@@ -24,4 +95,1274 @@ public class MessengerTest {
         assertEquals(message.toString(), messageString);
         assertEquals(message, Message.toMessage(messageString));
     }
+
+    @Test
+    public void testMessageTextContainingSeparators() throws IOException {
+        final Message message = new Message()
+                .withType(MessageTypeEnum.MESSAGE)
+                .withSourceUser("source")
+                .withText("{'type':'a','text':'b'}");
+
+        assertEquals(message, Message.toMessage(message.toString()));
+    }
+
+    @Test
+    public void testCodecs() throws IOException {
+        final Message message = new Message()
+                .withType(MessageTypeEnum.MESSAGE)
+                .withSourceUser("source")
+                .withTargetUser("target")
+                .withText("h\u00e9llo \u20ac \ud83d\ude00");
+
+        // Both codecs must decode through the same entry point, whichever wrote the frame.
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageCodecs.BINARY.write(message, new DataOutputStream(bytes));
+        final byte[] binary = bytes.toByteArray();
+        assertEquals(message, MessageCodecs.decode(binary, 2, binary.length - 2));
+
+        final ByteBuffer text = MessageCodecs.TEXT.toFrame(message);
+        assertEquals(message, MessageCodecs.decode(text.array(), 2, text.remaining() - 2));
+
+        assertEquals(MessageCodecs.BINARY, MessageCodecs.negotiate("codec=1"));
+        assertEquals(MessageCodecs.TEXT, MessageCodecs.negotiate(""));
+    }
+
+    @Test
+    public void testCompression() throws IOException {
+        // Offering version 2 gets a compressing codec of the connection's own, unless the server has compression off.
+        final MessageCodec codec = MessageCodecs.negotiate(MessageCodecs.offer());
+        assertEquals(DeflateCodec.VERSION, codec.getVersion());
+        assertTrue(codec != MessageCodecs.negotiate(MessageCodecs.offer()));
+        assertEquals(MessageCodecs.BINARY, MessageCodecs.negotiate(MessageCodecs.offer(), 0));
+        assertEquals("codec=2", MessageCodecs.answer(codec));
+
+        final StringBuilder trace = new StringBuilder("java.lang.IllegalStateException: queue full");
+        for (int i = 0; i < 40; i++) {
+            trace.append("\n\tat model.OutboundQueue.offer(OutboundQueue.java:").append(i).append(")");
+        }
+        final Message large = new Message()
+                .withType(MessageTypeEnum.MESSAGE)
+                .withSourceUser("source")
+                .withTargetUser("target")
+                .withText(trace.toString());
+        final ByteBuffer compressed = codec.toFrame(large);
+        assertEquals(DeflateCodec.VERSION, compressed.get(2));
+        assertTrue(compressed.remaining() * 4 < MessageCodecs.BINARY.toFrame(large).remaining());
+        // The same codec reads its frames back with its own inflater, and anyone else still can.
+        for (int i = 0; i < 2; i++) {
+            assertEquals(large, MessageCodecs.decode(compressed.array(), 2, compressed.remaining() - 2, codec));
+        }
+        assertEquals(large, MessageCodecs.decode(compressed.array(), 2, compressed.remaining() - 2));
+
+        // Control frames and short texts are left as plain binary frames.
+        final Message typing = new Message().withType(MessageTypeEnum.TYPING).withSourceUser("source").withTargetUser("target").withText(trace.toString());
+        assertEquals(BinaryCodec.VERSION, codec.toFrame(typing).get(2));
+        final Message small = new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("source").withText("hi");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.write(small, new DataOutputStream(bytes));
+        assertTrue(Arrays.equals(MessageCodecs.BINARY.toFrame(small).array(), bytes.toByteArray()));
+
+        // A frame claiming more text than a frame can hold is refused rather than inflated.
+        final byte[] bomb = Arrays.copyOfRange(compressed.array(), 2, compressed.remaining());
+        bomb[2 + 1 + 6 + 1 + 6] = (byte) 0xFF;
+        assertEquals(null, MessageCodecs.decode(bomb, 0, bomb.length, codec));
+
+        // Once the connection ends the codec it writes plain binary frames, and its compressed frames still decode.
+        codec.end();
+        assertEquals(BinaryCodec.VERSION, codec.toFrame(large).get(2));
+        assertEquals(large, MessageCodecs.decode(compressed.array(), 2, compressed.remaining() - 2));
+    }
+
+    @Test
+    public void testMappedSessionLogStore() throws IOException {
+        final Path directory = Files.createTempDirectory("sessions");
+        MappedSessionLogStore store = new MappedSessionLogStore(directory, 128 * 1024);
+        for (int i = 0; i < 20000; i++) {
+            store.append("a/b", "message " + i);
+        }
+        store.close();
+
+        // History written before a restart is found again, across segment files.
+        store = new MappedSessionLogStore(directory, 128 * 1024);
+        assertEquals(20000, store.size("a/b"));
+        assertEquals(Arrays.asList("message 19998", "message 19999"), store.tail("a/b", 2));
+        store.append("a/b", "after restart");
+        assertEquals(Arrays.asList("message 19999", "after restart"), store.tail("a/b", 2));
+
+        // Pages come from the offset index, from any segment, and stop at the end of the history.
+        assertEquals(Arrays.asList("message 0", "message 1"), store.read("a/b", 0, 2));
+        assertEquals(Arrays.asList("message 12345", "message 12346", "message 12347"), store.read("a/b", 12345, 3));
+        assertEquals(Arrays.asList("message 19999", "after restart"), store.read("a/b", 19999, 10));
+        assertEquals(0, store.read("a/b", 20001, 10).size());
+        store.close();
+
+        // A known size only skips recovering the full segments, and one the index doesn't bear out is ignored.
+        for (long known : new long[]{20001, 20000, 5, 999999}) {
+            store = new MappedSessionLogStore(directory, 128 * 1024);
+            store.setKnownSizes(sessionId -> known);
+            assertEquals(20001, store.size("a/b"));
+            assertEquals(Arrays.asList("message 12345"), store.read("a/b", 12345, 1));
+            assertEquals(Arrays.asList("after restart"), store.tail("a/b", 1));
+            store.close();
+        }
+
+        // Only so many logs stay open, the rest are closed and opened again when next used.
+        store = new MappedSessionLogStore(directory, 128 * 1024, 4);
+        for (int i = 0; i < 20; i++) {
+            store.append("s/" + i, "first " + i);
+            assertTrue(store.getOpenCount() <= 4);
+        }
+        for (int i = 0; i < 20; i++) {
+            store.append("s/" + i, "second " + i);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(2, store.size("s/" + i));
+            assertEquals(Arrays.asList("first " + i, "second " + i), store.read("s/" + i, 0, 10));
+            assertTrue(store.getOpenCount() <= 4);
+        }
+        final List<String> replayed = new ArrayList<>();
+        store.replay("s/0", replayed::add);
+        assertEquals(Arrays.asList("first 0", "second 0"), replayed);
+        assertEquals(20001, store.size("a/b"));
+        store.close();
+    }
+
+    @Test
+    public void testSessionEviction() throws IOException {
+        final Path directory = Files.createTempDirectory("eviction");
+        final MappedSessionLogStore store = new MappedSessionLogStore(directory, 128 * 1024);
+        final ServerConfig config = new ServerConfig()
+                .withSessionLogStore(store).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000));
+        final Server server = new Server(new ServerSocket(0), ConnectionThreads.platform(), config);
+        try {
+            server.activateSession("alice", "bob");
+            server.activateSession("carol", "dave");
+            server.activateSession("erin", "frank");
+            server.logSessionText("alice", "bob", "a0");
+            server.logSessionText("carol", "dave", "c0");
+            server.logSessionText("dave", "carol", "d0");
+            server.logSessionText("erin", "frank", "e0");
+            server.deActivateSession("carol", "dave");
+            server.deActivateSession("frank", "erin");
+
+            // Within the budget and the TTL nothing goes, inactive or not.
+            server.logSessionText("alice", "bob", "a1");
+            assertEquals(3, server.getResidentSessionCount());
+            assertEquals(0, server.getSessionEvictions());
+            assertEquals(3, server.getOpenSessionLogCount());
+
+            // Over budget only the inactive sessions go, and their logs are closed with them.
+            config.setSessionMemoryBudget(1);
+            server.logSessionText("alice", "bob", "a2");
+            assertEquals(1, server.getResidentSessionCount());
+            assertEquals(2, server.getSessionEvictions());
+            assertEquals(1, server.getOpenSessionLogCount());
+            assertTrue(server.isSessionActive("alice", "bob"));
+
+            // An evicted session comes back from the store as it was, and carries on from there.
+            config.setSessionMemoryBudget(64L * 1024 * 1024);
+            final long residentBytes = server.getResidentSessionBytes();
+            server.activateSession("dave", "carol");
+            assertEquals(2, server.getResidentSessionCount());
+            assertTrue(server.getResidentSessionBytes() > residentBytes);
+            assertTrue(server.isSessionActive("carol", "dave"));
+            assertEquals(Arrays.asList("carol: c0", "dave: d0"), server.readSessionHistory("carol", "dave", 0, 10));
+            server.logSessionText("carol", "dave", "c1");
+            assertEquals(3, server.getSessionHistorySize("dave", "carol"));
+            assertEquals(Arrays.asList("dave: d0", "carol: c1"), server.readSessionHistory("carol", "dave", 1, 10));
+            assertFalse(server.isSessionActive("erin", "frank"));
+        } finally {
+            server.close();
+            store.close();
+        }
+    }
+
+    @Test
+    public void testSessionSnapshot() throws IOException {
+        final Path directory = Files.createTempDirectory("snapshot");
+        final String snapshotFile = directory.resolve("sessions.snapshot").toString();
+        Server server = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(new MappedSessionLogStore(directory.resolve("sessions"), 128 * 1024))
+                .withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000))
+                .withSnapshotFile(snapshotFile));
+        server.activateSession("alice", "bob");
+        server.activateSession("dave", "carol");
+        for (int i = 0; i < 10; i++) {
+            server.logSessionText("alice", "bob", "m" + i);
+        }
+        server.deActivateSession("carol", "dave");
+        server.close();
+
+        // Sessions come back as they were, only when they are first used.
+        server = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(new MappedSessionLogStore(directory.resolve("sessions"), 128 * 1024))
+                .withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000))
+                .withSnapshotFile(snapshotFile));
+        try {
+            assertEquals(0, server.getResidentSessionCount());
+            assertTrue(server.isSessionActive("bob", "alice"));
+            assertFalse(server.isSessionActive("carol", "dave"));
+            assertFalse(server.isSessionActive("alice", "carol"));
+            assertEquals(2, server.getRestoredSessions());
+            server.logSessionText("bob", "alice", "after restart");
+            assertEquals(11, server.getSessionHistorySize("alice", "bob"));
+            assertEquals(Arrays.asList("bob: after restart"), server.readSessionHistory("alice", "bob", 10, 10));
+        } finally {
+            server.close();
+        }
+        assertTrue(server.getStartupMillis() >= 0);
+    }
+
+    @Test
+    public void testLegacyLogIds() throws IOException {
+        final Path directory = Files.createTempDirectory("legacy");
+        final Path snapshotFile = directory.resolve("sessions.snapshot");
+        final InMemorySessionLogStore store = new InMemorySessionLogStore();
+        // History written when log ids were the two names concatenated, "abc" shared by a+bc and ab+c.
+        store.append("xy", "x: one");
+        store.append("xy", "y: two");
+        store.append("abc", "a: mixed");
+        store.append("pq", "p: unrecorded");
+        final long now = System.currentTimeMillis();
+        SessionSnapshot.write(snapshotFile, Arrays.asList(
+                new SessionSnapshot.Entry("xy", "x", "y", SessionStatusEnum.INACTIVE, 2, now),
+                new SessionSnapshot.Entry("abc", "a", "bc", SessionStatusEnum.INACTIVE, 1, now),
+                new SessionSnapshot.Entry("abc", "ab", "c", SessionStatusEnum.INACTIVE, 1, now)), now);
+        final Server server = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(store).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000))
+                .withSnapshotFile(snapshotFile.toString()));
+        try {
+            // The snapshot says whose history "xy" is, so that session keeps it.
+            assertEquals(2, server.getSessionHistorySize("y", "x"));
+            server.activateSession("x", "y");
+            server.logSessionText("x", "y", "three");
+            assertEquals(Arrays.asList("x: one", "y: two", "x: three"), server.readSessionHistory("x", "y", 0, 10));
+            // Shared or unrecorded old ids are left alone rather than shown to the wrong users.
+            assertEquals(0, server.getSessionHistorySize("a", "bc"));
+            assertEquals(0, server.getSessionHistorySize("ab", "c"));
+            server.activateSession("ab", "c");
+            server.logSessionText("ab", "c", "new");
+            assertEquals(1, store.size("ab" + Server.LOG_ID_SEPARATOR + "c"));
+            assertEquals(1, store.size("abc"));
+            assertEquals(0, server.getSessionHistorySize("p", "q"));
+
+            // The separator can't be part of a user name.
+            final List<Message> sent = new ArrayList<>();
+            final Connection connection = loggingIn(sent);
+            server.getRouter().processMessage(connection, new Message().withType(MessageTypeEnum.LOGIN).withSourceUser("ab" + Server.LOG_ID_SEPARATOR + "c"));
+            assertEquals(MessageTypeEnum.LOGIN_DENIED, sent.get(0).getType());
+            assertNull(connection.getUserName());
+        } finally {
+            server.close();
+            Files.deleteIfExists(snapshotFile);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void testHistory() throws IOException {
+        final Server server = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000))
+                .withHistoryPageSize(100));
+        try {
+            final List<Message> toAlice = new ArrayList<>();
+            final Connection alice = recording("alice", toAlice);
+            assertTrue(server.claimUserName("alice", alice));
+            server.activateSession("alice", "bob");
+            for (int i = 0; i < 250; i++) {
+                server.logSessionText("bob", "alice", "m" + i);
+            }
+
+            // The newest page first, then each page before it, with pages capped at the configured size.
+            server.getRouter().processMessage(alice, new Message().withType(MessageTypeEnum.HISTORY).withSourceUser("alice").withTargetUser("bob").withText(",500"));
+            assertEquals(101, toAlice.size());
+            assertEquals("bob: m150", toAlice.get(0).getText());
+            assertEquals("bob: m249", toAlice.get(99).getText());
+            assertEquals(MessageTypeEnum.HISTORY_END, toAlice.get(100).getType());
+            assertEquals("150", toAlice.get(100).getText());
+            toAlice.clear();
+            server.getRouter().processMessage(alice, new Message().withType(MessageTypeEnum.HISTORY).withSourceUser("alice").withTargetUser("bob").withText("50,20"));
+            assertEquals(21, toAlice.size());
+            assertEquals("bob: m30", toAlice.get(0).getText());
+            assertEquals("30", toAlice.get(20).getText());
+            toAlice.clear();
+            server.getRouter().processMessage(alice, new Message().withType(MessageTypeEnum.HISTORY).withSourceUser("alice").withTargetUser("bob").withText("10,20"));
+            assertEquals("bob: m0", toAlice.get(0).getText());
+            assertEquals("0", toAlice.get(10).getText());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testCompactIds() throws IOException {
+        // Keys that all land in the same run, then enough to resize the table several times.
+        final LongObjectMap<String> map = new LongObjectMap<>();
+        for (long key = 0; key < 1000; key++) {
+            assertNull(map.put(key << 32 | key, "v" + key));
+        }
+        for (long key = 0; key < 1000; key += 2) {
+            assertEquals("v" + key, map.remove(key << 32 | key));
+        }
+        assertEquals(500, map.size());
+        for (long key = 0; key < 1000; key++) {
+            assertEquals(key % 2 == 0 ? null : "v" + key, map.get(key << 32 | key));
+        }
+        // Only removed if it still maps to that very value.
+        final String one = map.get(1L << 32 | 1);
+        assertFalse(map.remove(1L << 32 | 1, map.get(3L << 32 | 3)));
+        assertTrue(map.remove(1L << 32 | 1, one));
+
+        final Server server = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000)));
+        try {
+            // "ab" + "c" and "a" + "bc" used to be the same session.
+            server.activateSession("ab", "c");
+            server.activateSession("bc", "a");
+            server.logSessionText("ab", "c", "one");
+            server.logSessionText("c", "ab", "two");
+            server.logSessionText("a", "bc", "three");
+            assertEquals(2, server.getSessionHistorySize("c", "ab"));
+            assertEquals(1, server.getSessionHistorySize("a", "bc"));
+            assertEquals(2, server.getResidentSessionCount());
+            assertFalse(server.isSessionActive("ab", "bc"));
+            assertFalse(server.isSessionActive("ab", "nobody"));
+            server.deActivateSession("c", "ab");
+            assertFalse(server.isSessionActive("ab", "c"));
+            assertTrue(server.isSessionActive("a", "bc"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRateLimiter() throws IOException {
+        final ServerConfig config = new ServerConfig()
+                .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000))
+                .withFrameRateLimit(new RateLimit(100, 100))
+                .withMessageRateLimit(new RateLimit(10, 5))
+                .withThrottleStrikeLimit(new RateLimit(1, 3));
+        final RateLimiter limiter = new RateLimiter(config, 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(RateLimiter.Verdict.ACCEPT, limiter.acquire(MessageTypeEnum.MESSAGE, 0));
+        }
+        // Messages are out for 100ms, other types have budgets of their own.
+        assertEquals(RateLimiter.Verdict.THROTTLE, limiter.acquire(MessageTypeEnum.ROOM_MESSAGE, 0));
+        assertEquals(100, limiter.getRetryMillis());
+        assertEquals(RateLimiter.Verdict.ACCEPT, limiter.acquire(MessageTypeEnum.TYPING, 0));
+        assertEquals(RateLimiter.Verdict.ACCEPT, limiter.acquire(MessageTypeEnum.MESSAGE, 100_000_000L));
+        assertEquals(RateLimiter.Verdict.THROTTLE, limiter.acquire(MessageTypeEnum.MESSAGE, 100_000_000L));
+        assertEquals(RateLimiter.Verdict.THROTTLE, limiter.acquire(MessageTypeEnum.MESSAGE, 100_000_000L));
+        assertEquals(RateLimiter.Verdict.ACCEPT, limiter.acquire(MessageTypeEnum.LOGOUT, 100_000_000L));
+        // Out of strikes.
+        assertEquals(RateLimiter.Verdict.DISCONNECT, limiter.acquire(MessageTypeEnum.MESSAGE, 100_000_000L));
+        assertEquals(10, RateLimit.from("10/40").getPerSecond(), 0);
+        assertEquals(40, RateLimit.from("10/40").getBurst());
+        assertTrue(RateLimit.from("0").isUnlimited());
+        assertNull(RateLimit.from("fast"));
+
+        final Server server = new Server(new ServerSocket(0), ConnectionThreads.platform(), config.withInviteRateLimit(new RateLimit(1, 1)));
+        try {
+            final List<Message> toAlice = new ArrayList<>();
+            final Connection alice = recording("alice", toAlice);
+            final RateLimiter aliceLimiter = new RateLimiter(server.getConfig(), System.nanoTime());
+            final Message invite = new Message().withType(MessageTypeEnum.INVITE).withSourceUser("alice").withTargetUser("bob");
+            assertTrue(server.getRouter().admit(alice, aliceLimiter, invite));
+            assertFalse(server.getRouter().admit(alice, aliceLimiter, invite));
+            assertEquals(MessageTypeEnum.THROTTLED, toAlice.get(0).getType());
+            assertTrue(toAlice.get(0).getText().startsWith("INVITE,"));
+            // Typing signals over the limit are dropped without a reply.
+            final RateLimiter typingLimiter = new RateLimiter(new ServerConfig().withTypingRateLimit(new RateLimit(1, 1)), System.nanoTime());
+            final Message typing = new Message().withType(MessageTypeEnum.TYPING).withSourceUser("alice").withTargetUser("bob");
+            assertTrue(server.getRouter().admit(alice, typingLimiter, typing));
+            assertFalse(server.getRouter().admit(alice, typingLimiter, typing));
+            assertEquals(1, toAlice.size());
+            assertEquals(1, server.getMetrics().getThrottled(MessageTypeEnum.INVITE));
+            assertEquals(1, server.getMetrics().getThrottled(MessageTypeEnum.TYPING));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testClientEvents() throws InterruptedException {
+        final ExecutorService ui = Executors.newSingleThreadExecutor();
+        final List<Message> handled = new ArrayList<>();
+        final List<Integer> batches = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final ClientEvents events = new ClientEvents(ui, new ClientEvents.Handler() {
+            @Override
+            public void handle(final Message message) {
+                if ("boom".equals(message.getText())) {
+                    throw new IllegalStateException("boom");
+                }
+                handled.add(message);
+            }
+
+            @Override
+            public void endBatch() {
+                batches.add(handled.size());
+                if (10000 == handled.size()) {
+                    done.countDown();
+                }
+            }
+        }, 100);
+        try {
+            // A stalled UI holds up the handler but never the thread posting.
+            final CountDownLatch stalled = new CountDownLatch(1);
+            ui.execute(() -> {
+                try {
+                    stalled.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            events.post(new Message().withType(MessageTypeEnum.MESSAGE).withText("boom"));
+            for (int i = 0; i < 10000; i++) {
+                events.post(new Message().withType(MessageTypeEnum.MESSAGE).withText(String.valueOf(i)));
+            }
+            assertEquals(10001, events.getBacklog());
+            stalled.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            ui.shutdown();
+            assertTrue(ui.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(10000, handled.size());
+            for (int i = 0; i < 10000; i++) {
+                assertEquals(String.valueOf(i), handled.get(i).getText());
+            }
+            // Capped batches, each ended once.
+            assertEquals(101, batches.size());
+            assertEquals(99, (int) batches.get(0));
+            assertEquals(10000, (int) batches.get(batches.size() - 1));
+            assertEquals(0, events.getBacklog());
+        } finally {
+            ui.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOutboundQueue() throws IOException, InterruptedException {
+        final Message typing = new Message().withType(MessageTypeEnum.TYPING).withSourceUser("alice");
+        final Message message = new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("alice").withText("hi");
+        final int[] scheduled = {0};
+
+        // Disconnect as soon as it is full.
+        OutboundQueue queue = new OutboundQueue(2, OverflowPolicyEnum.DISCONNECT, () -> scheduled[0]++);
+        assertTrue(queue.offer(typing));
+        assertTrue(queue.offer(message));
+        assertFalse(queue.offer(message));
+        assertEquals(2, queue.getDepth());
+
+        // Drop the message being sent and carry on.
+        queue = new OutboundQueue(1, OverflowPolicyEnum.DROP_NEWEST, () -> scheduled[0]++);
+        assertTrue(queue.offer(message));
+        assertTrue(queue.offer(message));
+        assertEquals(1, queue.getDepth());
+        assertEquals(1, queue.getDropped());
+
+        // Typing indicators make room for real messages, new ones are dropped, and with none left it disconnects.
+        queue = new OutboundQueue(2, OverflowPolicyEnum.DROP_TYPING_THEN_DISCONNECT, () -> scheduled[0]++);
+        assertTrue(queue.offer(message));
+        assertTrue(queue.offer(typing));
+        assertTrue(queue.offer(typing));
+        assertEquals(1, queue.getDropped());
+        assertTrue(queue.offer(message));
+        assertEquals(2, queue.getDropped());
+        assertEquals(2, queue.getDepth());
+        assertFalse(queue.offer(message));
+        final List<Message> written = new ArrayList<>();
+        final int[] flushes = {0};
+        queue.drain(writer(written, flushes, Integer.MAX_VALUE));
+        assertEquals(Arrays.asList(message, message), written);
+
+        // Only the first offer into an idle queue schedules a drain, whichever thread makes it.
+        scheduled[0] = 0;
+        final OutboundQueue shared = new OutboundQueue(100000, OverflowPolicyEnum.DISCONNECT, () -> scheduled[0]++);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 4; i++) {
+            executor.execute(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    shared.offer(message);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduled[0]);
+        assertEquals(4000, shared.getDepth());
+        // A writer that backs up stops the drain, and is flushed once per batch.
+        written.clear();
+        flushes[0] = 0;
+        shared.drain(writer(written, flushes, 1500));
+        assertEquals(1500, written.size());
+        assertEquals(1, flushes[0]);
+        assertEquals(2500, shared.getDepth());
+        // It is up to the writer to drain again once ready, and a new offer schedules one.
+        shared.offer(message);
+        assertEquals(2, scheduled[0]);
+        shared.drain(writer(written, flushes, Integer.MAX_VALUE));
+        assertEquals(4001, written.size());
+        assertEquals(0, shared.getDepth());
+        shared.offer(message);
+        assertEquals(3, scheduled[0]);
+    }
+
+    @Test
+    public void testIdleReaper() throws IOException {
+        final LongAdder pings = new LongAdder();
+        final LongAdder reaped = new LongAdder();
+        final IdleReaper reaper = new IdleReaper(3, 2, pings, reaped);
+        final List<Message> toAlice = new ArrayList<>();
+        final List<Message> toBob = new ArrayList<>();
+        final List<Message> toCarol = new ArrayList<>();
+        final IdleReaper.Entry alice = reaper.track(recording("alice", toAlice));
+        reaper.track(recording("bob", toBob));
+        final IdleReaper.Entry carol = reaper.track(recording("carol", toCarol));
+        // Alice keeps talking, bob goes quiet, carol only answers the ping.
+        for (int tick = 1; tick <= 3; tick++) {
+            reaper.tick();
+            alice.touch();
+        }
+        assertTrue(toAlice.isEmpty());
+        assertEquals(MessageTypeEnum.PING, toBob.get(0).getType());
+        assertEquals(MessageTypeEnum.PING, toCarol.get(0).getType());
+        assertEquals(2, pings.sum());
+        carol.touch();
+        for (int tick = 4; tick <= 5; tick++) {
+            reaper.tick();
+            alice.touch();
+        }
+        assertEquals(1, reaped.sum());
+        assertEquals(2, reaper.size());
+        assertEquals(1, toCarol.size());
+        // Closed connections stop being tracked.
+        carol.cancel();
+        alice.cancel();
+        assertEquals(0, reaper.size());
+        for (int tick = 6; tick <= 40; tick++) {
+            reaper.tick();
+        }
+        assertEquals(2, pings.sum());
+
+        final Server server = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000)));
+        try {
+            // Answered whether logged in or not.
+            final List<Message> toDave = new ArrayList<>();
+            server.getRouter().processMessage(recording(null, toDave), new Message().withType(MessageTypeEnum.PING).withSourceUser("-"));
+            server.getRouter().processMessage(recording(null, toDave), new Message().withType(MessageTypeEnum.PONG).withSourceUser("-"));
+            assertEquals(1, toDave.size());
+            assertEquals(MessageTypeEnum.PONG, toDave.get(0).getType());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testTranscript() throws IOException {
+        final Path directory = Files.createTempDirectory("transcript");
+        final Transcript transcript = new Transcript(directory, 100);
+        try {
+            for (int i = 0; i < 100000; i++) {
+                transcript.add("row " + i);
+            }
+            assertEquals(100000, transcript.size());
+            assertEquals("row 99999", transcript.get(99999));
+            // Older rows come back from the cache a page at a time, and only a few pages are kept.
+            for (int i = 0; i < 100000; i += 997) {
+                assertEquals("row " + i, transcript.get(i));
+            }
+            assertTrue(transcript.getResident() < 3000);
+            transcript.addFirst(Arrays.asList("older 0", "older 1"));
+            transcript.addFirst(Arrays.asList("oldest"));
+            assertEquals(100003, transcript.size());
+            assertEquals("oldest", transcript.get(0));
+            assertEquals("older 1", transcript.get(2));
+            assertEquals("row 0", transcript.get(3));
+            transcript.add("row 100000");
+            assertEquals("row 100000", transcript.get(100003));
+            assertEquals("row 99900", transcript.get(99903));
+
+            assertEquals(Arrays.asList("<alice>: a", "b"), Transcript.wrap("<alice>: a\nb", 60));
+            assertEquals(Arrays.asList("the quick", "brown fox", "abcdefghij", "klm"), Transcript.wrap("the quick brown fox abcdefghijklm", 10));
+        } finally {
+            transcript.close();
+        }
+        assertFalse(Files.exists(directory));
+    }
+
+    @Test
+    public void testNioFrames() throws IOException, InterruptedException {
+        final ServerSocketChannel channel = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        final Server server = new Server(channel, 1, new ServerConfig()
+                .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000)));
+        try (Socket socket = new Socket("127.0.0.1", channel.socket().getLocalPort())) {
+            socket.setTcpNoDelay(true);
+            final OutputStream out = socket.getOutputStream();
+            final FrameReader reader = new FrameReader(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+            final byte[] small = frame(new Message().withType(MessageTypeEnum.PING).withSourceUser("-"));
+            final char[] text = new char[5000];
+            Arrays.fill(text, 'x');
+            final byte[] large = frame(new Message().withType(MessageTypeEnum.PING).withSourceUser("-").withText(new String(text)));
+            // Part of the header, then the rest of it with part of the body, then the rest of the body.
+            for (int[] split : new int[][]{{1, 5}, {5, small.length}, {small.length, small.length}}) {
+                out.write(small, 0, split[0]);
+                out.flush();
+                Thread.sleep(20);
+                out.write(small, split[0], split[1] - split[0]);
+                out.flush();
+                Thread.sleep(20);
+                out.write(small, split[1], small.length - split[1]);
+                out.flush();
+                assertEquals(MessageTypeEnum.PONG, reader.read(MessageCodecs.TEXT).getType());
+            }
+            // Several frames in one write, then a frame larger than the read buffer arriving in two pieces.
+            final ByteArrayOutputStream several = new ByteArrayOutputStream();
+            for (int i = 0; i < 3; i++) {
+                several.write(small);
+            }
+            out.write(several.toByteArray());
+            out.write(large, 0, 1000);
+            out.flush();
+            Thread.sleep(20);
+            out.write(large, 1000, large.length - 1000);
+            out.flush();
+            for (int i = 0; i < 4; i++) {
+                assertEquals(MessageTypeEnum.PONG, reader.read(MessageCodecs.TEXT).getType());
+            }
+        } finally {
+            server.close();
+        }
+
+        // A task that throws doesn't stop the loop running the ones after it.
+        final NioEventLoop loop = new NioEventLoop(99);
+        try {
+            final CountDownLatch ran = new CountDownLatch(1);
+            loop.execute(() -> {
+                throw new IllegalStateException("test");
+            });
+            loop.execute(ran::countDown);
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        } finally {
+            loop.close();
+        }
+    }
+
+    @Test
+    public void testTls() throws IOException, GeneralSecurityException {
+        final Path directory = Files.createTempDirectory("tls");
+        final char[] password = "messenger".toCharArray();
+        final Path keyStore = directory.resolve("server.p12");
+        final Path trustStore = directory.resolve("client.p12");
+        try {
+            TlsContexts.selfSigned(keyStore, trustStore, password);
+            final SSLContext client = TlsContexts.client(trustStore, password);
+            for (String mode : Arrays.asList("blocking", "nio")) {
+                final ServerConfig config = new ServerConfig()
+                        .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000))
+                        .withSslContext(TlsContexts.server(keyStore, password));
+                final Server server;
+                final int port;
+                if ("nio".equals(mode)) {
+                    final ServerSocketChannel channel = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+                    port = channel.socket().getLocalPort();
+                    server = new Server(channel, 1, config);
+                } else {
+                    final ServerSocket serverSocket = new ServerSocket(0);
+                    port = serverSocket.getLocalPort();
+                    server = new Server(serverSocket, ConnectionThreads.platform(), config);
+                }
+                try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("127.0.0.1", port)) {
+                    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    final FrameReader reader = new FrameReader(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+                    // Larger than a TLS record, so the frame arrives in pieces.
+                    final char[] text = new char[60000];
+                    Arrays.fill(text, 'x');
+                    for (int i = 0; i < 3; i++) {
+                        MessageCodecs.TEXT.write(new Message().withType(MessageTypeEnum.PING).withSourceUser("-").withText(new String(text)), out);
+                        out.flush();
+                        assertEquals(mode, MessageTypeEnum.PONG, reader.read(MessageCodecs.TEXT).getType());
+                    }
+                    assertTrue(mode, socket.getSession().getProtocol().startsWith("TLS"));
+                    if ("nio".equals(mode)) {
+                        // Closing ends the session with a close_notify, and the client sees the end of the stream.
+                        server.close();
+                        try {
+                            reader.read(MessageCodecs.TEXT);
+                            fail(mode);
+                        } catch (EOFException e) {
+                            // Expected.
+                        }
+                    }
+                } finally {
+                    server.close();
+                }
+            }
+        } finally {
+            Files.deleteIfExists(keyStore);
+            Files.deleteIfExists(trustStore);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void testSegmentOfflineQueueStore() throws IOException, InterruptedException {
+        final Path directory = Files.createTempDirectory("offline");
+        OfflineQueueStore store = new SegmentOfflineQueueStore(directory, 256, 100, 100000, 60000, 10);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(store.append("a/b", new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("c").withText("message " + i)));
+        }
+        // The per user quota refuses anything more.
+        assertTrue(!store.append("a/b", new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("c").withText("too many")));
+        assertEquals(100, store.size());
+
+        final OfflineBatch batch = store.peek("a/b", 30);
+        final List<Message> first = batch.getMessages();
+        assertEquals(30, first.size());
+        assertEquals("message 0", first.get(0).getText());
+        assertEquals("c", first.get(0).getSourceUser());
+        store.remove("a/b", batch);
+        store.close();
+
+        // What was left survives a restart, in order, across segment files.
+        store = new SegmentOfflineQueueStore(directory, 256, 100, 100000, 60000, 10);
+        assertEquals(70, store.size("a/b"));
+        assertEquals("message 30", store.peek("a/b", 1).getMessages().get(0).getText());
+        store.remove("a/b", store.peek("a/b", 70));
+        assertEquals(0, store.size());
+        store.close();
+
+        // Removing a batch takes off only what it peeked, even if older messages expired in between, and nothing
+        // from a queue that was emptied and started again.
+        store = new SegmentOfflineQueueStore(directory, 256, 100, 100000, 50, 10);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(store.append("e", new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("c").withText("old " + i)));
+        }
+        final OfflineBatch old = store.peek("e", 2);
+        Thread.sleep(60);
+        assertTrue(store.append("e", new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("c").withText("new")));
+        assertEquals(3, store.expire());
+        store.remove("e", old);
+        assertEquals(1, store.size("e"));
+        assertEquals("new", store.peek("e", 10).getMessages().get(0).getText());
+        store.remove("e", store.peek("e", 10));
+        assertTrue(store.append("e", new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("c").withText("again")));
+        store.remove("e", old);
+        assertEquals(1, store.size("e"));
+        store.remove("e", store.peek("e", 10));
+        store.close();
+
+        // Messages past their time to live are dropped, and an emptied queue leaves nothing behind.
+        store = new SegmentOfflineQueueStore(directory, 256, 100, 100000, 1, 10);
+        assertTrue(store.append("d", new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("c").withText("stale")));
+        Thread.sleep(5);
+        assertEquals(1, store.expire());
+        assertEquals(0, store.size("d"));
+        store.close();
+        try (Stream<Path> left = Files.list(directory)) {
+            assertEquals(0, left.count());
+        }
+    }
+
+    @Test
+    public void testHistogram() {
+        final Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        // Small values are exact, larger ones within a bucket width (1/32) above the real value.
+        assertEquals(50, histogram.getPercentile(0.5));
+        final long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 9900 && p99 <= 9900 + 9900 / 32);
+        assertEquals(10000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testMetricsRegistry() {
+        final MetricsRegistry registry = new MetricsRegistry();
+        registry.counter(MetricsRegistry.label("received_total", "type", "LOGIN")).add(3);
+        registry.gauge("users", () -> 2);
+        registry.histogram("route_nanos").record(10);
+        assertTrue(registry.toText().contains("received_total{type=\"LOGIN\"} 3\n"));
+        assertTrue(registry.toText().contains("route_nanos{quantile=\"0.99\"} 10\n"));
+        assertEquals(Long.valueOf(3), registry.attributes().get("received_total_LOGIN"));
+        assertEquals(Long.valueOf(2), registry.attributes().get("users"));
+        assertEquals(Long.valueOf(1), registry.attributes().get("route_nanos_count"));
+    }
+
+    @Test
+    public void testPresenceCoalescer() throws InterruptedException {
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final List<MessageTypeEnum> forwarded = new ArrayList<>();
+        final int[] depth = {0};
+        final PresenceCoalescer coalescer = new PresenceCoalescer(50, 10, scheduler, new PresenceCoalescer.Target() {
+            @Override
+            public int getQueueDepth(final String userName) {
+                return depth[0];
+            }
+
+            @Override
+            public void forward(final String sourceUserName, final Connection source, final Message message) {
+                synchronized (forwarded) {
+                    forwarded.add(message.getType());
+                }
+            }
+        }, new LongAdder());
+        final Connection alice = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, args) -> "getUserName".equals(method.getName()) ? "alice" : null);
+
+        // The first signal goes straight through, the burst after it only forwards its latest state.
+        for (MessageTypeEnum type : Arrays.asList(MessageTypeEnum.TYPING, MessageTypeEnum.NOT_TYPING,
+                MessageTypeEnum.TYPING, MessageTypeEnum.TEXT_CLEARED)) {
+            coalescer.offer(alice, new Message().withType(type).withSourceUser("alice").withTargetUser("bob"));
+        }
+        Thread.sleep(300);
+        synchronized (forwarded) {
+            assertEquals(Arrays.asList(MessageTypeEnum.TYPING, MessageTypeEnum.TEXT_CLEARED), forwarded);
+        }
+        assertEquals(2, coalescer.getSuppressed());
+
+        // A backed up target gets nothing until it drains, then only the latest state.
+        forwarded.clear();
+        depth[0] = 10;
+        coalescer.offer(alice, new Message().withType(MessageTypeEnum.TYPING).withSourceUser("alice").withTargetUser("bob"));
+        coalescer.offer(alice, new Message().withType(MessageTypeEnum.NOT_TYPING).withSourceUser("alice").withTargetUser("bob"));
+        Thread.sleep(150);
+        synchronized (forwarded) {
+            assertTrue(forwarded.isEmpty());
+        }
+        depth[0] = 0;
+        Thread.sleep(200);
+        synchronized (forwarded) {
+            assertEquals(Arrays.asList(MessageTypeEnum.NOT_TYPING), forwarded);
+        }
+        assertEquals(3, coalescer.getSuppressed());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testRoomSharedMessage() throws IOException {
+        final Room room = new Room("lobby");
+        final Connection alice = named("alice");
+        final Connection bob = named("bob");
+        assertTrue(room.join(alice));
+        assertTrue(room.join(bob));
+        assertTrue(!room.join(bob));
+        assertEquals(2, room.getMembers().length);
+        assertTrue(room.leave("alice", alice));
+        assertTrue(!room.isMember(alice));
+        assertEquals(1, room.size());
+
+        // Every member gets the same bytes a plain message would have been written as, encoded only once per codec.
+        final Message message = new Message()
+                .withType(MessageTypeEnum.ROOM_MESSAGE)
+                .withSourceUser("bob")
+                .withTargetUser("lobby")
+                .withText("hi all");
+        final SharedMessage shared = new SharedMessage(message);
+        for (MessageCodec codec : Arrays.asList(MessageCodecs.TEXT, MessageCodecs.BINARY)) {
+            final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            codec.write(message, new DataOutputStream(plain));
+            final ByteArrayOutputStream first = new ByteArrayOutputStream();
+            MessageCodecs.write(codec, shared, new DataOutputStream(first));
+            assertTrue(Arrays.equals(plain.toByteArray(), first.toByteArray()));
+            assertTrue(shared.getFrame(codec) == shared.getFrame(codec));
+        }
+        try {
+            shared.setText("changed");
+            assertTrue(false);
+        } catch (UnsupportedOperationException e) {
+            assertEquals("hi all", shared.getText());
+        }
+    }
+
+    @Test
+    public void testUserDirectoryDeltas() {
+        final UserDirectory users = new UserDirectory(2);
+        final List<SharedMessage> pushed = new ArrayList<>();
+        users.setListener(pushed::add);
+        final Connection alice = named("alice");
+        final Connection bob = named("bob");
+        final Connection carol = named("carol");
+
+        assertEquals("0", users.getSnapshot().getText());
+        assertTrue(users.claim("alice", alice));
+        assertTrue(!users.claim("alice", bob));
+        assertTrue(users.claim("bob", bob));
+        assertEquals(2, users.getVersion());
+        assertEquals(2, pushed.size());
+        assertEquals(MessageTypeEnum.USER_JOINED, pushed.get(1).getType());
+        assertEquals("bob", pushed.get(1).getSourceUser());
+        assertEquals("2", pushed.get(1).getText());
+
+        // The snapshot is only rebuilt when the version moves on.
+        final SharedMessage snapshot = users.getSnapshot();
+        assertTrue(snapshot == users.getSnapshot());
+        assertEquals(new HashSet<>(Arrays.asList("2", "alice", "bob")), new HashSet<>(Arrays.asList(snapshot.getText().split(","))));
+
+        // Releasing with the wrong connection changes nothing.
+        users.release("bob", alice);
+        assertEquals(2, users.getVersion());
+        users.release("bob", bob);
+        assertTrue(users.claim("carol", carol));
+        assertTrue(snapshot != users.getSnapshot());
+        assertEquals(new HashSet<>(Arrays.asList("alice", "carol")), new HashSet<>(Arrays.asList(users.getUserList().getText().split(","))));
+
+        // Only the last two deltas are kept, anyone further behind needs a snapshot.
+        assertEquals(0, users.getDeltasSince(4).size());
+        assertEquals(Arrays.asList(MessageTypeEnum.USER_LEFT, MessageTypeEnum.USER_JOINED),
+                Arrays.asList(users.getDeltasSince(2).get(0).getType(), users.getDeltasSince(2).get(1).getType()));
+        assertEquals(null, users.getDeltasSince(1));
+        assertEquals(null, users.getDeltasSince(-1));
+        assertEquals(null, users.getDeltasSince(5));
+    }
+
+    @Test
+    public void testConcurrentLogin() throws IOException, InterruptedException {
+        final Server server = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000)));
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            // Eight connections race to log in as alice, exactly one gets her.
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<List<Message>> sent = new ArrayList<>();
+            final List<Connection> connections = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final List<Message> toConnection = new ArrayList<>();
+                final Connection connection = loggingIn(toConnection);
+                sent.add(toConnection);
+                connections.add(connection);
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        server.getRouter().processMessage(connection, new Message().withType(MessageTypeEnum.LOGIN).withSourceUser("alice"));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            start.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            Connection alice = null;
+            for (int i = 0; i < 8; i++) {
+                final MessageTypeEnum answer = sent.get(i).get(0).getType();
+                if (MessageTypeEnum.LOGIN_ACK == answer) {
+                    assertNull("two connections got alice", alice);
+                    alice = connections.get(i);
+                } else {
+                    assertEquals(MessageTypeEnum.LOGIN_DENIED, answer);
+                    assertNull(connections.get(i).getUserName());
+                }
+            }
+            assertTrue(alice == server.getUserByUserName("alice"));
+            assertEquals(1, server.getUsersVersion());
+
+            // Renaming takes the new name before giving up the old one, one delta each.
+            server.getRouter().processMessage(alice, new Message().withType(MessageTypeEnum.LOGIN).withSourceUser("alicia"));
+            assertEquals("alicia", alice.getUserName());
+            assertNull(server.getUserByUserName("alice"));
+            assertTrue(alice == server.getUserByUserName("alicia"));
+            assertEquals(3, server.getUsersVersion());
+            final List<? extends Message> deltas = server.getPresenceFeed().subscribe(recording("bob", new ArrayList<>()), "1");
+            assertEquals(2, deltas.size());
+            assertEquals(MessageTypeEnum.USER_JOINED, deltas.get(0).getType());
+            assertEquals("alicia", deltas.get(0).getSourceUser());
+            assertEquals("2", deltas.get(0).getText());
+            assertEquals(MessageTypeEnum.USER_LEFT, deltas.get(1).getType());
+            assertEquals("alice", deltas.get(1).getSourceUser());
+            assertEquals("3", deltas.get(1).getText());
+            assertEquals(new HashSet<>(Arrays.asList("alicia")), new HashSet<>(server.getActiveUsers()));
+        } finally {
+            executor.shutdownNow();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testPresenceSnapshotOnDrain() throws IOException {
+        final Server server = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000))
+                .withPresenceBackedUpDepth(4));
+        try {
+            final List<Message> sent = new ArrayList<>();
+            final List<Consumer<Boolean>> receipts = new ArrayList<>();
+            final int[] depth = {0};
+            final Connection recorder = loggingIn(sent, receipts);
+            final Connection subscriber = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> "getQueueDepth".equals(method.getName()) ? depth[0] : method.invoke(recorder, args));
+            server.getPresenceFeed().subscribe(subscriber, Long.toString(server.getUsersVersion()));
+            server.getRouter().processMessage(loggingIn(new ArrayList<>()), new Message().withType(MessageTypeEnum.LOGIN).withSourceUser("alice"));
+            assertEquals(1, sent.size());
+            assertEquals(MessageTypeEnum.USER_JOINED, sent.get(0).getType());
+
+            // Backed up, the deltas are skipped and one receipt waits for the queue to be written.
+            depth[0] = 4;
+            server.getRouter().processMessage(loggingIn(new ArrayList<>()), new Message().withType(MessageTypeEnum.LOGIN).withSourceUser("bob"));
+            server.getRouter().processMessage(loggingIn(new ArrayList<>()), new Message().withType(MessageTypeEnum.LOGIN).withSourceUser("carol"));
+            assertEquals(1, sent.size());
+            assertEquals(1, receipts.size());
+
+            // Still backed up once written, so it waits for the next lot.
+            receipts.remove(0).accept(true);
+            assertEquals(1, sent.size());
+            assertEquals(1, receipts.size());
+
+            // Drained with presence quiet, the snapshot goes anyway.
+            depth[0] = 0;
+            receipts.remove(0).accept(true);
+            assertEquals(2, sent.size());
+            assertEquals(MessageTypeEnum.USERS_SNAPSHOT, sent.get(1).getType());
+            assertEquals(new HashSet<>(Arrays.asList("alice", "bob", "carol")),
+                    new HashSet<>(Arrays.asList(sent.get(1).getText().split(",")).subList(1, 4)));
+            assertTrue(receipts.isEmpty());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testOfflineDelivery() throws IOException, InterruptedException {
+        final Server server = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000))
+                .withOfflineBatchSize(2));
+        try {
+            final OfflineDelivery offline = server.getOfflineDelivery();
+            for (int i = 0; i < 3; i++) {
+                assertTrue(offline.enqueue("alice", new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("bob").withText("m" + i)));
+            }
+            // Held from before the name is claimed until the login hands it over.
+            offline.hold("carol");
+            assertTrue(offline.isDraining("carol"));
+            offline.unhold("carol");
+            assertFalse(offline.isDraining("carol"));
+
+            final List<Message> toAlice = new ArrayList<>();
+            final List<Consumer<Boolean>> receipts = new ArrayList<>();
+            final Connection alice = loggingIn(toAlice, receipts);
+            server.getRouter().processMessage(alice, new Message().withType(MessageTypeEnum.LOGIN).withSourceUser("alice"));
+            awaitTrue(() -> { synchronized (receipts) { return 1 == receipts.size(); } });
+            synchronized (toAlice) {
+                assertEquals(3, toAlice.size());
+                assertEquals(MessageTypeEnum.LOGIN_ACK, toAlice.get(0).getType());
+                assertEquals("m0", toAlice.get(1).getText());
+                assertEquals("m1", toAlice.get(2).getText());
+            }
+            // Nothing leaves the queue until the connection has written it.
+            assertEquals(3, offline.getStore().size("alice"));
+            assertTrue(offline.isDraining("alice"));
+
+            receipts.get(0).accept(true);
+            awaitTrue(() -> { synchronized (receipts) { return 2 == receipts.size(); } });
+            assertEquals(1, offline.getStore().size("alice"));
+            synchronized (toAlice) {
+                assertEquals("m2", toAlice.get(3).getText());
+            }
+
+            // The connection closed before writing the last one, so it waits for her next login.
+            receipts.get(1).accept(false);
+            awaitTrue(() -> !offline.isDraining("alice"));
+            assertEquals(1, offline.getStore().size("alice"));
+
+            // A duplicate LOGIN holds the queue of a user already online; what was queued for them meanwhile is handed
+            // to them once it is refused.
+            final List<Message> toDave = new ArrayList<>();
+            final List<Consumer<Boolean>> daveReceipts = new ArrayList<>();
+            final Connection dave = loggingIn(toDave, daveReceipts);
+            server.getRouter().processMessage(dave, new Message().withType(MessageTypeEnum.LOGIN).withSourceUser("dave"));
+            awaitTrue(() -> !offline.isDraining("dave"));
+            offline.hold("dave");
+            assertTrue(offline.enqueue("dave", new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("bob").withText("meanwhile")));
+            offline.unhold("dave");
+            final List<Message> toImpostor = new ArrayList<>();
+            server.getRouter().processMessage(loggingIn(toImpostor), new Message().withType(MessageTypeEnum.LOGIN).withSourceUser("dave"));
+            assertEquals(MessageTypeEnum.LOGIN_DENIED, toImpostor.get(0).getType());
+            awaitTrue(() -> { synchronized (daveReceipts) { return 1 == daveReceipts.size(); } });
+            synchronized (toDave) {
+                assertEquals("meanwhile", toDave.get(toDave.size() - 1).getText());
+            }
+            daveReceipts.get(0).accept(true);
+            awaitTrue(() -> !offline.isDraining("dave"));
+            assertEquals(0, offline.getStore().size("dave"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testCluster() throws IOException, InterruptedException {
+        final LoopbackMessageBus bus = new LoopbackMessageBus();
+        final Server one = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000))
+                .withMessageBus(bus).withNodeId("one"));
+        final Server two = new Server(new ServerSocket(0), ConnectionThreads.platform(), new ServerConfig()
+                .withSessionLogStore(new InMemorySessionLogStore()).withOfflineQueueStore(new InMemoryOfflineQueueStore(10, 1024, 60000))
+                .withMessageBus(bus).withNodeId("two"));
+        try {
+            final List<Message> toAlice = new ArrayList<>();
+            final List<Message> toBob = new ArrayList<>();
+            final Connection alice = recording("alice", toAlice);
+            final Connection bob = recording("bob", toBob);
+            assertTrue(one.claimUserName("alice", alice));
+            assertTrue(two.claimUserName("bob", bob));
+
+            // Each node sees the other's user, and the name can't be taken twice.
+            awaitTrue(() -> two.getUserByUserName("alice") instanceof RemoteConnection && null != one.getUserByUserName("bob"));
+            assertTrue(!two.claimUserName("alice", named("alice")));
+            assertEquals(2, one.getActiveUsers().size());
+
+            // An invite and a chat message cross nodes through the ordinary routing.
+            one.getRouter().processMessage(alice, new Message().withType(MessageTypeEnum.INVITE).withSourceUser("alice").withTargetUser("bob"));
+            awaitTrue(() -> received(toBob, MessageTypeEnum.INVITE));
+            two.getRouter().processMessage(bob, new Message().withType(MessageTypeEnum.INVITE_ACCEPT).withSourceUser("bob").withTargetUser("alice"));
+            awaitTrue(() -> received(toAlice, MessageTypeEnum.INVITE_ACCEPT) && one.isSessionActive("alice", "bob"));
+            one.getRouter().processMessage(alice, new Message().withType(MessageTypeEnum.MESSAGE).withSourceUser("alice").withTargetUser("bob").withText("hi"));
+            awaitTrue(() -> received(toBob, MessageTypeEnum.MESSAGE));
+
+            // Users go when they log out or their node leaves.
+            one.releaseUserName("alice", alice);
+            awaitTrue(() -> null == two.getUserByUserName("alice"));
+            two.close();
+            awaitTrue(() -> null == one.getUserByUserName("bob"));
+        } finally {
+            one.close();
+            two.close();
+        }
+    }
+
+    // The text codec frame of the message, header included.
+    private static byte[] frame(final Message message) throws IOException {
+        final ByteBuffer frame = MessageCodecs.TEXT.toFrame(message);
+        final byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    private static void awaitTrue(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean received(final List<Message> messages, final MessageTypeEnum type) {
+        synchronized (messages) {
+            return messages.stream().anyMatch(message -> type == message.getType());
+        }
+    }
+
+    // A connection that keeps whatever it is sent.
+    private Connection recording(final String userName, final List<Message> sent) {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUserName":
+                            return userName;
+                        case "getThreadId":
+                        case "getQueueDepth":
+                            return 0;
+                        case "send":
+                            synchronized (sent) {
+                                sent.add((Message) args[0]);
+                            }
+                            return null;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    // Takes up to limit messages in all, then reports it is backed up.
+    private static OutboundQueue.Writer writer(final List<Message> written, final int[] flushes, final int limit) {
+        final int start = written.size();
+        return new OutboundQueue.Writer() {
+            @Override
+            public boolean isReady() {
+                return written.size() - start < limit;
+            }
+
+            @Override
+            public void write(final Message message) {
+                written.add(message);
+            }
+
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+
+            @Override
+            public boolean isFlushed() {
+                return true;
+            }
+        };
+    }
+
+    // A connection that records what it is sent and keeps the user name the router gives it.
+    private Connection loggingIn(final List<Message> sent) {
+        return loggingIn(sent, new ArrayList<>());
+    }
+
+    // As above, and keeps the afterSent callbacks for the test to answer.
+    private Connection loggingIn(final List<Message> sent, final List<Consumer<Boolean>> receipts) {
+        final String[] userName = {null};
+        final Connection recorder = recording(null, sent);
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUserName":
+                            return userName[0];
+                        case "setUserName":
+                            userName[0] = (String) args[0];
+                            return null;
+                        case "getCodec":
+                            return MessageCodecs.TEXT;
+                        case "send":
+                            recorder.send((Message) args[0]);
+                            return null;
+                        case "afterSent":
+                            synchronized (receipts) {
+                                receipts.add(receipt(args[0]));
+                            }
+                            return null;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return method.invoke(recorder, args);
+                    }
+                });
+    }
+
+    // The afterSent argument a proxy is handed, which can only be the callback the interface declares.
+    @SuppressWarnings("unchecked")
+    private static Consumer<Boolean> receipt(final Object callback) {
+        return (Consumer<Boolean>) callback;
+    }
+
+    // A connection that only knows its user name, and is only equal to itself.
+    private Connection named(final String userName) {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUserName":
+                            return userName;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return null;
+                    }
+                });
+    }
 }